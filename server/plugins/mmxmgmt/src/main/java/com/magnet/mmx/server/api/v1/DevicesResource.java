@@ -26,6 +26,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorMessages;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorResponse;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.query.DateRange;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.query.DeviceQuery;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceCache;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceNotFoundException;
@@ -108,7 +109,7 @@ public class DevicesResource extends AbstractBaseResource {
         DeviceDAO deviceDAO = DBUtil.getDeviceDAO();
         DeviceEntity deviceEntity = null;
         try {
-          deviceEntity = deviceDAO.getDevice(appId, deviceId);
+          deviceEntity = DeviceCache.getInstance().getDevice(deviceDAO, appId, deviceId);
         } catch (DeviceNotFoundException e) {
         }
         if (deviceEntity == null) {
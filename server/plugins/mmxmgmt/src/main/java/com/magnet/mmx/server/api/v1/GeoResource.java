@@ -0,0 +1,123 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.api.v1;
+
+import com.magnet.mmx.server.api.v1.protocol.GeoSearchResult;
+import com.magnet.mmx.server.common.data.AppEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorCode;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorMessages;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorResponse;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.query.GeoQuery;
+import com.magnet.mmx.server.plugin.mmxmgmt.context.DeviceLocation;
+import com.magnet.mmx.server.plugin.mmxmgmt.context.GeoLocationIndex;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search the last reported device locations of an app. Either a radius around a point or a
+ * bounding box can be specified. Radius results are sorted by distance.
+ */
+@Path("/geo/devices")
+@Produces({MediaType.APPLICATION_JSON})
+public class GeoResource {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GeoResource.class);
+
+  static final String LATITUDE_PARAM = "lat";
+  static final String LONGITUDE_PARAM = "lng";
+  static final String RADIUS_PARAM = "radius_km";
+  static final String MIN_LATITUDE_PARAM = "min_lat";
+  static final String MIN_LONGITUDE_PARAM = "min_lng";
+  static final String MAX_LATITUDE_PARAM = "max_lat";
+  static final String MAX_LONGITUDE_PARAM = "max_lng";
+
+  @Context
+  private HttpServletRequest servletRequest;
+
+  @GET
+  public Response searchDevices(@QueryParam(LATITUDE_PARAM) Double latitude,
+                                @QueryParam(LONGITUDE_PARAM) Double longitude,
+                                @QueryParam(RADIUS_PARAM) Double radiusKm,
+                                @QueryParam(MIN_LATITUDE_PARAM) Double minLatitude,
+                                @QueryParam(MIN_LONGITUDE_PARAM) Double minLongitude,
+                                @QueryParam(MAX_LATITUDE_PARAM) Double maxLatitude,
+                                @QueryParam(MAX_LONGITUDE_PARAM) Double maxLongitude,
+                                @QueryParam(MMXServerConstants.SIZE_PARAM) Integer size) {
+    final String methodName = "searchDevices";
+    try {
+      long startTime = System.nanoTime();
+      AppEntity appEntity;
+      Object o = servletRequest.getAttribute(MMXServerConstants.MMX_APP_ENTITY_PROPERTY);
+      if (o instanceof AppEntity) {
+        appEntity = (AppEntity) o;
+        LOGGER.debug("searchDevices : retrieving appEntity from servletRequestContext entity={}", appEntity);
+      } else {
+        LOGGER.error("searchDevices : appEntity is not set");
+        return Response
+            .status(Response.Status.INTERNAL_SERVER_ERROR)
+            .build();
+      }
+      GeoQuery query = new GeoQuery();
+      query.setLatitude(latitude);
+      query.setLongitude(longitude);
+      query.setRadiusKm(radiusKm);
+      query.setMinLatitude(minLatitude);
+      query.setMinLongitude(minLongitude);
+      query.setMaxLatitude(maxLatitude);
+      query.setMaxLongitude(maxLongitude);
+      if (!GeoQuery.isValid(query)) {
+        return Response
+            .status(Response.Status.BAD_REQUEST)
+            .entity(new ErrorResponse(ErrorCode.INVALID_GEO_QUERY, ErrorMessages.ERROR_INVALID_GEO_QUERY))
+            .build();
+      }
+      int limit = size == null || size.intValue() <= 0 ? MMXServerConstants.DEFAULT_PAGE_SIZE.intValue() :
+          Math.min(size.intValue(), MMXServerConstants.GEO_QUERY_MAX_SIZE);
+      List<DeviceLocation> locations = GeoLocationIndex.getInstance().search(appEntity.getAppId(), query, limit);
+      GeoSearchResult result = new GeoSearchResult();
+      result.setResults(locations);
+      result.setSize(Integer.valueOf(limit));
+      result.setOffset(MMXServerConstants.DEFAULT_OFFSET);
+      result.setTotal(Integer.valueOf(locations.size()));
+      long endTime = System.nanoTime();
+      LOGGER.info("{}: Completed processing in {} milliseconds", methodName,
+          TimeUnit.MILLISECONDS.convert((endTime - startTime), TimeUnit.NANOSECONDS));
+      return Response
+          .status(Response.Status.OK)
+          .entity(result)
+          .build();
+    } catch (Throwable t) {
+      LOGGER.warn("Throwable in resource", t);
+      throw new WebApplicationException(
+          Response
+              .status(Response.Status.INTERNAL_SERVER_ERROR)
+              .entity(new ErrorResponse(ErrorCode.ISE_GEO_SEARCH, t.getMessage()))
+              .build()
+      );
+    }
+  }
+}
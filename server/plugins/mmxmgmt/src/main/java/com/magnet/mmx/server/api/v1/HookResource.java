@@ -22,6 +22,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.db.HookDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.HookDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.HookEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.OpenFireDBConnectionProvider;
+import com.magnet.mmx.server.plugin.mmxmgmt.hook.HookRegistry;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +70,7 @@ public class HookResource {
       String appId = appEntity.getAppId();
       HookDAO hookDAO = new HookDAOImpl(new OpenFireDBConnectionProvider());
       int id = hookDAO.addNewHook(appId, request);
+      HookRegistry.getInstance().invalidate(appId);
       long endTime = System.nanoTime();
       LOGGER.info("{}: Completed processing in {} milliseconds", methodName,
           TimeUnit.MILLISECONDS.convert((endTime - startTime), TimeUnit.NANOSECONDS));
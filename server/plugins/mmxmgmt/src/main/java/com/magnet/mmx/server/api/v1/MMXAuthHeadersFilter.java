@@ -14,10 +14,11 @@
  */
 package com.magnet.mmx.server.api.v1;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorCode;
-import com.magnet.mmx.server.plugin.mmxmgmt.util.DBUtil;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.AppEntityDBLoadingEntityCache;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,8 +30,11 @@ import javax.ws.rs.container.ContainerRequestFilter;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.Provider;
 import java.io.IOException;
+import java.security.MessageDigest;
 
 /**
+ * Authenticates requests using the appId and apiKey headers. Apps are looked up using the shared
+ * {@link AppEntityDBLoadingEntityCache}, so a request normally doesn't hit the database.
  */
 @Provider
 @Priority(Priorities.AUTHENTICATION)
@@ -57,7 +61,7 @@ public class MMXAuthHeadersFilter implements ContainerRequestFilter {
       return;
     }
 
-    AppEntity appEntity = DBUtil.getAppDAO().getAppForAppKey(appId);
+    AppEntity appEntity = AppEntityDBLoadingEntityCache.getInstance().get(appId);
     if (appEntity == null) {
       LOGGER.error("filter : appId={} not found", appId);
       Response response = RestUtils.buildInvalidHeaderResponse(ErrorCode.AUTH_BAD_APP_ID,
@@ -66,8 +70,7 @@ public class MMXAuthHeadersFilter implements ContainerRequestFilter {
       return;
     }
 
-    String appApiKey = appEntity.getAppAPIKey();
-    if (!appApiKey.equals(apiKey)) {
+    if (!isMatchingKey(appEntity.getAppAPIKey(), apiKey)) {
       LOGGER.error("filter : apiKey={} not valid for appId={}", apiKey, appId);
       Response response = RestUtils.buildInvalidHeaderResponse(ErrorCode.AUTH_APPID_APIKEY_MISMATCH,
               MMXServerConstants.HTTP_HEADER_REST_API_KEY, apiKey);
@@ -77,4 +80,17 @@ public class MMXAuthHeadersFilter implements ContainerRequestFilter {
 
     containerRequestContext.setProperty(MMXServerConstants.MMX_APP_ENTITY_PROPERTY, appEntity);
   }
+
+  /**
+   * Compare the keys in time that doesn't depend on how much of the supplied key matches.
+   * @param expected
+   * @param supplied
+   * @return
+   */
+  static boolean isMatchingKey(String expected, String supplied) {
+    if (expected == null || supplied == null) {
+      return false;
+    }
+    return MessageDigest.isEqual(expected.getBytes(Charsets.UTF_8), supplied.getBytes(Charsets.UTF_8));
+  }
 }
@@ -19,7 +19,6 @@ import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorCode;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorResponse;
 import com.magnet.mmx.server.plugin.mmxmgmt.event.MMXHttpRateExceededEvent;
-import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.RateLimiterDescriptor;
 import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.RateLimiterService;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.*;
 import org.slf4j.Logger;
@@ -46,11 +45,7 @@ public class RateLimitFilter implements ContainerRequestFilter {
       AppEntity appEntity = (AppEntity) prop;
       String appId = appEntity.getAppId();
       if(!Strings.isNullOrEmpty(appEntity.getAppId())) {
-        int rate = MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.MAX_HTTP_RATE, MMXServerConstants.DEFAULT_MAX_HTTP_RATE);
-
-        RateLimiterDescriptor descriptor = new RateLimiterDescriptor(MMXServerConstants.HTTP_RATE_TYPE, appId,
-                                                                     rate);
-        if(!RateLimiterService.isAllowed(descriptor)){
+        if(!RateLimiterService.isAllowed(MMXServerConstants.HTTP_RATE_TYPE, appId, null, null)){
           LOGGER.error("filter : Rate limit exceeded for appId : {}", appId);
           ErrorResponse mmxErrorResponse = new ErrorResponse(ErrorCode.RATE_LIMIT_EXCEEDED,
                   "Exceeded rate limit for appiId :" + appId);
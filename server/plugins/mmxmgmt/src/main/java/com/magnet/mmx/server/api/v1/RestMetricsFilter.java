@@ -0,0 +1,81 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.api.v1;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+
+import javax.annotation.Priority;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times REST requests per resource method and counts the responses by status class.
+ * The filter runs before authentication so that rejected requests are counted as well.
+ */
+@Provider
+@Priority(MMXServerConstants.MMX_METRICS_PRIORITY)
+public class RestMetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+  private static final String START_PROPERTY = RestMetricsFilter.class.getName() + ".start";
+  private static final ConcurrentHashMap<Method, Timer> timers = new ConcurrentHashMap<Method, Timer>();
+  private static final Counter[] responses = {
+      MMXMetrics.counter("rest.responses.1xx"),
+      MMXMetrics.counter("rest.responses.2xx"),
+      MMXMetrics.counter("rest.responses.3xx"),
+      MMXMetrics.counter("rest.responses.4xx"),
+      MMXMetrics.counter("rest.responses.5xx")
+  };
+
+  @Context
+  private ResourceInfo resourceInfo;
+
+  @Override
+  public void filter(ContainerRequestContext requestContext) throws IOException {
+    requestContext.setProperty(START_PROPERTY, Long.valueOf(System.nanoTime()));
+  }
+
+  @Override
+  public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+      throws IOException {
+    int statusClass = responseContext.getStatus() / 100;
+    if (statusClass >= 1 && statusClass <= responses.length) {
+      responses[statusClass - 1].inc();
+    }
+    Object start = requestContext.getProperty(START_PROPERTY);
+    Method method = resourceInfo != null ? resourceInfo.getResourceMethod() : null;
+    if (start instanceof Long && method != null) {
+      MMXMetrics.time(timer(method), (Long) start);
+    }
+  }
+
+  private static Timer timer(Method method) {
+    Timer timer = timers.get(method);
+    if (timer == null) {
+      timer = MMXMetrics.timer("rest." + method.getDeclaringClass().getSimpleName() + "." + method.getName());
+      timers.putIfAbsent(method, timer);
+    }
+    return timer;
+  }
+}
@@ -0,0 +1,26 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.api.v1.protocol;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.context.DeviceLocation;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.SearchResult;
+
+/**
+ * JSON Object for representing the result of a geo search
+ */
+public class GeoSearchResult extends SearchResult<DeviceLocation> {
+
+
+}
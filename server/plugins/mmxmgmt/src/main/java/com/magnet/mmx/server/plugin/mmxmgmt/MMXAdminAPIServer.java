@@ -14,12 +14,14 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt;
 
+import com.magnet.mmx.server.api.v1.RestMetricsFilter;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.AdminRESTResourceListing;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.ConfigServlet;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.DeviceServlet;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.JacksonJSONObjectMapperProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXRestEasyServletWrapper;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MessageServlet;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MetricsServlet;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.PushMessageServlet;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.PushServlet;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.UserServlet;
@@ -92,6 +94,10 @@ public class MMXAdminAPIServer {
     context.addServlet(new ServletHolder(new DeviceServlet()), "/devices/*");
     context.addServlet(new ServletHolder(new PushMessageServlet()), "/pushmessages");
     context.addServlet(new ServletHolder(new ConfigServlet()), "/config");
+    if (MMXConfiguration.getConfiguration().getBoolean(MMXConfigKeys.METRICS_ENDPOINT_ENABLED,
+        MMXServerConstants.DEFAULT_METRICS_ENDPOINT_ENABLED)) {
+      context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+    }
 
     /**
      * add the rest easy end point handling the admin rest API.
@@ -106,7 +112,9 @@ public class MMXAdminAPIServer {
         MMXServerConstants.ADMIN_API_SERVLET_MAPPING_PREFIX);
 
     holder.setInitParameter(MMXServerConstants.RESTEASY_RESOURCES_KEY, resources);
-    holder.setInitParameter(MMXServerConstants.RESTEASY_PROVIDERS_KEY, JacksonJSONObjectMapperProvider.class.getName());
+    String providers = StringUtils.join(new String[]{RestMetricsFilter.class.getName(),
+        JacksonJSONObjectMapperProvider.class.getName()}, ",");
+    holder.setInitParameter(MMXServerConstants.RESTEASY_PROVIDERS_KEY, providers);
 
 
     context.addServlet(holder, MMXServerConstants.ADMIN_API_REST_MAPPING);
@@ -15,12 +15,27 @@
 
 package com.magnet.mmx.server.plugin.mmxmgmt;
 
+import com.codahale.metrics.Gauge;
 import com.magnet.mmx.server.plugin.mmxmgmt.apns.APNSConnectionPoolImpl;
+import com.magnet.mmx.server.plugin.mmxmgmt.apns.APNSDeliveryEngine;
 import com.magnet.mmx.server.plugin.mmxmgmt.apns.APNSFeedbackProcessExecutionManager;
+import com.magnet.mmx.server.plugin.mmxmgmt.apns.APNSFeedbackStats;
 import com.magnet.mmx.server.plugin.mmxmgmt.context.ContextDispatcherFactory;
 import com.magnet.mmx.server.plugin.mmxmgmt.context.GeoEventDispatcher;
+import com.magnet.mmx.server.plugin.mmxmgmt.context.GeoLocationIndex;
 import com.magnet.mmx.server.plugin.mmxmgmt.context.IContextDispatcher;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceCache;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageWriteBehindQueue;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.OfflineMessageWriteBehindQueue;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.StatsRollup;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.MessageFanoutRouter;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.TimeOrderedMessageIdGenerator;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.RateLimiterService;
+import com.magnet.mmx.server.plugin.mmxmgmt.push.PushJobManager;
+import com.magnet.mmx.server.plugin.mmxmgmt.retention.RetentionExecutionManager;
 import com.magnet.mmx.server.plugin.mmxmgmt.handler.*;
+import com.magnet.mmx.server.plugin.mmxmgmt.hook.WebHookDispatcher;
 import com.magnet.mmx.server.plugin.mmxmgmt.interceptor.MMXMessageHandlingRule;
 import com.magnet.mmx.server.plugin.mmxmgmt.interceptor.MMXPacketInterceptor;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.*;
@@ -81,6 +96,7 @@ public class MMXPlugin implements Plugin, ClusterEventListener {
   private WakeupExecutionManager wakeupExecutionManager = null;
   private TimeoutExecutionManager timeoutExecutionManager = null;
   private APNSFeedbackProcessExecutionManager apnsFeedbackProcessExecutionManager = null;
+  private RetentionExecutionManager retentionExecutionManager = null;
 
   private MMXAdminAPIServer adminAPIServer = null;
   private MMXPublicAPIServer publicAPIServer = null;
@@ -149,6 +165,19 @@ public class MMXPlugin implements Plugin, ClusterEventListener {
     mIQPushNSHandler = new MMXPushNSHandler("pushns");
     mIQMsgAckNSHandler = new MsgAckIQHandler("msgack");
 
+    initializeMessageIdGenerator();
+    initializeMessageWriteBehindQueue();
+    initializeOfflineMessageWriteBehindQueue();
+    initializeDeviceCache();
+    initializeAppCache();
+    initializeMessageFanoutRouter();
+    initializeWebHookDispatcher();
+    initializePushJobManager();
+    initializeGeoLocationIndex();
+    initializeRateLimiter();
+    initializeStatsRollup();
+    initializeMetrics();
+
     mmxPacketInterceptor = new MMXPacketInterceptor(new MMXMessageHandlingRule());
 
     iqRouter.addHandler(mIQAppRegHandler);
@@ -179,6 +208,7 @@ public class MMXPlugin implements Plugin, ClusterEventListener {
 
     //initialize the APNS connection pool.
     initializeAPNSConnectionPool();
+    initializeAPNSDeliveryEngine();
 
     adminAPIServer = new MMXAdminAPIServer();
     adminAPIServer.start();
@@ -197,14 +227,30 @@ public class MMXPlugin implements Plugin, ClusterEventListener {
     iqRouter.removeHandler(mIQPushNSHandler);
     iqRouter.removeHandler(mIQMsgAckNSHandler);
     InterceptorManager.getInstance().removeInterceptor(mmxPacketInterceptor);
+    //route the queued per device messages before flushing their state writes
+    MessageFanoutRouter.teardown(MMXServerConstants.MESSAGE_FANOUT_SHUTDOWN_WAIT_SECONDS);
+    //undelivered webhook events go to the dead letter table
+    WebHookDispatcher.teardown(MMXServerConstants.WEBHOOK_SHUTDOWN_WAIT_SECONDS);
+    //running push jobs are queued again
+    PushJobManager.teardown(MMXServerConstants.PUSH_JOB_SHUTDOWN_WAIT_SECONDS);
+    //flush the queued message state writes
+    MessageWriteBehindQueue.teardown(MMXServerConstants.MESSAGE_WRITE_BEHIND_SHUTDOWN_WAIT_SECONDS);
+    //flush the queued offline message writes
+    OfflineMessageWriteBehindQueue.teardown(MMXServerConstants.OFFLINE_WRITE_BEHIND_SHUTDOWN_WAIT_SECONDS);
+    //flush the stats recorded by the queued writes
+    StatsRollup.teardown();
     wakeupExecutionManager.stopWakeupExecution();
     timeoutExecutionManager.stopTimeoutCheck();
 
     // shutdown geo event dispatcher
     contextDispatcher.shutdown();
+    GeoLocationIndex.teardown();
+    RateLimiterService.teardown();
+    MMXMetrics.teardown();
 
 
-    //Teardown the APNS Connection pool
+    //Teardown the APNS delivery engine and connection pool
+    APNSDeliveryEngine.teardown();
     APNSConnectionPoolImpl.teardown();
     adminAPIServer.stop();
     publicAPIServer.stop();
@@ -216,7 +262,22 @@ public class MMXPlugin implements Plugin, ClusterEventListener {
     } catch(Exception e) {
       Log.error("destroyPlugin : error unregistering mbean={}", MMXServerConstants.MMX_MBEAN_NAME);
     }
+    for (String name : new String[]{MMXServerConstants.APNS_DELIVERY_MBEAN_NAME, MMXServerConstants.APNS_POOL_MBEAN_NAME,
+        MMXServerConstants.APNS_FEEDBACK_MBEAN_NAME}) {
+      try {
+        ObjectName mbeanName = new ObjectName(name);
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        if (mbs.isRegistered(mbeanName)) {
+          mbs.unregisterMBean(mbeanName);
+        }
+      } catch(Exception e) {
+        Log.error("destroyPlugin : error unregistering mbean={}", name);
+      }
+    }
     apnsFeedbackProcessExecutionManager.stop();
+    if (retentionExecutionManager != null) {
+      retentionExecutionManager.stop();
+    }
     Log.info("App Management Plugin is destroyed");
   }
 
@@ -229,6 +290,7 @@ public class MMXPlugin implements Plugin, ClusterEventListener {
       startWakeupTask(frequency, initialDelay);
       startTimeoutExecutionTask(frequency, initialDelay);
       startApnsFeedbackProcess();
+      startRetentionProcess();
     } catch (Exception e) {
       Log.error("startSchedulededTasks : caught exception starting scheduled tasks", e);
     }
@@ -298,7 +360,40 @@ public class MMXPlugin implements Plugin, ClusterEventListener {
     Log.trace("startApnsFeedbackProcess starting task apnsFeedBackProcessInitialDelayMinutes={}, apnsFeedBackProcessFrequencyMinutes={}",
             apnsFeedBackProcessInitialDelayMinutes, apnsFeedBackProcessFrequencyMinutes);
 
-    apnsFeedbackProcessExecutionManager.start(apnsFeedBackProcessInitialDelayMinutes, apnsFeedBackProcessFrequencyMinutes);
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    int concurrency = configuration.getInt(MMXConfigKeys.APNS_FEEDBACK_CONCURRENCY, MMXServerConstants.DEFAULT_APNS_FEEDBACK_CONCURRENCY);
+    int recentPushDays = configuration.getInt(MMXConfigKeys.APNS_FEEDBACK_RECENT_PUSH_DAYS, MMXServerConstants.DEFAULT_APNS_FEEDBACK_RECENT_PUSH_DAYS);
+    int runTimeoutMinutes = configuration.getInt(MMXConfigKeys.APNS_FEEDBACK_RUN_TIMEOUT_MINUTES, MMXServerConstants.DEFAULT_APNS_FEEDBACK_RUN_TIMEOUT_MINUTES);
+    apnsFeedbackProcessExecutionManager.start(apnsFeedBackProcessInitialDelayMinutes, apnsFeedBackProcessFrequencyMinutes,
+        concurrency, recentPushDays, runTimeoutMinutes);
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName mbeanName = new ObjectName(MMXServerConstants.APNS_FEEDBACK_MBEAN_NAME);
+      if (!mbs.isRegistered(mbeanName)) {
+        mbs.registerMBean(APNSFeedbackStats.getInstance(), mbeanName);
+      }
+    } catch (Throwable t) {
+      Log.warn("APNS feedback MBean registration failed", t);
+    }
+  }
+
+  private void startRetentionProcess() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    if (!configuration.getBoolean(MMXConfigKeys.RETENTION_ENABLED, MMXServerConstants.DEFAULT_RETENTION_ENABLED)) {
+      Log.info("startRetentionProcess : retention is disabled");
+      return;
+    }
+    int initialDelayMinutes = configuration.getInt(MMXConfigKeys.RETENTION_INITIAL_DELAY_MINUTES,
+        MMXServerConstants.DEFAULT_RETENTION_INITIAL_DELAY_MINUTES);
+    int intervalMinutes = configuration.getInt(MMXConfigKeys.RETENTION_INTERVAL_MINUTES,
+        MMXServerConstants.DEFAULT_RETENTION_INTERVAL_MINUTES);
+    if (intervalMinutes <= 0) {
+      Log.warn("Retention interval value:{} is invalid. Resetting it to default value of:{}", intervalMinutes,
+          MMXServerConstants.DEFAULT_RETENTION_INTERVAL_MINUTES);
+      intervalMinutes = MMXServerConstants.DEFAULT_RETENTION_INTERVAL_MINUTES;
+    }
+    retentionExecutionManager = new RetentionExecutionManager();
+    retentionExecutionManager.start(initialDelayMinutes, intervalMinutes);
   }
 
   public void initializeAPNSConnectionPool() {
@@ -317,29 +412,198 @@ public class MMXPlugin implements Plugin, ClusterEventListener {
     config.setMaxTotal(maxTotal);
     config.setMaxIdlePerKey(maxIdleObjectsPerKey);
     config.setMinEvictableIdleTimeMillis(ttlForIdleObjectsInMinutes * 60 * 1000L);
+    config.setTimeBetweenEvictionRunsMillis(MMXServerConstants.APNS_POOL_EVICTION_RUN_SECONDS * 1000L);
+    config.setNumTestsPerEvictionRun(-1);
+
+    int adjustIntervalSeconds = configuration.getInt(MMXConfigKeys.APNS_POOL_ADJUST_INTERVAL_SECONDS, MMXServerConstants.DEFAULT_APNS_POOL_ADJUST_INTERVAL_SECONDS);
+    long slowBorrowMillis = configuration.getLong(MMXConfigKeys.APNS_POOL_SLOW_BORROW_MILLIS, MMXServerConstants.DEFAULT_APNS_POOL_SLOW_BORROW_MILLIS);
+    APNSConnectionPoolImpl.initialize(config, adjustIntervalSeconds, slowBorrowMillis);
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      mbs.registerMBean(APNSConnectionPoolImpl.getInstance(), new ObjectName(MMXServerConstants.APNS_POOL_MBEAN_NAME));
+    } catch (Throwable t) {
+      Log.warn("APNS connection pool MBean registration failed", t);
+    }
+    APNSConnectionPoolImpl.getInstance().prewarmRecentlyPushedApps(
+        configuration.getInt(MMXConfigKeys.APNS_POOL_PREWARM_HOURS, MMXServerConstants.DEFAULT_APNS_POOL_PREWARM_HOURS));
+  }
+
+  public void initializeAPNSDeliveryEngine() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    if (!configuration.getBoolean(MMXConfigKeys.APNS_ASYNC_ENABLED, MMXServerConstants.DEFAULT_APNS_ASYNC_ENABLED)) {
+      Log.info("Asynchronous APNS delivery is disabled, using the APNS connection pool");
+      return;
+    }
+    APNSDeliveryEngine.Settings settings = new APNSDeliveryEngine.Settings()
+        .setCacheLength(configuration.getInt(MMXConfigKeys.APNS_ASYNC_CACHE_LENGTH, MMXServerConstants.DEFAULT_APNS_ASYNC_CACHE_LENGTH))
+        .setIdleMinutes(configuration.getInt(MMXConfigKeys.APNS_ASYNC_IDLE_MINUTES, MMXServerConstants.DEFAULT_APNS_ASYNC_IDLE_MINUTES))
+        .setMaxInFlight(configuration.getInt(MMXConfigKeys.APNS_ASYNC_MAX_IN_FLIGHT, MMXServerConstants.DEFAULT_APNS_ASYNC_MAX_IN_FLIGHT))
+        .setInFlightWaitMillis(configuration.getLong(MMXConfigKeys.APNS_ASYNC_IN_FLIGHT_WAIT_MILLIS, MMXServerConstants.DEFAULT_APNS_ASYNC_IN_FLIGHT_WAIT_MILLIS));
+    APNSDeliveryEngine.initialize(settings);
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      mbs.registerMBean(APNSDeliveryEngine.getInstance(), new ObjectName(MMXServerConstants.APNS_DELIVERY_MBEAN_NAME));
+    } catch (Throwable t) {
+      Log.warn("APNS delivery MBean registration failed", t);
+    }
+  }
+
+  public void initializeMessageWriteBehindQueue() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    boolean enabled = configuration.getBoolean(MMXConfigKeys.MESSAGE_WRITE_BEHIND_ENABLED, MMXServerConstants.DEFAULT_MESSAGE_WRITE_BEHIND_ENABLED);
+    if (!enabled) {
+      Log.info("Message write-behind queue is disabled, message state is written synchronously");
+      return;
+    }
+    int queueSize = configuration.getInt(MMXConfigKeys.MESSAGE_WRITE_BEHIND_QUEUE_SIZE, MMXServerConstants.DEFAULT_MESSAGE_WRITE_BEHIND_QUEUE_SIZE);
+    int batchSize = configuration.getInt(MMXConfigKeys.MESSAGE_WRITE_BEHIND_BATCH_SIZE, MMXServerConstants.DEFAULT_MESSAGE_WRITE_BEHIND_BATCH_SIZE);
+    int flushInterval = configuration.getInt(MMXConfigKeys.MESSAGE_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS, MMXServerConstants.DEFAULT_MESSAGE_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS);
+    int writerCount = configuration.getInt(MMXConfigKeys.MESSAGE_WRITE_BEHIND_WRITER_COUNT, MMXServerConstants.DEFAULT_MESSAGE_WRITE_BEHIND_WRITER_COUNT);
+    MessageWriteBehindQueue.initialize(DBUtil.getMessageDAO(), queueSize, batchSize, flushInterval, writerCount);
+  }
+
+  public void initializeOfflineMessageWriteBehindQueue() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    int queueSize = configuration.getInt(MMXConfigKeys.OFFLINE_WRITE_BEHIND_QUEUE_SIZE, MMXServerConstants.DEFAULT_OFFLINE_WRITE_BEHIND_QUEUE_SIZE);
+    int batchSize = configuration.getInt(MMXConfigKeys.OFFLINE_WRITE_BEHIND_BATCH_SIZE, MMXServerConstants.DEFAULT_OFFLINE_WRITE_BEHIND_BATCH_SIZE);
+    int flushInterval = configuration.getInt(MMXConfigKeys.OFFLINE_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS, MMXServerConstants.DEFAULT_OFFLINE_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS);
+    int writerCount = configuration.getInt(MMXConfigKeys.OFFLINE_WRITE_BEHIND_WRITER_COUNT, MMXServerConstants.DEFAULT_OFFLINE_WRITE_BEHIND_WRITER_COUNT);
+    OfflineMessageWriteBehindQueue.initialize(DBUtil.getOfflineMessageDAO(), queueSize, batchSize, flushInterval, writerCount);
+  }
+
+  public void initializeMessageIdGenerator() {
+    int nodeId = MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.MESSAGE_ID_NODE_ID, -1);
+    if (nodeId < 0) {
+      nodeId = TimeOrderedMessageIdGenerator.toNodeId(XMPPServer.getInstance().getNodeID().toByteArray());
+    }
+    TimeOrderedMessageIdGenerator.initialize(nodeId);
+  }
+
+  public void initializeDeviceCache() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    int maxSize = configuration.getInt(MMXConfigKeys.DEVICE_CACHE_MAX_SIZE, MMXServerConstants.DEFAULT_DEVICE_CACHE_MAX_SIZE);
+    int ttl = configuration.getInt(MMXConfigKeys.DEVICE_CACHE_TTL_SECONDS, MMXServerConstants.DEFAULT_DEVICE_CACHE_TTL_SECONDS);
+    DeviceCache.initialize(maxSize, ttl);
+  }
+
+  public void initializeAppCache() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    int maxSize = configuration.getInt(MMXConfigKeys.APP_CACHE_MAX_SIZE, MMXServerConstants.DEFAULT_APP_CACHE_MAX_SIZE);
+    int ttl = configuration.getInt(MMXConfigKeys.APP_CACHE_TTL_SECONDS, MMXServerConstants.DEFAULT_APP_CACHE_TTL_SECONDS);
+    int negativeTtl = configuration.getInt(MMXConfigKeys.APP_CACHE_NEGATIVE_TTL_SECONDS,
+        MMXServerConstants.DEFAULT_APP_CACHE_NEGATIVE_TTL_SECONDS);
+    AppEntityDBLoadingEntityCache.initialize(maxSize, ttl, negativeTtl);
+  }
+
+  public void initializeMessageFanoutRouter() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    int lanes = configuration.getInt(MMXConfigKeys.MESSAGE_FANOUT_LANE_COUNT, MMXServerConstants.DEFAULT_MESSAGE_FANOUT_LANE_COUNT);
+    int queueSize = configuration.getInt(MMXConfigKeys.MESSAGE_FANOUT_LANE_QUEUE_SIZE, MMXServerConstants.DEFAULT_MESSAGE_FANOUT_LANE_QUEUE_SIZE);
+    String policy = configuration.getString(MMXConfigKeys.MESSAGE_FANOUT_REJECTION_POLICY, MMXServerConstants.DEFAULT_MESSAGE_FANOUT_REJECTION_POLICY);
+    MessageFanoutRouter.initialize(lanes, queueSize,
+        MessageFanoutRouter.RejectionPolicy.fromString(policy, MessageFanoutRouter.RejectionPolicy.BLOCK));
+  }
+
+  public void initializeWebHookDispatcher() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    WebHookDispatcher.Settings settings = new WebHookDispatcher.Settings()
+        .setQueueSize(configuration.getInt(MMXConfigKeys.WEBHOOK_QUEUE_SIZE, MMXServerConstants.DEFAULT_WEBHOOK_QUEUE_SIZE))
+        .setThreads(configuration.getInt(MMXConfigKeys.WEBHOOK_THREADS, MMXServerConstants.DEFAULT_WEBHOOK_THREADS))
+        .setBatchSize(configuration.getInt(MMXConfigKeys.WEBHOOK_BATCH_SIZE, MMXServerConstants.DEFAULT_WEBHOOK_BATCH_SIZE))
+        .setMaxAttempts(configuration.getInt(MMXConfigKeys.WEBHOOK_MAX_ATTEMPTS, MMXServerConstants.DEFAULT_WEBHOOK_MAX_ATTEMPTS))
+        .setRetryBaseMillis(configuration.getLong(MMXConfigKeys.WEBHOOK_RETRY_BASE_MILLIS, MMXServerConstants.DEFAULT_WEBHOOK_RETRY_BASE_MILLIS))
+        .setRetryMaxMillis(configuration.getLong(MMXConfigKeys.WEBHOOK_RETRY_MAX_MILLIS, MMXServerConstants.DEFAULT_WEBHOOK_RETRY_MAX_MILLIS))
+        .setBreakerFailures(configuration.getInt(MMXConfigKeys.WEBHOOK_BREAKER_FAILURES, MMXServerConstants.DEFAULT_WEBHOOK_BREAKER_FAILURES))
+        .setBreakerOpenMillis(configuration.getInt(MMXConfigKeys.WEBHOOK_BREAKER_OPEN_SECONDS, MMXServerConstants.DEFAULT_WEBHOOK_BREAKER_OPEN_SECONDS) * 1000L)
+        .setConnectTimeoutMillis(configuration.getInt(MMXConfigKeys.WEBHOOK_CONNECT_TIMEOUT_MILLIS, MMXServerConstants.DEFAULT_WEBHOOK_CONNECT_TIMEOUT_MILLIS))
+        .setReadTimeoutMillis(configuration.getInt(MMXConfigKeys.WEBHOOK_READ_TIMEOUT_MILLIS, MMXServerConstants.DEFAULT_WEBHOOK_READ_TIMEOUT_MILLIS));
+    WebHookDispatcher.initialize(DBUtil.getHookDAO(), settings);
+  }
+
+  public void initializePushJobManager() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    int threads = configuration.getInt(MMXConfigKeys.PUSH_JOB_THREADS, MMXServerConstants.DEFAULT_PUSH_JOB_THREADS);
+    int pageSize = configuration.getInt(MMXConfigKeys.PUSH_PAGE_SIZE, MMXServerConstants.DEFAULT_PUSH_PAGE_SIZE);
+    int leaseSeconds = configuration.getInt(MMXConfigKeys.PUSH_JOB_LEASE_SECONDS, MMXServerConstants.DEFAULT_PUSH_JOB_LEASE_SECONDS);
+    PushJobManager.initialize(threads, pageSize, leaseSeconds);
+  }
+
+  public void initializeGeoLocationIndex() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    int maxAge = configuration.getInt(MMXConfigKeys.GEO_INDEX_MAX_AGE_SECONDS, MMXServerConstants.DEFAULT_GEO_INDEX_MAX_AGE_SECONDS);
+    GeoLocationIndex.initialize(maxAge);
+  }
+
+  public void initializeRateLimiter() {
+    RateLimiterService.initialize();
+  }
+
+  public void initializeStatsRollup() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    boolean enabled = configuration.getBoolean(MMXConfigKeys.STATS_ROLLUP_ENABLED, MMXServerConstants.DEFAULT_STATS_ROLLUP_ENABLED);
+    if (!enabled) {
+      Log.info("Stats rollup is disabled, message stats are aggregated from the messages");
+      return;
+    }
+    int flushSeconds = configuration.getInt(MMXConfigKeys.STATS_ROLLUP_FLUSH_SECONDS, MMXServerConstants.DEFAULT_STATS_ROLLUP_FLUSH_SECONDS);
+    StatsRollup.initialize(DBUtil.getStatsRollupDAO(), MMXServerConstants.STATS_ROLLUP_WINDOW_HOURS,
+        MMXServerConstants.STATS_ROLLUP_RETENTION_HOURS, Math.max(1, flushSeconds));
+  }
 
-    APNSConnectionPoolImpl.initialize(config);
+  public void initializeMetrics() {
+    boolean jmxEnabled = MMXConfiguration.getConfiguration().getBoolean(MMXConfigKeys.METRICS_JMX_ENABLED,
+        MMXServerConstants.DEFAULT_METRICS_JMX_ENABLED);
+    MMXMetrics.initialize(MMXServerConstants.METRICS_JMX_DOMAIN, jmxEnabled);
+    MMXMetrics.gauge("writebehind.message.depth", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return MessageWriteBehindQueue.getInstance().getQueueDepth();
+      }
+    });
+    MMXMetrics.gauge("writebehind.offline.depth", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return OfflineMessageWriteBehindQueue.getInstance().getQueueDepth();
+      }
+    });
+    MMXMetrics.gauge("fanout.depth", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return MessageFanoutRouter.getInstance().getQueueDepth();
+      }
+    });
+    MMXMetrics.gauge("webhook.depth", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return WebHookDispatcher.getInstance().getQueueDepth();
+      }
+    });
   }
 
   @Override
   public void joinedCluster() {
    Log.debug("joinedCluster : node has joined the cluster");
    startSchedulededTasks();
+   //the share of an aggregated rate limit depends on the cluster size
+   RateLimiterService.configure();
   }
 
   @Override
   public void joinedCluster(byte[] bytes) {
     Log.debug("joinedCluster : id={}", bytes.toString());
+    RateLimiterService.configure();
   }
 
   @Override
   public void leftCluster() {
     Log.debug("leftCluster : the node has left the cluster");
+    RateLimiterService.configure();
   }
 
   @Override
   public void leftCluster(byte[] bytes) {
     Log.debug("leftCluster : id={} has left the cluster", bytes.toString());
+    RateLimiterService.configure();
   }
 
   @Override
@@ -63,7 +63,13 @@ public enum ErrorCode {
   TOPIC_PUBLISH_FORBIDDEN (52),
   TOPIC_ITEMS_BY_ID(53),
   RATE_LIMIT_EXCEEDED(54),
-  ISE_HOOK_RESOURCE(55)
+  ISE_HOOK_RESOURCE(55),
+  INVALID_GEO_QUERY(56),
+  ISE_GEO_SEARCH(57),
+  INVALID_MESSAGE_ID_LIST(58),
+  PUSH_JOB_NOT_FOUND(59),
+  PUSH_JOB_FINISHED(60),
+  SEND_MESSAGE_DROPPED(61)
   ;
 
   private int code;
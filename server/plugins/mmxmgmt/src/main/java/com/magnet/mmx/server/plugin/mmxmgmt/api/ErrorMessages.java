@@ -58,4 +58,9 @@ public final class ErrorMessages {
   public static final String ERROR_CONFIG_BAD_KEY = "Configuration contains an invalid key";
   public static final String ERROR_CONFIG_BAD_VALUE = "Configuration contains an invalid value";
   public static final String ERROR_ITEM_ID_LIST_INVALID = "Supplied topic item id list is invalid";
+  public static final String ERROR_MESSAGE_ID_LIST_INVALID = "Supplied message id list is invalid";
+  public static final String ERROR_INVALID_GEO_QUERY = "Supply either lat, lng and a positive radius_km or min_lat, min_lng, max_lat and max_lng";
+  public static final String ERROR_PUSH_JOB_NOT_FOUND = "Push job with id:%d not found";
+  public static final String ERROR_PUSH_JOB_FINISHED = "Push job with id:%d has already finished";
+  public static final String ERROR_SEND_MESSAGE_DROPPED = "Server is too busy to route the message. Retry later";
 }
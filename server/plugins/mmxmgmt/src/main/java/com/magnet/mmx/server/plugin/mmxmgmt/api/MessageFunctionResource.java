@@ -19,6 +19,8 @@ import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.message.MessageSender;
 import com.magnet.mmx.server.plugin.mmxmgmt.message.MessageSenderImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.message.SendMessageResult;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +40,9 @@ import java.util.concurrent.TimeUnit;
 /**
  * Resource that provides API related to message functions viz:
  * 1. send_message (XMPP message)
+ *
+ * Responses for username lists longer than {@link MMXConfigKeys#SEND_MESSAGE_STREAM_THRESHOLD}
+ * are streamed while the messages are sent.
  */
 @Path("/send_message")
 public class MessageFunctionResource extends AbstractBaseResource {
@@ -61,6 +66,22 @@ public class MessageFunctionResource extends AbstractBaseResource {
       }
       MultivaluedMap<String, String> requestHeaders = headers.getRequestHeaders();
       String appId = requestHeaders.getFirst(MMXServerConstants.HTTP_HEADER_APP_ID);
+      if (request != null && request.getRecipientUsernames() != null &&
+          request.getRecipientUsernames().size() > getStreamThreshold()) {
+        //validate up front; the status can't be changed once the response is being streamed
+        SendMessageResult failure = sender.validate(appId, request);
+        if (failure != null) {
+          return Response
+              .status(Response.Status.BAD_REQUEST)
+              .entity(new ErrorResponse(failure.getErrorCode(), failure.getErrorMessage()))
+              .build();
+        }
+        LOGGER.info("Streaming sendMessage response for recipients:{}", request.getRecipientUsernames().size());
+        return Response
+            .status(Response.Status.OK)
+            .entity(new SendMessageStreamingOutput(sender, appId, request))
+            .build();
+      }
       SendMessageResult result = sender.send(appId, request);
       Response rv = null;
       if (result.isError()) {
@@ -95,4 +116,8 @@ public class MessageFunctionResource extends AbstractBaseResource {
     }
   }
 
+  private static int getStreamThreshold() {
+    return MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.SEND_MESSAGE_STREAM_THRESHOLD,
+        MMXServerConstants.DEFAULT_SEND_MESSAGE_STREAM_THRESHOLD);
+  }
 }
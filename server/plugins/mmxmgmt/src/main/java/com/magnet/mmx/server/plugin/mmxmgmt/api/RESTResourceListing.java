@@ -15,9 +15,11 @@
 package com.magnet.mmx.server.plugin.mmxmgmt.api;
 
 import com.magnet.mmx.server.api.v1.DevicesResource;
+import com.magnet.mmx.server.api.v1.GeoResource;
 import com.magnet.mmx.server.api.v1.HookResource;
 import com.magnet.mmx.server.api.v1.MMXAuthHeadersFilter;
 import com.magnet.mmx.server.api.v1.RateLimitFilter;
+import com.magnet.mmx.server.api.v1.RestMetricsFilter;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.message.MessageResource;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.push.PingMessageFunctionResource;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.push.PushMessageFunctionResource;
@@ -56,7 +58,8 @@ public final class RESTResourceListing {
       DevicesResource.class.getName(),
       TopicResource.class.getName(),
       MMXTopicSummaryResource.class.getName(),
-      HookResource.class.getName()
+      HookResource.class.getName(),
+      GeoResource.class.getName()
   };
 
   public static String[] getResources() {
@@ -66,6 +69,7 @@ public final class RESTResourceListing {
   private static final String[] providers = {
           MMXAuthHeadersFilter.class.getName(),
           RateLimitFilter.class.getName(),
+          RestMetricsFilter.class.getName(),
           JacksonJSONObjectMapperProvider.class.getName()
   };
 
@@ -0,0 +1,137 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.api;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Count;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.MessageSender;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.SendMessageResult;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.UnsentMessage;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.JacksonJSONObjectMapperProvider;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the {@link SendMessageResponse} for a send to a large list of usernames while the
+ * messages are being sent. Every sent message id is written as soon as the message has been
+ * routed, so neither the sent list nor the response is held in memory. The unsent list and the
+ * count follow the sent list. The output is flushed after every chunk of recipients.
+ * <p>
+ * The request must have been validated before the response is written; once the output has
+ * started the status can't be changed anymore. If the send fails part way, the response is still
+ * completed with the recipients processed so far and an error object.
+ */
+public class SendMessageStreamingOutput implements StreamingOutput, MessageSender.RecipientListener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SendMessageStreamingOutput.class);
+  private static final ObjectMapper MAPPER = new JacksonJSONObjectMapperProvider().getContext(SendMessageResponse.class);
+
+  private final MessageSender sender;
+  private final String appId;
+  private final SendMessageRequest request;
+  private final List<UnsentMessage> unsentList = new ArrayList<UnsentMessage>();
+  private int sentCount;
+  private JsonGenerator generator;
+  private IOException writeException;
+
+  public SendMessageStreamingOutput(MessageSender sender, String appId, SendMessageRequest request) {
+    this.sender = sender;
+    this.appId = appId;
+    this.request = request;
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException {
+    long startTime = System.nanoTime();
+    generator = MAPPER.getJsonFactory().createJsonGenerator(output, JsonEncoding.UTF8);
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("sentList");
+    Count count = null;
+    ErrorResponse error = null;
+    try {
+      SendMessageResult result = sender.send(appId, request, this);
+      if (result.isError()) {
+        error = new ErrorResponse(result.getErrorCode(), result.getErrorMessage());
+      } else {
+        count = result.getCount();
+      }
+    } catch (RuntimeException e) {
+      //includes DbInteractionException; the status has been sent, so report it in the body
+      LOGGER.error("Streaming sendMessage failed after sent:{} unsent:{}", new Object[]{sentCount, unsentList.size(), e});
+      error = new ErrorResponse(ErrorCode.SEND_MESSAGE_ISE, e.getMessage());
+    }
+    if (writeException != null) {
+      //the messages have been sent but the client is gone
+      throw writeException;
+    }
+    if (count == null) {
+      count = new Count(request.getRecipientUsernames().size(), sentCount, unsentList.size());
+    }
+    generator.writeEndArray();
+    generator.writeArrayFieldStart("unsentList");
+    for (UnsentMessage unsent : unsentList) {
+      generator.writeObject(unsent);
+    }
+    generator.writeEndArray();
+    generator.writeObjectField("count", count);
+    if (error != null) {
+      generator.writeObjectField("error", error);
+    }
+    generator.writeEndObject();
+    generator.close();
+    LOGGER.info("Completed streaming sendMessage for recipients:{} in {} milliseconds",
+        count.getRequested(), TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS));
+  }
+
+  @Override
+  public void sent(SentMessageId sentMessageId) {
+    sentCount++;
+    if (writeException != null) {
+      return;
+    }
+    try {
+      generator.writeObject(sentMessageId);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to write sent message id; continuing with the send", e);
+      writeException = e;
+    }
+  }
+
+  @Override
+  public void unsent(UnsentMessage unsentMessage) {
+    unsentList.add(unsentMessage);
+  }
+
+  @Override
+  public void chunkDone() {
+    if (writeException != null) {
+      return;
+    }
+    try {
+      generator.flush();
+    } catch (IOException e) {
+      LOGGER.warn("Failed to flush sent message ids; continuing with the send", e);
+      writeException = e;
+    }
+  }
+}
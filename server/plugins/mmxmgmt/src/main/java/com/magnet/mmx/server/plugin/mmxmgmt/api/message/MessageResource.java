@@ -17,6 +17,7 @@ package com.magnet.mmx.server.plugin.mmxmgmt.api.message;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.AbstractBaseResource;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorCode;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorMessages;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorResponse;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAOImpl;
@@ -31,6 +32,7 @@ import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
@@ -39,6 +41,7 @@ import javax.ws.rs.core.Response;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -46,6 +49,7 @@ import java.util.concurrent.TimeUnit;
 @Path("message")
 public class MessageResource extends AbstractBaseResource {
   private static final Logger LOGGER = LoggerFactory.getLogger(MessageResource.class);
+  private static final String ID_KEY = "id";
 
 
   @GET
@@ -96,6 +100,73 @@ public class MessageResource extends AbstractBaseResource {
     }
   }
 
+  /**
+   * Get the messages for a list of message ids using a single lookup.
+   * @param headers
+   * @param messageIds list of message ids supplied using the id query parameter
+   * @return list of messages in the order of the supplied ids; unknown ids are skipped
+   */
+  @GET
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("byids")
+  public Response getMessagesByIds(@Context HttpHeaders headers, @QueryParam(ID_KEY) List<String> messageIds) {
+    try {
+      long startTime = System.nanoTime();
+      AppDAO appDAO = new AppDAOImpl(getConnectionProvider());
+      AppEntityHolder holder = new AppEntityHolderImpl();
+
+      ErrorResponse authCheck = isAuthenticated(headers, appDAO, holder);
+      if (authCheck != null) {
+        return Response
+            .status(Response.Status.UNAUTHORIZED)
+            .entity(authCheck)
+            .build();
+      }
+      if (messageIds == null || messageIds.isEmpty()) {
+        throw new WebApplicationException(
+            Response
+                .status(Response.Status.BAD_REQUEST)
+                .entity(new ErrorResponse(ErrorCode.INVALID_MESSAGE_ID_LIST, ErrorMessages.ERROR_MESSAGE_ID_LIST_INVALID))
+                .build()
+        );
+      }
+      String appId = holder.getAppEntity().getAppId();
+      MessageDAO messageDAO = new MessageDAOImpl(getConnectionProvider());
+      Map<String, List<MessageEntity>> messages = messageDAO.getMessages(appId, messageIds);
+
+      List<SentMessage> sentMessageList = new ArrayList<SentMessage>(messageIds.size());
+      for (String messageId : messageIds) {
+        //remove so that repeated ids are returned once
+        List<MessageEntity> messageEntityList = messages.remove(messageId);
+        if (messageEntityList != null) {
+          for (MessageEntity me : messageEntityList) {
+            sentMessageList.add(SentMessage.from(me));
+          }
+        }
+      }
+
+      Response response = Response
+          .status(Response.Status.OK)
+          .entity(sentMessageList)
+          .build();
+
+      long endTime = System.nanoTime();
+      LOGGER.info("Completed processing getMessagesByIds for {} ids in {} milliseconds", messageIds.size(),
+          TimeUnit.MILLISECONDS.convert((endTime - startTime), TimeUnit.NANOSECONDS));
+      return response;
+    } catch (WebApplicationException e) {
+      throw e;
+    } catch (Throwable t) {
+      LOGGER.warn("Throwable during getMessagesByIds", t);
+      throw new WebApplicationException(
+          Response
+              .status(Response.Status.INTERNAL_SERVER_ERROR)
+              .entity(new ErrorResponse(ErrorCode.GET_MESSAGE_BY_ID_ISE, t.getMessage()))
+              .build()
+      );
+    }
+  }
+
   /**
    * Simplified representation of MessageEntity
    */
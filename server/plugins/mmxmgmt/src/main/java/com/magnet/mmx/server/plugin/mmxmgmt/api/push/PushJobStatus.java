@@ -0,0 +1,146 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.api.push;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobEntity;
+
+import java.util.Date;
+
+/**
+ * Status of a push job.
+ */
+public class PushJobStatus {
+
+  private int jobId;
+  private String state;
+  private int queued;
+  private int sent;
+  private int failed;
+  private int invalidToken;
+  private double pushesPerSecond;
+  private Date created;
+  private Date started;
+  private Date updated;
+
+  public PushJobStatus() {
+  }
+
+  public PushJobStatus(PushJobEntity job) {
+    this.jobId = job.getId();
+    this.state = job.getState().name();
+    this.queued = job.getRequested();
+    this.sent = job.getSent();
+    this.failed = job.getUnsent();
+    this.invalidToken = job.getInvalidToken();
+    this.created = new Date(job.getDateCreatedUTC() * 1000L);
+    if (job.getDateStartedUTC() > 0) {
+      this.started = new Date(job.getDateStartedUTC() * 1000L);
+      long seconds = job.getDateUpdatedUTC() - job.getDateStartedUTC();
+      if (seconds > 0) {
+        this.pushesPerSecond = (double) (job.getSent() + job.getUnsent()) / seconds;
+      }
+    }
+    this.updated = new Date(job.getDateUpdatedUTC() * 1000L);
+  }
+
+  public int getJobId() {
+    return jobId;
+  }
+
+  public void setJobId(int jobId) {
+    this.jobId = jobId;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public void setState(String state) {
+    this.state = state;
+  }
+
+  /**
+   * @return number of devices resolved for the job so far
+   */
+  public int getQueued() {
+    return queued;
+  }
+
+  public void setQueued(int queued) {
+    this.queued = queued;
+  }
+
+  public int getSent() {
+    return sent;
+  }
+
+  public void setSent(int sent) {
+    this.sent = sent;
+  }
+
+  public int getFailed() {
+    return failed;
+  }
+
+  public void setFailed(int failed) {
+    this.failed = failed;
+  }
+
+  /**
+   * @return number of failed pushes whose push token is invalid
+   */
+  public int getInvalidToken() {
+    return invalidToken;
+  }
+
+  public void setInvalidToken(int invalidToken) {
+    this.invalidToken = invalidToken;
+  }
+
+  /**
+   * @return pushes processed per second between the start and the last update of the job
+   */
+  public double getPushesPerSecond() {
+    return pushesPerSecond;
+  }
+
+  public void setPushesPerSecond(double pushesPerSecond) {
+    this.pushesPerSecond = pushesPerSecond;
+  }
+
+  public Date getCreated() {
+    return created;
+  }
+
+  public void setCreated(Date created) {
+    this.created = created;
+  }
+
+  public Date getStarted() {
+    return started;
+  }
+
+  public void setStarted(Date started) {
+    this.started = started;
+  }
+
+  public Date getUpdated() {
+    return updated;
+  }
+
+  public void setUpdated(Date updated) {
+    this.updated = updated;
+  }
+}
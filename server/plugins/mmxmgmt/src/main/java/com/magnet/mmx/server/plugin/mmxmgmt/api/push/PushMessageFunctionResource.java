@@ -14,7 +14,6 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.api.push;
 
-import com.magnet.mmx.protocol.Constants;
 import com.magnet.mmx.protocol.PushType;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.AbstractBaseResource;
@@ -26,19 +25,30 @@ import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceTargetResolver;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobDAOImpl;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.gcm.GCMPushMessageSender;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.DeviceHolder;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.MMXPushAPNSPayloadBuilder;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.MMXPushGCMPayloadBuilder;
-import com.magnet.mmx.server.plugin.mmxmgmt.push.MMXPushHeader;
+import com.magnet.mmx.server.plugin.mmxmgmt.push.PushJobManager;
+import com.magnet.mmx.server.plugin.mmxmgmt.push.PushJobProcessor;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.ResolutionException;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.JacksonJSONObjectMapperProvider;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
@@ -57,6 +67,7 @@ import java.util.concurrent.TimeUnit;
 @Path("/send_push")
 public class PushMessageFunctionResource extends AbstractBaseResource {
   private static final Logger LOGGER = LoggerFactory.getLogger(PushMessageFunctionResource.class);
+  private static final ObjectMapper REQUEST_MAPPER = new JacksonJSONObjectMapperProvider().getContext(SendPushMessageRequest.class);
 
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
@@ -75,6 +86,24 @@ public class PushMessageFunctionResource extends AbstractBaseResource {
       MultivaluedMap<String, String> requestHeaders = headers.getRequestHeaders();
       String appId = requestHeaders.getFirst(MMXServerConstants.HTTP_HEADER_APP_ID);
 
+      Target target = request.getTarget();
+      boolean queryOnly = target != null && target.getDeviceQuery() != null &&
+          (target.getDeviceIds() == null || target.getDeviceIds().isEmpty());
+      if (queryOnly) {
+        //validate the query now; once the response is being streamed the status can't be changed
+        new DeviceTargetResolver().validate(appId, target);
+        AppEntity appEntity = appDAO.getAppForAppKey(appId);
+        PushJobDAO jobDAO = new PushJobDAOImpl(getConnectionProvider());
+        int jobId = jobDAO.createJob(appId, REQUEST_MAPPER.writeValueAsString(request), PushJobEntity.State.RUNNING);
+        PushJobEntity job = jobDAO.getJob(jobId);
+        PushJobProcessor processor = new PushJobProcessor(appEntity, request, jobDAO);
+        LOGGER.info("Streaming sendPushMessage response for device query using push job:{}", jobId);
+        return Response
+            .status(Response.Status.OK)
+            .entity(new SendPushStreamingOutput(processor, job, target, getPageSize()))
+            .build();
+      }
+
       DeviceTargetResolver resolver = new DeviceTargetResolver();
       List<DeviceEntity> deviceEntityList = resolver.resolve(appId, request.getTarget());
       DeviceHolder holder = DeviceHolder.build(deviceEntityList);
@@ -171,34 +200,120 @@ public class PushMessageFunctionResource extends AbstractBaseResource {
 
 
   protected MMXPushAPNSPayloadBuilder builder(SendPushMessageRequest request) {
-    MMXPushAPNSPayloadBuilder builder = new MMXPushAPNSPayloadBuilder();
-    builder.setBody(request.getBody())
-        .setTitle(request.getTitle());
-
-    if (request.getIos() != null) {
-      builder.setBadge(request.getIos().getBadge());
-      if (request.getIos().isSilent()) {
-        builder.silent();
+    return PushJobProcessor.apnsBuilder(request);
+  }
+
+  protected MMXPushGCMPayloadBuilder gcmBuilder(SendPushMessageRequest request) {
+    return PushJobProcessor.gcmBuilder(request);
+  }
+
+  @POST
+  @Path("jobs")
+  @Consumes(MediaType.APPLICATION_JSON)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response queuePushJob(@Context HttpHeaders headers, SendPushMessageRequest request) {
+    try {
+      AppDAO appDAO = new AppDAOImpl(getConnectionProvider());
+      ErrorResponse authCheck = isAuthenticated(headers, appDAO);
+      if (authCheck != null) {
+        return Response
+            .status(Response.Status.UNAUTHORIZED)
+            .entity(authCheck)
+            .build();
       }
-      builder.setCategory(request.getIos().getCategory());
+      String appId = headers.getRequestHeaders().getFirst(MMXServerConstants.HTTP_HEADER_APP_ID);
+      new DeviceTargetResolver().validate(appId, request.getTarget());
+      int jobId = PushJobManager.getInstance().queue(appId, request);
+      PushJobEntity job = new PushJobDAOImpl(getConnectionProvider()).getJob(jobId);
+      LOGGER.info("Queued push job:{} for appId:{}", jobId, appId);
+      return Response
+          .status(Response.Status.ACCEPTED)
+          .entity(new PushJobStatus(job))
+          .build();
+    } catch (ResolutionException e) {
+      throw new WebApplicationException(
+          Response
+              .status(Response.Status.BAD_REQUEST)
+              .entity(new ErrorResponse(ErrorCode.SEND_PUSH_MESSAGE_BAD_REQUEST, ErrorMessages.ERROR_SEND_PUSH_INVALID_TARGET))
+              .build());
+    } catch (WebApplicationException e) {
+      throw e;
+    } catch (Throwable t) {
+      LOGGER.warn("Throwable during queuePushJob", t);
+      throw new WebApplicationException(
+          Response
+              .status(Response.Status.INTERNAL_SERVER_ERROR)
+              .entity(new ErrorResponse(ErrorCode.SEND_PUSH_MESSAGE_ISE, t.getMessage()))
+              .build()
+      );
     }
-    builder.setCustomDictionary(request.getCustom())
-        .setSound(request.getSound())
-        .setType(new MMXPushHeader(Constants.MMX, Constants.MMX_ACTION_CODE_PUSH));
-    return builder;
   }
 
-  protected MMXPushGCMPayloadBuilder gcmBuilder(SendPushMessageRequest request) {
-    MMXPushGCMPayloadBuilder builder = new MMXPushGCMPayloadBuilder();
-    builder.setBody(request.getBody())
-        .setTitle(request.getTitle());
+  @GET
+  @Path("jobs/{id}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getPushJob(@Context HttpHeaders headers, @PathParam("id") int jobId) {
+    AppDAO appDAO = new AppDAOImpl(getConnectionProvider());
+    ErrorResponse authCheck = isAuthenticated(headers, appDAO);
+    if (authCheck != null) {
+      return Response
+          .status(Response.Status.UNAUTHORIZED)
+          .entity(authCheck)
+          .build();
+    }
+    String appId = headers.getRequestHeaders().getFirst(MMXServerConstants.HTTP_HEADER_APP_ID);
+    PushJobEntity job = getJob(appId, jobId);
+    return Response
+        .status(Response.Status.OK)
+        .entity(new PushJobStatus(job))
+        .build();
+  }
 
-    if (request.getAndroid() != null) {
-      builder.setIcon(request.getAndroid().getIcon());
+  @DELETE
+  @Path("jobs/{id}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response cancelPushJob(@Context HttpHeaders headers, @PathParam("id") int jobId) {
+    AppDAO appDAO = new AppDAOImpl(getConnectionProvider());
+    ErrorResponse authCheck = isAuthenticated(headers, appDAO);
+    if (authCheck != null) {
+      return Response
+          .status(Response.Status.UNAUTHORIZED)
+          .entity(authCheck)
+          .build();
     }
-    builder.setCustomDictionary(request.getCustom())
-        .setSound(request.getSound())
-        .setType(new MMXPushHeader(Constants.MMX, Constants.MMX_ACTION_CODE_PUSH));
-    return builder;
+    String appId = headers.getRequestHeaders().getFirst(MMXServerConstants.HTTP_HEADER_APP_ID);
+    getJob(appId, jobId);
+    if (!PushJobManager.getInstance().cancel(jobId)) {
+      return Response
+          .status(Response.Status.CONFLICT)
+          .entity(new ErrorResponse(ErrorCode.PUSH_JOB_FINISHED, String.format(ErrorMessages.ERROR_PUSH_JOB_FINISHED, jobId)))
+          .build();
+    }
+    LOGGER.info("Cancelled push job:{} for appId:{}", jobId, appId);
+    return Response
+        .status(Response.Status.OK)
+        .entity(new PushJobStatus(getJob(appId, jobId)))
+        .build();
+  }
+
+  /**
+   * Get a job of the app.
+   * @throws WebApplicationException with NOT_FOUND if the app has no job with the id
+   */
+  private PushJobEntity getJob(String appId, int jobId) {
+    PushJobEntity job = new PushJobDAOImpl(getConnectionProvider()).getJob(jobId);
+    if (job == null || !job.getAppId().equals(appId)) {
+      throw new WebApplicationException(
+          Response
+              .status(Response.Status.NOT_FOUND)
+              .entity(new ErrorResponse(ErrorCode.PUSH_JOB_NOT_FOUND, String.format(ErrorMessages.ERROR_PUSH_JOB_NOT_FOUND, jobId)))
+              .build());
+    }
+    return job;
+  }
+
+  private static int getPageSize() {
+    return MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.PUSH_PAGE_SIZE,
+        MMXServerConstants.DEFAULT_PUSH_PAGE_SIZE);
   }
 }
@@ -27,6 +27,11 @@ public class SendPushMessageResponse {
 
   private List<Unsent> unsentList;
 
+  /**
+   * Id of the push job; only set when the devices of a device query were pushed page by page
+   */
+  private Integer jobId;
+
   public List<PushIdTuple> getSentList() {
     return sentList;
   }
@@ -51,6 +56,14 @@ public class SendPushMessageResponse {
     this.count = count;
   }
 
+  public Integer getJobId() {
+    return jobId;
+  }
+
+  public void setJobId(Integer jobId) {
+    this.jobId = jobId;
+  }
+
   public void setCount (int requested, int sent, int unsent) {
     Count count = new Count(requested, sent, unsent);
     setCount(count);
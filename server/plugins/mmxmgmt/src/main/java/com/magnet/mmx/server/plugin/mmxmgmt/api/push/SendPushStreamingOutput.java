@@ -0,0 +1,98 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.api.push;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.push.PushJobProcessor;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.JacksonJSONObjectMapperProvider;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the {@link SendPushMessageResponse} for a push to a device query while the devices are
+ * being pushed page by page. The push ids of a page are written as soon as the page has been
+ * pushed. The unsent list, the count and the id of the push job follow the sent list.
+ */
+public class SendPushStreamingOutput implements StreamingOutput, PushJobProcessor.PageListener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SendPushStreamingOutput.class);
+  private static final ObjectMapper MAPPER = new JacksonJSONObjectMapperProvider().getContext(SendPushMessageResponse.class);
+
+  private final PushJobProcessor processor;
+  private final PushJobEntity job;
+  private final Target target;
+  private final int pageSize;
+  private final List<Unsent> unsentList = new ArrayList<Unsent>();
+  private JsonGenerator generator;
+  private IOException writeException;
+
+  public SendPushStreamingOutput(PushJobProcessor processor, PushJobEntity job, Target target, int pageSize) {
+    this.processor = processor;
+    this.job = job;
+    this.target = target;
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException {
+    long startTime = System.nanoTime();
+    generator = MAPPER.getJsonFactory().createJsonGenerator(output, JsonEncoding.UTF8);
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("sentList");
+    Count count = processor.process(job, target, pageSize, this);
+    if (writeException != null) {
+      //the devices have been pushed but the client is gone
+      throw writeException;
+    }
+    generator.writeEndArray();
+    generator.writeArrayFieldStart("unsentList");
+    for (Unsent unsent : unsentList) {
+      generator.writeObject(unsent);
+    }
+    generator.writeEndArray();
+    generator.writeObjectField("count", count);
+    generator.writeNumberField("jobId", job.getId());
+    generator.writeEndObject();
+    generator.close();
+    LOGGER.info("Completed streaming sendPushMessage for job:{} in {} milliseconds", job.getId(),
+        TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS));
+  }
+
+  @Override
+  public void pagePushed(PushResult result) {
+    unsentList.addAll(result.getUnsentList());
+    if (writeException != null) {
+      return;
+    }
+    try {
+      for (PushIdTuple tuple : result.getSentList()) {
+        generator.writeObject(tuple);
+      }
+      generator.flush();
+    } catch (IOException e) {
+      LOGGER.warn("Failed to write push ids; continuing with the push", e);
+      writeException = e;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.api.query;
+
+/**
+ * Geo query representation. Selects the devices whose last reported location is either within
+ * radiusKm of the point (latitude, longitude) or inside the bounding box.
+ */
+public class GeoQuery {
+
+  private Double latitude;
+  private Double longitude;
+  private Double radiusKm;
+
+  private Double minLatitude;
+  private Double minLongitude;
+  private Double maxLatitude;
+  private Double maxLongitude;
+
+  public Double getLatitude() {
+    return latitude;
+  }
+
+  public void setLatitude(Double latitude) {
+    this.latitude = latitude;
+  }
+
+  public Double getLongitude() {
+    return longitude;
+  }
+
+  public void setLongitude(Double longitude) {
+    this.longitude = longitude;
+  }
+
+  public Double getRadiusKm() {
+    return radiusKm;
+  }
+
+  public void setRadiusKm(Double radiusKm) {
+    this.radiusKm = radiusKm;
+  }
+
+  public Double getMinLatitude() {
+    return minLatitude;
+  }
+
+  public void setMinLatitude(Double minLatitude) {
+    this.minLatitude = minLatitude;
+  }
+
+  public Double getMinLongitude() {
+    return minLongitude;
+  }
+
+  public void setMinLongitude(Double minLongitude) {
+    this.minLongitude = minLongitude;
+  }
+
+  public Double getMaxLatitude() {
+    return maxLatitude;
+  }
+
+  public void setMaxLatitude(Double maxLatitude) {
+    this.maxLatitude = maxLatitude;
+  }
+
+  public Double getMaxLongitude() {
+    return maxLongitude;
+  }
+
+  public void setMaxLongitude(Double maxLongitude) {
+    this.maxLongitude = maxLongitude;
+  }
+
+  /**
+   * @return true if this is a radius query
+   */
+  public boolean isRadiusQuery() {
+    return latitude != null && longitude != null && radiusKm != null;
+  }
+
+  /**
+   * @return true if this is a bounding box query
+   */
+  public boolean isBoundingBoxQuery() {
+    return minLatitude != null && minLongitude != null && maxLatitude != null && maxLongitude != null;
+  }
+
+  /**
+   * Check if the query has either a valid radius or a valid bounding box. A bounding box with
+   * minLongitude greater than maxLongitude crosses the 180th meridian.
+   * @param query
+   * @return
+   */
+  public static boolean isValid(GeoQuery query) {
+    if (query == null) {
+      return false;
+    }
+    if (query.isRadiusQuery()) {
+      return isLatitude(query.latitude) && isLongitude(query.longitude) && query.radiusKm > 0;
+    }
+    if (query.isBoundingBoxQuery()) {
+      return isLatitude(query.minLatitude) && isLatitude(query.maxLatitude) && query.minLatitude <= query.maxLatitude
+          && isLongitude(query.minLongitude) && isLongitude(query.maxLongitude);
+    }
+    return false;
+  }
+
+  private static boolean isLatitude(double value) {
+    return value >= -90d && value <= 90d;
+  }
+
+  private static boolean isLongitude(double value) {
+    return value >= -180d && value <= 180d;
+  }
+}
@@ -14,11 +14,14 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.apns;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.ConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.OpenFireDBConnectionProvider;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.DBUtil;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.ApnsServiceBuilder;
@@ -34,15 +37,35 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 /**
  * Pool for maintaining APNS service instances.
  * Using a cache ensures we are not opening and closing connections to the APNS servers repeatedly.
+ * <p>
+ * The number of connections kept for an app follows its demand. The borrow wait time and the peak
+ * number of active connections are recorded for every key; each adjust interval the target for the
+ * key is raised when borrowers had to wait and connections are created ahead of the next borrow.
+ * Keys without borrows decay and their idle connections are closed by the pool evictor once they
+ * have been idle for the minimum evictable idle time.
  */
-public class APNSConnectionPoolImpl implements APNSConnectionPool {
+public class APNSConnectionPoolImpl implements APNSConnectionPool, APNSConnectionPoolImplMBean {
   private static Logger LOGGER = LoggerFactory.getLogger(APNSConnectionPoolImpl.class);
 
   private GenericKeyedObjectPool<APNSConnectionKey, APNSConnection> connectionPool;
+  private final ConcurrentHashMap<APNSConnectionKey, KeyStats> keyStats = new ConcurrentHashMap<APNSConnectionKey, KeyStats>();
+  private ScheduledExecutorService maintenance;
+  private long slowBorrowMillis;
 
   private static APNSConnectionPoolImpl instance = new APNSConnectionPoolImpl();
   private static AtomicBoolean initialized = new AtomicBoolean(false);
@@ -65,17 +88,33 @@ public class APNSConnectionPoolImpl implements APNSConnectionPool {
    */
   public static void initialize() {
     GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
-    config.setMaxIdlePerKey(1);
-    config.setMaxTotalPerKey(5);
-    config.setMaxTotal(50);
+    config.setMaxIdlePerKey(MMXServerConstants.APNS_POOL_MAX_IDLE_CONNECTIONS_PER_APP);
+    config.setMaxTotalPerKey(MMXServerConstants.APNS_POOL_MAX_CONNECTIONS_PER_APP);
+    config.setMaxTotal(MMXServerConstants.APNS_POOL_MAX_TOTAL_CONNECTIONS);
+    config.setMinEvictableIdleTimeMillis(MMXServerConstants.APNS_POOL_IDLE_TTL_MINUTES * 60 * 1000L);
+    config.setTimeBetweenEvictionRunsMillis(MMXServerConstants.APNS_POOL_EVICTION_RUN_SECONDS * 1000L);
+    config.setNumTestsPerEvictionRun(-1);
     initialize(new APNSConnectionKeyedPooledObjectFactory(new OpenFireDBConnectionProvider()), config);
   }
 
   public static void initialize(GenericKeyedObjectPoolConfig configuration) {
+    initialize(configuration, MMXServerConstants.DEFAULT_APNS_POOL_ADJUST_INTERVAL_SECONDS,
+        MMXServerConstants.DEFAULT_APNS_POOL_SLOW_BORROW_MILLIS);
+  }
+
+  /**
+   * Lifecycle method. Initializes the pool using the default object factory.
+   * @param configuration
+   * @param adjustIntervalSeconds interval at which the per app targets are adjusted
+   * @param slowBorrowMillis borrow wait time after which an app gets another connection
+   * @throws java.lang.IllegalStateException if the pool instance has already been initialized.
+   */
+  public static void initialize(GenericKeyedObjectPoolConfig configuration, int adjustIntervalSeconds, long slowBorrowMillis) {
     if (initialized.get()) {
       throw new IllegalStateException("Can't initialize multiple times");
     }
-    initialize(new APNSConnectionKeyedPooledObjectFactory(new OpenFireDBConnectionProvider()), configuration);
+    initialize(new APNSConnectionKeyedPooledObjectFactory(new OpenFireDBConnectionProvider()), configuration,
+        adjustIntervalSeconds, slowBorrowMillis);
   }
 
   /**
@@ -85,10 +124,30 @@ public class APNSConnectionPoolImpl implements APNSConnectionPool {
    * @throws java.lang.IllegalStateException if the pool instance has already been initialized.
    */
   public static void initialize(KeyedPooledObjectFactory<APNSConnectionKey, APNSConnection> factory, GenericKeyedObjectPoolConfig configuration) {
+    initialize(factory, configuration, MMXServerConstants.DEFAULT_APNS_POOL_ADJUST_INTERVAL_SECONDS,
+        MMXServerConstants.DEFAULT_APNS_POOL_SLOW_BORROW_MILLIS);
+  }
+
+  public static void initialize(KeyedPooledObjectFactory<APNSConnectionKey, APNSConnection> factory, GenericKeyedObjectPoolConfig configuration,
+                                int adjustIntervalSeconds, long slowBorrowMillis) {
     if (initialized.get()) {
       throw new IllegalStateException("Can't initialize multiple times");
     }
     instance.connectionPool = new GenericKeyedObjectPool<APNSConnectionKey, APNSConnection>(factory, configuration);
+    instance.slowBorrowMillis = slowBorrowMillis;
+    instance.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("APNSPoolMaintenance-%d").setDaemon(true).build());
+    long interval = Math.max(1, adjustIntervalSeconds);
+    instance.maintenance.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          instance.adjust();
+        } catch (Throwable t) {
+          LOGGER.warn("Exception in adjusting the APNS connection pool", t);
+        }
+      }
+    }, interval, interval, TimeUnit.SECONDS);
     initialized.set(true);
     LOGGER.info("APNS Connection pool is initialized");
   }
@@ -102,8 +161,10 @@ public class APNSConnectionPoolImpl implements APNSConnectionPool {
       throw new IllegalStateException("Can't teardown a pool that hasn't be initialized");
     }
     LOGGER.info("APNS Connection pool closing...");
+    instance.maintenance.shutdownNow();
     instance.connectionPool.clear();
     instance.connectionPool.close();
+    instance.keyStats.clear();
     LOGGER.info("APNS Connection pool closed.");
 
   }
@@ -114,7 +175,10 @@ public class APNSConnectionPoolImpl implements APNSConnectionPool {
     }
     APNSConnectionKey key = new APNSConnectionKey(appId, productionCert);
     try {
-      return connectionPool.borrowObject(key);
+      long start = System.currentTimeMillis();
+      APNSConnection connection = connectionPool.borrowObject(key);
+      stats(key).borrowed(System.currentTimeMillis() - start, connectionPool.getNumActive(key));
+      return connection;
     } catch (Exception e) {
       LOGGER.warn("Couldn't get connection for key:" + key , e);
       return null;
@@ -137,6 +201,284 @@ public class APNSConnectionPoolImpl implements APNSConnectionPool {
     connectionPool.clear(key);
   }
 
+  /**
+   * Open a connection for an app in the background if it has none, so that its next push doesn't
+   * wait for the connection to be built.
+   * @param appId
+   * @param productionCert
+   */
+  public void prewarm(String appId, boolean productionCert) {
+    if (!initialized.get()) {
+      return;
+    }
+    final APNSConnectionKey key = new APNSConnectionKey(appId, productionCert);
+    stats(key).raiseTarget(1);
+    try {
+      maintenance.execute(new Runnable() {
+        @Override
+        public void run() {
+          warm(key, 1);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.info("Pool is closing, not prewarming key:{}", key);
+    }
+  }
+
+  /**
+   * Prewarm the connections for the apps with an APNS certificate that sent push messages in the
+   * last hours. The apps are looked up in the background.
+   * @param hours
+   */
+  public void prewarmRecentlyPushedApps(final int hours) {
+    if (!initialized.get() || hours <= 0) {
+      return;
+    }
+    maintenance.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Date since = new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(hours));
+          List<String> appIds = DBUtil.getPushMessageDAO().getAppIdsWithPushMessagesSince(since);
+          AppDAO appDAO = DBUtil.getAppDAO();
+          int count = 0;
+          for (String appId : appIds) {
+            AppEntity appEntity = appDAO.getAppForAppKey(appId);
+            if (appEntity == null || appEntity.getApnsCert() == null || appEntity.getApnsCert().length == 0) {
+              continue;
+            }
+            APNSConnectionKey key = new APNSConnectionKey(appId, appEntity.isApnsCertProduction());
+            stats(key).raiseTarget(1);
+            warm(key, 1);
+            count++;
+          }
+          LOGGER.info("Prewarmed APNS connections for {} apps with pushes in the last {} hours", count, hours);
+        } catch (Exception e) {
+          LOGGER.warn("Exception in prewarming APNS connections", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Create connections for a key until it has count connections.
+   */
+  void warm(APNSConnectionKey key, int count) {
+    int missing = count - connectionPool.getNumActive(key) - connectionPool.getNumIdle(key);
+    for (int i = 0; i < missing; i++) {
+      try {
+        connectionPool.addObject(key);
+      } catch (Exception e) {
+        LOGGER.warn("Couldn't prewarm connection for key:" + key, e);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Adjust the target number of connections of every key to the demand seen since the last run.
+   */
+  void adjust() {
+    Map<String, Integer> waiters = connectionPool.getNumWaitersByKey();
+    int maxPerKey = connectionPool.getMaxTotalPerKey();
+    for (Map.Entry<APNSConnectionKey, KeyStats> entry : keyStats.entrySet()) {
+      APNSConnectionKey key = entry.getKey();
+      KeyStats stats = entry.getValue();
+      int borrows = stats.windowBorrows.getAndSet(0);
+      long maxWait = stats.windowMaxWaitMillis.getAndSet(0);
+      int peakActive = stats.windowPeakActive.getAndSet(0);
+      Integer waiting = waiters.get(key.toString());
+      int target;
+      if (borrows == 0) {
+        target = Math.max(0, stats.target - 1);
+      } else if (maxWait >= slowBorrowMillis || (waiting != null && waiting.intValue() > 0)) {
+        target = Math.max(stats.target, peakActive) + 1;
+      } else {
+        target = Math.max(1, peakActive);
+      }
+      if (maxPerKey > 0) {
+        target = Math.min(target, maxPerKey);
+      }
+      if (target != stats.target) {
+        LOGGER.info("Adjusting APNS connection target for key:{} from {} to {}", new Object[]{key, stats.target, target});
+        stats.target = target;
+      }
+      if (borrows > 0) {
+        warm(key, target);
+      } else if (target == 0 && connectionPool.getNumActive(key) + connectionPool.getNumIdle(key) == 0) {
+        keyStats.remove(key, stats);
+      }
+    }
+  }
+
+  KeyStats stats(APNSConnectionKey key) {
+    KeyStats stats = keyStats.get(key);
+    if (stats == null) {
+      KeyStats created = new KeyStats();
+      stats = keyStats.putIfAbsent(key, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  @Override
+  public int getNumActive() {
+    return connectionPool.getNumActive();
+  }
+
+  @Override
+  public int getNumIdle() {
+    return connectionPool.getNumIdle();
+  }
+
+  @Override
+  public int getNumWaiters() {
+    return connectionPool.getNumWaiters();
+  }
+
+  @Override
+  public int getMaxTotal() {
+    return connectionPool.getMaxTotal();
+  }
+
+  @Override
+  public int getMaxTotalPerKey() {
+    return connectionPool.getMaxTotalPerKey();
+  }
+
+  @Override
+  public long getMeanBorrowWaitTimeMillis() {
+    return connectionPool.getMeanBorrowWaitTimeMillis();
+  }
+
+  @Override
+  public long getMaxBorrowWaitTimeMillis() {
+    return connectionPool.getMaxBorrowWaitTimeMillis();
+  }
+
+  @Override
+  public long getCreatedCount() {
+    return connectionPool.getCreatedCount();
+  }
+
+  @Override
+  public long getDestroyedCount() {
+    return connectionPool.getDestroyedCount();
+  }
+
+  @Override
+  public String[] getKeyStats() {
+    List<String> list = new ArrayList<String>(keyStats.size());
+    for (Map.Entry<APNSConnectionKey, KeyStats> entry : keyStats.entrySet()) {
+      APNSConnectionKey key = entry.getKey();
+      KeyStats stats = entry.getValue();
+      long borrows = stats.borrows.get();
+      list.add("appId=" + key.getAppId() +
+          ", production=" + key.isProduction() +
+          ", active=" + connectionPool.getNumActive(key) +
+          ", idle=" + connectionPool.getNumIdle(key) +
+          ", target=" + stats.target +
+          ", borrows=" + borrows +
+          ", meanWaitMillis=" + (borrows == 0 ? 0 : stats.borrowWaitMillis.get() / borrows) +
+          ", maxWaitMillis=" + stats.maxWaitMillis.get());
+    }
+    return list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * Borrow statistics of a key. The window values are reset by every adjust run.
+   */
+  static class KeyStats {
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong borrowWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+    private final AtomicInteger windowBorrows = new AtomicInteger();
+    private final AtomicLong windowMaxWaitMillis = new AtomicLong();
+    private final AtomicInteger windowPeakActive = new AtomicInteger();
+    private volatile int target;
+
+    void borrowed(long waitMillis, int active) {
+      borrows.incrementAndGet();
+      borrowWaitMillis.addAndGet(waitMillis);
+      windowBorrows.incrementAndGet();
+      updateMax(maxWaitMillis, waitMillis);
+      updateMax(windowMaxWaitMillis, waitMillis);
+      int peak = windowPeakActive.get();
+      while (active > peak && !windowPeakActive.compareAndSet(peak, active)) {
+        peak = windowPeakActive.get();
+      }
+    }
+
+    void raiseTarget(int min) {
+      if (target < min) {
+        target = min;
+      }
+    }
+
+    int getTarget() {
+      return target;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+        current = max.get();
+      }
+    }
+  }
+
+  /**
+   * Build an APNS service builder that uses the certificate of the app and the APNS destination of
+   * the key.
+   * @param appEntity
+   * @param key
+   * @return
+   * @throws APNSConnectionException if the app has no certificate or the certificate can't be used
+   */
+  static ApnsServiceBuilder serviceBuilder(AppEntity appEntity, APNSConnectionKey key) throws APNSConnectionException {
+    boolean apnsCertProduction = key.isProduction();
+
+    byte[] cert = appEntity.getApnsCert();
+    String password = appEntity.getApnsCertPassword();
+
+    if (cert == null || cert.length == 0) {
+      String template = "Certificate for app with id:%s is null or empty";
+      throw new APNSConnectionException(String.format(template, key.getAppId()));
+    }
+    String md5String = DigestUtils.md5Hex(cert);
+    LOGGER.info("MD5 for apns cert for key:{} is {}", key, md5String);
+
+    if (password == null || password.isEmpty()) {
+      String template = "Certificate password for app with id:%s is null or empty";
+      throw new APNSConnectionException(String.format(template, key.getAppId()));
+    }
+
+    ApnsServiceBuilder builder =  null;
+    try {
+      builder = APNS.newService()
+          .withCert(new ByteArrayInputStream(cert), password);
+    } catch (InvalidSSLConfig t) {
+      LOGGER.warn("Exception in building APNS service for key:{}", key, t);
+      String template = "Invalid SSL Config for key:%s with exception:%s";
+      throw new APNSConnectionException(String.format(template, key.getAppId(), t.getMessage()));
+    }
+
+    if (apnsCertProduction) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Using production apns destination");
+      }
+      builder.withAppleDestination(apnsCertProduction);
+    } else {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Using sandbox apns destination");
+      }
+      builder.withAppleDestination(apnsCertProduction);
+    }
+    return builder;
+  }
+
   /**
    * Protected class for defining the keys in the object pool
    */
@@ -216,44 +558,7 @@ public class APNSConnectionPoolImpl implements APNSConnectionPool {
     public APNSConnection create(APNSConnectionKey key) throws Exception {
       LOGGER.info("Building APNS Connection for appId:{} and production:{}", key.getAppId(), key.isProduction());
       AppEntity appEntity = getAppEntity(key.getAppId());
-      boolean apnsCertProduction = key.isProduction();
-
-      byte[] cert = appEntity.getApnsCert();
-      String password = appEntity.getApnsCertPassword();
-
-      if (cert == null || cert.length == 0) {
-        String template = "Certificate for app with id:%s is null or empty";
-        throw new APNSConnectionException(String.format(template, key.getAppId()));
-      }
-      String md5String = DigestUtils.md5Hex(cert);
-      LOGGER.info("MD5 for apns cert for key:{} is {}", key, md5String);
-
-      if (password == null || password.isEmpty()) {
-        String template = "Certificate password for app with id:%s is null or empty";
-        throw new APNSConnectionException(String.format(template, key.getAppId()));
-      }
-
-      ApnsServiceBuilder builder =  null;
-      try {
-        builder = APNS.newService()
-            .withCert(new ByteArrayInputStream(cert), password);
-      } catch (InvalidSSLConfig t) {
-        LOGGER.warn("Exception in building APNS service for key:{}", key, t);
-        String template = "Invalid SSL Config for key:%s with exception:%s";
-        throw new APNSConnectionException(String.format(template, key.getAppId(), t.getMessage()));
-      }
-
-      if (apnsCertProduction) {
-        if (LOGGER.isDebugEnabled()) {
-          LOGGER.debug("Using production apns destination");
-        }
-        builder.withAppleDestination(apnsCertProduction);
-      } else {
-        if (LOGGER.isDebugEnabled()) {
-          LOGGER.debug("Using sandbox apns destination");
-        }
-        builder.withAppleDestination(apnsCertProduction);
-      }
+      ApnsServiceBuilder builder = serviceBuilder(appEntity, key);
       builder.withDelegate(new MMXAPNSDelegate(key));
 
       ApnsService apnsService = builder.build();
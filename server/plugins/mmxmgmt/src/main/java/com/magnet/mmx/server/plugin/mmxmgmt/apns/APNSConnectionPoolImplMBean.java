@@ -0,0 +1,47 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.apns;
+
+/**
+ * JMX view of the {@link APNSConnectionPoolImpl}.
+ */
+public interface APNSConnectionPoolImplMBean {
+
+  public int getNumActive();
+
+  public int getNumIdle();
+
+  /**
+   * @return number of threads waiting to borrow a connection
+   */
+  public int getNumWaiters();
+
+  public int getMaxTotal();
+
+  public int getMaxTotalPerKey();
+
+  public long getMeanBorrowWaitTimeMillis();
+
+  public long getMaxBorrowWaitTimeMillis();
+
+  public long getCreatedCount();
+
+  public long getDestroyedCount();
+
+  /**
+   * @return active and idle connections, target and borrow wait times of every app
+   */
+  public String[] getKeyStats();
+}
@@ -0,0 +1,201 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.apns;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery counters of an app for the {@link APNSDeliveryEngine}.
+ * <ul>
+ *   <li>inFlight: notifications queued on a channel that haven't been written yet</li>
+ *   <li>sent: notifications written to the gateway</li>
+ *   <li>resent: notifications written again after the gateway rejected an earlier notification</li>
+ *   <li>failed: notifications rejected by the gateway, refused because too many were in flight,
+ *   that couldn't be written or that were still queued when their channel was closed</li>
+ * </ul>
+ * Every channel has its own counters with the counters of the app as parent; a change to the
+ * counters of a channel is applied to the counters of the app as well.
+ */
+public class APNSDeliveryCounters {
+  private final String appId;
+  private final APNSDeliveryCounters parent;
+  private final AtomicLong inFlight = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong resent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  public APNSDeliveryCounters(String appId) {
+    this(appId, null);
+  }
+
+  APNSDeliveryCounters(String appId, APNSDeliveryCounters parent) {
+    this.appId = appId;
+    this.parent = parent;
+  }
+
+  public String getAppId() {
+    return appId;
+  }
+
+  public long getInFlight() {
+    return inFlight.get();
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getResent() {
+    return resent.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Count a notification as in flight if fewer than maxInFlight notifications are in flight, waiting
+   * up to waitMillis for an earlier notification to be written.
+   * @param maxInFlight
+   * @param waitMillis
+   * @return false if the limit was still reached after waiting; the notification is counted as failed
+   * @throws InterruptedException
+   */
+  boolean queued(long maxInFlight, long waitMillis) throws InterruptedException {
+    if (tryQueue(maxInFlight)) {
+      return true;
+    }
+    long deadline = System.currentTimeMillis() + waitMillis;
+    synchronized (this) {
+      waiting.incrementAndGet();
+      try {
+        while (!tryQueue(maxInFlight)) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            addFailed(1);
+            return false;
+          }
+          wait(remaining);
+        }
+      } finally {
+        waiting.decrementAndGet();
+      }
+    }
+    return true;
+  }
+
+  void written(boolean resend) {
+    if (resend) {
+      addResent();
+    } else {
+      addSent();
+      released();
+    }
+  }
+
+  void rejected() {
+    addFailed(1);
+  }
+
+  void notWritten() {
+    addInFlight(-1);
+    addFailed(1);
+    released();
+  }
+
+  /**
+   * Count the notifications that are still in flight as failed, because their channel has been
+   * closed and they will never be written.
+   * @return number of dropped notifications
+   */
+  long dropped() {
+    long count = inFlight.getAndSet(0);
+    if (count > 0) {
+      if (parent != null) {
+        parent.addInFlight(-count);
+      }
+      addFailed(count);
+    }
+    return count;
+  }
+
+  private boolean tryQueue(long maxInFlight) {
+    while (true) {
+      long current = inFlight.get();
+      if (current >= maxInFlight) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        if (parent != null) {
+          parent.addInFlight(1);
+        }
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Wake up the senders waiting for a notification to leave the in flight count.
+   */
+  private void released() {
+    if (waiting.get() > 0) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  private void addInFlight(long delta) {
+    inFlight.addAndGet(delta);
+    if (parent != null) {
+      parent.addInFlight(delta);
+    }
+  }
+
+  private void addSent() {
+    inFlight.decrementAndGet();
+    sent.incrementAndGet();
+    if (parent != null) {
+      parent.addSent();
+    }
+  }
+
+  private void addResent() {
+    resent.incrementAndGet();
+    if (parent != null) {
+      parent.addResent();
+    }
+  }
+
+  private void addFailed(long count) {
+    failed.addAndGet(count);
+    if (parent != null) {
+      parent.addFailed(count);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "APNSDeliveryCounters{" +
+        "appId='" + appId + '\'' +
+        ", inFlight=" + inFlight +
+        ", sent=" + sent +
+        ", resent=" + resent +
+        ", failed=" + failed +
+        '}';
+  }
+}
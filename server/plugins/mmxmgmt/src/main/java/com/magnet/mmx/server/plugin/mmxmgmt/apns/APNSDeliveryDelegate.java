@@ -0,0 +1,76 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.apns;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delegate of the channels of the {@link APNSDeliveryEngine}. Besides the token invalidation done by
+ * {@link MMXAPNSDelegate} it keeps the delivery counters of the app.
+ * <p>
+ * A notification rejected by the gateway has already been counted as sent when it was written; it
+ * is counted as failed as well and its token is invalidated. Every notification that was written after it is resent by the
+ * APNS library and reported through {@link #messageSent(ApnsNotification, boolean)} with resent set.
+ */
+class APNSDeliveryDelegate extends MMXAPNSDelegate {
+  private static final Logger LOGGER = LoggerFactory.getLogger(APNSDeliveryDelegate.class);
+
+  private final APNSConnectionPoolImpl.APNSConnectionKey key;
+  private final APNSDeliveryCounters counters;
+
+  APNSDeliveryDelegate(APNSConnectionPoolImpl.APNSConnectionKey key, APNSDeliveryCounters counters) {
+    super(key);
+    this.key = key;
+    this.counters = counters;
+  }
+
+  @Override
+  public void messageSent(ApnsNotification message, boolean resent) {
+    counters.written(resent);
+    super.messageSent(message, resent);
+  }
+
+  @Override
+  public void messageSendFailed(ApnsNotification message, Throwable e) {
+    if (e instanceof ApnsDeliveryErrorException) {
+      counters.rejected();
+      super.messageSendFailed(message, e);
+    } else {
+      //the notification couldn't be written; that says nothing about the token
+      counters.notWritten();
+      LOGGER.warn("APNS notification couldn't be written for key:{}", key, e);
+    }
+  }
+
+  @Override
+  public void connectionClosed(DeliveryError e, int messageIdentifier) {
+    LOGGER.info("APNS gateway closed the connection for key:{} with error:{} for notification:{}",
+        new Object[]{key, e, messageIdentifier});
+  }
+
+  @Override
+  public void notificationsResent(int resendCount) {
+    LOGGER.info("Resending {} notifications for key:{}", resendCount, key);
+  }
+
+  @Override
+  public void cacheLengthExceeded(int newCacheLength) {
+    LOGGER.warn("Sent notification cache for key:{} was too small; increased to:{}", key, newCacheLength);
+  }
+}
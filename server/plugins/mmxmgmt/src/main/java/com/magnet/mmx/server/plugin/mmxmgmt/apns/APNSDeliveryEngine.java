@@ -0,0 +1,443 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.apns;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.magnet.mmx.server.common.data.AppEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.DBUtil;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ApnsServiceBuilder;
+import com.notnoop.exceptions.NetworkIOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Asynchronous APNS delivery.
+ * <p>
+ * The engine keeps one long lived channel per appId and production flag. A channel is a queued
+ * APNS service: {@link APNSConnection#send(String, String)} only queues the notification and
+ * a single writer thread per channel writes the notifications back to back on the same TLS
+ * connection, without waiting for the gateway. Notifications use the enhanced format, so each one
+ * carries an identifier. The gateway reports a rejected notification with its identifier and then
+ * closes the connection; every notification written after the rejected one is kept in a cache of
+ * cacheLength notifications and is written again on a new connection.
+ * <p>
+ * At most maxInFlight notifications can be queued on a channel and not yet written. A send beyond
+ * that waits up to inFlightWaitMillis for the writer to catch up and otherwise fails with an
+ * {@link APNSConnectionException}, so a slow or unreachable gateway can't fill the heap.
+ * <p>
+ * Channels that haven't been used for idleMinutes are closed. Notifications still queued on a
+ * channel when it is closed are dropped and counted as failed. Channels are not returned after use
+ * and can be shared by any number of threads.
+ */
+public class APNSDeliveryEngine implements APNSDeliveryEngineMBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(APNSDeliveryEngine.class);
+
+  private static APNSDeliveryEngine instance = new APNSDeliveryEngine();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+
+  private final ConcurrentHashMap<APNSConnectionPoolImpl.APNSConnectionKey, Channel> channels =
+      new ConcurrentHashMap<APNSConnectionPoolImpl.APNSConnectionKey, Channel>();
+  private final ConcurrentHashMap<String, APNSDeliveryCounters> counters = new ConcurrentHashMap<String, APNSDeliveryCounters>();
+  private ScheduledExecutorService evictor;
+  private int cacheLength;
+  private long idleMillis;
+  private long maxInFlight;
+  private long inFlightWaitMillis;
+
+  APNSDeliveryEngine() {
+  }
+
+  public static APNSDeliveryEngine getInstance() {
+    return instance;
+  }
+
+  /**
+   * @return true if the engine has been initialized and should be used for sending APNS pushes.
+   */
+  public static boolean isInitialized() {
+    return initialized.get();
+  }
+
+  /**
+   * Lifecycle method. Start the engine.
+   * @param settings
+   * @throws java.lang.IllegalStateException if the engine has already been initialized.
+   */
+  public static void initialize(Settings settings) {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    instance.start(settings);
+    LOGGER.info("APNS delivery engine is initialized with {}", settings);
+  }
+
+  /**
+   * Lifecycle method. Close all channels. Notifications that are still queued are dropped and
+   * counted as failed.
+   */
+  public static void teardown() {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
+    }
+    instance.stop();
+    LOGGER.info("APNS delivery engine stopped.");
+  }
+
+  void start(Settings settings) {
+    this.cacheLength = Math.max(1, settings.cacheLength);
+    this.idleMillis = TimeUnit.MINUTES.toMillis(Math.max(1, settings.idleMinutes));
+    this.maxInFlight = Math.max(1, settings.maxInFlight);
+    this.inFlightWaitMillis = Math.max(0L, settings.inFlightWaitMillis);
+    long period = Math.max(1L, idleMillis / 2);
+    evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("APNSChannelEvictor-%d").setDaemon(true).build());
+    evictor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          evictIdle(System.currentTimeMillis() - idleMillis);
+        } catch (Throwable t) {
+          LOGGER.warn("Exception in evicting idle APNS channels", t);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  void stop() {
+    evictor.shutdownNow();
+    for (APNSConnectionPoolImpl.APNSConnectionKey key : new ArrayList<APNSConnectionPoolImpl.APNSConnectionKey>(channels.keySet())) {
+      close(key);
+    }
+  }
+
+  /**
+   * Get the channel for an app. The channel is opened if there isn't one.
+   * @param appId
+   * @param production
+   * @return the channel or null if it couldn't be opened
+   */
+  public APNSConnection getConnection(String appId, boolean production) {
+    APNSConnectionPoolImpl.APNSConnectionKey key = new APNSConnectionPoolImpl.APNSConnectionKey(appId, production);
+    while (true) {
+      Channel channel = channels.get(key);
+      if (channel == null) {
+        //opening a channel is rare; don't open two for the same key
+        synchronized (this) {
+          channel = channels.get(key);
+          if (channel == null) {
+            try {
+              channel = open(key);
+            } catch (Exception e) {
+              LOGGER.warn("Couldn't open APNS channel for key:" + key, e);
+              return null;
+            }
+            channels.put(key, channel);
+          }
+        }
+      }
+      //evictIdle checks lastUsed under the same guard, so a channel handed out here isn't closed as idle
+      synchronized (channel) {
+        if (!channel.closed) {
+          channel.lastUsed = System.currentTimeMillis();
+          return channel;
+        }
+      }
+      //closed after it was looked up; use its replacement
+    }
+  }
+
+  /**
+   * Close the channel for an app, for example because its certificate has changed.
+   * @param appId
+   * @param production
+   */
+  public void remove(String appId, boolean production) {
+    close(new APNSConnectionPoolImpl.APNSConnectionKey(appId, production));
+  }
+
+  /**
+   * Get the delivery counters of an app.
+   * @param appId
+   * @return counters; all zero if the app hasn't used the engine
+   */
+  public APNSDeliveryCounters getCounters(String appId) {
+    APNSDeliveryCounters appCounters = counters.get(appId);
+    if (appCounters == null) {
+      APNSDeliveryCounters created = new APNSDeliveryCounters(appId);
+      appCounters = counters.putIfAbsent(appId, created);
+      if (appCounters == null) {
+        appCounters = created;
+      }
+    }
+    return appCounters;
+  }
+
+  Channel open(APNSConnectionPoolImpl.APNSConnectionKey key) throws APNSConnectionException {
+    LOGGER.info("Opening APNS channel for appId:{} and production:{}", key.getAppId(), key.isProduction());
+    APNSDeliveryCounters channelCounters = new APNSDeliveryCounters(key.getAppId(), getCounters(key.getAppId()));
+    ApnsService service = newServiceBuilder(key)
+        .withDelegate(newDelegate(key, channelCounters))
+        .withCacheLength(cacheLength)
+        .withAutoAdjustCacheLength(true)
+        .asQueued()
+        .build();
+    service.start();
+    return new Channel(key, service, channelCounters, maxInFlight, inFlightWaitMillis);
+  }
+
+  /**
+   * Builder for the APNS service of a channel, without the delegate.
+   * @param key
+   * @return
+   * @throws APNSConnectionException if the app has no usable certificate
+   */
+  ApnsServiceBuilder newServiceBuilder(APNSConnectionPoolImpl.APNSConnectionKey key) throws APNSConnectionException {
+    AppEntity appEntity = DBUtil.getAppDAO().getAppForAppKey(key.getAppId());
+    if (appEntity == null) {
+      throw new APNSConnectionException(String.format("App with id:%s not found", key.getAppId()));
+    }
+    return APNSConnectionPoolImpl.serviceBuilder(appEntity, key);
+  }
+
+  ApnsDelegate newDelegate(APNSConnectionPoolImpl.APNSConnectionKey key, APNSDeliveryCounters channelCounters) {
+    return new APNSDeliveryDelegate(key, channelCounters);
+  }
+
+  void evictIdle(long idleSince) {
+    for (Map.Entry<APNSConnectionPoolImpl.APNSConnectionKey, Channel> entry : channels.entrySet()) {
+      Channel channel = entry.getValue();
+      boolean idle;
+      synchronized (channel) {
+        idle = !channel.closed && channel.lastUsed < idleSince;
+        if (idle) {
+          channel.closed = true;
+        }
+      }
+      if (idle && channels.remove(entry.getKey(), channel)) {
+        LOGGER.info("Closing idle APNS channel for key:{}", entry.getKey());
+        stop(entry.getKey(), channel);
+      }
+    }
+  }
+
+  private void close(APNSConnectionPoolImpl.APNSConnectionKey key) {
+    Channel channel = channels.remove(key);
+    if (channel != null) {
+      synchronized (channel) {
+        channel.closed = true;
+      }
+      stop(key, channel);
+    }
+  }
+
+  private void stop(APNSConnectionPoolImpl.APNSConnectionKey key, Channel channel) {
+    try {
+      channel.service.stop();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Exception in closing APNS channel for key:{}", key, e);
+    }
+    long dropped = channel.counters.dropped();
+    if (dropped > 0) {
+      LOGGER.warn("Dropped {} queued notifications in closing APNS channel for key:{}", dropped, key);
+    }
+  }
+
+  @Override
+  public int getChannelCount() {
+    return channels.size();
+  }
+
+  @Override
+  public long getInFlightCount() {
+    long count = 0;
+    for (APNSDeliveryCounters appCounters : counters.values()) {
+      count += appCounters.getInFlight();
+    }
+    return count;
+  }
+
+  @Override
+  public long getSentCount() {
+    long count = 0;
+    for (APNSDeliveryCounters appCounters : counters.values()) {
+      count += appCounters.getSent();
+    }
+    return count;
+  }
+
+  @Override
+  public long getResentCount() {
+    long count = 0;
+    for (APNSDeliveryCounters appCounters : counters.values()) {
+      count += appCounters.getResent();
+    }
+    return count;
+  }
+
+  @Override
+  public long getFailedCount() {
+    long count = 0;
+    for (APNSDeliveryCounters appCounters : counters.values()) {
+      count += appCounters.getFailed();
+    }
+    return count;
+  }
+
+  @Override
+  public String[] getAppCounters() {
+    List<String> list = new ArrayList<String>(counters.size());
+    for (APNSDeliveryCounters appCounters : counters.values()) {
+      list.add(appCounters.toString());
+    }
+    return list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * Long lived queued connection of an app.
+   */
+  static class Channel implements APNSConnection {
+    private final APNSConnectionPoolImpl.APNSConnectionKey key;
+    private final ApnsService service;
+    private final APNSDeliveryCounters counters;
+    private final long maxInFlight;
+    private final long inFlightWaitMillis;
+    private volatile long lastUsed = System.currentTimeMillis();
+    /**
+     * Set once the channel is removed from the engine; guarded by the channel
+     */
+    private boolean closed;
+
+    Channel(APNSConnectionPoolImpl.APNSConnectionKey key, ApnsService service, APNSDeliveryCounters counters,
+            long maxInFlight, long inFlightWaitMillis) {
+      this.key = key;
+      this.service = service;
+      this.counters = counters;
+      this.maxInFlight = maxInFlight;
+      this.inFlightWaitMillis = inFlightWaitMillis;
+    }
+
+    @Override
+    public void send(String deviceToken, String payload) throws APNSConnectionException {
+      send(deviceToken, payload, null);
+    }
+
+    /**
+     * Queue the notification. Delivery problems are reported to the delegate of the channel.
+     * @throws APNSConnectionException if the notification couldn't be queued, including when
+     * maxInFlight notifications were still queued after waiting inFlightWaitMillis
+     */
+    @Override
+    public void send(String deviceToken, String payload, Integer ttl) throws APNSConnectionException {
+      lastUsed = System.currentTimeMillis();
+      try {
+        if (!counters.queued(maxInFlight, inFlightWaitMillis)) {
+          LOGGER.warn("Too many notifications in flight for key:{}; refusing push", key);
+          throw new APNSConnectionException(String.format("More than %d notifications in flight for key:%s", maxInFlight, key));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new APNSConnectionException(e);
+      }
+      try {
+        if (ttl != null) {
+          service.push(deviceToken, payload, new Date(System.currentTimeMillis() + (ttl.intValue() * 1000L)));
+        } else {
+          service.push(deviceToken, payload);
+        }
+      } catch (NetworkIOException e) {
+        counters.notWritten();
+        LOGGER.warn("NetworkIOException in queueing push for key:{}", key, e);
+        throw new APNSConnectionException(e.getMessage());
+      } catch (RuntimeException e) {
+        counters.notWritten();
+        LOGGER.warn("Exception in queueing push for key:{}", key, e);
+        throw new APNSConnectionException(e);
+      }
+    }
+
+    @Override
+    public String getAppId() {
+      return key.getAppId();
+    }
+
+    @Override
+    public boolean isApnsProductionCert() {
+      return key.isProduction();
+    }
+
+    @Override
+    public List<String> getInactiveDeviceTokens() {
+      Map<String, Date> tokenMap = service.getInactiveDevices();
+      if (tokenMap == null || tokenMap.isEmpty()) {
+        return Collections.emptyList();
+      }
+      return new ArrayList<String>(tokenMap.keySet());
+    }
+  }
+
+  /**
+   * Settings of the engine.
+   */
+  public static class Settings {
+    private int cacheLength = MMXServerConstants.DEFAULT_APNS_ASYNC_CACHE_LENGTH;
+    private int idleMinutes = MMXServerConstants.DEFAULT_APNS_ASYNC_IDLE_MINUTES;
+    private int maxInFlight = MMXServerConstants.DEFAULT_APNS_ASYNC_MAX_IN_FLIGHT;
+    private long inFlightWaitMillis = MMXServerConstants.DEFAULT_APNS_ASYNC_IN_FLIGHT_WAIT_MILLIS;
+
+    public Settings setCacheLength(int cacheLength) {
+      this.cacheLength = cacheLength;
+      return this;
+    }
+
+    public Settings setIdleMinutes(int idleMinutes) {
+      this.idleMinutes = idleMinutes;
+      return this;
+    }
+
+    public Settings setMaxInFlight(int maxInFlight) {
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    public Settings setInFlightWaitMillis(long inFlightWaitMillis) {
+      this.inFlightWaitMillis = inFlightWaitMillis;
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return "Settings{" +
+          "cacheLength=" + cacheLength +
+          ", idleMinutes=" + idleMinutes +
+          ", maxInFlight=" + maxInFlight +
+          ", inFlightWaitMillis=" + inFlightWaitMillis +
+          '}';
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.magnet.mmx.server.plugin.mmxmgmt.apns;
 
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXExecutors;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import com.magnet.mmx.server.plugin.mmxmgmt.wakeup.SchedulerThreadFactory;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -42,6 +43,19 @@ public class APNSFeedbackProcessExecutionManager {
       Executors.newScheduledThreadPool(threadPoolSize, new SchedulerThreadFactory(POOL_NAME));
 
   public void start(int initialDelayMinutes, int intervalMinutes) {
+    start(initialDelayMinutes, intervalMinutes, APNSFeedbackProcessor.THREAD_POOL_SIZE,
+        MMXServerConstants.DEFAULT_APNS_FEEDBACK_RECENT_PUSH_DAYS, MMXServerConstants.DEFAULT_APNS_FEEDBACK_RUN_TIMEOUT_MINUTES);
+  }
+
+  /**
+   * Start the feedback process.
+   * @param initialDelayMinutes
+   * @param intervalMinutes
+   * @param concurrency maximum number of apps processed at the same time
+   * @param recentPushDays only apps that sent APNS pushes or wakeups in these last days are processed
+   * @param runTimeoutMinutes apps that are not done after these minutes are cancelled
+   */
+  public void start(int initialDelayMinutes, int intervalMinutes, int concurrency, int recentPushDays, int runTimeoutMinutes) {
     try {
       LOGGER.trace("start : creating lock");
       lock = CacheFactory.getLock(APNS_FEEDBACK_TASK_KEY);
@@ -50,7 +64,8 @@ public class APNSFeedbackProcessExecutionManager {
     }
     LOGGER.info("scheduling APNSFeedbackProcessExecutionManager. initialDelay(min):{} interval(min):{}",
         initialDelayMinutes, intervalMinutes);
-    scheduler.scheduleAtFixedRate(new APNSFeedbackProcessor(lock), initialDelayMinutes, intervalMinutes, TimeUnit.MINUTES);
+    scheduler.scheduleAtFixedRate(new APNSFeedbackProcessor(lock, concurrency, recentPushDays, runTimeoutMinutes),
+        initialDelayMinutes, intervalMinutes, TimeUnit.MINUTES);
   }
 
   public void stop() {
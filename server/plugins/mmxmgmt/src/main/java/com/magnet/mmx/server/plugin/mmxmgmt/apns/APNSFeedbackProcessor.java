@@ -21,11 +21,17 @@ import com.magnet.mmx.server.plugin.mmxmgmt.db.ConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.OpenFireDBConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXClusterableTask;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXExecutors;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
@@ -38,8 +44,27 @@ public class APNSFeedbackProcessor extends MMXClusterableTask implements Runnabl
   static final int THREAD_POOL_SIZE = 5;
   private Logger LOGGER = LoggerFactory.getLogger(APNSFeedbackProcessor.class);
 
+  private final int concurrency;
+  private final int recentPushDays;
+  private final int runTimeoutMinutes;
+
   public APNSFeedbackProcessor(Lock lock) {
+    this(lock, THREAD_POOL_SIZE, MMXServerConstants.DEFAULT_APNS_FEEDBACK_RECENT_PUSH_DAYS,
+        MMXServerConstants.DEFAULT_APNS_FEEDBACK_RUN_TIMEOUT_MINUTES);
+  }
+
+  /**
+   * Constructor.
+   * @param lock
+   * @param concurrency maximum number of apps processed at the same time
+   * @param recentPushDays only apps that sent APNS pushes or wakeups in these last days are processed
+   * @param runTimeoutMinutes apps that are not done after these minutes are cancelled
+   */
+  public APNSFeedbackProcessor(Lock lock, int concurrency, int recentPushDays, int runTimeoutMinutes) {
     super(lock);
+    this.concurrency = Math.max(1, concurrency);
+    this.recentPushDays = recentPushDays;
+    this.runTimeoutMinutes = runTimeoutMinutes;
   }
 
   @Override
@@ -51,20 +76,59 @@ public class APNSFeedbackProcessor extends MMXClusterableTask implements Runnabl
 
     LOGGER.debug("APNSFeedbackProcessor.run() : Successfully acquired APNSFeedbackProcessor lock");
 
-    ExecutorService executorService = MMXExecutors.getOrCreate(THREAD_POOL_NAME, THREAD_POOL_SIZE);
     long startTime =  System.nanoTime();
-    AppDAO appDAO = new AppDAOImpl(getConnectionProvider());
-    List<AppEntity> apps = appDAO.getAllApps();
+    Date since = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(recentPushDays));
+    List<AppEntity> apps = getAppDAO().getAPNSAppsWithPushesSince(since);
 
+    List<MMXAppAPNSFeedbackProcessor> processors = new ArrayList<MMXAppAPNSFeedbackProcessor>(apps.size());
     for (AppEntity app : apps) {
-      if (app.getApnsCert() != null) {
-        MMXAppAPNSFeedbackProcessor processor = new MMXAppAPNSFeedbackProcessor(getConnectionProvider(), app.getAppId(), app.isApnsCertProduction());
-        executorService.submit(processor);
+      processors.add(newAppProcessor(app));
+    }
+    APNSFeedbackStats stats = APNSFeedbackStats.getInstance();
+    int invalidated = 0;
+    int failed = 0;
+    if (!processors.isEmpty()) {
+      ExecutorService executorService = MMXExecutors.getOrCreate(THREAD_POOL_NAME, concurrency);
+      List<Future<MMXAppAPNSFeedbackProcessResult>> futures;
+      try {
+        futures = executorService.invokeAll(processors, runTimeoutMinutes, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        LOGGER.warn("Interrupted while processing APNS feedback");
+        Thread.currentThread().interrupt();
+        return;
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        String appId = apps.get(i).getAppId();
+        try {
+          MMXAppAPNSFeedbackProcessResult result = futures.get(i).get();
+          stats.record(result);
+          invalidated += result.getInvalidatedCount();
+        } catch (CancellationException e) {
+          LOGGER.warn("APNS feedback processing for appId:{} did not complete in {} minutes", appId, runTimeoutMinutes);
+          stats.recordFailure(appId);
+          failed++;
+        } catch (ExecutionException e) {
+          LOGGER.warn("APNS feedback processing failed for appId:" + appId, e.getCause());
+          stats.recordFailure(appId);
+          failed++;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
       }
     }
-    long endTime = System.nanoTime();
-    LOGGER.info("Completed run execution in {} milliseconds",
-        TimeUnit.MILLISECONDS.convert((endTime - startTime), TimeUnit.NANOSECONDS));
+    long millis = TimeUnit.MILLISECONDS.convert((System.nanoTime() - startTime), TimeUnit.NANOSECONDS);
+    stats.recordRun(apps.size(), millis);
+    LOGGER.info("Completed run execution for {} apps in {} milliseconds, invalidated tokens:{} failed apps:{}",
+        new Object[]{apps.size(), millis, invalidated, failed});
+  }
+
+  protected AppDAO getAppDAO() {
+    return new AppDAOImpl(getConnectionProvider());
+  }
+
+  protected MMXAppAPNSFeedbackProcessor newAppProcessor(AppEntity app) {
+    return new MMXAppAPNSFeedbackProcessor(getConnectionProvider(), app.getAppId(), app.isApnsCertProduction());
   }
 
   protected ConnectionProvider getConnectionProvider() {
@@ -0,0 +1,200 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.apns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and latency of the APNS feedback processing, per app and for all the runs.
+ */
+public class APNSFeedbackStats implements APNSFeedbackStatsMBean {
+  private static final APNSFeedbackStats instance = new APNSFeedbackStats();
+
+  private final ConcurrentMap<String, AppStats> apps = new ConcurrentHashMap<String, AppStats>();
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong inactive = new AtomicLong();
+  private final AtomicLong invalidated = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile int lastRunAppCount;
+  private volatile long lastRunMillis;
+
+  APNSFeedbackStats() {
+  }
+
+  public static APNSFeedbackStats getInstance() {
+    return instance;
+  }
+
+  /**
+   * Record the completion of a run.
+   * @param appCount number of apps visited
+   * @param millis duration of the run
+   */
+  public void recordRun(int appCount, long millis) {
+    runs.incrementAndGet();
+    lastRunAppCount = appCount;
+    lastRunMillis = millis;
+  }
+
+  /**
+   * Record the result of processing the feedback of an app.
+   * @param result
+   */
+  public void record(MMXAppAPNSFeedbackProcessResult result) {
+    inactive.addAndGet(result.getInvalidatedCount());
+    invalidated.addAndGet(result.getInvalidatedDeviceCount());
+    getAppStats(result.getAppId()).processed(result);
+  }
+
+  /**
+   * Record that processing the feedback of an app failed or timed out.
+   * @param appId
+   */
+  public void recordFailure(String appId) {
+    failed.incrementAndGet();
+    getAppStats(appId).failed();
+  }
+
+  /**
+   * @param appId
+   * @return stats of the app, created if needed
+   */
+  public AppStats getAppStats(String appId) {
+    AppStats stats = apps.get(appId);
+    if (stats == null) {
+      AppStats created = new AppStats(appId);
+      stats = apps.putIfAbsent(appId, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  @Override
+  public long getRunCount() {
+    return runs.get();
+  }
+
+  @Override
+  public int getLastRunAppCount() {
+    return lastRunAppCount;
+  }
+
+  @Override
+  public long getLastRunMillis() {
+    return lastRunMillis;
+  }
+
+  @Override
+  public long getInactiveTokenCount() {
+    return inactive.get();
+  }
+
+  @Override
+  public long getInvalidatedDeviceCount() {
+    return invalidated.get();
+  }
+
+  @Override
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  @Override
+  public String[] getAppStats() {
+    List<String> list = new ArrayList<String>(apps.size());
+    for (AppStats stats : apps.values()) {
+      list.add(stats.toString());
+    }
+    return list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * Feedback stats of a single app.
+   */
+  public static class AppStats {
+    private final String appId;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong inactive = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+    private volatile int lastInactive;
+    private volatile long lastLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile long lastProcessed;
+
+    AppStats(String appId) {
+      this.appId = appId;
+    }
+
+    public String getAppId() {
+      return appId;
+    }
+
+    public long getProcessed() {
+      return processed.get();
+    }
+
+    public long getFailures() {
+      return failures.get();
+    }
+
+    public long getInactive() {
+      return inactive.get();
+    }
+
+    public long getInvalidated() {
+      return invalidated.get();
+    }
+
+    public int getLastInactive() {
+      return lastInactive;
+    }
+
+    public long getLastLatencyMillis() {
+      return lastLatencyMillis;
+    }
+
+    public long getMaxLatencyMillis() {
+      return maxLatencyMillis;
+    }
+
+    synchronized void processed(MMXAppAPNSFeedbackProcessResult result) {
+      processed.incrementAndGet();
+      inactive.addAndGet(result.getInvalidatedCount());
+      invalidated.addAndGet(result.getInvalidatedDeviceCount());
+      lastInactive = result.getInvalidatedCount();
+      lastLatencyMillis = result.getLatencyMillis();
+      maxLatencyMillis = Math.max(maxLatencyMillis, result.getLatencyMillis());
+      lastProcessed = System.currentTimeMillis();
+    }
+
+    void failed() {
+      failures.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+      return "appId=" + appId + " processed=" + processed + " failures=" + failures + " inactive=" + inactive +
+          " invalidated=" + invalidated + " lastInactive=" + lastInactive + " lastLatencyMillis=" + lastLatencyMillis +
+          " maxLatencyMillis=" + maxLatencyMillis + " lastProcessed=" + lastProcessed;
+    }
+  }
+}
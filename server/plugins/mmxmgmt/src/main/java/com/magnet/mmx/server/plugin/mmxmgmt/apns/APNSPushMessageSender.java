@@ -14,6 +14,8 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.apns;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorCode;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorMessages;
@@ -23,12 +25,14 @@ import com.magnet.mmx.server.plugin.mmxmgmt.api.push.PushIdTuple;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.push.PushResult;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Unsent;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.ConnectionProvider;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DbInteractionException;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.OpenFireDBConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.PushMessageDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.PushMessageDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.PushMessageEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.PushStatus;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.CallbackUrlUtil;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.MMXPushAPNSPayloadBuilder;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.PayloadSizeException;
@@ -45,6 +49,9 @@ import java.util.List;
  */
 public class APNSPushMessageSender {
   private static Logger LOGGER = LoggerFactory.getLogger(APNSPushMessageSender.class);
+  private static final Timer SEND = MMXMetrics.timer("push.apns.send");
+  private static final Counter SENT = MMXMetrics.counter("push.apns.sent");
+  private static final Counter UNSENT = MMXMetrics.counter("push.apns.unsent");
 
   private AppEntity appEntity;
   private Options options;
@@ -63,6 +70,7 @@ public class APNSPushMessageSender {
   }
 
   public PushResult sendPush(List<DeviceEntity> deviceList, MMXPushAPNSPayloadBuilder builder) {
+    long startTime = System.nanoTime();
 
     APNSConnection connection = null;
     int sentCount = 0;
@@ -90,6 +98,7 @@ public class APNSPushMessageSender {
         PushMessageDAO messageDAO = new PushMessageDAOImpl(getConnectionProvider());
 
         PushIdGenerator generator = new PushIdGeneratorImpl();
+        List<PushMessageEntity> pushMessages = new ArrayList<PushMessageEntity>(deviceList.size());
         String appId = appEntity.getAppId();
         for (DeviceEntity de : deviceList) {
           String deviceId = de.getDeviceId();
@@ -126,7 +135,7 @@ public class APNSPushMessageSender {
             }
             PushIdTuple tuple = new PushIdTuple(deviceId, pushId);
             sentList.add(tuple);
-            writePushMessage(messageDAO, pushId, appId, deviceId);
+            pushMessages.add(buildPushMessage(pushId, appId, deviceId));
             sentCount++;
           } catch (APNSConnectionException e) {
             LOGGER.info("APNSConnectionException", e);
@@ -145,6 +154,7 @@ public class APNSPushMessageSender {
             unsentCount++;
           }
         }
+        writePushMessages(messageDAO, pushMessages);
       }
     } finally {
       if (connection != null) {
@@ -152,6 +162,9 @@ public class APNSPushMessageSender {
       }
     }
 
+    MMXMetrics.time(SEND, startTime);
+    SENT.inc(sentCount);
+    UNSENT.inc(unsentCount);
     Count resultCount = new Count(requested, sentCount, unsentCount);
     PushResult result = new PushResult();
     result.setCount(resultCount);
@@ -166,20 +179,28 @@ public class APNSPushMessageSender {
   }
 
 
-  protected void writePushMessage(PushMessageDAO pushMessageDAO, String messageId, String appId, String deviceId) {
-    writePushMessage(pushMessageDAO, messageId, appId, deviceId, PushMessageEntity.PushMessageType.API_PUSH);
-  }
-
-  protected void writePushMessage(PushMessageDAO pushMessageDAO, String messageId, String appId, String deviceId, PushMessageEntity.PushMessageType type) {
+  protected PushMessageEntity buildPushMessage(String messageId, String appId, String deviceId) {
     PushMessageEntity message = new PushMessageEntity();
     message.setAppId(appId);
     message.setDeviceId(deviceId);
     message.setMessageId(messageId);
     message.setState(PushMessageEntity.PushMessageState.PUSHED);
-    message.setType(type);
-    pushMessageDAO.add(message);
-    if (LOGGER.isTraceEnabled()) {
-      LOGGER.trace("Push Message with id : " + messageId + " added.");
+    message.setType(PushMessageEntity.PushMessageType.API_PUSH);
+    return message;
+  }
+
+  /**
+   * Write the records of the sent pushes in one batch. The pushes have already been sent, so a
+   * failure is only logged.
+   */
+  protected void writePushMessages(PushMessageDAO pushMessageDAO, List<PushMessageEntity> messages) {
+    try {
+      pushMessageDAO.addAll(messages);
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("Added {} push messages", messages.size());
+      }
+    } catch (DbInteractionException e) {
+      LOGGER.warn("Failed to add {} push message records", messages.size(), e);
     }
   }
 
@@ -191,7 +212,13 @@ public class APNSPushMessageSender {
     return unsent;
   }
 
+  /**
+   * Get a channel of the delivery engine if it is running, otherwise a pooled connection.
+   */
   protected APNSConnection getConnection (String appId, boolean production) {
+    if (APNSDeliveryEngine.isInitialized()) {
+      return APNSDeliveryEngine.getInstance().getConnection(appId, production);
+    }
     APNSConnectionPool connectionPool = APNSConnectionPoolImpl.getInstance();
     APNSConnection connection = connectionPool.getConnection(appId, production);
     return connection;
@@ -199,6 +226,10 @@ public class APNSPushMessageSender {
 
 
   protected void returnConnection (APNSConnection connection) {
+    if (connection instanceof APNSDeliveryEngine.Channel) {
+      //channels are shared and stay open
+      return;
+    }
     APNSConnectionPool connectionPool = APNSConnectionPoolImpl.getInstance();
     connectionPool.returnConnection(connection);
   }
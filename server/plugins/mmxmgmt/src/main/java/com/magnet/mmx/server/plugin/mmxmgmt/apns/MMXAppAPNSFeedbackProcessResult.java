@@ -19,6 +19,8 @@ package com.magnet.mmx.server.plugin.mmxmgmt.apns;
  */
 public class MMXAppAPNSFeedbackProcessResult {
   private int invalidatedCount;
+  private int invalidatedDeviceCount;
+  private long latencyMillis;
   private String appId;
   private boolean productionApnsCert;
 
@@ -30,6 +32,22 @@ public class MMXAppAPNSFeedbackProcessResult {
     this.invalidatedCount = invalidatedCount;
   }
 
+  public int getInvalidatedDeviceCount() {
+    return invalidatedDeviceCount;
+  }
+
+  public void setInvalidatedDeviceCount(int invalidatedDeviceCount) {
+    this.invalidatedDeviceCount = invalidatedDeviceCount;
+  }
+
+  public long getLatencyMillis() {
+    return latencyMillis;
+  }
+
+  public void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
   public String getAppId() {
     return appId;
   }
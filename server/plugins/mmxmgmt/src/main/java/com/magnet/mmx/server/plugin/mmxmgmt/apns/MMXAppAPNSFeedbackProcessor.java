@@ -16,8 +16,6 @@ package com.magnet.mmx.server.plugin.mmxmgmt.apns;
 
 import com.magnet.mmx.protocol.PushType;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.ConnectionProvider;
-import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAO;
-import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DevicePushTokenInvalidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,25 +50,27 @@ public class MMXAppAPNSFeedbackProcessor implements Callable<MMXAppAPNSFeedbackP
   public MMXAppAPNSFeedbackProcessResult call() throws Exception {
     long startTime = System.nanoTime();
     APNSConnection connection = getAPNSConnection(appId, productionCert);
-
-    List<String> tokens = connection.getInactiveDeviceTokens();
-    DeviceDAO deviceDAO = new DeviceDAOImpl(provider);
-    int count = 0;
-    DevicePushTokenInvalidator invalidator = new DevicePushTokenInvalidator();
-    for (String token : tokens) {
-      invalidator.invalidateToken(appId, PushType.APNS, token);
-      count++;
+    if (connection == null) {
+      throw new APNSConnectionException("No APNS connection available for appId:" + appId);
+    }
+    List<String> tokens;
+    try {
+      tokens = connection.getInactiveDeviceTokens();
+    } finally {
+      returnAPNSConnection(connection);
     }
-    LOGGER.info("Invalidated:{} tokens for appId:{}", count, appId);
+    int deviceCount = getInvalidator().invalidateTokens(appId, PushType.APNS, tokens);
+    LOGGER.info("Invalidated:{} tokens ({} devices) for appId:{}", new Object[]{tokens.size(), deviceCount, appId});
 
     MMXAppAPNSFeedbackProcessResult result = new MMXAppAPNSFeedbackProcessResult();
-    result.setInvalidatedCount(count);
+    result.setInvalidatedCount(tokens.size());
+    result.setInvalidatedDeviceCount(deviceCount);
     result.setAppId(appId);
     result.setProductionApnsCert(productionCert);
-    long endTime = System.nanoTime();
+    long latency = TimeUnit.MILLISECONDS.convert((System.nanoTime() - startTime), TimeUnit.NANOSECONDS);
+    result.setLatencyMillis(latency);
 
-    LOGGER.info("Completed processing APNS feedback for appId:{} in {} milliseconds", appId,
-        TimeUnit.MILLISECONDS.convert((endTime - startTime), TimeUnit.NANOSECONDS));
+    LOGGER.info("Completed processing APNS feedback for appId:{} in {} milliseconds", appId, latency);
 
     return result;
   }
@@ -81,5 +81,21 @@ public class MMXAppAPNSFeedbackProcessor implements Callable<MMXAppAPNSFeedbackP
     return connection;
   }
 
+  protected void returnAPNSConnection(APNSConnection connection) {
+    APNSConnectionPoolImpl.getInstance().returnConnection(connection);
+  }
+
+  /**
+   * @return invalidator that uses the connection provider of this processor
+   */
+  protected DevicePushTokenInvalidator getInvalidator() {
+    return new DevicePushTokenInvalidator() {
+      @Override
+      protected ConnectionProvider getConnectionProvider() {
+        return provider;
+      }
+    };
+  }
+
 
 }
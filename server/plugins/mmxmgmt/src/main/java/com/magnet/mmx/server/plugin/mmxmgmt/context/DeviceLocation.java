@@ -0,0 +1,110 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.context;
+
+import java.io.Serializable;
+
+/**
+ * Last reported location of a device. It is serializable so it can be returned by a
+ * {@link GeoSearchTask}.
+ */
+public class DeviceLocation implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String deviceId;
+  private final String userId;
+  private final double latitude;
+  private final double longitude;
+  private final Integer accuracy;
+  private final String geohash;
+  private final long timestamp;
+  private final Double distanceKm;
+
+  public DeviceLocation(String deviceId, String userId, double latitude, double longitude, Integer accuracy,
+                        String geohash, long timestamp) {
+    this(deviceId, userId, latitude, longitude, accuracy, geohash, timestamp, null);
+  }
+
+  private DeviceLocation(String deviceId, String userId, double latitude, double longitude, Integer accuracy,
+                         String geohash, long timestamp, Double distanceKm) {
+    this.deviceId = deviceId;
+    this.userId = userId;
+    this.latitude = latitude;
+    this.longitude = longitude;
+    this.accuracy = accuracy;
+    this.geohash = geohash;
+    this.timestamp = timestamp;
+    this.distanceKm = distanceKm;
+  }
+
+  public String getDeviceId() {
+    return deviceId;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public double getLatitude() {
+    return latitude;
+  }
+
+  public double getLongitude() {
+    return longitude;
+  }
+
+  /**
+   * @return accuracy reported by the device, null if unknown
+   */
+  public Integer getAccuracy() {
+    return accuracy;
+  }
+
+  public String getGeohash() {
+    return geohash;
+  }
+
+  /**
+   * @return time in milliseconds the location was received
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return distance from the query point for radius queries, null otherwise
+   */
+  public Double getDistanceKm() {
+    return distanceKm;
+  }
+
+  DeviceLocation withDistance(double distanceKm) {
+    return new DeviceLocation(deviceId, userId, latitude, longitude, accuracy, geohash, timestamp, distanceKm);
+  }
+
+  @Override
+  public String toString() {
+    return "DeviceLocation{" +
+        "deviceId='" + deviceId + '\'' +
+        ", userId='" + userId + '\'' +
+        ", latitude=" + latitude +
+        ", longitude=" + longitude +
+        ", accuracy=" + accuracy +
+        ", geohash='" + geohash + '\'' +
+        ", timestamp=" + timestamp +
+        ", distanceKm=" + distanceKm +
+        '}';
+  }
+}
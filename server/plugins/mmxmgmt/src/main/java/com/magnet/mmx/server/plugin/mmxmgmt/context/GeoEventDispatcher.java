@@ -14,6 +14,7 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.context;
 
+import com.codahale.metrics.Timer;
 import com.magnet.ext.geo.GeoHashEncoderDecoder;
 import com.magnet.ext.geo.GeoPoint;
 import com.magnet.ext.geo.GeoPointDefaultImpl;
@@ -24,6 +25,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.util.JIDUtil;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXExecutors;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import com.magnet.mmx.util.GsonData;
 import com.magnet.mmx.util.TopicHelper;
 import org.dom4j.Attribute;
@@ -42,6 +44,7 @@ import org.xmpp.packet.Message;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class GeoEventDispatcher implements IContextDispatcher {
@@ -54,8 +57,8 @@ public class GeoEventDispatcher implements IContextDispatcher {
     ContextDispatcherFactory.getInstance().registerClass(NAME, GeoEventDispatcher.class);
   }
 
-  private static final int POOL_SIZE = 5;
   private static final String POOL_NAME = "GeoContextDispatch";
+  private static final long POLL_MILLIS = 100L;
   public static final String APP_ID = "appId";
   public static final String USER_ID = "userId";
   public static final String ACCURACY = "accuracy";
@@ -68,16 +71,48 @@ public class GeoEventDispatcher implements IContextDispatcher {
 
 
   // <iq id='5VJ3b-87' to='pubsub.login1s-macbook-pro-3.local' from='test%kv7i6cj1sd0@login1s-macbook-pro-3.local/5reb0zs53pkf1lx770vnlz60mokzknhtzq4g' type='set'><pubsub xmlns="http://jabber.org/protocol/pubsub"><publish node='/kv7i6cj1sd0/test/com.magnet.geoloc'><item id='lw3wY4Z8TaeyBWezAqNiCA-3'><mmx xmlns='com.magnet:msg:payload'><payload ctype='application/json' mtype='geoloc' chunk='0/50/50' stamp='2015-02-25T04:49:56.477Z'>{&quot;accuracy&quot;:2397,&quot;lat&quot;:37.034985,&quot;lng&quot;:-122.02842}</payload></mmx></item></publish></pubsub></iq>
-  // TODO create a thread pool to take care of the dispatch
-  private final ExecutorService executors = MMXExecutors.getOrCreate(POOL_NAME, POOL_SIZE);
-  private final BlockingQueue<IQ> eventQueue = new LinkedBlockingDeque<IQ>();
+  private final ExecutorService executors;
+  private final int batchSize;
+  private final boolean indexLocations;
+  private volatile boolean running = true;
+
+  // Only the latest location of a device is kept. The queue holds the keys of the devices with a
+  // pending location, in the order they were first queued; the location itself is in pendingEvents.
+  private final BlockingQueue<String> eventQueue;
+  private final ConcurrentHashMap<String, GeoEvent> pendingEvents = new ConcurrentHashMap<String, GeoEvent>();
 
   private static final ThreadLocal<GeoHashEncoderDecoder> localGeoEndocoder = new ThreadLocal<GeoHashEncoderDecoder>();
 
   private final ConcurrentLinkedQueue<JID> componentJids = new ConcurrentLinkedQueue<JID>();
   private final AtomicInteger hits = new AtomicInteger();
 
+  private final Timer dispatchLatency = new Timer();
+  private final AtomicLong dispatchedCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+
   public GeoEventDispatcher() {
+    this(MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.GEO_DISPATCH_CONSUMERS,
+            MMXServerConstants.DEFAULT_GEO_DISPATCH_CONSUMERS),
+        MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.GEO_DISPATCH_QUEUE_SIZE,
+            MMXServerConstants.DEFAULT_GEO_DISPATCH_QUEUE_SIZE),
+        MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.GEO_DISPATCH_BATCH_SIZE,
+            MMXServerConstants.DEFAULT_GEO_DISPATCH_BATCH_SIZE),
+        MMXConfiguration.getConfiguration().getBoolean(MMXConfigKeys.GEO_INDEX_ENABLED,
+            MMXServerConstants.DEFAULT_GEO_INDEX_ENABLED));
+  }
+
+  /**
+   * @param consumers number of threads routing the events, 0 for none
+   * @param queueSize maximum number of devices with a pending location
+   * @param batchSize maximum number of events a thread takes from the queue at once
+   * @param indexLocations true if the locations should be recorded in the {@link GeoLocationIndex}
+   */
+  GeoEventDispatcher(int consumers, int queueSize, int batchSize, boolean indexLocations) {
+    this.eventQueue = new ArrayBlockingQueue<String>(Math.max(1, queueSize));
+    this.batchSize = Math.max(1, batchSize);
+    this.indexLocations = indexLocations;
+    this.executors = MMXExecutors.getOrCreate(POOL_NAME, Math.max(1, consumers));
 
     if (InternalComponentManager.getInstance() != null) {
       InternalComponentManager.getInstance().addListener(new ComponentEventListener() {
@@ -97,18 +132,28 @@ public class GeoEventDispatcher implements IContextDispatcher {
       });
     }
     // start the consumer threads
-    for (int i = 0; i < POOL_SIZE; i++) {
+    for (int i = 0; i < consumers; i++) {
       executors.execute(new DispatchHandler());
     }
+    LOGGER.info("Geo event dispatcher started with consumers={} queueSize={} batchSize={}",
+        new Object[]{consumers, queueSize, this.batchSize});
   }
 
   public void shutdown() {
+    running = false;
     executors.shutdown();
     try {
-      executors.awaitTermination(10, TimeUnit.SECONDS);
+      executors.awaitTermination(MMXServerConstants.GEO_DISPATCH_SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
     } catch (InterruptedException e) {
       LOGGER.error("unexpected GeoEventDispatcher thread interrupted waiting for shutdown", e);
     }
+    MMXExecutors.remove(POOL_NAME);
+    int discarded = pendingEvents.size();
+    eventQueue.clear();
+    pendingEvents.clear();
+    if (discarded > 0) {
+      LOGGER.info("shutdown : discarded {} pending geo events", discarded);
+    }
   }
 
   @Override
@@ -151,12 +196,68 @@ public class GeoEventDispatcher implements IContextDispatcher {
     }
   }
 
+  /**
+   * Queue the geo event. If a location of the same device is still queued it is replaced by
+   * this one. If the queue is full the oldest pending location is dropped.
+   * @param iq
+   */
   public void dispatchToExternalService(final IQ iq) {
-    try {
-      eventQueue.put(iq);
-    } catch (InterruptedException e) {
-      LOGGER.error("unexpected thread interrupted while putting geo event into queue", e);
+    if (!running) {
+      LOGGER.debug("dispatchToExternalService : dispatcher is shut down, ignoring geo event");
+      return;
     }
+    String key = eventKey(iq);
+    GeoEvent event = new GeoEvent(iq);
+    if (pendingEvents.put(key, event) != null) {
+      coalescedCount.incrementAndGet();
+      return;
+    }
+    if (eventQueue.offer(key)) {
+      return;
+    }
+    String oldest = eventQueue.poll();
+    if (oldest != null && pendingEvents.remove(oldest) != null) {
+      droppedCount.incrementAndGet();
+    }
+    if (!eventQueue.offer(key)) {
+      pendingEvents.remove(key, event);
+      droppedCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Events of the same device are coalesced, the full JID identifies the device.
+   */
+  private static String eventKey(IQ iq) {
+    JID from = iq.getFrom();
+    // without a sender there is nothing to coalesce on
+    return from != null ? from.toString() : iq.getID();
+  }
+
+  /**
+   * Take up to batchSize events from the queue, waiting for the first one.
+   * @param timeoutMillis maximum time to wait for the first event
+   * @return list of events, empty if none became available
+   * @throws InterruptedException
+   */
+  List<GeoEvent> takeBatch(long timeoutMillis) throws InterruptedException {
+    String first = eventQueue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    if (first == null) {
+      return Collections.emptyList();
+    }
+    List<String> keys = new ArrayList<String>(batchSize);
+    keys.add(first);
+    if (batchSize > 1) {
+      eventQueue.drainTo(keys, batchSize - 1);
+    }
+    List<GeoEvent> events = new ArrayList<GeoEvent>(keys.size());
+    for (String key : keys) {
+      GeoEvent event = pendingEvents.remove(key);
+      if (event != null) {
+        events.add(event);
+      }
+    }
+    return events;
   }
 
   private class DispatchHandler implements Runnable {
@@ -166,41 +267,90 @@ public class GeoEventDispatcher implements IContextDispatcher {
       localGeoEndocoder.set(GeohashEncoderDecoderFactory.createEncoderDecoder());
 
       // wait for event to dispatch
-      try {
-        while (true) {
-          final IQ iq = eventQueue.take();
-          routeGeoEvent(iq);
-          Thread.sleep(50);   // sleep sometimes
+      while (running) {
+        try {
+          List<GeoEvent> events = takeBatch(POLL_MILLIS);
+          if (!events.isEmpty()) {
+            routeGeoEvents(events);
+          }
+        } catch (InterruptedException e) {
+          LOGGER.error("unexpected thread interrupted while taking geo event from queue", e);
+          return;
+        } catch (Throwable t) {
+          LOGGER.error("unexpected exception while routing geo events", t);
         }
-      } catch (InterruptedException e) {
-        LOGGER.error("unexpected thread interrupted while taking geo event from queue", e);
       }
     }
   }
 
   public void routeGeoEvent(final IQ geoIQ) {
+    routeGeoEvents(Collections.singletonList(new GeoEvent(geoIQ)));
+  }
+
+  /**
+   * Route a batch of geo events to one external component.
+   * @param events
+   */
+  void routeGeoEvents(final List<GeoEvent> events) {
+    List<Map<String, String>> parsed = new ArrayList<Map<String, String>>(events.size());
+    for (GeoEvent event : events) {
+      Map<String, String> geoValues = parseGeoValues(event.iq);
+      parsed.add(geoValues);
+      if (geoValues != null && indexLocations) {
+        try {
+          indexGeoValues(geoValues);
+        } catch (NumberFormatException e) {
+          LOGGER.warn("routeGeoEvents : ignoring invalid location {}", geoValues);
+        }
+      }
+    }
     if (componentJids.isEmpty()) {
       // nothing to do
       LOGGER.debug("no external component registered for geo event");
       return;
     }
-    String geoService = selectGeoService();
+    String geoService = selectGeoService(events.size());
     if (geoService != null && geoService.length() > 0) {
-      Message geoMessage = buildGeoMessageFromPubSubIQ(geoIQ);
-      if (geoMessage != null) {
-        geoMessage.setTo(geoService);
-        // TODO create a new message ID?
-        geoMessage.setID(geoIQ.getID());
-        LOGGER.debug("Sending geo event to external component: " + geoService);
-        // start attaching the pieces
-        PacketRouter router = XMPPServer.getInstance().getPacketRouter();
-        router.route(geoMessage);
+      LOGGER.debug("Sending {} geo event(s) to external component: {}", events.size(), geoService);
+      PacketRouter router = XMPPServer.getInstance().getPacketRouter();
+      for (int i = 0; i < events.size(); i++) {
+        GeoEvent event = events.get(i);
+        Map<String, String> geoValues = parsed.get(i);
+        if (geoValues != null) {
+          Message geoMessage = buildGeoMessage(geoValues);
+          geoMessage.setTo(geoService);
+          // TODO create a new message ID?
+          geoMessage.setID(event.iq.getID());
+          router.route(geoMessage);
+          dispatchedCount.incrementAndGet();
+          dispatchLatency.update(System.nanoTime() - event.queuedAt, TimeUnit.NANOSECONDS);
+        }
       }
     }
   }
 
   static Message buildGeoMessageFromPubSubIQ(final IQ geoIQ) {
-    Message geoMessage = null;
+    Map<String, String> geoValues = parseGeoValues(geoIQ);
+    return geoValues != null ? buildGeoMessage(geoValues) : null;
+  }
+
+  static Message buildGeoMessage(Map<String, String> geoValues) {
+    Message geoMessage = new Message();
+    geoMessage.setType(Message.Type.chat);
+    Element geoElement = geoMessage.addChildElement(Constants.MMX_ELEMENT, Constants.MMX_NS_CONTEXT);
+    geoElement.addAttribute(Constants.MMX_ATTR_MTYPE, Constants.MMX_MTYPE_GEOLOC);
+    JSONObject geoJson = new JSONObject(geoValues);
+    geoElement.setText(geoJson.toString());
+    geoMessage.setBody(geoJson.toString());
+    return geoMessage;
+  }
+
+  /**
+   * Extract the location values from a geo pubsub IQ.
+   * @param geoIQ
+   * @return map of values or null if the IQ isn't a valid geo publish
+   */
+  static Map<String, String> parseGeoValues(final IQ geoIQ) {
     if (IQ.Type.set == geoIQ.getType() && geoIQ.getTo().toString().startsWith("pubsub")) {
       // find 'geoloc'
       Element element = geoIQ.getChildElement();
@@ -209,8 +359,6 @@ public class GeoEventDispatcher implements IContextDispatcher {
         String nodeID = action.attributeValue("node");
         if (nodeID != null && nodeID.endsWith(TopicHelper.TOPIC_GEOLOC)) {
           // Entity publishes an item
-          geoMessage = new Message();
-          geoMessage.setType(Message.Type.chat);
           Map<String, String> geoValues = new HashMap<String, String>();
           JID from = geoIQ.getFrom();
           String appId = JIDUtil.getAppId(from);
@@ -244,19 +392,12 @@ public class GeoEventDispatcher implements IContextDispatcher {
                 geoValues.put(LAT, geoLoc.getLat().toString());
                 // calculate geohash
                 GeoPoint point = new GeoPointDefaultImpl(geoLoc.getLat(), geoLoc.getLng());
-                geoValues.put(GEOHASH, localGeoEndocoder.get().encodePoint(point));
+                geoValues.put(GEOHASH, getGeoEncoder().encodePoint(point));
               }
               if (geoLoc.getAlt() != null) {
                 geoValues.put(ALTITUDE, Integer.toString((int)geoLoc.getAlt().floatValue()));
               }
-              Element geoElement = geoMessage.addChildElement(Constants.MMX_ELEMENT, Constants.MMX_NS_CONTEXT);
-              geoElement.addAttribute(Constants.MMX_ATTR_MTYPE, Constants.MMX_MTYPE_GEOLOC);
-              JSONObject geoJson = new JSONObject(geoValues);
-              geoElement.setText(geoJson.toString());
-              geoMessage.setBody(geoJson.toString());
-
-              return geoMessage;
-
+              return geoValues;
             }
           }
         }
@@ -265,12 +406,44 @@ public class GeoEventDispatcher implements IContextDispatcher {
     return null;
   }
 
-  private String selectGeoService() {
+  /**
+   * Record the location in the {@link GeoLocationIndex}.
+   * @param geoValues
+   */
+  static void indexGeoValues(Map<String, String> geoValues) {
+    String lat = geoValues.get(LAT);
+    String lng = geoValues.get(LONG);
+    String deviceId = geoValues.get(DEVICE_ID);
+    if (lat == null || lng == null || deviceId == null) {
+      return;
+    }
+    String accuracy = geoValues.get(ACCURACY);
+    Integer accuracyValue = null;
+    if (accuracy != null) {
+      accuracyValue = Integer.valueOf((int) Double.parseDouble(accuracy));
+    }
+    GeoLocationIndex.getInstance().update(geoValues.get(APP_ID), geoValues.get(USER_ID), deviceId,
+        Double.parseDouble(lat), Double.parseDouble(lng), accuracyValue);
+  }
+
+  private static GeoHashEncoderDecoder getGeoEncoder() {
+    GeoHashEncoderDecoder encoder = localGeoEndocoder.get();
+    if (encoder == null) {
+      encoder = GeohashEncoderDecoderFactory.createEncoderDecoder();
+      localGeoEndocoder.set(encoder);
+    }
+    return encoder;
+  }
+
+  private String selectGeoService(int count) {
     // dequeue and add it to the end of the queue for round-robin every 30 hits or so
     synchronized (componentJids) {
       JID target = componentJids.peek();
-        if (componentJids.size() > 1) {
-        if (hits.incrementAndGet() % 30 == 0) {
+      if (target == null) {
+        return null;
+      }
+      if (componentJids.size() > 1) {
+        if (hits.addAndGet(count) >= 30) {
           target = componentJids.poll();
           componentJids.offer(target);
           hits.set(0);
@@ -293,4 +466,56 @@ public class GeoEventDispatcher implements IContextDispatcher {
       return false;
     }
   }
+
+  /**
+   * @return number of devices with a pending location
+   */
+  public int getQueueDepth() {
+    return eventQueue.size();
+  }
+
+  public long getDispatchedCount() {
+    return dispatchedCount.get();
+  }
+
+  /**
+   * @return number of locations replaced by a newer location of the same device
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * @return number of locations dropped because the queue was full
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * @return mean time in milliseconds from queueing a location to routing it
+   */
+  public double getMeanLatencyMillis() {
+    return dispatchLatency.getSnapshot().getMean() / 1000000d;
+  }
+
+  public double get99thPercentileLatencyMillis() {
+    return dispatchLatency.getSnapshot().get99thPercentile() / 1000000d;
+  }
+
+  /**
+   * A queued geo IQ
+   */
+  static class GeoEvent {
+    private final IQ iq;
+    private final long queuedAt = System.nanoTime();
+
+    GeoEvent(IQ iq) {
+      this.iq = iq;
+    }
+
+    IQ getIQ() {
+      return iq;
+    }
+  }
 }
@@ -0,0 +1,485 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.context;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.magnet.ext.geo.GeoHashEncoderDecoder;
+import com.magnet.ext.geo.GeoPointDefaultImpl;
+import com.magnet.ext.geo.GeohashEncoderDecoderFactory;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.query.GeoQuery;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In memory spatial index of the last reported location of every device, per app.
+ * <p>
+ * Locations are kept in a sorted map keyed by the full length geohash followed by the device id,
+ * so all devices in a geohash cell are found with a prefix range scan. Queries cover the search
+ * area with a small number of cells of a suitable precision and filter the candidates by their
+ * exact position. Locations older than the maximum age are ignored by queries and removed by a
+ * periodic sweep once the index has been initialized.
+ * <p>
+ * Each cluster node only holds the locations reported through the geo events it received, and is
+ * empty after a restart until devices report again. When clustering is enabled a search is run on
+ * every cluster node using {@link GeoSearchTask} and the results are merged, keeping the newest
+ * location of a device that reported to several nodes. A device that moved may still be found at
+ * its old location on another node until that location expires.
+ */
+public class GeoLocationIndex {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GeoLocationIndex.class);
+
+  static final int HASH_LENGTH = 12;
+  /**
+   * Upper bound on the number of geohash cells scanned for a single area
+   */
+  static final int MAX_CELLS = 64;
+  private static final double EARTH_RADIUS_KM = 6371.0088d;
+  private static final double KM_PER_DEGREE_LATITUDE = 111.32d;
+
+  private static GeoLocationIndex instance = new GeoLocationIndex();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+
+  private final ConcurrentHashMap<String, AppIndex> appIndexes = new ConcurrentHashMap<String, AppIndex>();
+  private final GeoHashEncoderDecoder encoder = GeohashEncoderDecoderFactory.createEncoderDecoder();
+  private volatile long maxAgeMillis = MMXServerConstants.DEFAULT_GEO_INDEX_MAX_AGE_SECONDS * 1000L;
+  private ScheduledExecutorService sweeper;
+
+  GeoLocationIndex() {
+  }
+
+  public static GeoLocationIndex getInstance() {
+    return instance;
+  }
+
+  /**
+   * Lifecycle method. Start sweeping expired locations.
+   * @param maxAgeSeconds age after which a location is no longer returned
+   * @throws java.lang.IllegalStateException if the index has already been initialized.
+   */
+  public static void initialize(int maxAgeSeconds) {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    instance.start(maxAgeSeconds);
+    LOGGER.info("Geo location index is initialized with maxAgeSeconds={}", maxAgeSeconds);
+  }
+
+  /**
+   * Lifecycle method. Stop sweeping and drop all locations.
+   */
+  public static void teardown() {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
+    }
+    instance.stop();
+    LOGGER.info("Geo location index stopped.");
+  }
+
+  void start(int maxAgeSeconds) {
+    maxAgeMillis = Math.max(1, maxAgeSeconds) * 1000L;
+    long sweepMillis = Math.max(1000L, Math.min(maxAgeMillis / 2, MMXServerConstants.GEO_INDEX_SWEEP_MAX_INTERVAL_SECONDS * 1000L));
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("GeoIndexSweeper-%d").setDaemon(true).build());
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          int removed = purgeExpired();
+          LOGGER.debug("purgeExpired : removed {} locations", removed);
+        } catch (Throwable t) {
+          LOGGER.error("run : unexpected exception sweeping geo locations", t);
+        }
+      }
+    }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+  }
+
+  void stop() {
+    sweeper.shutdownNow();
+    appIndexes.clear();
+  }
+
+  /**
+   * Record the location of a device, replacing its previous location.
+   * @param appId
+   * @param userId
+   * @param deviceId
+   * @param latitude
+   * @param longitude
+   * @param accuracy accuracy reported by the device, can be null
+   */
+  public void update(String appId, String userId, String deviceId, double latitude, double longitude, Integer accuracy) {
+    String geohash = encoder.encodePoint(new GeoPointDefaultImpl(latitude, longitude));
+    DeviceLocation location = new DeviceLocation(deviceId, userId, latitude, longitude, accuracy, geohash,
+        System.currentTimeMillis());
+    AppIndex appIndex = appIndexes.get(appId);
+    if (appIndex == null) {
+      AppIndex created = new AppIndex();
+      appIndex = appIndexes.putIfAbsent(appId, created);
+      if (appIndex == null) {
+        appIndex = created;
+      }
+    }
+    appIndex.put(location);
+  }
+
+  /**
+   * Remove the location of a device.
+   * @param appId
+   * @param deviceId
+   */
+  public void remove(String appId, String deviceId) {
+    AppIndex appIndex = appIndexes.get(appId);
+    if (appIndex != null) {
+      appIndex.remove(deviceId);
+    }
+  }
+
+  /**
+   * Get the last location of a device.
+   * @param appId
+   * @param deviceId
+   * @return location or null if there is no location or it has expired
+   */
+  public DeviceLocation getLocation(String appId, String deviceId) {
+    AppIndex appIndex = appIndexes.get(appId);
+    if (appIndex == null) {
+      return null;
+    }
+    DeviceLocation location = appIndex.devices.get(deviceId);
+    return location == null || isExpired(location, System.currentTimeMillis()) ? null : location;
+  }
+
+  /**
+   * Find the devices within a distance of a point, nearest first.
+   * @param appId
+   * @param latitude
+   * @param longitude
+   * @param radiusKm
+   * @param limit maximum number of devices to return, 0 for no limit
+   * @return locations with their distance set
+   */
+  public List<DeviceLocation> withinRadius(String appId, double latitude, double longitude, double radiusKm, int limit) {
+    AppIndex appIndex = appIndexes.get(appId);
+    if (appIndex == null) {
+      return Collections.emptyList();
+    }
+    double latDelta = radiusKm / KM_PER_DEGREE_LATITUDE;
+    double minLat = Math.max(-90d, latitude - latDelta);
+    double maxLat = Math.min(90d, latitude + latDelta);
+    double minLng = -180d;
+    double maxLng = 180d;
+    double cos = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+    if (maxLat < 90d && minLat > -90d && cos > 0) {
+      double lngDelta = radiusKm / (KM_PER_DEGREE_LATITUDE * cos);
+      if (lngDelta < 180d) {
+        minLng = normalizeLongitude(longitude - lngDelta);
+        maxLng = normalizeLongitude(longitude + lngDelta);
+      }
+    }
+    List<DeviceLocation> result = new ArrayList<DeviceLocation>();
+    for (DeviceLocation location : appIndex.scan(minLat, minLng, maxLat, maxLng, maxAgeMillis)) {
+      double distance = distanceKm(latitude, longitude, location.getLatitude(), location.getLongitude());
+      if (distance <= radiusKm) {
+        result.add(location.withDistance(distance));
+      }
+    }
+    sortByDistance(result);
+    return limit > 0 && result.size() > limit ? new ArrayList<DeviceLocation>(result.subList(0, limit)) : result;
+  }
+
+  /**
+   * Find the devices inside a bounding box. If minLongitude is greater than maxLongitude the box
+   * crosses the 180th meridian.
+   * @param appId
+   * @param minLatitude
+   * @param minLongitude
+   * @param maxLatitude
+   * @param maxLongitude
+   * @param limit maximum number of devices to return, 0 for no limit
+   * @return locations
+   */
+  public List<DeviceLocation> withinBoundingBox(String appId, double minLatitude, double minLongitude,
+                                                double maxLatitude, double maxLongitude, int limit) {
+    AppIndex appIndex = appIndexes.get(appId);
+    if (appIndex == null) {
+      return Collections.emptyList();
+    }
+    List<DeviceLocation> result = appIndex.scan(minLatitude, minLongitude, maxLatitude, maxLongitude, maxAgeMillis);
+    return limit > 0 && result.size() > limit ? new ArrayList<DeviceLocation>(result.subList(0, limit)) : result;
+  }
+
+  /**
+   * Run a geo query on every cluster node.
+   * @param appId
+   * @param query valid query
+   * @param limit maximum number of devices to return, 0 for no limit
+   * @return locations, nearest first for radius queries
+   * @throws java.lang.IllegalArgumentException if the query isn't valid
+   */
+  @SuppressWarnings("unchecked")
+  public List<DeviceLocation> search(String appId, GeoQuery query, int limit) {
+    if (!isClusteringEnabled()) {
+      return searchLocal(appId, query, limit);
+    }
+    if (!GeoQuery.isValid(query)) {
+      throw new IllegalArgumentException("Invalid geo query");
+    }
+    Collection<Object> results = CacheFactory.doSynchronousClusterTask(new GeoSearchTask(appId, query, limit), true);
+    List<List<DeviceLocation>> lists = new ArrayList<List<DeviceLocation>>(results.size());
+    for (Object result : results) {
+      if (result instanceof List) {
+        lists.add((List<DeviceLocation>) result);
+      }
+    }
+    return merge(lists, query.isRadiusQuery(), limit);
+  }
+
+  /**
+   * Run a geo query on the locations held by this cluster node.
+   * @param appId
+   * @param query valid query
+   * @param limit maximum number of devices to return, 0 for no limit
+   * @return locations, nearest first for radius queries
+   * @throws java.lang.IllegalArgumentException if the query isn't valid
+   */
+  List<DeviceLocation> searchLocal(String appId, GeoQuery query, int limit) {
+    if (!GeoQuery.isValid(query)) {
+      throw new IllegalArgumentException("Invalid geo query");
+    }
+    if (query.isRadiusQuery()) {
+      return withinRadius(appId, query.getLatitude(), query.getLongitude(), query.getRadiusKm(), limit);
+    }
+    return withinBoundingBox(appId, query.getMinLatitude(), query.getMinLongitude(), query.getMaxLatitude(),
+        query.getMaxLongitude(), limit);
+  }
+
+  boolean isClusteringEnabled() {
+    return ClusterManager.isClusteringEnabled();
+  }
+
+  /**
+   * Merge the results of the cluster nodes. A device found by several nodes gets its newest
+   * location.
+   * @param lists results of the cluster nodes
+   * @param byDistance true to sort the merged locations by their distance
+   * @param limit maximum number of devices to return, 0 for no limit
+   * @return locations
+   */
+  static List<DeviceLocation> merge(List<List<DeviceLocation>> lists, boolean byDistance, int limit) {
+    Map<String, DeviceLocation> newest = new LinkedHashMap<String, DeviceLocation>();
+    for (List<DeviceLocation> list : lists) {
+      for (DeviceLocation location : list) {
+        DeviceLocation other = newest.get(location.getDeviceId());
+        if (other == null || other.getTimestamp() < location.getTimestamp()) {
+          newest.put(location.getDeviceId(), location);
+        }
+      }
+    }
+    List<DeviceLocation> result = new ArrayList<DeviceLocation>(newest.values());
+    if (byDistance) {
+      sortByDistance(result);
+    }
+    return limit > 0 && result.size() > limit ? new ArrayList<DeviceLocation>(result.subList(0, limit)) : result;
+  }
+
+  private static void sortByDistance(List<DeviceLocation> locations) {
+    Collections.sort(locations, new Comparator<DeviceLocation>() {
+      @Override
+      public int compare(DeviceLocation o1, DeviceLocation o2) {
+        return Double.compare(o1.getDistanceKm(), o2.getDistanceKm());
+      }
+    });
+  }
+
+  /**
+   * Remove the expired locations.
+   * @return number of locations removed
+   */
+  int purgeExpired() {
+    long now = System.currentTimeMillis();
+    int removed = 0;
+    for (AppIndex appIndex : appIndexes.values()) {
+      for (DeviceLocation location : appIndex.devices.values()) {
+        if (isExpired(location, now) && appIndex.remove(location)) {
+          removed++;
+        }
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @return number of devices with a location
+   */
+  public int getIndexedCount() {
+    int count = 0;
+    for (AppIndex appIndex : appIndexes.values()) {
+      count += appIndex.devices.size();
+    }
+    return count;
+  }
+
+  private boolean isExpired(DeviceLocation location, long now) {
+    return location.getTimestamp() < now - maxAgeMillis;
+  }
+
+  /**
+   * Get the geohash cells that cover a bounding box that doesn't cross the 180th meridian. The
+   * precision is the highest one for which the box is covered by at most MAX_CELLS cells.
+   * @param minLat
+   * @param minLng
+   * @param maxLat
+   * @param maxLng
+   * @return geohash prefixes
+   */
+  static Set<String> coveringCells(GeoHashEncoderDecoder encoder, double minLat, double minLng, double maxLat, double maxLng) {
+    int precision = HASH_LENGTH;
+    int latSteps;
+    int lngSteps;
+    double cellLat;
+    double cellLng;
+    while (true) {
+      int bits = precision * 5;
+      cellLat = 180d / (1L << (bits / 2));
+      cellLng = 360d / (1L << (bits - bits / 2));
+      latSteps = (int) Math.floor((maxLat - minLat) / cellLat) + 2;
+      lngSteps = (int) Math.floor((maxLng - minLng) / cellLng) + 2;
+      if (precision == 1 || (long) latSteps * lngSteps <= MAX_CELLS) {
+        break;
+      }
+      precision--;
+    }
+    //neighbouring sample points are at most a cell apart so every cell overlapping the box is hit
+    Set<String> cells = new LinkedHashSet<String>();
+    for (int i = 0; i < latSteps; i++) {
+      double lat = Math.min(minLat + i * cellLat, maxLat);
+      for (int j = 0; j < lngSteps; j++) {
+        double lng = Math.min(minLng + j * cellLng, maxLng);
+        cells.add(encoder.encodePoint(new GeoPointDefaultImpl(lat, lng)).substring(0, precision));
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * Great circle distance using the haversine formula.
+   * @return distance in km
+   */
+  static double distanceKm(double lat1, double lng1, double lat2, double lng2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLng = Math.toRadians(lng2 - lng1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+        Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+    return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1d, Math.sqrt(a)));
+  }
+
+  private static double normalizeLongitude(double lng) {
+    if (lng > 180d) {
+      return lng - 360d;
+    }
+    if (lng < -180d) {
+      return lng + 360d;
+    }
+    return lng;
+  }
+
+  /**
+   * Locations of the devices of an app
+   */
+  private class AppIndex {
+    private final ConcurrentHashMap<String, DeviceLocation> devices = new ConcurrentHashMap<String, DeviceLocation>();
+    private final ConcurrentSkipListMap<String, DeviceLocation> cells = new ConcurrentSkipListMap<String, DeviceLocation>();
+
+    void put(DeviceLocation location) {
+      cells.put(key(location), location);
+      DeviceLocation previous = devices.put(location.getDeviceId(), location);
+      if (previous != null) {
+        cells.remove(key(previous), previous);
+      }
+    }
+
+    void remove(String deviceId) {
+      DeviceLocation previous = devices.remove(deviceId);
+      if (previous != null) {
+        cells.remove(key(previous), previous);
+      }
+    }
+
+    boolean remove(DeviceLocation location) {
+      cells.remove(key(location), location);
+      return devices.remove(location.getDeviceId(), location);
+    }
+
+    List<DeviceLocation> scan(double minLat, double minLng, double maxLat, double maxLng, long maxAge) {
+      List<DeviceLocation> result = new ArrayList<DeviceLocation>();
+      if (minLng > maxLng) {
+        //split at the 180th meridian, a location on it can be found by both halves
+        scan(minLat, minLng, maxLat, 180d, maxAge, result);
+        scan(minLat, -180d, maxLat, maxLng, maxAge, result);
+        Map<String, DeviceLocation> unique = new LinkedHashMap<String, DeviceLocation>();
+        for (DeviceLocation location : result) {
+          unique.put(location.getDeviceId(), location);
+        }
+        return new ArrayList<DeviceLocation>(unique.values());
+      }
+      scan(minLat, minLng, maxLat, maxLng, maxAge, result);
+      return result;
+    }
+
+    private void scan(double minLat, double minLng, double maxLat, double maxLng, long maxAge, List<DeviceLocation> result) {
+      long oldest = System.currentTimeMillis() - maxAge;
+      for (String cell : coveringCells(encoder, minLat, minLng, maxLat, maxLng)) {
+        ConcurrentNavigableMap<String, DeviceLocation> inCell = cells.subMap(cell, true, cell + Character.MAX_VALUE, true);
+        for (Map.Entry<String, DeviceLocation> entry : inCell.entrySet()) {
+          DeviceLocation location = entry.getValue();
+          if (devices.get(location.getDeviceId()) != location) {
+            //replaced by a concurrent update
+            cells.remove(entry.getKey(), location);
+            continue;
+          }
+          double lat = location.getLatitude();
+          double lng = location.getLongitude();
+          if (location.getTimestamp() >= oldest && lat >= minLat && lat <= maxLat && lng >= minLng && lng <= maxLng) {
+            result.add(location);
+          }
+        }
+      }
+    }
+
+    private String key(DeviceLocation location) {
+      return location.getGeohash() + location.getDeviceId();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.context;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.api.query.GeoQuery;
+import org.jivesoftware.util.cache.ClusterTask;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cluster task that runs a geo query on the {@link GeoLocationIndex} of a cluster member. The
+ * result is the list of matching locations held by that member.
+ */
+public class GeoSearchTask implements ClusterTask {
+
+  private String appId;
+  private GeoQuery query;
+  private int limit;
+  private ArrayList<DeviceLocation> result;
+
+  /**
+   * Required for deserialization.
+   */
+  public GeoSearchTask() {
+  }
+
+  GeoSearchTask(String appId, GeoQuery query, int limit) {
+    this.appId = appId;
+    this.query = query;
+    this.limit = limit;
+  }
+
+  @Override
+  public Object getResult() {
+    return result;
+  }
+
+  @Override
+  public void run() {
+    List<DeviceLocation> locations = GeoLocationIndex.getInstance().searchLocal(appId, query, limit);
+    result = new ArrayList<DeviceLocation>(locations);
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeUTF(appId);
+    out.writeInt(limit);
+    writeNullable(out, query.getLatitude());
+    writeNullable(out, query.getLongitude());
+    writeNullable(out, query.getRadiusKm());
+    writeNullable(out, query.getMinLatitude());
+    writeNullable(out, query.getMinLongitude());
+    writeNullable(out, query.getMaxLatitude());
+    writeNullable(out, query.getMaxLongitude());
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    appId = in.readUTF();
+    limit = in.readInt();
+    query = new GeoQuery();
+    query.setLatitude(readNullable(in));
+    query.setLongitude(readNullable(in));
+    query.setRadiusKm(readNullable(in));
+    query.setMinLatitude(readNullable(in));
+    query.setMinLongitude(readNullable(in));
+    query.setMaxLatitude(readNullable(in));
+    query.setMaxLongitude(readNullable(in));
+  }
+
+  private static void writeNullable(ObjectOutput out, Double d) throws IOException {
+    out.writeBoolean(d != null);
+    if (d != null) {
+      out.writeDouble(d.doubleValue());
+    }
+  }
+
+  private static Double readNullable(ObjectInput in) throws IOException {
+    return in.readBoolean() ? Double.valueOf(in.readDouble()) : null;
+  }
+
+  @Override
+  public String toString() {
+    return "GeoSearchTask{" +
+        "appId='" + appId + '\'' +
+        ", limit=" + limit +
+        '}';
+  }
+}
@@ -16,6 +16,7 @@ package com.magnet.mmx.server.plugin.mmxmgmt.db;
 
 import com.magnet.mmx.server.common.data.AppEntity;
 
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -132,4 +133,12 @@ public interface AppDAO {
    */
   public List<AppEntity> getAllApps();
 
+  /**
+   * Get the apps that have an APNS certificate and sent APNS pushes or wakeups since the
+   * supplied date.
+   * @param since
+   * @return
+   */
+  public List<AppEntity> getAPNSAppsWithPushesSince(Date since);
+
 }
@@ -14,6 +14,7 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.db;
 
+import com.magnet.mmx.protocol.PushType;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.WebConstants;
 import com.magnet.mmx.util.Base64;
@@ -28,6 +29,7 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -66,6 +68,11 @@ public class AppDAOImpl implements AppDAO {
 
   private static final String QUERY_MY_APPS = AppEntity.APP_QUERY_STRING + " WHERE ownerId = ?";
 
+  private static final String QUERY_APNS_APPS_WITH_PUSHES_SINCE = AppEntity.APP_QUERY_STRING +
+      " WHERE apnsCert IS NOT NULL AND (" +
+      "EXISTS (SELECT 1 FROM mmxPushMessage p WHERE p.appId = mmxApp.appId AND p.dateSentUTC >= ?) OR " +
+      "EXISTS (SELECT 1 FROM mmxWakeupQueue w WHERE w.appId = mmxApp.appId AND w.dateCreatedUTC >= ? AND w.tokenType = ?))";
+
   private ConnectionProvider connectionProvider;
 
   public AppDAOImpl(ConnectionProvider provider) {
@@ -488,6 +495,32 @@ public class AppDAOImpl implements AppDAO {
     return list;
   }
 
+  @Override
+  public List<AppEntity> getAPNSAppsWithPushesSince(Date since) {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    List<AppEntity> list = new ArrayList<AppEntity>();
+    try {
+      con = connectionProvider.getConnection();
+      pstmt = con.prepareStatement(QUERY_APNS_APPS_WITH_PUSHES_SINCE);
+      long sinceUTC = since.getTime()/1000L;
+      pstmt.setLong(1, sinceUTC);
+      pstmt.setLong(2, sinceUTC);
+      pstmt.setString(3, PushType.APNS.name());
+      rs = pstmt.executeQuery();
+      while (rs.next()) {
+        list.add(new AppEntity.AppEntityBuilder().build(rs));
+      }
+    } catch (SQLException e) {
+      LOGGER.error("SQL Exception in getAPNSAppsWithPushesSince", e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+    return list;
+  }
+
   @Override
   public void updateApp(String appId, String appName, String googleApiKey, String googleProjectId, String apnsCertPwd, String ownerEmail, String guestSecret, boolean productionApnsCert) throws
       AppDoesntExistException {
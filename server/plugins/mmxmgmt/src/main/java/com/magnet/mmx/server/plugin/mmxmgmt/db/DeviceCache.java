@@ -0,0 +1,340 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache for the device lookups done while routing messages.
+ * <p>
+ * Two views are cached: the ACTIVE devices of a user keyed by appId+userId and single devices
+ * keyed by appId+deviceId. Entries are loaded through the supplied {@link DeviceDAO} on a miss.
+ * Anything that changes a device row must call one of the invalidate methods; invalidations
+ * are also sent to the other cluster members using {@link DeviceCacheInvalidationTask}.
+ * Cached entities are shared and must not be modified by callers.
+ */
+public class DeviceCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DeviceCache.class);
+
+  private static volatile DeviceCache instance = new DeviceCache(MMXServerConstants.DEFAULT_DEVICE_CACHE_MAX_SIZE,
+      MMXServerConstants.DEFAULT_DEVICE_CACHE_TTL_SECONDS);
+
+  private final Cache<UserKey, List<DeviceEntity>> userDevices;
+  private final Cache<DeviceKey, DeviceEntity> devices;
+
+  DeviceCache(int maxSize, int ttlSeconds) {
+    userDevices = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+    devices = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Get the singleton instance of the device cache.
+   * @return
+   */
+  public static DeviceCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Lifecycle method. Replace the cache instance with one using the supplied sizing.
+   * @param maxSize maximum number of entries in each of the cached views; 0 disables caching
+   * @param ttlSeconds time after which an entry is reloaded from the database
+   */
+  public static void initialize(int maxSize, int ttlSeconds) {
+    LOGGER.info("Device cache is initialized with maxSize:{}, ttlSeconds:{}", maxSize, ttlSeconds);
+    instance = new DeviceCache(Math.max(0, maxSize), Math.max(1, ttlSeconds));
+  }
+
+  /**
+   * Get the ACTIVE devices for the user.
+   * @param dao DAO used for loading the devices on a cache miss
+   * @param appId
+   * @param userId
+   * @return unmodifiable list; can be empty but not null
+   */
+  public List<DeviceEntity> getActiveDevices(DeviceDAO dao, String appId, String userId) {
+    UserKey key = new UserKey(appId, userId);
+    List<DeviceEntity> list = userDevices.getIfPresent(key);
+    if (list == null) {
+      list = Collections.unmodifiableList(dao.getDevices(appId, userId, DeviceStatus.ACTIVE));
+      userDevices.put(key, list);
+    }
+    return list;
+  }
+
+  /**
+   * Get a device using the appId and deviceId.
+   * @param dao DAO used for loading the device on a cache miss
+   * @param appId
+   * @param deviceId
+   * @return
+   * @throws SQLException
+   * @throws DeviceNotFoundException if the device doesn't exist. Missing devices are not cached.
+   */
+  public DeviceEntity getDevice(DeviceDAO dao, String appId, String deviceId) throws SQLException, DeviceNotFoundException {
+    DeviceKey key = new DeviceKey(appId, deviceId);
+    DeviceEntity entity = devices.getIfPresent(key);
+    if (entity == null) {
+      entity = dao.getDevice(appId, deviceId);
+      if (entity != null) {
+        devices.put(key, entity);
+      }
+    }
+    return entity;
+  }
+
+  /**
+   * Invalidate the entries for a device owned by the user, on this node and the rest of the cluster.
+   * @param appId
+   * @param userId owner of the device; can be null if not known
+   * @param deviceId
+   */
+  public void invalidate(String appId, String userId, String deviceId) {
+    invalidateLocal(appId, userId, deviceId);
+    broadcast(new DeviceCacheInvalidationTask(DeviceCacheInvalidationTask.Type.DEVICE, appId, userId, deviceId));
+  }
+
+  /**
+   * Invalidate all the entries for the deviceId in any app, on this node and the rest of the cluster.
+   * Used when only the deviceId of the changed device is known.
+   * @param deviceId
+   */
+  public void invalidateDevice(String deviceId) {
+    invalidateDeviceLocal(deviceId);
+    broadcast(new DeviceCacheInvalidationTask(DeviceCacheInvalidationTask.Type.DEVICE_ID, null, null, deviceId));
+  }
+
+  /**
+   * Invalidate the entries for devices in the app that use the push token, on this node and the
+   * rest of the cluster.
+   * @param appId
+   * @param token
+   */
+  public void invalidateToken(String appId, String token) {
+    invalidateTokenLocal(appId, token);
+    broadcast(new DeviceCacheInvalidationTask(DeviceCacheInvalidationTask.Type.TOKEN, appId, null, token));
+  }
+
+  /**
+   * Invalidate the entries for all devices of the app, on this node and the rest of the cluster.
+   * This is cheaper than invalidating many tokens one at a time.
+   * @param appId
+   */
+  public void invalidateApp(String appId) {
+    invalidateAppLocal(appId);
+    broadcast(new DeviceCacheInvalidationTask(DeviceCacheInvalidationTask.Type.APP, appId, null, null));
+  }
+
+  void invalidateLocal(String appId, String userId, String deviceId) {
+    LOGGER.trace("invalidateLocal : appId={}, userId={}, deviceId={}", new Object[]{appId, userId, deviceId});
+    if (deviceId != null) {
+      devices.invalidate(new DeviceKey(appId, deviceId));
+    }
+    if (userId != null) {
+      userDevices.invalidate(new UserKey(appId, userId));
+    } else if (deviceId != null) {
+      Iterator<Map.Entry<UserKey, List<DeviceEntity>>> iterator = userDevices.asMap().entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<UserKey, List<DeviceEntity>> entry = iterator.next();
+        if (entry.getKey().appId.equals(appId) && containsDevice(entry.getValue(), deviceId)) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  void invalidateDeviceLocal(String deviceId) {
+    LOGGER.trace("invalidateDeviceLocal : deviceId={}", deviceId);
+    Iterator<DeviceKey> keys = devices.asMap().keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().deviceId.equals(deviceId)) {
+        keys.remove();
+      }
+    }
+    Iterator<List<DeviceEntity>> lists = userDevices.asMap().values().iterator();
+    while (lists.hasNext()) {
+      if (containsDevice(lists.next(), deviceId)) {
+        lists.remove();
+      }
+    }
+  }
+
+  void invalidateTokenLocal(String appId, String token) {
+    LOGGER.trace("invalidateTokenLocal : appId={}", appId);
+    Iterator<Map.Entry<DeviceKey, DeviceEntity>> iterator = devices.asMap().entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<DeviceKey, DeviceEntity> entry = iterator.next();
+      if (entry.getKey().appId.equals(appId) && hasToken(entry.getValue(), token)) {
+        iterator.remove();
+      }
+    }
+    Iterator<Map.Entry<UserKey, List<DeviceEntity>>> lists = userDevices.asMap().entrySet().iterator();
+    while (lists.hasNext()) {
+      Map.Entry<UserKey, List<DeviceEntity>> entry = lists.next();
+      if (!entry.getKey().appId.equals(appId)) {
+        continue;
+      }
+      for (DeviceEntity device : entry.getValue()) {
+        if (hasToken(device, token)) {
+          lists.remove();
+          break;
+        }
+      }
+    }
+  }
+
+  void invalidateAppLocal(String appId) {
+    LOGGER.trace("invalidateAppLocal : appId={}", appId);
+    Iterator<DeviceKey> keys = devices.asMap().keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().appId.equals(appId)) {
+        keys.remove();
+      }
+    }
+    Iterator<UserKey> userKeys = userDevices.asMap().keySet().iterator();
+    while (userKeys.hasNext()) {
+      if (userKeys.next().appId.equals(appId)) {
+        userKeys.remove();
+      }
+    }
+  }
+
+  /**
+   * Remove everything from the cache on this node.
+   */
+  public void clear() {
+    devices.invalidateAll();
+    userDevices.invalidateAll();
+  }
+
+  /**
+   * @return combined statistics of the cached views.
+   */
+  public CacheStats getStats() {
+    return devices.stats().plus(userDevices.stats());
+  }
+
+  public long getSize() {
+    return devices.size() + userDevices.size();
+  }
+
+  private static boolean containsDevice(List<DeviceEntity> list, String deviceId) {
+    for (DeviceEntity device : list) {
+      if (deviceId.equals(device.getDeviceId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasToken(DeviceEntity device, String token) {
+    return token != null && token.equals(device.getClientToken());
+  }
+
+  private static void broadcast(DeviceCacheInvalidationTask task) {
+    if (!ClusterManager.isClusteringEnabled()) {
+      return;
+    }
+    try {
+      CacheFactory.doClusterTask(task);
+    } catch (Exception e) {
+      LOGGER.warn("broadcast : failed to send device cache invalidation task={}", task, e);
+    }
+  }
+
+  /**
+   * Key for the user devices
+   */
+  private static final class UserKey {
+    private final String appId;
+    private final String userId;
+
+    private UserKey(String appId, String userId) {
+      this.appId = appId;
+      this.userId = userId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      UserKey that = (UserKey) o;
+
+      if (!appId.equals(that.appId)) return false;
+      return userId.equals(that.userId);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = appId.hashCode();
+      result = 31 * result + userId.hashCode();
+      return result;
+    }
+  }
+
+  /**
+   * Key for a single device
+   */
+  private static final class DeviceKey {
+    private final String appId;
+    private final String deviceId;
+
+    private DeviceKey(String appId, String deviceId) {
+      this.appId = appId;
+      this.deviceId = deviceId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      DeviceKey that = (DeviceKey) o;
+
+      if (!appId.equals(that.appId)) return false;
+      return deviceId.equals(that.deviceId);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = appId.hashCode();
+      result = 31 * result + deviceId.hashCode();
+      return result;
+    }
+  }
+}
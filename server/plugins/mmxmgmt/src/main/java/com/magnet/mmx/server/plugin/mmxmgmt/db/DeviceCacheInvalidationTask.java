@@ -0,0 +1,124 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import org.jivesoftware.util.cache.ClusterTask;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Cluster task that removes stale entries from the {@link DeviceCache} of the other cluster members.
+ */
+public class DeviceCacheInvalidationTask implements ClusterTask {
+
+  enum Type {
+    /**
+     * value is the deviceId of a device owned by the user
+     */
+    DEVICE,
+    /**
+     * value is the deviceId; app and user are not known
+     */
+    DEVICE_ID,
+    /**
+     * value is the push token
+     */
+    TOKEN,
+    /**
+     * every device of the app; there is no value
+     */
+    APP
+  }
+
+  private Type type;
+  private String appId;
+  private String userId;
+  private String value;
+
+  /**
+   * Required for deserialization.
+   */
+  public DeviceCacheInvalidationTask() {
+  }
+
+  DeviceCacheInvalidationTask(Type type, String appId, String userId, String value) {
+    this.type = type;
+    this.appId = appId;
+    this.userId = userId;
+    this.value = value;
+  }
+
+  @Override
+  public Object getResult() {
+    return null;
+  }
+
+  @Override
+  public void run() {
+    DeviceCache cache = DeviceCache.getInstance();
+    switch (type) {
+      case DEVICE:
+        cache.invalidateLocal(appId, userId, value);
+        break;
+      case DEVICE_ID:
+        cache.invalidateDeviceLocal(value);
+        break;
+      case TOKEN:
+        cache.invalidateTokenLocal(appId, value);
+        break;
+      case APP:
+        cache.invalidateAppLocal(appId);
+        break;
+    }
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeUTF(type.name());
+    writeNullable(out, appId);
+    writeNullable(out, userId);
+    writeNullable(out, value);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    type = Type.valueOf(in.readUTF());
+    appId = readNullable(in);
+    userId = readNullable(in);
+    value = readNullable(in);
+  }
+
+  private static void writeNullable(ObjectOutput out, String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readNullable(ObjectInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  @Override
+  public String toString() {
+    return "DeviceCacheInvalidationTask{" +
+        "type=" + type +
+        ", appId='" + appId + '\'' +
+        ", userId='" + userId + '\'' +
+        '}';
+  }
+}
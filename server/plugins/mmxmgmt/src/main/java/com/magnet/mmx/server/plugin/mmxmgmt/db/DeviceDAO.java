@@ -120,6 +120,14 @@ public interface DeviceDAO {
 
   public int getActiveDevicesForApp(String appId);
 
+  /**
+   * Get the devices of an app with the given device ids and status. The ids are looked up in
+   * chunks of {@link com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants#DEVICE_ID_QUERY_CHUNK_SIZE}.
+   * @param appId
+   * @param deviceIds
+   * @param status
+   * @return List<DeviceEntity> can be empty but not null
+   */
   public List<DeviceEntity> getDevices (String appId, List<String> deviceIds, DeviceStatus status);
 
   /**
@@ -145,6 +153,17 @@ public interface DeviceDAO {
 
   public List<DeviceEntity> getDevices(QueryBuilderResult query);
 
+  /**
+   * Get a page of the devices matching a query built by the {@link DeviceQueryBuilder} without
+   * sort or pagination information. Pages are retrieved using the device id as the cursor, so
+   * the cost of a page doesn't depend on how many pages came before it.
+   * @param query
+   * @param afterId only devices with an id larger than this are returned
+   * @param limit maximum number of devices to return
+   * @return devices ordered by id
+   */
+  public List<DeviceEntity> getDevices(QueryBuilderResult query, int afterId, int limit);
+
   /**
    * Change the push status to invalid for the resource identified by the passed in params.
    * @param appId
@@ -153,6 +172,16 @@ public interface DeviceDAO {
    */
   public void invalidateToken (String appId, PushType pushType, String token);
 
+  /**
+   * Change the push status to invalid for the devices of the app that use one of the tokens.
+   * The updates are sent as a single JDBC batch.
+   * @param appId
+   * @param pushType
+   * @param tokens
+   * @return number of devices updated
+   */
+  public int invalidateTokens(String appId, PushType pushType, List<String> tokens);
+
 
   public void updatePushStatus(String deviceId, OSType type, String appId, PushStatus status) throws DbInteractionException;
 
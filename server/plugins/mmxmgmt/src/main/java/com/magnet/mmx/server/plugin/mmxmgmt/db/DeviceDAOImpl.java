@@ -25,6 +25,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.search.device.DeviceSortOption;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXDeviceStats;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.Helper;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXDeviceCountResult;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.SqlUtil;
 import com.magnet.mmx.server.plugin.mmxmgmt.web.ValueHolder;
 import org.joda.time.DateTime;
@@ -217,31 +218,38 @@ public class DeviceDAOImpl implements DeviceDAO {
     }
 
     int count = deviceIds.size();
-    String placeHolder = Helper.getSQLPlaceHolders(count);
-    String sql = String.format(QUERY_USING_APPID_AND_ID_LIST, placeHolder);
-    if (LOGGER.isTraceEnabled()) {
-      LOGGER.trace("Constructed SQL:" + sql);
-    }
     Connection con = null;
     PreparedStatement pstmt = null;
     ResultSet rs = null;
     List<DeviceEntity> returnList = new ArrayList<DeviceEntity>(count);
     try {
       con = provider.getConnection();
-      pstmt = con.prepareStatement(sql);
-      pstmt.setString(1, appId);
-      pstmt.setString(2, status.name());
-      int index = 3;
-      for (String deviceId : deviceIds) {
-        pstmt.setString(index++, deviceId);
-      }
-      rs = pstmt.executeQuery();
-      while (rs.next()) {
-        DeviceEntity pae = new DeviceEntity.DeviceEntityBuilder().build(rs);
-        returnList.add(pae);
-      }
-      rs.close();
-      pstmt.close();
+      int start = 0;
+      do {
+        // Limit the number of ids per query because some DBMS cannot handle more
+        // than 255 arguments in the IN clause.
+        List<String> chunk = deviceIds.subList(start,
+            Math.min(start + MMXServerConstants.DEVICE_ID_QUERY_CHUNK_SIZE, count));
+        String sql = String.format(QUERY_USING_APPID_AND_ID_LIST, Helper.getSQLPlaceHolders(chunk.size()));
+        if (LOGGER.isTraceEnabled()) {
+          LOGGER.trace("Constructed SQL:" + sql);
+        }
+        pstmt = con.prepareStatement(sql);
+        pstmt.setString(1, appId);
+        pstmt.setString(2, status.name());
+        int index = 3;
+        for (String deviceId : chunk) {
+          pstmt.setString(index++, deviceId);
+        }
+        rs = pstmt.executeQuery();
+        while (rs.next()) {
+          DeviceEntity pae = new DeviceEntity.DeviceEntityBuilder().build(rs);
+          returnList.add(pae);
+        }
+        rs.close();
+        pstmt.close();
+        start += chunk.size();
+      } while (start < count);
     } catch (SQLException e) {
       LOGGER.error(e.getMessage(), e);
       throw new DbInteractionException(e);
@@ -730,6 +738,40 @@ public class DeviceDAOImpl implements DeviceDAO {
     return deviceList;
   }
 
+  @Override
+  public List<DeviceEntity> getDevices(QueryBuilderResult query, int afterId, int limit) {
+    final String keysetFragment = " AND mmxDevice.id > ? ORDER BY mmxDevice.id LIMIT ?";
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    List<DeviceEntity> deviceList = new ArrayList<DeviceEntity>(limit);
+    try {
+      con = provider.getConnection();
+      String sql = query.getQuery() + keysetFragment;
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Executing built query:{} afterId:{}", sql, afterId);
+      }
+      pstmt = con.prepareStatement(sql);
+      int index = 1;
+      for (QueryParam param : query.getParamList()) {
+        QueryParam.setParameterValue(param, index++, pstmt);
+      }
+      pstmt.setInt(index++, afterId);
+      pstmt.setInt(index, limit);
+      rs = pstmt.executeQuery();
+      while(rs.next()) {
+        deviceList.add(new DeviceEntity.DeviceEntityBuilder().build(rs));
+      }
+    } catch (Exception e){
+      LOGGER.error("Exception in retrieving devices using query builder result:{} afterId:{}",
+          new Object[]{query, afterId, e});
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+    return deviceList;
+  }
+
   @Override
   public int getActiveDevicesForApp(String appId) {
     final String statementStr = "select count(*) from mmxDevice where appId = ? AND status = ?";
@@ -780,6 +822,42 @@ public class DeviceDAOImpl implements DeviceDAO {
     }
   }
 
+  @Override
+  public int invalidateTokens(String appId, PushType pushType, List<String> tokens) {
+    if (tokens == null || tokens.isEmpty()) {
+      return 0;
+    }
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    boolean autoCommit = true;
+    try {
+      con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      pstmt = con.prepareStatement(UPDATE_DEVICE_PUSH_STATUS);
+      Timestamp now = new Timestamp(new Date().getTime());
+      for (String token : tokens) {
+        pstmt.setString(1, PushStatus.INVALID.name());
+        pstmt.setTimestamp(2, now);
+        pstmt.setString(3, appId);
+        pstmt.setString(4, token);
+        pstmt.setString(5, pushType.name());
+        pstmt.addBatch();
+      }
+      int count = SqlUtil.sumUpdateCounts(pstmt.executeBatch());
+      con.commit();
+      pstmt.close();
+      return count;
+    } catch (SQLException sqle) {
+      LOGGER.warn("SQL Exception in invalidating {} tokens", tokens.size(), sqle);
+      SqlUtil.rollback(LOGGER, con);
+      throw new DbInteractionException(sqle);
+    } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
   /**
    * private static final String UPDATE_DEVICE_PUSH_STATUS_OTHER = "UPDATE mmxDevice SET pushStatus = ?, dateUpdated = ? " +
    "WHERE appId = ? AND deviceId = ? AND osType = ?";
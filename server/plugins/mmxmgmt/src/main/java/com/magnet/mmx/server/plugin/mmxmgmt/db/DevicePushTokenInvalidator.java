@@ -19,6 +19,7 @@ import com.magnet.mmx.protocol.PushType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -45,6 +46,7 @@ public class DevicePushTokenInvalidator {
 
     DeviceDAO deviceDAO = getDeviceDAO();
     deviceDAO.invalidateToken(appId, pushType, token);
+    DeviceCache.getInstance().invalidateToken(appId, token);
 
     MessageDAO messageDAO = getMessageDAO();
     int messageCount = messageDAO.changeStateToPending(appId, pushType, token);
@@ -57,6 +59,36 @@ public class DevicePushTokenInvalidator {
         TimeUnit.MILLISECONDS.convert((endTime - startTime), TimeUnit.NANOSECONDS));
   }
 
+  /**
+   * Invalidate a list of tokens of an app. Each step is done for all the tokens with a single
+   * batched statement and the cached devices of the app are dropped once.
+   * @param appId
+   * @param pushType
+   * @param tokens
+   * @return number of devices whose push status was changed
+   */
+  public int invalidateTokens(String appId, PushType pushType, List<String> tokens) {
+    if (tokens.isEmpty()) {
+      return 0;
+    }
+    long startTime = System.nanoTime();
+
+    DeviceDAO deviceDAO = getDeviceDAO();
+    int deviceCount = deviceDAO.invalidateTokens(appId, pushType, tokens);
+    DeviceCache.getInstance().invalidateApp(appId);
+
+    MessageDAO messageDAO = getMessageDAO();
+    int messageCount = messageDAO.changeStateToPending(appId, pushType, tokens);
+
+    WakeupEntityDAO wakeupEntityDAO = getWakeupEntityDAO();
+    int wkCount = wakeupEntityDAO.remove(appId, pushType, tokens);
+    long endTime = System.nanoTime();
+    LOGGER.info("invalidated {} tokens for appId:{} Push Type:{} devices:{} messages:{} queued wakeup:{} in {} milliseconds",
+        new Object[]{tokens.size(), appId, pushType.name(), deviceCount, messageCount, wkCount,
+            TimeUnit.MILLISECONDS.convert((endTime - startTime), TimeUnit.NANOSECONDS)});
+    return deviceCount;
+  }
+
   protected ConnectionProvider getConnectionProvider() {
     return new OpenFireDBConnectionProvider();
   }
@@ -15,8 +15,15 @@
 package com.magnet.mmx.server.plugin.mmxmgmt.db;
 
 import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Target;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.query.GeoQuery;
+import com.magnet.mmx.server.plugin.mmxmgmt.context.DeviceLocation;
+import com.magnet.mmx.server.plugin.mmxmgmt.context.GeoLocationIndex;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.ResolutionException;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -24,6 +31,17 @@ import java.util.List;
  */
 public class DeviceTargetResolver implements TargetResolver<DeviceEntity> {
 
+  /**
+   * Receives the resolved devices one page at a time.
+   */
+  public interface PageHandler {
+    /**
+     * @param page devices ordered by id
+     * @return false to stop the resolution
+     */
+    public boolean handle(List<DeviceEntity> page);
+  }
+
   @Override
   public List<DeviceEntity> resolve(String appId, Target target) throws ResolutionException {
     if (target == null) {
@@ -39,11 +57,115 @@ public class DeviceTargetResolver implements TargetResolver<DeviceEntity> {
       DeviceDAO deviceDAO = getDeviceDAO();
       List<DeviceEntity> entityList = deviceDAO.getDevices(query);
       return entityList;
+    } else if (target.getGeoQuery() != null) {
+      GeoQuery geoQuery = target.getGeoQuery();
+      if (!GeoQuery.isValid(geoQuery)) {
+        throw new ResolutionException("invalid geo query");
+      }
+      List<DeviceLocation> locations = getGeoLocationIndex().search(appId, geoQuery,
+          MMXServerConstants.GEO_PUSH_TARGET_MAX_SIZE);
+      List<String> nearbyIds = new ArrayList<String>(locations.size());
+      for (DeviceLocation location : locations) {
+        nearbyIds.add(location.getDeviceId());
+      }
+      return getDeviceDAO().getDevices(appId, nearbyIds, DeviceStatus.ACTIVE);
+    } else {
+      throw new ResolutionException("no valid targets defined");
+    }
+  }
+
+  /**
+   * Check the target without resolving it, so that a request can be rejected before it is
+   * processed asynchronously or its response is streamed.
+   * @param appId
+   * @param target
+   * @throws ResolutionException if the target can't be resolved
+   */
+  public void validate(String appId, Target target) throws ResolutionException {
+    if (target == null) {
+      throw new ResolutionException("no valid targets defined");
+    }
+    List<String> deviceIds = target.getDeviceIds();
+    if (deviceIds != null && !deviceIds.isEmpty()) {
+      return;
+    } else if (target.getDeviceQuery() != null) {
+      new DeviceQueryBuilder().buildQuery(target.getDeviceQuery(), appId);
+    } else if (target.getGeoQuery() != null) {
+      if (!GeoQuery.isValid(target.getGeoQuery())) {
+        throw new ResolutionException("invalid geo query");
+      }
     } else {
       throw new ResolutionException("no valid targets defined");
     }
   }
 
+  /**
+   * Resolve the target page by page in the order of the device ids. Device queries are paged in
+   * the database using the device id as the cursor, so the matching devices are never all in
+   * memory. Device id lists and geo queries are bounded; they are resolved up front and then
+   * handed out in pages. A geo query resolves to at most
+   * {@link MMXServerConstants#GEO_PUSH_TARGET_MAX_SIZE} devices, taken from the
+   * {@link GeoLocationIndex} of every cluster node.
+   * @param appId
+   * @param target
+   * @param afterId only devices with a larger id are resolved; 0 starts at the beginning
+   * @param pageSize maximum number of devices in a page
+   * @param handler
+   * @return number of devices handed to the handler
+   * @throws ResolutionException
+   */
+  public int resolve(String appId, Target target, int afterId, int pageSize, PageHandler handler)
+      throws ResolutionException {
+    if (target == null) {
+      throw new ResolutionException("no valid targets defined");
+    }
+    int count = 0;
+    boolean hasDeviceIds = target.getDeviceIds() != null && !target.getDeviceIds().isEmpty();
+    if (!hasDeviceIds && target.getDeviceQuery() != null) {
+      DeviceQueryBuilder builder = new DeviceQueryBuilder();
+      QueryBuilderResult query = builder.buildQuery(target.getDeviceQuery(), appId);
+      DeviceDAO deviceDAO = getDeviceDAO();
+      int cursor = afterId;
+      while (true) {
+        List<DeviceEntity> page = deviceDAO.getDevices(query, cursor, pageSize);
+        if (page.isEmpty()) {
+          break;
+        }
+        count += page.size();
+        cursor = page.get(page.size() - 1).getId();
+        if (!handler.handle(page) || page.size() < pageSize) {
+          break;
+        }
+      }
+    } else {
+      List<DeviceEntity> resolved = new ArrayList<DeviceEntity>(resolve(appId, target));
+      Collections.sort(resolved, new Comparator<DeviceEntity>() {
+        @Override
+        public int compare(DeviceEntity d1, DeviceEntity d2) {
+          return d1.getId() < d2.getId() ? -1 : (d1.getId() == d2.getId() ? 0 : 1);
+        }
+      });
+      List<DeviceEntity> page = new ArrayList<DeviceEntity>(pageSize);
+      for (DeviceEntity device : resolved) {
+        if (device.getId() <= afterId) {
+          continue;
+        }
+        page.add(device);
+        if (page.size() == pageSize) {
+          count += page.size();
+          if (!handler.handle(page)) {
+            return count;
+          }
+          page = new ArrayList<DeviceEntity>(pageSize);
+        }
+      }
+      if (!page.isEmpty()) {
+        count += page.size();
+        handler.handle(page);
+      }
+    }
+    return count;
+  }
 
   protected DeviceDAO getDeviceDAO() {
     DeviceDAO dao = new DeviceDAOImpl(getConnectionProvider());
@@ -51,6 +173,10 @@ public class DeviceTargetResolver implements TargetResolver<DeviceEntity> {
   }
 
 
+  protected GeoLocationIndex getGeoLocationIndex() {
+    return GeoLocationIndex.getInstance();
+  }
+
   protected ConnectionProvider getConnectionProvider() {
     ConnectionProvider provider = new OpenFireDBConnectionProvider();
     return provider;
@@ -46,4 +46,17 @@ public interface HookDAO {
    * @throws DbInteractionException
    */
   HookEntity getHook (int hookId) throws DbInteractionException;
+
+  /**
+   * Record a hook payload that couldn't be delivered.
+   * @param hook
+   * @param appId
+   * @param payload JSON payload
+   * @param attempts number of delivery attempts made
+   * @param responseCode last HTTP response code, -1 if there was none
+   * @param error description of the last failure
+   * @throws DbInteractionException
+   */
+  void addDeadLetter(HookEntity hook, String appId, String payload, int attempts, int responseCode, String error)
+      throws DbInteractionException;
 }
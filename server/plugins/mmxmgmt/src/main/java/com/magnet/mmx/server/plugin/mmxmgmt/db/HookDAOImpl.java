@@ -42,6 +42,11 @@ public class HookDAOImpl implements HookDAO {
   private static final String SELECT_HOOK_USING_ID = "SELECT id, appId, hookName, targetURL, eventType, " +
       "eventConfig, dateCreated, dateUpdated FROM mmxWebHook WHERE id = ?";
 
+  private static final String INSERT_DEAD_LETTER = "INSERT INTO mmxWebHookDeadLetter (hookId,appId,targetURL,payload," +
+      "attempts,responseCode,lastError) VALUES (?,?,?,?,?,?,?)";
+
+  private static final int MAX_ERROR_LENGTH = 500;
+
   private ConnectionProvider provider;
 
   public HookDAOImpl(ConnectionProvider provider) {
@@ -134,6 +139,36 @@ public class HookDAOImpl implements HookDAO {
     }
   }
 
+  @Override
+  public void addDeadLetter(HookEntity hook, String appId, String payload, int attempts, int responseCode,
+                            String error) throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(INSERT_DEAD_LETTER);
+      pstmt.setInt(1, hook.getId());
+      pstmt.setString(2, appId);
+      pstmt.setString(3, hook.getTargetURL());
+      pstmt.setString(4, payload);
+      pstmt.setInt(5, attempts);
+      pstmt.setInt(6, responseCode);
+      if (error != null) {
+        pstmt.setString(7, error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error);
+      } else {
+        pstmt.setNull(7, Types.VARCHAR);
+      }
+      pstmt.executeUpdate();
+      pstmt.close();
+      con.close();
+    } catch (SQLException e) {
+      LOGGER.warn("SQL Exception in adding dead letter for hook:{}", hook.getId(), e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
   /**
    * HookEntityBuilder.
    */
@@ -37,6 +37,15 @@ public interface MessageDAO {
    */
   public void persist(MessageEntity entity) throws DbInteractionException;
 
+  /**
+   * Persist a list of message entities using a single JDBC batch.
+   * If an entity has a queuedAtUTC value it is used as the dateQueuedUTC, otherwise
+   * the current time is used.
+   * @param entities
+   * @throws DbInteractionException
+   */
+  public void persist(List<MessageEntity> entities) throws DbInteractionException;
+
   /**
    * Get a list of messages with provided state value
    *
@@ -82,6 +91,14 @@ public interface MessageDAO {
    */
   public void messageReceived(String messageId, String receivedByDeviceId);
 
+  /**
+   * Mark the messages identified by the messageId and deviceId of each of the supplied
+   * entities as RECEIVED using a single JDBC batch.
+   * @param received
+   * @throws DbInteractionException
+   */
+  public void messageReceived(List<MessageEntity> received) throws DbInteractionException;
+
   /**
    * Mark a message identified the passed in parameters as DELIVERED.
    * @param appId
@@ -131,6 +148,17 @@ public interface MessageDAO {
    */
   public int messageTimeout(long utcTime, int timeoutMinutes);
 
+  /**
+   * Mark message as timedout if they are in WAKEUP_SENT state and have been queued for more
+   * than timeout minutes. The update is done in batches that each cover a range of batchSize
+   * primary keys.
+   * @param utcTime current time in number of "seconds" since epoch
+   * @param timeoutMinutes time out interval in minutes for example 180 minutes
+   * @param batchSize number of primary keys covered by a single update
+   * @return number of messages marked as timedout
+   */
+  public int messageTimeout(long utcTime, int timeoutMinutes, int batchSize);
+
   /**
    * Update the message identified by the message and deviceId to set its state to WAKEUP_SENT.
    * @param messageId
@@ -139,6 +167,14 @@ public interface MessageDAO {
    */
   public void wakeupSent(String messageId, String deviceId) throws DbInteractionException;
 
+  /**
+   * Batch version of {@link #wakeupSent(String, String)}. The message states are updated in a
+   * single transaction.
+   * @param sent wakeup entities for which the notification was sent
+   * @throws DbInteractionException
+   */
+  public void wakeupSent(List<WakeupEntity> sent) throws DbInteractionException;
+
   /**
    * Get a message entity using the messageId and deviceId
    * @param messageId
@@ -156,6 +192,16 @@ public interface MessageDAO {
    */
   public List<MessageEntity> getMessages(String appId, String messageId);
 
+  /**
+   * Get the messages for the supplied appId and list of messageIds. The messageIds are queried in
+   * chunks of {@link com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants#MESSAGE_ID_QUERY_CHUNK_SIZE}.
+   * @param appId
+   * @param messageIds
+   * @return map of messageId to the messages with that id ordered by deviceId. Ids without any messages
+   * are not included.
+   */
+  public Map<String, List<MessageEntity>> getMessages(String appId, List<String> messageIds);
+
 
   /**
    * Update messages in WAKEUP_SENT or WAKEUP_REQUIRED state to PENDING using the supplied
@@ -167,6 +213,16 @@ public interface MessageDAO {
    */
   public int changeStateToPending(String appId, PushType type, String token);
 
+  /**
+   * Update messages in WAKEUP_SENT or WAKEUP_REQUIRED state to PENDING for all the supplied
+   * tokens using a single JDBC batch. This is used during device token invalidation.
+   * @param appId
+   * @param type
+   * @param tokens
+   * @return number of messages updated
+   */
+  public int changeStateToPending(String appId, PushType type, List<String> tokens);
+
   /**
    * Change message in WAKEUP_SENT or WAKEUP_REQUIRED state to PENDING using the supplied
    * information. This is for handling app api key problem.
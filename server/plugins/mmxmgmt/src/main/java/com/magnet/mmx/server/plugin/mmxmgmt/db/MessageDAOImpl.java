@@ -14,11 +14,15 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.db;
 
+import com.codahale.metrics.Timer;
 import com.magnet.mmx.protocol.PushType;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
 import com.magnet.mmx.server.plugin.mmxmgmt.search.PaginationInfo;
 import com.magnet.mmx.server.plugin.mmxmgmt.search.SortOrder;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXInAppMessageStats;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXInAppTuple;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.Helper;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.SqlUtil;
 import com.magnet.mmx.server.plugin.mmxmgmt.web.MessageSearchOption;
 import com.magnet.mmx.server.plugin.mmxmgmt.web.MessageSortOption;
@@ -37,6 +41,9 @@ import java.util.regex.Pattern;
  */
 public class MessageDAOImpl implements MessageDAO {
   private static final Logger LOGGER = LoggerFactory.getLogger(MessageDAOImpl.class);
+  private static final Timer PERSIST_BATCH = MMXMetrics.timer("db.message.persistBatch");
+  private static final Timer RECEIVED_BATCH = MMXMetrics.timer("db.message.receivedBatch");
+  private static final Timer WAKEUP_SENT_BATCH = MMXMetrics.timer("db.message.wakeupSentBatch");
 
   private static final String ME_INSERT_QUERY = "INSERT INTO mmxMessage (messageId, fromJID, toJID, dateQueuedUTC, " +
       "state, appId, deviceId, sourceMessageId, messageType) VALUES (?,?,?,?,?,?,?,?,?)";
@@ -60,8 +67,20 @@ public class MessageDAOImpl implements MessageDAO {
       "AND w.dateSentUTC IS NOT NULL  GROUP BY w.messageId, w.deviceId HAVING (? - MAX(dateSentUTC) > ?) " +
       "AND count(w.messageId) < ?";
 
-  private static final String ME_QUERY_FOR_TIMEOUT = "UPDATE mmxMessage set state = ? WHERE state = ? AND dateAcknowledgedUTC IS NULL AND " +
-      "            (? - dateQueuedUTC > ?)";
+  private static final String ME_QUERY_TIMEOUT_ID_RANGE = "SELECT MIN(id), MAX(id) FROM mmxMessage WHERE state = ? AND " +
+      "dateQueuedUTC < ? AND dateAcknowledgedUTC IS NULL";
+
+  private static final String ME_QUERY_FOR_TIMEOUT = "UPDATE mmxMessage set state = ? WHERE id >= ? AND id < ? AND state = ? AND " +
+      "dateQueuedUTC < ? AND dateAcknowledgedUTC IS NULL";
+
+  private static final String ME_LOCK_FOR_TIMEOUT = "SELECT id, messageId, deviceId, fromJID, toJID, dateQueuedUTC, state, " +
+      "appId, dateAcknowledgedUTC, sourceMessageId, messageType FROM mmxMessage WHERE id >= ? AND id < ? AND state = ? AND " +
+      "dateQueuedUTC < ? AND dateAcknowledgedUTC IS NULL AND messageType = 'REGULAR' FOR UPDATE";
+
+  private static final String ME_LOCK_BY_MESSAGE_ID_AND_DEVICE_ID = "SELECT id, messageId, deviceId, fromJID, toJID, " +
+      "dateQueuedUTC, state, appId, dateAcknowledgedUTC, sourceMessageId, messageType FROM mmxMessage WHERE %s FOR UPDATE";
+
+  private static final String ME_MESSAGE_ID_AND_DEVICE_ID = "(messageId = ? AND deviceId = ?)";
 
   private static final String ME_QUERY_BY_MESSAGE_ID_AND_DEVICE_ID = "SELECT id, messageId, deviceId, fromJID, toJID, dateQueuedUTC, state, " +
       "appId, dateAcknowledgedUTC, sourceMessageId, messageType FROM mmxMessage WHERE messageId = ? AND deviceId = ? ";
@@ -69,15 +88,26 @@ public class MessageDAOImpl implements MessageDAO {
   private static final String ME_QUERY_BY_MESSAGE_ID_AND_APP_ID = "SELECT id, messageId, deviceId, fromJID, toJID, dateQueuedUTC, state, " +
       "appId, dateAcknowledgedUTC, sourceMessageId, messageType FROM mmxMessage WHERE appId = ? AND messageId = ? ORDER BY deviceId";
 
+  private static final String ME_QUERY_BY_MESSAGE_ID_LIST_AND_APP_ID = "SELECT id, messageId, deviceId, fromJID, toJID, dateQueuedUTC, state, " +
+      "appId, dateAcknowledgedUTC, sourceMessageId, messageType FROM mmxMessage WHERE appId = ? AND messageId IN (%s) ORDER BY messageId, deviceId";
+
   private static final String ME_UPDATE_STATE_AFTER_TOKEN_INVALIDATION_QUERY = " UPDATE mmxMessage m, mmxWakeupQueue w " +
       "SET m.state = ? WHERE m.messageId = w.messageId AND m.deviceId = w.deviceId AND " +
       "(m.state = 'WAKEUP_REQUIRED' OR m.state = 'WAKEUP_SENT') AND w.appId = ? AND  w.tokenType = ? AND " +
       "w.clientToken = ?";
 
+  private static final String ME_LOCK_FOR_TOKEN_INVALIDATION = "SELECT m.id, m.messageId, m.deviceId, m.fromJID, m.toJID, " +
+      "m.dateQueuedUTC, m.state, m.appId, m.dateAcknowledgedUTC, m.sourceMessageId, m.messageType FROM mmxMessage m, " +
+      "mmxWakeupQueue w WHERE m.messageId = w.messageId AND m.deviceId = w.deviceId AND " +
+      "(m.state = 'WAKEUP_REQUIRED' OR m.state = 'WAKEUP_SENT') AND m.messageType = 'REGULAR' AND w.appId = ? AND " +
+      "w.tokenType = ? AND w.clientToken = ? FOR UPDATE";
+
   private static final String ME_UPDATE_STATE_FOR_BAD_API_KEY_QUERY = " UPDATE mmxMessage m " +
       "SET m.state = ? WHERE m.appId = ? AND m.messageId = ? AND m.deviceId = ? AND " +
       "(m.state = 'WAKEUP_REQUIRED' OR m.state = 'WAKEUP_SENT')  ";
 
+  private static final int LOCK_CHUNK_SIZE = 128;
+
   private ConnectionProvider provider;
 
   private final static String ESCAPED_COMMA = Pattern.quote(",");
@@ -115,6 +145,9 @@ public class MessageDAOImpl implements MessageDAO {
       }
       pstmt.setString(9, type.name());
       pstmt.executeUpdate();
+      if (type == MessageEntity.MessageType.REGULAR) {
+        StatsRollup.getInstance().messageState(entity.getAppId(), null, entity.getState(), dateQueuedUTC, 1);
+      }
       rs = pstmt.getGeneratedKeys();
 
       if (rs.next()) {
@@ -131,6 +164,65 @@ public class MessageDAOImpl implements MessageDAO {
     }
   }
 
+  @Override
+  public void persist(List<MessageEntity> entities) throws DbInteractionException {
+    if (entities == null || entities.isEmpty()) {
+      return;
+    }
+    long startTime = System.nanoTime();
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    boolean autoCommit = true;
+    try {
+      con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      pstmt = con.prepareStatement(ME_INSERT_QUERY);
+      long now = new Date().getTime()/1000L;
+      for (MessageEntity entity : entities) {
+        pstmt.setString(1, entity.getMessageId());
+        pstmt.setString(2, entity.getFrom());
+        pstmt.setString(3, entity.getTo());
+        Long queuedAtUTC = entity.getQueuedAtUTC();
+        pstmt.setLong(4, queuedAtUTC != null ? queuedAtUTC.longValue() : now);
+        pstmt.setString(5, entity.getState().toString());
+        pstmt.setString(6, entity.getAppId());
+        pstmt.setString(7, entity.getDeviceId());
+        String sourceMessageId = entity.getSourceMessageId();
+        if (sourceMessageId != null) {
+          pstmt.setString(8, sourceMessageId);
+        } else {
+          pstmt.setNull(8, Types.VARCHAR);
+        }
+        MessageEntity.MessageType type = entity.getType();
+        if (type == null) {
+          type = MessageEntity.MessageType.REGULAR;
+        }
+        pstmt.setString(9, type.name());
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+      con.commit();
+      pstmt.close();
+      StatsRollup rollup = StatsRollup.getInstance();
+      for (MessageEntity entity : entities) {
+        if (entity.getType() == null || entity.getType() == MessageEntity.MessageType.REGULAR) {
+          Long queuedAtUTC = entity.getQueuedAtUTC();
+          rollup.messageState(entity.getAppId(), null, entity.getState(),
+              queuedAtUTC != null ? queuedAtUTC.longValue() : now, 1);
+        }
+      }
+    } catch (SQLException sqle) {
+      LOGGER.warn("SQL Exception in batch insert of {} message records", entities.size(), sqle);
+      SqlUtil.rollback(LOGGER, con);
+      throw new DbInteractionException(sqle);
+    } finally {
+      MMXMetrics.time(PERSIST_BATCH, startTime);
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
   @Override
   public List<MessageEntity> getMessages(MessageEntity.MessageState state) throws DbInteractionException {
     Connection con = null;
@@ -163,42 +255,195 @@ public class MessageDAOImpl implements MessageDAO {
       DbInteractionException {
     Connection con = null;
     PreparedStatement pstmt = null;
+    boolean autoCommit = true;
     try {
       con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      MessageEntity previous = lockMessage(con, messageId, receivedByDeviceId);
       pstmt = con.prepareStatement(ME_UPDATE_MARK_AS_RECEIVED);
       pstmt.setString(1, MessageEntity.MessageState.RECEIVED.name());
       pstmt.setLong(2, new Date().getTime()/1000L);
       pstmt.setString(3, messageId);
       pstmt.setString(4, receivedByDeviceId);
-      pstmt.executeUpdate();
+      int count = pstmt.executeUpdate();
+      con.commit();
       pstmt.close();
-      con.close();
+      if (count > 0) {
+        recordTransition(previous, MessageEntity.MessageState.RECEIVED);
+      }
     } catch (SQLException sqle) {
       LOGGER.warn("SQL Exception in updating message state", sqle);
+      SqlUtil.rollback(LOGGER, con);
+      throw new DbInteractionException(sqle);
+    } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
+  @Override
+  public void messageReceived(List<MessageEntity> received) throws DbInteractionException {
+    if (received == null || received.isEmpty()) {
+      return;
+    }
+    long startTime = System.nanoTime();
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    boolean autoCommit = true;
+    try {
+      con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      List<String> messageIds = new ArrayList<String>(received.size());
+      List<String> deviceIds = new ArrayList<String>(received.size());
+      for (MessageEntity entity : received) {
+        messageIds.add(entity.getMessageId());
+        deviceIds.add(entity.getDeviceId());
+      }
+      Map<String, MessageEntity> locked = lockMessages(con, messageIds, deviceIds);
+      pstmt = con.prepareStatement(ME_UPDATE_MARK_AS_RECEIVED);
+      long now = new Date().getTime()/1000L;
+      for (MessageEntity entity : received) {
+        pstmt.setString(1, MessageEntity.MessageState.RECEIVED.name());
+        Long ackAtUTC = entity.getDeliveryAckAtUTC();
+        pstmt.setLong(2, ackAtUTC != null ? ackAtUTC.longValue() : now);
+        pstmt.setString(3, entity.getMessageId());
+        pstmt.setString(4, entity.getDeviceId());
+        pstmt.addBatch();
+      }
+      int[] counts = pstmt.executeBatch();
+      con.commit();
+      pstmt.close();
+      for (int i = 0; i < received.size(); i++) {
+        if (changed(counts, i)) {
+          MessageEntity entity = received.get(i);
+          recordTransition(locked.get(key(entity.getMessageId(), entity.getDeviceId())),
+              MessageEntity.MessageState.RECEIVED);
+        }
+      }
+    } catch (SQLException sqle) {
+      LOGGER.warn("SQL Exception in batch update of {} message states", received.size(), sqle);
+      SqlUtil.rollback(LOGGER, con);
       throw new DbInteractionException(sqle);
     } finally {
+      MMXMetrics.time(RECEIVED_BATCH, startTime);
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
       CloseUtil.close(LOGGER, pstmt, con);
     }
   }
 
+  /**
+   * @return true if the update count of a batch statement shows that a row was changed
+   */
+  private static boolean changed(int[] counts, int index) {
+    return index < counts.length && (counts[index] > 0 || counts[index] == Statement.SUCCESS_NO_INFO);
+  }
+
+  /**
+   * Lock the row of a message for the rest of the transaction. See {@link #lockMessages(Connection, List, List)}.
+   * @return the locked row, null if there is no such row or the stats rollup isn't initialized
+   */
+  private MessageEntity lockMessage(Connection con, String messageId, String deviceId) throws SQLException {
+    return lockMessages(con, Collections.singletonList(messageId), Collections.singletonList(deviceId))
+        .get(key(messageId, deviceId));
+  }
+
+  /**
+   * Lock the rows of the messages for the rest of the transaction, so that the state each update
+   * replaces is known when its transition is recorded in the stats rollup. Nothing is locked unless
+   * the rollup is initialized.
+   * @param con connection with autoCommit off
+   * @param messageIds
+   * @param deviceIds deviceId of the message at the same index
+   * @return map of {@link #key(String, String)} to the locked row
+   */
+  private Map<String, MessageEntity> lockMessages(Connection con, List<String> messageIds, List<String> deviceIds)
+      throws SQLException {
+    Map<String, MessageEntity> locked = new HashMap<String, MessageEntity>();
+    if (!StatsRollup.isInitialized()) {
+      return locked;
+    }
+    int size = messageIds.size();
+    int start = 0;
+    do {
+      int end = Math.min(start + LOCK_CHUNK_SIZE, size);
+      StringBuilder condition = new StringBuilder(ME_MESSAGE_ID_AND_DEVICE_ID);
+      for (int i = start + 1; i < end; i++) {
+        condition.append(" OR ").append(ME_MESSAGE_ID_AND_DEVICE_ID);
+      }
+      PreparedStatement pstmt = null;
+      ResultSet rs = null;
+      try {
+        pstmt = con.prepareStatement(String.format(ME_LOCK_BY_MESSAGE_ID_AND_DEVICE_ID, condition));
+        int index = 1;
+        for (int i = start; i < end; i++) {
+          pstmt.setString(index++, messageIds.get(i));
+          pstmt.setString(index++, deviceIds.get(i));
+        }
+        rs = pstmt.executeQuery();
+        while (rs.next()) {
+          MessageEntity entity = new MessageEntity.MessageEntityBuilder().build(rs);
+          locked.put(key(entity.getMessageId(), entity.getDeviceId()), entity);
+        }
+      } finally {
+        CloseUtil.close(LOGGER, rs);
+        CloseUtil.close(LOGGER, pstmt);
+      }
+      start = end;
+    } while (start < size);
+    return locked;
+  }
+
+  private static String key(String messageId, String deviceId) {
+    return messageId + '\u0000' + deviceId;
+  }
+
+  /**
+   * Record the transition of a locked message that was moved to a state. Only REGULAR messages are
+   * counted. The state of the locked row is updated so that a message moved twice in a batch is
+   * counted once for each change.
+   * @param previous locked row, null if the message wasn't locked
+   * @param state
+   */
+  private static void recordTransition(MessageEntity previous, MessageEntity.MessageState state) {
+    if (previous == null || previous.getType() != MessageEntity.MessageType.REGULAR ||
+        previous.getQueuedAtUTC() == null) {
+      return;
+    }
+    StatsRollup.getInstance().messageState(previous.getAppId(), previous.getState(), state,
+        previous.getQueuedAtUTC().longValue(), 1);
+    previous.setState(state);
+  }
+
+
   @Override
   public void updateMessageState(String messageId, String deviceId, MessageEntity.MessageState state) throws
       DbInteractionException {
     Connection con = null;
     PreparedStatement pstmt = null;
+    boolean autoCommit = true;
     try {
       con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      MessageEntity previous = lockMessage(con, messageId, deviceId);
       pstmt = con.prepareStatement(ME_UPDATE_QUERY);
       pstmt.setString(1, state.toString());
       pstmt.setString(2, messageId);
       pstmt.setString(3, deviceId);
-      pstmt.executeUpdate();
+      int count = pstmt.executeUpdate();
+      con.commit();
       pstmt.close();
-      con.close();
+      if (count > 0) {
+        recordTransition(previous, state);
+      }
     } catch (SQLException sqle) {
       LOGGER.warn("SQL Exception in updating message state", sqle);
+      SqlUtil.rollback(LOGGER, con);
       throw new DbInteractionException(sqle);
     } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
       CloseUtil.close(LOGGER, pstmt, con);
     }
   }
@@ -208,25 +453,83 @@ public class MessageDAOImpl implements MessageDAO {
     //private static final String ME_UPDATE_MARK_AS_WAKEUP_SENT = "UPDATE mmxMessage SET state = ? WHERE messageId = ? AND deviceId = ? AND state = ? ";
     Connection con = null;
     PreparedStatement pstmt = null;
+    boolean autoCommit = true;
     try {
       con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      MessageEntity previous = lockMessage(con, messageId, deviceId);
       pstmt = con.prepareStatement(ME_UPDATE_MARK_AS_WAKEUP_SENT);
       pstmt.setString(1, MessageEntity.MessageState.WAKEUP_SENT.name());
       pstmt.setString(2, messageId);
       pstmt.setString(3, deviceId);
       pstmt.setString(4, MessageEntity.MessageState.WAKEUP_REQUIRED.name());
-      pstmt.executeUpdate();
+      int count = pstmt.executeUpdate();
+      con.commit();
       pstmt.close();
-      con.close();
+      if (count > 0) {
+        recordTransition(previous, MessageEntity.MessageState.WAKEUP_SENT);
+      }
     } catch (SQLException e) {
       LOGGER.warn("SQL Exception in wakeupSent", e);
+      SqlUtil.rollback(LOGGER, con);
       throw new DbInteractionException(e);
     } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
       CloseUtil.close(LOGGER, pstmt, con);
     }
 
   }
 
+  @Override
+  public void wakeupSent(List<WakeupEntity> sent) throws DbInteractionException {
+    if (sent == null || sent.isEmpty()) {
+      return;
+    }
+    long startTime = System.nanoTime();
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    boolean autoCommit = true;
+    try {
+      con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      List<String> messageIds = new ArrayList<String>(sent.size());
+      List<String> deviceIds = new ArrayList<String>(sent.size());
+      for (WakeupEntity entity : sent) {
+        messageIds.add(entity.getMessageId());
+        deviceIds.add(entity.getDeviceId());
+      }
+      Map<String, MessageEntity> locked = lockMessages(con, messageIds, deviceIds);
+      pstmt = con.prepareStatement(ME_UPDATE_MARK_AS_WAKEUP_SENT);
+      for (WakeupEntity entity : sent) {
+        pstmt.setString(1, MessageEntity.MessageState.WAKEUP_SENT.name());
+        pstmt.setString(2, entity.getMessageId());
+        pstmt.setString(3, entity.getDeviceId());
+        pstmt.setString(4, MessageEntity.MessageState.WAKEUP_REQUIRED.name());
+        pstmt.addBatch();
+      }
+      int[] counts = pstmt.executeBatch();
+      con.commit();
+      pstmt.close();
+      for (int i = 0; i < sent.size(); i++) {
+        if (changed(counts, i)) {
+          WakeupEntity entity = sent.get(i);
+          recordTransition(locked.get(key(entity.getMessageId(), entity.getDeviceId())),
+              MessageEntity.MessageState.WAKEUP_SENT);
+        }
+      }
+    } catch (SQLException e) {
+      LOGGER.warn("SQL Exception in batch wakeupSent of {} messages", sent.size(), e);
+      SqlUtil.rollback(LOGGER, con);
+      throw new DbInteractionException(e);
+    } finally {
+      MMXMetrics.time(WAKEUP_SENT_BATCH, startTime);
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
   @Override
   public MessageEntity get(String messageId, String deviceId) throws DbInteractionException {
     Connection con = null;
@@ -257,8 +560,12 @@ public class MessageDAOImpl implements MessageDAO {
   public int messageDelivered(String appId, String deviceId, String messageId) throws DbInteractionException {
     Connection con = null;
     PreparedStatement pstmt = null;
+    boolean autoCommit = true;
     try {
       con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      MessageEntity previous = lockMessage(con, messageId, deviceId);
       pstmt = con.prepareStatement(ME_UPDATE_MARK_AS_DELIVERED);
       pstmt.setString(1, MessageEntity.MessageState.DELIVERED.name());
       pstmt.setString(2, messageId);
@@ -267,13 +574,18 @@ public class MessageDAOImpl implements MessageDAO {
       pstmt.setString(5, MessageEntity.MessageState.RECEIVED.name());
       LOGGER.trace("messageDelivered : appId={}, deviceId={}, messageId={}, statement={}", new Object[]{appId, deviceId, messageId, pstmt});
       int count = pstmt.executeUpdate();
+      con.commit();
       pstmt.close();
-      con.close();
+      if (count > 0) {
+        recordTransition(previous, MessageEntity.MessageState.DELIVERED);
+      }
       return count;
     } catch (SQLException e) {
       LOGGER.warn("SQL Exception in messageDelivered", e);
+      SqlUtil.rollback(LOGGER, con);
       throw new DbInteractionException(e);
     } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
       CloseUtil.close(LOGGER, pstmt, con);
     }
   }
@@ -340,6 +652,54 @@ public class MessageDAOImpl implements MessageDAO {
     return returnList;
   }
 
+  @Override
+  public Map<String, List<MessageEntity>> getMessages(String appId, List<String> messageIds) {
+    Map<String, List<MessageEntity>> returnMap = new HashMap<String, List<MessageEntity>>(messageIds.size());
+    if (messageIds.isEmpty()) {
+      return returnMap;
+    }
+    List<String> distinctIds = new ArrayList<String>(new LinkedHashSet<String>(messageIds));
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      con = provider.getConnection();
+      int start = 0;
+      do {
+        // Limit the number of ids per query because some DBMS cannot handle more
+        // than 255 arguments in the IN clause.
+        List<String> chunk = distinctIds.subList(start,
+            Math.min(start + MMXServerConstants.MESSAGE_ID_QUERY_CHUNK_SIZE, distinctIds.size()));
+        String sql = String.format(ME_QUERY_BY_MESSAGE_ID_LIST_AND_APP_ID, Helper.getSQLPlaceHolders(chunk.size()));
+        pstmt = con.prepareStatement(sql);
+        pstmt.setString(1, appId);
+        int index = 2;
+        for (String messageId : chunk) {
+          pstmt.setString(index++, messageId);
+        }
+        rs = pstmt.executeQuery();
+        while (rs.next()) {
+          MessageEntity pae = new MessageEntity.MessageEntityBuilder().build(rs);
+          List<MessageEntity> list = returnMap.get(pae.getMessageId());
+          if (list == null) {
+            list = new ArrayList<MessageEntity>(5);
+            returnMap.put(pae.getMessageId(), list);
+          }
+          list.add(pae);
+        }
+        rs.close();
+        pstmt.close();
+        start += chunk.size();
+      } while (start < distinctIds.size());
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+    return returnMap;
+  }
+
   @Override
   public SearchResult<MessageEntity> searchMessages(String appId, MessageSearchOption searchOption, String searchValue, MessageSortOption sortOption, PaginationInfo info) {
     ValueHolder holder = new ValueHolder();
@@ -451,27 +811,90 @@ public class MessageDAOImpl implements MessageDAO {
 
   @Override
   public int messageTimeout(long utcTime, int timeoutMinutes) {
+    return messageTimeout(utcTime, timeoutMinutes, MMXServerConstants.DEFAULT_MESSAGE_TIMEOUT_BATCH_SIZE);
+  }
+
+  @Override
+  public int messageTimeout(long utcTime, int timeoutMinutes, int batchSize) {
+    long cutoff = utcTime - timeoutMinutes * 60L;
     Connection con = null;
     PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    boolean autoCommit = true;
     try {
       con = provider.getConnection();
-      pstmt = con.prepareStatement(ME_QUERY_FOR_TIMEOUT);
-      pstmt.setString(1, MessageEntity.MessageState.WAKEUP_TIMEDOUT.name());
-      pstmt.setString(2, MessageEntity.MessageState.WAKEUP_SENT.name());
-      pstmt.setLong(3, utcTime);
-      pstmt.setInt(4, timeoutMinutes * 60);
-      int rowCount = pstmt.executeUpdate();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      pstmt = con.prepareStatement(ME_QUERY_TIMEOUT_ID_RANGE);
+      pstmt.setString(1, MessageEntity.MessageState.WAKEUP_SENT.name());
+      pstmt.setLong(2, cutoff);
+      rs = pstmt.executeQuery();
+      long minId = 0;
+      long maxId = -1;
+      if (rs.next()) {
+        minId = rs.getLong(1);
+        maxId = rs.wasNull() ? -1 : rs.getLong(2);
+      }
+      rs.close();
       pstmt.close();
-      con.close();
+      int rowCount = 0;
+      if (minId <= maxId) {
+        //each batch is a separate transaction so that locks are held on at most batchSize rows
+        pstmt = con.prepareStatement(ME_QUERY_FOR_TIMEOUT);
+        pstmt.setString(1, MessageEntity.MessageState.WAKEUP_TIMEDOUT.name());
+        pstmt.setString(4, MessageEntity.MessageState.WAKEUP_SENT.name());
+        pstmt.setLong(5, cutoff);
+        for (long start = minId; start <= maxId; start += batchSize) {
+          List<MessageEntity> locked = lockTimeouts(con, start, start + batchSize, cutoff);
+          pstmt.setLong(2, start);
+          pstmt.setLong(3, start + batchSize);
+          rowCount += pstmt.executeUpdate();
+          con.commit();
+          for (MessageEntity entity : locked) {
+            recordTransition(entity, MessageEntity.MessageState.WAKEUP_TIMEDOUT);
+          }
+        }
+      }
+      LOGGER.trace("messageTimeout : marked {} messages in id range [{}, {}]", new Object[]{rowCount, minId, maxId});
       return rowCount;
     } catch (SQLException e) {
       LOGGER.warn("SQL Exception in messageTimeout", e);
+      SqlUtil.rollback(LOGGER, con);
       throw new DbInteractionException(e);
     } finally {
-      CloseUtil.close(LOGGER, pstmt, con);
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, rs, pstmt, con);
     }
   }
 
+  /**
+   * Lock the REGULAR messages in the id range that are about to time out, so that their transitions
+   * can be recorded. Nothing is locked unless the stats rollup is initialized.
+   */
+  private List<MessageEntity> lockTimeouts(Connection con, long startId, long endId, long cutoff) throws SQLException {
+    List<MessageEntity> locked = new ArrayList<MessageEntity>();
+    if (!StatsRollup.isInitialized()) {
+      return locked;
+    }
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      pstmt = con.prepareStatement(ME_LOCK_FOR_TIMEOUT);
+      pstmt.setLong(1, startId);
+      pstmt.setLong(2, endId);
+      pstmt.setString(3, MessageEntity.MessageState.WAKEUP_SENT.name());
+      pstmt.setLong(4, cutoff);
+      rs = pstmt.executeQuery();
+      while (rs.next()) {
+        locked.add(new MessageEntity.MessageEntityBuilder().build(rs));
+      }
+    } finally {
+      CloseUtil.close(LOGGER, rs);
+      CloseUtil.close(LOGGER, pstmt);
+    }
+    return locked;
+  }
+
   public static class MessageSearchQueryBuilder {
 
     private static final String BASE_QUERY = "SELECT id, messageId, deviceId, fromJID, toJID, dateQueuedUTC, state, " +
@@ -636,45 +1059,134 @@ public class MessageDAOImpl implements MessageDAO {
   public int changeStateToPending(String appId, PushType type, String token) {
     Connection con = null;
     PreparedStatement pstmt = null;
+    boolean autoCommit = true;
     try {
       con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      Map<Integer, MessageEntity> locked = new HashMap<Integer, MessageEntity>();
+      lockForTokenInvalidation(con, appId, type, token, locked);
       pstmt = con.prepareStatement(ME_UPDATE_STATE_AFTER_TOKEN_INVALIDATION_QUERY);
       pstmt.setString(1, MessageEntity.MessageState.PENDING.name());
       pstmt.setString(2, appId);
       pstmt.setString(3, type.name());
       pstmt.setString(4, token);
       int count = pstmt.executeUpdate();
+      con.commit();
       pstmt.close();
-      con.close();
+      for (MessageEntity entity : locked.values()) {
+        recordTransition(entity, MessageEntity.MessageState.PENDING);
+      }
       return count;
     } catch (SQLException e) {
       LOGGER.warn("SQL Exception in changeStateToPending", e);
+      SqlUtil.rollback(LOGGER, con);
       throw new DbInteractionException(e);
     } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
       CloseUtil.close(LOGGER, pstmt, con);
     }
   }
 
 
   @Override
-  public int changeStateToPending(String appId, String messageId, String deviceId) {
+  public int changeStateToPending(String appId, PushType type, List<String> tokens) {
+    if (tokens == null || tokens.isEmpty()) {
+      return 0;
+    }
     Connection con = null;
     PreparedStatement pstmt = null;
+    boolean autoCommit = true;
     try {
       con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      Map<Integer, MessageEntity> locked = new HashMap<Integer, MessageEntity>();
+      for (String token : tokens) {
+        lockForTokenInvalidation(con, appId, type, token, locked);
+      }
       pstmt = con.prepareStatement(ME_UPDATE_STATE_AFTER_TOKEN_INVALIDATION_QUERY);
+      for (String token : tokens) {
+        pstmt.setString(1, MessageEntity.MessageState.PENDING.name());
+        pstmt.setString(2, appId);
+        pstmt.setString(3, type.name());
+        pstmt.setString(4, token);
+        pstmt.addBatch();
+      }
+      int count = SqlUtil.sumUpdateCounts(pstmt.executeBatch());
+      con.commit();
+      pstmt.close();
+      for (MessageEntity entity : locked.values()) {
+        recordTransition(entity, MessageEntity.MessageState.PENDING);
+      }
+      return count;
+    } catch (SQLException e) {
+      LOGGER.warn("SQL Exception in changeStateToPending for {} tokens", tokens.size(), e);
+      SqlUtil.rollback(LOGGER, con);
+      throw new DbInteractionException(e);
+    } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
+  /**
+   * Lock the REGULAR messages that are moved to PENDING when a token is invalidated, so that their
+   * transitions can be recorded. Nothing is locked unless the stats rollup is initialized.
+   * @param locked map of message row id to the locked row, to which the rows are added
+   */
+  private void lockForTokenInvalidation(Connection con, String appId, PushType type, String token,
+                                        Map<Integer, MessageEntity> locked) throws SQLException {
+    if (!StatsRollup.isInitialized()) {
+      return;
+    }
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      pstmt = con.prepareStatement(ME_LOCK_FOR_TOKEN_INVALIDATION);
+      pstmt.setString(1, appId);
+      pstmt.setString(2, type.name());
+      pstmt.setString(3, token);
+      rs = pstmt.executeQuery();
+      while (rs.next()) {
+        //a message has a row in the wakeup queue for every wakeup sent
+        MessageEntity entity = new MessageEntity.MessageEntityBuilder().build(rs);
+        locked.put(Integer.valueOf(entity.getId()), entity);
+      }
+    } finally {
+      CloseUtil.close(LOGGER, rs);
+      CloseUtil.close(LOGGER, pstmt);
+    }
+  }
+
+  @Override
+  public int changeStateToPending(String appId, String messageId, String deviceId) {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    boolean autoCommit = true;
+    try {
+      con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      MessageEntity previous = lockMessage(con, messageId, deviceId);
+      pstmt = con.prepareStatement(ME_UPDATE_STATE_FOR_BAD_API_KEY_QUERY);
       pstmt.setString(1, MessageEntity.MessageState.PENDING.name());
       pstmt.setString(2, appId);
       pstmt.setString(3, messageId);
-      pstmt.setString(4, appId);
+      pstmt.setString(4, deviceId);
       int count = pstmt.executeUpdate();
+      con.commit();
       pstmt.close();
-      con.close();
+      if (count > 0) {
+        recordTransition(previous, MessageEntity.MessageState.PENDING);
+      }
       return count;
     } catch (SQLException e) {
       LOGGER.warn("SQL Exception in changeStateToPending", e);
+      SqlUtil.rollback(LOGGER, con);
       throw new DbInteractionException(e);
     } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
       CloseUtil.close(LOGGER, pstmt, con);
     }
   }
@@ -0,0 +1,489 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind stage for the message state writes done while routing XMPP messages.
+ * <p>
+ * Inserts and the RECEIVED, DELIVERED and WAKEUP_SENT updates are queued on bounded lanes and
+ * flushed by dedicated writer threads using JDBC batches. Writes for the same messageId always
+ * land on the same lane, so a state update can never be applied before the insert of the message
+ * it updates. State updates for messages that may still be queued must go through this class
+ * while it is running.
+ * <p>
+ * When a lane is full the caller blocks until the writer has made room, which pushes back on
+ * the packet processing threads instead of growing the heap or dropping writes. If the queue
+ * hasn't been initialized (the feature is off by default) all writes go straight to the
+ * {@link MessageDAO}.
+ */
+public class MessageWriteBehindQueue {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MessageWriteBehindQueue.class);
+
+  private static MessageWriteBehindQueue instance = new MessageWriteBehindQueue();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+  /**
+   * Interval at which a caller waiting for room on a full lane checks for shutdown
+   */
+  private static final long ENQUEUE_WAIT_MILLIS = 100L;
+
+  private MessageDAO messageDAO;
+  private List<BlockingQueue<PendingWrite>> lanes;
+  private ExecutorService writers;
+  private int batchSize;
+  private long flushIntervalNanos;
+  private volatile boolean running;
+
+  private final Timer flushTimer = new Timer();
+  private final AtomicLong writtenCount = new AtomicLong();
+  private final AtomicLong blockedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+
+  MessageWriteBehindQueue() {
+  }
+
+  /**
+   * Get the singleton instance of the write-behind queue
+   * @return
+   */
+  public static MessageWriteBehindQueue getInstance() {
+    return instance;
+  }
+
+  /**
+   * Lifecycle method. Start the writer threads.
+   * @param messageDAO DAO used for flushing the batches
+   * @param queueSize capacity of each writer lane
+   * @param batchSize maximum number of writes flushed in one JDBC batch
+   * @param flushIntervalMillis maximum time a write waits for a batch to fill up
+   * @param writerCount number of writer threads (and lanes)
+   * @throws java.lang.IllegalStateException if the queue has already been initialized.
+   */
+  public static void initialize(MessageDAO messageDAO, int queueSize, int batchSize, long flushIntervalMillis,
+                                int writerCount) {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    instance.start(messageDAO, queueSize, batchSize, flushIntervalMillis, writerCount);
+    LOGGER.info("Message write-behind queue is initialized with queueSize:{}, batchSize:{}, flushIntervalMillis:{}, writers:{}",
+        new Object[]{queueSize, batchSize, flushIntervalMillis, writerCount});
+  }
+
+  /**
+   * Lifecycle method. Stop accepting new writes and flush everything that has been queued.
+   * Writes submitted after this call are done synchronously.
+   * @param waitSeconds maximum time to wait for the writer threads to drain their lanes
+   */
+  public static void teardown(long waitSeconds) {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
+    }
+    LOGGER.info("Message write-behind queue draining...");
+    instance.stop(waitSeconds);
+    LOGGER.info("Message write-behind queue drained.");
+  }
+
+  void start(MessageDAO messageDAO, int queueSize, int batchSize, long flushIntervalMillis, int writerCount) {
+    this.messageDAO = messageDAO;
+    this.batchSize = Math.max(1, batchSize);
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushIntervalMillis));
+    int count = Math.max(1, writerCount);
+    this.lanes = new ArrayList<BlockingQueue<PendingWrite>>(count);
+    this.writers = Executors.newFixedThreadPool(count, new ThreadFactoryBuilder()
+        .setNameFormat("MessageWriteBehind-%d").setDaemon(true).build());
+    running = true;
+    for (int i = 0; i < count; i++) {
+      BlockingQueue<PendingWrite> lane = new ArrayBlockingQueue<PendingWrite>(Math.max(1, queueSize));
+      lanes.add(lane);
+      writers.execute(new LaneWriter(lane));
+    }
+  }
+
+  void stop(long waitSeconds) {
+    running = false;
+    writers.shutdown();
+    try {
+      if (!writers.awaitTermination(waitSeconds, TimeUnit.SECONDS)) {
+        LOGGER.warn("stop : writers didn't finish in {} seconds", waitSeconds);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    /*
+     * Writes that raced with the shutdown are flushed on this thread.
+     */
+    for (BlockingQueue<PendingWrite> lane : lanes) {
+      List<PendingWrite> remaining = new ArrayList<PendingWrite>(lane.size());
+      lane.drainTo(remaining);
+      if (!remaining.isEmpty()) {
+        LOGGER.info("stop : flushing {} remaining writes", remaining.size());
+        flush(remaining);
+      }
+    }
+  }
+
+  /**
+   * Queue the insert of the supplied message entity.
+   * The entity is copied so the caller is free to reuse it.
+   * @param entity
+   */
+  public void persist(MessageEntity entity) {
+    if (!running) {
+      getMessageDAO().persist(entity);
+      return;
+    }
+    MessageEntity copy = copy(entity);
+    if (copy.getQueuedAtUTC() == null) {
+      copy.setQueuedAtUTC(Long.valueOf(System.currentTimeMillis() / 1000L));
+    }
+    enqueue(new PendingWrite(WriteType.INSERT, copy));
+  }
+
+  /**
+   * Queue marking the message identified by messageId and deviceId as RECEIVED.
+   * @param messageId
+   * @param receivedByDeviceId
+   */
+  public void messageReceived(String messageId, String receivedByDeviceId) {
+    messageReceived(null, messageId, receivedByDeviceId);
+  }
+
+  /**
+   * Queue marking the message identified by messageId and deviceId as RECEIVED.
+   * @param appId app of the message, used for the message stats; may be null
+   * @param messageId
+   * @param receivedByDeviceId
+   */
+  public void messageReceived(String appId, String messageId, String receivedByDeviceId) {
+    MessageEntity received = new MessageEntity();
+    received.setAppId(appId);
+    received.setMessageId(messageId);
+    received.setDeviceId(receivedByDeviceId);
+    received.setDeliveryAckAtUTC(Long.valueOf(System.currentTimeMillis() / 1000L));
+    if (!running) {
+      getMessageDAO().messageReceived(Collections.singletonList(received));
+      return;
+    }
+    enqueue(new PendingWrite(WriteType.RECEIVED, received));
+  }
+
+  /**
+   * Queue marking the message identified by messageId and deviceId as DELIVERED.
+   * @param appId
+   * @param deviceId
+   * @param messageId
+   */
+  public void messageDelivered(String appId, String deviceId, String messageId) {
+    MessageEntity delivered = new MessageEntity();
+    delivered.setAppId(appId);
+    delivered.setMessageId(messageId);
+    delivered.setDeviceId(deviceId);
+    if (!running) {
+      write(WriteType.DELIVERED, Collections.singletonList(delivered));
+      return;
+    }
+    enqueue(new PendingWrite(WriteType.DELIVERED, delivered));
+  }
+
+  /**
+   * Queue marking the messages for which a wakeup notification has been sent as WAKEUP_SENT.
+   * @param sent
+   */
+  public void wakeupSent(List<WakeupEntity> sent) {
+    if (!running) {
+      getMessageDAO().wakeupSent(sent);
+      return;
+    }
+    for (WakeupEntity wakeup : sent) {
+      MessageEntity entity = new MessageEntity();
+      entity.setAppId(wakeup.getAppId());
+      entity.setMessageId(wakeup.getMessageId());
+      entity.setDeviceId(wakeup.getDeviceId());
+      enqueue(new PendingWrite(WriteType.WAKEUP_SENT, entity));
+    }
+  }
+
+  /**
+   * @return true if writes are queued, false if they are done on the calling thread.
+   */
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * @return number of writes waiting to be flushed across all lanes.
+   */
+  public int getQueueDepth() {
+    List<BlockingQueue<PendingWrite>> current = lanes;
+    if (current == null) {
+      return 0;
+    }
+    int depth = 0;
+    for (BlockingQueue<PendingWrite> lane : current) {
+      depth += lane.size();
+    }
+    return depth;
+  }
+
+  public long getWrittenCount() {
+    return writtenCount.get();
+  }
+
+  /**
+   * @return number of writes for which the caller had to wait because the lane was full.
+   */
+  public long getBlockedCount() {
+    return blockedCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  public long getFlushCount() {
+    return flushTimer.getCount();
+  }
+
+  public double getMeanFlushMillis() {
+    return toMillis(flushTimer.getSnapshot().getMean());
+  }
+
+  public double get99thPercentileFlushMillis() {
+    Snapshot snapshot = flushTimer.getSnapshot();
+    return toMillis(snapshot.get99thPercentile());
+  }
+
+  private static double toMillis(double nanos) {
+    return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private void enqueue(PendingWrite write) {
+    BlockingQueue<PendingWrite> lane = lanes.get(laneIndex(write.entity.getMessageId(), lanes.size()));
+    boolean queued = lane.offer(write);
+    if (!queued) {
+      blockedCount.incrementAndGet();
+      LOGGER.debug("enqueue : lane is full, waiting for writer messageId={}", write.entity.getMessageId());
+      try {
+        while (!queued && running) {
+          queued = lane.offer(write, ENQUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.warn("enqueue : interrupted while waiting, writing on caller thread messageId={}", write.entity.getMessageId());
+      }
+    }
+    /*
+     * A write queued while stop() was running may have missed the final drain. Unless a writer
+     * or the drain has already taken it, it is written on this thread.
+     */
+    if (!queued || (!running && lane.remove(write))) {
+      List<PendingWrite> single = new ArrayList<PendingWrite>(1);
+      single.add(write);
+      flush(single);
+    }
+  }
+
+  static int laneIndex(String messageId, int laneCount) {
+    int hash = messageId != null ? messageId.hashCode() : 0;
+    return (hash & Integer.MAX_VALUE) % laneCount;
+  }
+
+  /**
+   * Flush the writes preserving their order. Consecutive writes of the same type are
+   * sent as one JDBC batch.
+   * @param writes
+   */
+  void flush(List<PendingWrite> writes) {
+    Timer.Context context = flushTimer.time();
+    try {
+      int start = 0;
+      while (start < writes.size()) {
+        WriteType type = writes.get(start).type;
+        int end = start + 1;
+        while (end < writes.size() && writes.get(end).type == type) {
+          end++;
+        }
+        List<MessageEntity> segment = new ArrayList<MessageEntity>(end - start);
+        for (int i = start; i < end; i++) {
+          segment.add(writes.get(i).entity);
+        }
+        flushSegment(type, segment);
+        start = end;
+      }
+    } finally {
+      context.stop();
+    }
+  }
+
+  private void flushSegment(WriteType type, List<MessageEntity> segment) {
+    try {
+      write(type, segment);
+      writtenCount.addAndGet(segment.size());
+    } catch (DbInteractionException e) {
+      LOGGER.warn("flushSegment : batch of {} {} writes failed, retrying individually", segment.size(), type, e);
+      /*
+       * retry one by one so that a single bad row doesn't lose the whole batch.
+       */
+      for (MessageEntity entity : segment) {
+        try {
+          write(type, Collections.singletonList(entity));
+          writtenCount.incrementAndGet();
+        } catch (DbInteractionException single) {
+          failedCount.incrementAndGet();
+          LOGGER.error("flushSegment : dropping {} write for entity={}", new Object[]{type, entity, single});
+        }
+      }
+    }
+  }
+
+  private void write(WriteType type, List<MessageEntity> entities) {
+    MessageDAO dao = getMessageDAO();
+    switch (type) {
+      case INSERT:
+        dao.persist(entities);
+        break;
+      case RECEIVED:
+        dao.messageReceived(entities);
+        break;
+      case DELIVERED:
+        for (MessageEntity entity : entities) {
+          int count = dao.messageDelivered(entity.getAppId(), entity.getDeviceId(), entity.getMessageId());
+          if (count == 0) {
+            LOGGER.warn("write : no message updated for appId:{} deviceId:{} messageId:{}",
+                new Object[]{entity.getAppId(), entity.getDeviceId(), entity.getMessageId()});
+          }
+        }
+        break;
+      default:
+        List<WakeupEntity> sent = new ArrayList<WakeupEntity>(entities.size());
+        for (MessageEntity entity : entities) {
+          WakeupEntity wakeup = new WakeupEntity();
+          wakeup.setAppId(entity.getAppId());
+          wakeup.setMessageId(entity.getMessageId());
+          wakeup.setDeviceId(entity.getDeviceId());
+          sent.add(wakeup);
+        }
+        dao.wakeupSent(sent);
+    }
+  }
+
+  private MessageDAO getMessageDAO() {
+    MessageDAO dao = messageDAO;
+    if (dao == null) {
+      dao = new MessageDAOImpl(new OpenFireDBConnectionProvider());
+    }
+    return dao;
+  }
+
+  private static MessageEntity copy(MessageEntity entity) {
+    MessageEntity copy = new MessageEntity();
+    copy.setId(entity.getId());
+    copy.setMessageId(entity.getMessageId());
+    copy.setQueuedAtUTC(entity.getQueuedAtUTC());
+    copy.setDeliveryAckAtUTC(entity.getDeliveryAckAtUTC());
+    copy.setFrom(entity.getFrom());
+    copy.setTo(entity.getTo());
+    copy.setState(entity.getState());
+    copy.setAppId(entity.getAppId());
+    copy.setDeviceId(entity.getDeviceId());
+    copy.setType(entity.getType());
+    copy.setSourceMessageId(entity.getSourceMessageId());
+    return copy;
+  }
+
+  /**
+   * Writer loop for one lane. Waits for the first write, then keeps collecting until the
+   * batch is full or the flush interval has elapsed.
+   */
+  private class LaneWriter implements Runnable {
+    private final BlockingQueue<PendingWrite> lane;
+
+    private LaneWriter(BlockingQueue<PendingWrite> lane) {
+      this.lane = lane;
+    }
+
+    @Override
+    public void run() {
+      List<PendingWrite> batch = new ArrayList<PendingWrite>(batchSize);
+      while (running || !lane.isEmpty()) {
+        try {
+          PendingWrite first = lane.poll(flushIntervalNanos > 0 ? flushIntervalNanos : 1L, TimeUnit.NANOSECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          long deadline = System.nanoTime() + flushIntervalNanos;
+          while (batch.size() < batchSize) {
+            lane.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0 || !running) {
+              break;
+            }
+            PendingWrite next = lane.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+              break;
+            }
+            batch.add(next);
+          }
+          flush(batch);
+        } catch (InterruptedException e) {
+          LOGGER.warn("LaneWriter : interrupted, {} writes will be flushed on shutdown", lane.size());
+          if (!batch.isEmpty()) {
+            flush(batch);
+          }
+          Thread.currentThread().interrupt();
+          return;
+        } catch (Throwable t) {
+          LOGGER.error("LaneWriter : unexpected exception while flushing", t);
+        } finally {
+          batch.clear();
+        }
+      }
+    }
+  }
+
+  enum WriteType {
+    INSERT,
+    RECEIVED,
+    DELIVERED,
+    WAKEUP_SENT
+  }
+
+  static class PendingWrite {
+    private final WriteType type;
+    private final MessageEntity entity;
+
+    PendingWrite(WriteType type, MessageEntity entity) {
+      this.type = type;
+      this.entity = entity;
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import org.xmpp.packet.Message;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * DAO for the offline messages kept in the Openfire ofOffline table.
+ */
+public interface OfflineMessageDAO {
+
+  /**
+   * Store the messages for their recipients using a single JDBC batch. Messages without a
+   * recipient node are ignored.
+   * @param messages
+   * @throws DbInteractionException
+   */
+  public void addMessages(List<Message> messages) throws DbInteractionException;
+
+  /**
+   * Delete offline messages of a user.
+   * @param username node of the recipient JID
+   * @param packetIds ids of the message packets
+   * @return number of messages deleted
+   * @throws DbInteractionException
+   */
+  public int deleteMessages(String username, Collection<String> packetIds) throws DbInteractionException;
+}
@@ -0,0 +1,139 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.util.Helper;
+import org.jivesoftware.database.SequenceManager;
+import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the offline messages the same way as the Openfire OfflineMessageStore, but in batches.
+ */
+public class OfflineMessageDAOImpl implements OfflineMessageDAO {
+  private static final Logger LOGGER = LoggerFactory.getLogger(OfflineMessageDAOImpl.class);
+
+  private static final String INSERT_OFFLINE = "INSERT INTO ofOffline (username, messageID, creationDate, messageSize, " +
+      "packetId, stanza) VALUES (?, ?, ?, ?, ?, ?)";
+
+  private static final String DELETE_OFFLINE = "DELETE FROM ofOffline WHERE username = ? AND packetId IN (%s)";
+
+  /**
+   * Cache of the offline storage size per user maintained by the OfflineMessageStore
+   */
+  private static final String OFFLINE_SIZE_CACHE = "Offline Message Size";
+
+  private ConnectionProvider provider;
+
+  public OfflineMessageDAOImpl(ConnectionProvider provider) {
+    this.provider = provider;
+  }
+
+  @Override
+  public void addMessages(List<Message> messages) throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    Set<String> usernames = new HashSet<String>();
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(INSERT_OFFLINE);
+      String creationDate = StringUtils.dateToMillis(new Date());
+      for (Message message : messages) {
+        String username = message.getTo() != null ? message.getTo().getNode() : null;
+        if (username == null) {
+          LOGGER.debug("addMessages : not storing message without recipient node messageId={}", message.getID());
+          continue;
+        }
+        String stanza = message.getElement().asXML();
+        pstmt.setString(1, username);
+        pstmt.setLong(2, SequenceManager.nextID(JiveConstants.OFFLINE));
+        pstmt.setString(3, creationDate);
+        pstmt.setInt(4, stanza.length());
+        pstmt.setString(5, message.getID());
+        pstmt.setString(6, stanza);
+        pstmt.addBatch();
+        usernames.add(username);
+      }
+      if (!usernames.isEmpty()) {
+        pstmt.executeBatch();
+      }
+      pstmt.close();
+    } catch (SQLException e) {
+      LOGGER.error("addMessages : exception caught storing {} messages", messages.size(), e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+    invalidateSize(usernames);
+  }
+
+  @Override
+  public int deleteMessages(String username, Collection<String> packetIds) throws DbInteractionException {
+    if (packetIds == null || packetIds.isEmpty()) {
+      return 0;
+    }
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(String.format(DELETE_OFFLINE, Helper.getSQLPlaceHolders(packetIds.size())));
+      pstmt.setString(1, username);
+      int index = 2;
+      for (String packetId : packetIds) {
+        pstmt.setString(index++, packetId);
+      }
+      int count = pstmt.executeUpdate();
+      pstmt.close();
+      if (count > 0) {
+        invalidateSize(Collections.singleton(username));
+      }
+      return count;
+    } catch (SQLException e) {
+      LOGGER.error("deleteMessages : exception caught username={}", username, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
+  private static void invalidateSize(Collection<String> usernames) {
+    if (usernames.isEmpty()) {
+      return;
+    }
+    try {
+      Cache sizeCache = CacheFactory.createCache(OFFLINE_SIZE_CACHE);
+      for (String username : usernames) {
+        sizeCache.remove(username);
+      }
+    } catch (Exception e) {
+      LOGGER.warn("invalidateSize : unable to invalidate offline size cache", e);
+    }
+  }
+}
@@ -0,0 +1,426 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind stage for the offline message store.
+ * <p>
+ * Adds and removes are queued on bounded lanes and flushed by dedicated writer threads using
+ * JDBC batches; the removes of a batch are grouped per user. All operations for a user land on
+ * the same lane, so a remove is never applied before the add of the same message.
+ * <p>
+ * A remove that arrives while the add of the same message is still queued cancels the add and
+ * neither reaches the database. When a lane is full the caller blocks until the writer has made
+ * room. If the queue hasn't been initialized the operations go straight to the
+ * {@link OfflineMessageDAO}.
+ */
+public class OfflineMessageWriteBehindQueue {
+  private static final Logger LOGGER = LoggerFactory.getLogger(OfflineMessageWriteBehindQueue.class);
+
+  private static final char KEY_SEPARATOR = '\u0000';
+  private static final int PENDING = 0;
+  private static final int WRITING = 1;
+  private static final int CANCELLED = 2;
+
+  private static OfflineMessageWriteBehindQueue instance = new OfflineMessageWriteBehindQueue();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+
+  private OfflineMessageDAO offlineMessageDAO;
+  private List<BlockingQueue<PendingOperation>> lanes;
+  private ExecutorService writers;
+  private int batchSize;
+  private long flushIntervalNanos;
+  private volatile boolean running;
+
+  /**
+   * Adds that have been queued but not written, by username and packet id
+   */
+  private final ConcurrentHashMap<String, PendingOperation> pendingAdds = new ConcurrentHashMap<String, PendingOperation>();
+
+  private final AtomicLong addedCount = new AtomicLong();
+  private final AtomicLong removedCount = new AtomicLong();
+  private final AtomicLong cancelledCount = new AtomicLong();
+  private final AtomicLong blockedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+
+  OfflineMessageWriteBehindQueue() {
+  }
+
+  public static OfflineMessageWriteBehindQueue getInstance() {
+    return instance;
+  }
+
+  /**
+   * Lifecycle method. Start the writer threads.
+   * @param offlineMessageDAO DAO used for flushing the batches
+   * @param queueSize capacity of each writer lane
+   * @param batchSize maximum number of operations flushed together
+   * @param flushIntervalMillis maximum time an operation waits for a batch to fill up
+   * @param writerCount number of writer threads (and lanes)
+   * @throws java.lang.IllegalStateException if the queue has already been initialized.
+   */
+  public static void initialize(OfflineMessageDAO offlineMessageDAO, int queueSize, int batchSize,
+                                long flushIntervalMillis, int writerCount) {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    instance.start(offlineMessageDAO, queueSize, batchSize, flushIntervalMillis, writerCount);
+    LOGGER.info("Offline message write-behind queue is initialized with queueSize:{}, batchSize:{}, flushIntervalMillis:{}, writers:{}",
+        new Object[]{queueSize, batchSize, flushIntervalMillis, writerCount});
+  }
+
+  /**
+   * Lifecycle method. Stop accepting new operations and flush everything that has been queued.
+   * @param waitSeconds maximum time to wait for the writer threads to drain their lanes
+   */
+  public static void teardown(long waitSeconds) {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
+    }
+    LOGGER.info("Offline message write-behind queue draining...");
+    instance.stop(waitSeconds);
+    LOGGER.info("Offline message write-behind queue drained.");
+  }
+
+  void start(OfflineMessageDAO offlineMessageDAO, int queueSize, int batchSize, long flushIntervalMillis, int writerCount) {
+    this.offlineMessageDAO = offlineMessageDAO;
+    this.batchSize = Math.max(1, batchSize);
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushIntervalMillis));
+    int count = Math.max(1, writerCount);
+    this.lanes = new ArrayList<BlockingQueue<PendingOperation>>(count);
+    this.writers = Executors.newFixedThreadPool(count, new ThreadFactoryBuilder()
+        .setNameFormat("OfflineMessageWriter-%d").setDaemon(true).build());
+    running = true;
+    for (int i = 0; i < count; i++) {
+      BlockingQueue<PendingOperation> lane = new ArrayBlockingQueue<PendingOperation>(Math.max(1, queueSize));
+      lanes.add(lane);
+      writers.execute(new LaneWriter(lane));
+    }
+  }
+
+  void stop(long waitSeconds) {
+    running = false;
+    writers.shutdown();
+    try {
+      if (!writers.awaitTermination(waitSeconds, TimeUnit.SECONDS)) {
+        LOGGER.warn("stop : writers didn't finish in {} seconds", waitSeconds);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (BlockingQueue<PendingOperation> lane : lanes) {
+      List<PendingOperation> remaining = new ArrayList<PendingOperation>(lane.size());
+      lane.drainTo(remaining);
+      if (!remaining.isEmpty()) {
+        LOGGER.info("stop : flushing {} remaining operations", remaining.size());
+        flush(remaining);
+      }
+    }
+  }
+
+  /**
+   * Queue storing the message for its recipient.
+   * @param message
+   */
+  public void add(Message message) {
+    String username = message.getTo() != null ? message.getTo().getNode() : null;
+    if (username == null) {
+      LOGGER.debug("add : not storing message without recipient node messageId={}", message.getID());
+      return;
+    }
+    if (!running) {
+      List<Message> single = new ArrayList<Message>(1);
+      single.add(message);
+      getOfflineMessageDAO().addMessages(single);
+      addedCount.incrementAndGet();
+      return;
+    }
+    PendingOperation add = new PendingOperation(username, message.getID(), message);
+    if (add.packetId != null) {
+      PendingOperation previous = pendingAdds.put(add.key(), add);
+      //the same message is stored only once
+      if (previous != null && previous.state.compareAndSet(PENDING, CANCELLED)) {
+        cancelledCount.incrementAndGet();
+      }
+    }
+    enqueue(add);
+  }
+
+  /**
+   * Queue removing a stored message. If the add of the message hasn't been written yet it is
+   * cancelled instead.
+   * @param user node or JID of the recipient
+   * @param packetId id of the message packet
+   */
+  public void remove(String user, String packetId) {
+    String username = toUsername(user);
+    if (username == null || packetId == null) {
+      return;
+    }
+    PendingOperation add = pendingAdds.remove(username + KEY_SEPARATOR + packetId);
+    if (add != null && add.state.compareAndSet(PENDING, CANCELLED)) {
+      cancelledCount.incrementAndGet();
+      LOGGER.trace("remove : cancelled queued add username={}, packetId={}", username, packetId);
+      return;
+    }
+    if (!running) {
+      List<String> single = new ArrayList<String>(1);
+      single.add(packetId);
+      removedCount.addAndGet(getOfflineMessageDAO().deleteMessages(username, single));
+      return;
+    }
+    enqueue(new PendingOperation(username, packetId, null));
+  }
+
+  public int getQueueDepth() {
+    List<BlockingQueue<PendingOperation>> current = lanes;
+    if (current == null) {
+      return 0;
+    }
+    int depth = 0;
+    for (BlockingQueue<PendingOperation> lane : current) {
+      depth += lane.size();
+    }
+    return depth;
+  }
+
+  public long getAddedCount() {
+    return addedCount.get();
+  }
+
+  public long getRemovedCount() {
+    return removedCount.get();
+  }
+
+  /**
+   * @return number of adds that were cancelled by a remove before they were written.
+   */
+  public long getCancelledCount() {
+    return cancelledCount.get();
+  }
+
+  /**
+   * @return number of operations for which the caller had to wait because the lane was full.
+   */
+  public long getBlockedCount() {
+    return blockedCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  private void enqueue(PendingOperation operation) {
+    BlockingQueue<PendingOperation> lane = lanes.get(MessageWriteBehindQueue.laneIndex(operation.username, lanes.size()));
+    if (lane.offer(operation)) {
+      return;
+    }
+    blockedCount.incrementAndGet();
+    LOGGER.debug("enqueue : lane is full, waiting for writer username={}", operation.username);
+    try {
+      lane.put(operation);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.warn("enqueue : interrupted while waiting, writing on caller thread username={}", operation.username);
+      List<PendingOperation> single = new ArrayList<PendingOperation>(1);
+      single.add(operation);
+      flush(single);
+    }
+  }
+
+  /**
+   * Flush the operations preserving their order. Consecutive adds are written as one JDBC
+   * batch and consecutive removes are grouped per user.
+   * @param operations
+   */
+  void flush(List<PendingOperation> operations) {
+    int start = 0;
+    while (start < operations.size()) {
+      boolean isAdd = operations.get(start).message != null;
+      int end = start + 1;
+      while (end < operations.size() && (operations.get(end).message != null) == isAdd) {
+        end++;
+      }
+      if (isAdd) {
+        flushAdds(operations.subList(start, end));
+      } else {
+        flushRemoves(operations.subList(start, end));
+      }
+      start = end;
+    }
+  }
+
+  private void flushAdds(List<PendingOperation> adds) {
+    List<Message> messages = new ArrayList<Message>(adds.size());
+    for (PendingOperation add : adds) {
+      if (add.state.compareAndSet(PENDING, WRITING)) {
+        pendingAdds.remove(add.key(), add);
+        messages.add(add.message);
+      }
+    }
+    if (messages.isEmpty()) {
+      return;
+    }
+    try {
+      getOfflineMessageDAO().addMessages(messages);
+      addedCount.addAndGet(messages.size());
+    } catch (DbInteractionException e) {
+      LOGGER.warn("flushAdds : batch of {} adds failed, retrying individually", messages.size(), e);
+      for (Message message : messages) {
+        List<Message> single = new ArrayList<Message>(1);
+        single.add(message);
+        try {
+          getOfflineMessageDAO().addMessages(single);
+          addedCount.incrementAndGet();
+        } catch (DbInteractionException failed) {
+          failedCount.incrementAndGet();
+          LOGGER.error("flushAdds : dropping offline message messageId={}", message.getID(), failed);
+        }
+      }
+    }
+  }
+
+  private void flushRemoves(List<PendingOperation> removes) {
+    Map<String, Set<String>> packetIds = new LinkedHashMap<String, Set<String>>();
+    for (PendingOperation remove : removes) {
+      Set<String> ids = packetIds.get(remove.username);
+      if (ids == null) {
+        ids = new LinkedHashSet<String>();
+        packetIds.put(remove.username, ids);
+      }
+      ids.add(remove.packetId);
+    }
+    for (Map.Entry<String, Set<String>> entry : packetIds.entrySet()) {
+      try {
+        removedCount.addAndGet(getOfflineMessageDAO().deleteMessages(entry.getKey(), entry.getValue()));
+      } catch (DbInteractionException e) {
+        failedCount.addAndGet(entry.getValue().size());
+        LOGGER.error("flushRemoves : failed to remove {} messages for username={}",
+            new Object[]{entry.getValue().size(), entry.getKey(), e});
+      }
+    }
+  }
+
+  private OfflineMessageDAO getOfflineMessageDAO() {
+    OfflineMessageDAO dao = offlineMessageDAO;
+    if (dao == null) {
+      dao = new OfflineMessageDAOImpl(new OpenFireDBConnectionProvider());
+    }
+    return dao;
+  }
+
+  /**
+   * The user may be given as a node or as a bare or full JID.
+   */
+  static String toUsername(String user) {
+    if (user == null || user.indexOf('@') < 0) {
+      return user;
+    }
+    return new JID(user).getNode();
+  }
+
+  /**
+   * Writer loop for one lane. Waits for the first operation, then keeps collecting until the
+   * batch is full or the flush interval has elapsed.
+   */
+  private class LaneWriter implements Runnable {
+    private final BlockingQueue<PendingOperation> lane;
+
+    private LaneWriter(BlockingQueue<PendingOperation> lane) {
+      this.lane = lane;
+    }
+
+    @Override
+    public void run() {
+      List<PendingOperation> batch = new ArrayList<PendingOperation>(batchSize);
+      while (running || !lane.isEmpty()) {
+        try {
+          PendingOperation first = lane.poll(flushIntervalNanos > 0 ? flushIntervalNanos : 1L, TimeUnit.NANOSECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          long deadline = System.nanoTime() + flushIntervalNanos;
+          while (batch.size() < batchSize) {
+            lane.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0 || !running) {
+              break;
+            }
+            PendingOperation next = lane.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+              break;
+            }
+            batch.add(next);
+          }
+          flush(batch);
+        } catch (InterruptedException e) {
+          LOGGER.warn("LaneWriter : interrupted, {} operations will be flushed on shutdown", lane.size());
+          if (!batch.isEmpty()) {
+            flush(batch);
+          }
+          Thread.currentThread().interrupt();
+          return;
+        } catch (Throwable t) {
+          LOGGER.error("LaneWriter : unexpected exception while flushing", t);
+        } finally {
+          batch.clear();
+        }
+      }
+    }
+  }
+
+  /**
+   * Queued add (message is set) or remove of an offline message.
+   */
+  static class PendingOperation {
+    private final String username;
+    private final String packetId;
+    private final Message message;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    PendingOperation(String username, String packetId, Message message) {
+      this.username = username;
+      this.packetId = packetId;
+      this.message = message;
+    }
+
+    private String key() {
+      return username + KEY_SEPARATOR + packetId;
+    }
+  }
+}
@@ -14,6 +14,8 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.db;
 
+import com.codahale.metrics.Timer;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
 import org.jivesoftware.database.DbConnectionManager;
 
 import java.sql.Connection;
@@ -21,10 +23,18 @@ import java.sql.SQLException;
 
 /**
  * Connection Provider that uses the Openfire DBConnectionManager to create connections.
+ * The time spent waiting for a connection from the pool is recorded as db.connection.
  */
 public class OpenFireDBConnectionProvider implements ConnectionProvider {
+  private static final Timer CONNECTION = MMXMetrics.timer("db.connection");
+
 @Override
   public Connection getConnection() throws SQLException {
-    return DbConnectionManager.getConnection();
+    long startTime = System.nanoTime();
+    try {
+      return DbConnectionManager.getConnection();
+    } finally {
+      MMXMetrics.time(CONNECTION, startTime);
+    }
   }
 }
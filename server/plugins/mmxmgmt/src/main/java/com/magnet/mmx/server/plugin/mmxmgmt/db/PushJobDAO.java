@@ -0,0 +1,82 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import java.util.List;
+
+/**
+ * DAO for push jobs and their progress.
+ */
+public interface PushJobDAO {
+
+  /**
+   * Create a job.
+   * @param appId
+   * @param request JSON of the send push request
+   * @param state initial state; QUEUED or RUNNING
+   * @return id of the job
+   * @throws DbInteractionException
+   */
+  public int createJob(String appId, String request, PushJobEntity.State state) throws DbInteractionException;
+
+  /**
+   * Get a job using its id.
+   * @param id
+   * @return job or null if there is no job with the id
+   * @throws DbInteractionException
+   */
+  public PushJobEntity getJob(int id) throws DbInteractionException;
+
+  /**
+   * Get the jobs in a state.
+   * @param state
+   * @return
+   * @throws DbInteractionException
+   */
+  public List<PushJobEntity> getJobs(PushJobEntity.State state) throws DbInteractionException;
+
+  /**
+   * Record the progress of a job after a page of devices has been pushed.
+   * @param id
+   * @param lastDeviceId id of the last device in the page
+   * @param requested total number of devices so far
+   * @param sent total number of pushes sent so far
+   * @param unsent total number of pushes that couldn't be sent so far
+   * @param invalidToken total number of unsent pushes with an invalid token so far
+   * @throws DbInteractionException
+   */
+  public void updateProgress(int id, int lastDeviceId, int requested, int sent, int unsent, int invalidToken)
+      throws DbInteractionException;
+
+  /**
+   * Change the state of a job if it is in the expected state. The start time is recorded the first
+   * time a job becomes RUNNING.
+   * @param id
+   * @param expected current state of the job
+   * @param state new state
+   * @return true if the state was changed
+   * @throws DbInteractionException
+   */
+  public boolean updateState(int id, PushJobEntity.State expected, PushJobEntity.State state) throws DbInteractionException;
+
+  /**
+   * Queue the RUNNING jobs again that haven't been updated since a time, because the member that
+   * was running them has stopped without recording their progress.
+   * @param updatedBeforeUTC time in seconds since the epoch
+   * @return number of jobs queued again
+   * @throws DbInteractionException
+   */
+  public int requeueStaleJobs(long updatedBeforeUTC) throws DbInteractionException;
+}
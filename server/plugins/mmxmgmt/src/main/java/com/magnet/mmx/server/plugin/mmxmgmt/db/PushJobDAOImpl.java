@@ -0,0 +1,212 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ */
+public class PushJobDAOImpl implements PushJobDAO {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PushJobDAOImpl.class);
+
+  private static final String INSERT_JOB = "INSERT INTO mmxPushJob (appId, request, state, dateCreatedUTC, " +
+      "dateStartedUTC, dateUpdatedUTC) VALUES (?, ?, ?, ?, ?, ?)";
+
+  private static final String SELECT_JOB_USING_ID = "SELECT id, appId, request, state, lastDeviceId, requested, " +
+      "sent, unsent, invalidToken, dateCreatedUTC, dateStartedUTC, dateUpdatedUTC FROM mmxPushJob WHERE id = ?";
+
+  private static final String SELECT_JOBS_USING_STATE = "SELECT id, appId, request, state, lastDeviceId, requested, " +
+      "sent, unsent, invalidToken, dateCreatedUTC, dateStartedUTC, dateUpdatedUTC FROM mmxPushJob WHERE state = ? " +
+      "ORDER BY id";
+
+  private static final String UPDATE_PROGRESS = "UPDATE mmxPushJob SET lastDeviceId = ?, requested = ?, sent = ?, " +
+      "unsent = ?, invalidToken = ?, dateUpdatedUTC = ? WHERE id = ?";
+
+  private static final String UPDATE_STATE = "UPDATE mmxPushJob SET state = ?, dateUpdatedUTC = ? WHERE id = ? AND state = ?";
+
+  private static final String UPDATE_STATE_TO_RUNNING = "UPDATE mmxPushJob SET state = ?, dateUpdatedUTC = ?, " +
+      "dateStartedUTC = COALESCE(dateStartedUTC, ?) WHERE id = ? AND state = ?";
+
+  private static final String REQUEUE_STALE_JOBS = "UPDATE mmxPushJob SET state = ?, dateUpdatedUTC = ? " +
+      "WHERE state = ? AND dateUpdatedUTC < ?";
+
+  private ConnectionProvider provider;
+
+  public PushJobDAOImpl(ConnectionProvider provider) {
+    this.provider = provider;
+  }
+
+  @Override
+  public int createJob(String appId, String request, PushJobEntity.State state) throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      long now = new Date().getTime()/1000L;
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(INSERT_JOB, PreparedStatement.RETURN_GENERATED_KEYS);
+      pstmt.setString(1, appId);
+      pstmt.setString(2, request);
+      pstmt.setString(3, state.name());
+      pstmt.setLong(4, now);
+      if (state == PushJobEntity.State.RUNNING) {
+        pstmt.setLong(5, now);
+      } else {
+        pstmt.setNull(5, Types.INTEGER);
+      }
+      pstmt.setLong(6, now);
+      pstmt.executeUpdate();
+      rs = pstmt.getGeneratedKeys();
+      if (!rs.next()) {
+        throw new DbInteractionException("No id generated for the push job of app:" + appId);
+      }
+      return rs.getInt(1);
+    } catch (SQLException e) {
+      LOGGER.error("createJob : caught exception for appId:{}", appId, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+  }
+
+  @Override
+  public PushJobEntity getJob(int id) throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(SELECT_JOB_USING_ID);
+      pstmt.setInt(1, id);
+      rs = pstmt.executeQuery();
+      if (rs.next()) {
+        return new PushJobEntity.PushJobEntityBuilder().build(rs);
+      }
+      return null;
+    } catch (SQLException e) {
+      LOGGER.error("getJob : caught exception for id:{}", id, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+  }
+
+  @Override
+  public List<PushJobEntity> getJobs(PushJobEntity.State state) throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    List<PushJobEntity> jobList = new ArrayList<PushJobEntity>();
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(SELECT_JOBS_USING_STATE);
+      pstmt.setString(1, state.name());
+      rs = pstmt.executeQuery();
+      while (rs.next()) {
+        jobList.add(new PushJobEntity.PushJobEntityBuilder().build(rs));
+      }
+      return jobList;
+    } catch (SQLException e) {
+      LOGGER.error("getJobs : caught exception for state:{}", state, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+  }
+
+  @Override
+  public void updateProgress(int id, int lastDeviceId, int requested, int sent, int unsent, int invalidToken)
+      throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(UPDATE_PROGRESS);
+      pstmt.setInt(1, lastDeviceId);
+      pstmt.setInt(2, requested);
+      pstmt.setInt(3, sent);
+      pstmt.setInt(4, unsent);
+      pstmt.setInt(5, invalidToken);
+      pstmt.setLong(6, new Date().getTime()/1000L);
+      pstmt.setInt(7, id);
+      pstmt.executeUpdate();
+    } catch (SQLException e) {
+      LOGGER.error("updateProgress : caught exception for id:{}", id, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
+  @Override
+  public boolean updateState(int id, PushJobEntity.State expected, PushJobEntity.State state) throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    try {
+      long now = new Date().getTime()/1000L;
+      con = provider.getConnection();
+      if (state == PushJobEntity.State.RUNNING) {
+        pstmt = con.prepareStatement(UPDATE_STATE_TO_RUNNING);
+        pstmt.setString(1, state.name());
+        pstmt.setLong(2, now);
+        pstmt.setLong(3, now);
+        pstmt.setInt(4, id);
+        pstmt.setString(5, expected.name());
+      } else {
+        pstmt = con.prepareStatement(UPDATE_STATE);
+        pstmt.setString(1, state.name());
+        pstmt.setLong(2, now);
+        pstmt.setInt(3, id);
+        pstmt.setString(4, expected.name());
+      }
+      return pstmt.executeUpdate() > 0;
+    } catch (SQLException e) {
+      LOGGER.error("updateState : caught exception for id:{}", id, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
+  @Override
+  public int requeueStaleJobs(long updatedBeforeUTC) throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(REQUEUE_STALE_JOBS);
+      pstmt.setString(1, PushJobEntity.State.QUEUED.name());
+      pstmt.setLong(2, new Date().getTime()/1000L);
+      pstmt.setString(3, PushJobEntity.State.RUNNING.name());
+      pstmt.setLong(4, updatedBeforeUTC);
+      return pstmt.executeUpdate();
+    } catch (SQLException e) {
+      LOGGER.error("requeueStaleJobs : caught exception for updatedBeforeUTC:{}", updatedBeforeUTC, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+}
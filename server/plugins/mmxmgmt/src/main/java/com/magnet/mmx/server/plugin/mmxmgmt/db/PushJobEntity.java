@@ -0,0 +1,197 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Progress of a push to devices that are resolved page by page. Devices are visited in the order
+ * of their id, so lastDeviceId is the cursor from which an interrupted job can be continued.
+ * Queued jobs are processed by the {@link com.magnet.mmx.server.plugin.mmxmgmt.push.PushJobManager}.
+ */
+public class PushJobEntity {
+
+  public enum State {
+    QUEUED,
+    RUNNING,
+    COMPLETE,
+    FAILED,
+    CANCELLED;
+
+    public boolean isFinal() {
+      return this == COMPLETE || this == FAILED || this == CANCELLED;
+    }
+  }
+
+  private int id;
+  private String appId;
+  private String request;
+  private State state;
+  private int lastDeviceId;
+  private int requested;
+  private int sent;
+  private int unsent;
+  private int invalidToken;
+  private long dateCreatedUTC;
+  private long dateStartedUTC;
+  private long dateUpdatedUTC;
+
+  public int getId() {
+    return id;
+  }
+
+  public void setId(int id) {
+    this.id = id;
+  }
+
+  public String getAppId() {
+    return appId;
+  }
+
+  public void setAppId(String appId) {
+    this.appId = appId;
+  }
+
+  /**
+   * @return JSON of the send push request
+   */
+  public String getRequest() {
+    return request;
+  }
+
+  public void setRequest(String request) {
+    this.request = request;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public void setState(State state) {
+    this.state = state;
+  }
+
+  public int getLastDeviceId() {
+    return lastDeviceId;
+  }
+
+  public void setLastDeviceId(int lastDeviceId) {
+    this.lastDeviceId = lastDeviceId;
+  }
+
+  public int getRequested() {
+    return requested;
+  }
+
+  public void setRequested(int requested) {
+    this.requested = requested;
+  }
+
+  public int getSent() {
+    return sent;
+  }
+
+  public void setSent(int sent) {
+    this.sent = sent;
+  }
+
+  public int getUnsent() {
+    return unsent;
+  }
+
+  public void setUnsent(int unsent) {
+    this.unsent = unsent;
+  }
+
+  /**
+   * @return number of unsent pushes that failed because the push token is invalid
+   */
+  public int getInvalidToken() {
+    return invalidToken;
+  }
+
+  public void setInvalidToken(int invalidToken) {
+    this.invalidToken = invalidToken;
+  }
+
+  public long getDateCreatedUTC() {
+    return dateCreatedUTC;
+  }
+
+  public void setDateCreatedUTC(long dateCreatedUTC) {
+    this.dateCreatedUTC = dateCreatedUTC;
+  }
+
+  /**
+   * @return time the job was first started; 0 if the job hasn't been started
+   */
+  public long getDateStartedUTC() {
+    return dateStartedUTC;
+  }
+
+  public void setDateStartedUTC(long dateStartedUTC) {
+    this.dateStartedUTC = dateStartedUTC;
+  }
+
+  public long getDateUpdatedUTC() {
+    return dateUpdatedUTC;
+  }
+
+  public void setDateUpdatedUTC(long dateUpdatedUTC) {
+    this.dateUpdatedUTC = dateUpdatedUTC;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("PushJobEntity{");
+    sb.append("id=").append(id);
+    sb.append(", appId='").append(appId).append('\'');
+    sb.append(", state=").append(state);
+    sb.append(", lastDeviceId=").append(lastDeviceId);
+    sb.append(", requested=").append(requested);
+    sb.append(", sent=").append(sent);
+    sb.append(", unsent=").append(unsent);
+    sb.append(", invalidToken=").append(invalidToken);
+    sb.append('}');
+    return sb.toString();
+  }
+
+  public static class PushJobEntityBuilder {
+
+    /**
+     * Build the PushJobEntity using the resultset.
+     *
+     * @param rs not null result set with all the mmxPushJob columns.
+     * @return
+     */
+    public PushJobEntity build(ResultSet rs) throws SQLException {
+      PushJobEntity entity = new PushJobEntity();
+      entity.setId(rs.getInt("id"));
+      entity.setAppId(rs.getString("appId"));
+      entity.setRequest(rs.getString("request"));
+      entity.setState(State.valueOf(rs.getString("state")));
+      entity.setLastDeviceId(rs.getInt("lastDeviceId"));
+      entity.setRequested(rs.getInt("requested"));
+      entity.setSent(rs.getInt("sent"));
+      entity.setUnsent(rs.getInt("unsent"));
+      entity.setInvalidToken(rs.getInt("invalidToken"));
+      entity.setDateCreatedUTC(rs.getLong("dateCreatedUTC"));
+      entity.setDateStartedUTC(rs.getLong("dateStartedUTC"));
+      entity.setDateUpdatedUTC(rs.getLong("dateUpdatedUTC"));
+      return entity;
+    }
+  }
+}
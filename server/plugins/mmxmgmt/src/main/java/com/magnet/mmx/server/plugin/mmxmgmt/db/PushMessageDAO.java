@@ -32,6 +32,12 @@ public interface PushMessageDAO {
    */
   public void add (PushMessageEntity entity);
 
+  /**
+   * Add push message records using a single JDBC batch
+   * @param entities
+   */
+  public void addAll(List<PushMessageEntity> entities);
+
   /**
    * Get a list of push message entities for a given appId and deviceId
    * @param appId
@@ -65,5 +71,12 @@ public interface PushMessageDAO {
    */
   public SearchResult<PushMessageEntity> getPushMessagesWithPagination(QueryBuilderResult query, PaginationInfo info);
 
+  /**
+   * Get the ids of the apps that have sent push messages since the supplied date.
+   * @param since
+   * @return
+   */
+  public List<String> getAppIdsWithPushMessagesSince(Date since);
+
 
 }
@@ -14,6 +14,8 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.db;
 
+import com.codahale.metrics.Timer;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
 import com.magnet.mmx.server.plugin.mmxmgmt.search.PaginationInfo;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXPushMessageStats;
 import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXPushTuple;
@@ -35,14 +37,19 @@ import java.util.List;
 public class PushMessageDAOImpl implements PushMessageDAO {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(PushMessageDAOImpl.class);
+  private static final Timer ADD_BATCH = MMXMetrics.timer("db.push.addBatch");
 
   private static final String INSERT_SQL = "INSERT INTO mmxPushMessage (messageId, deviceId, appId, dateSentUTC, type, state) " +
       "VALUES (?, ?, ? ,?, ?, ?)";
 
   private static final String SELECT_BY_ID_SQL = "SELECT messageId, deviceId, appId, dateSentUTC, type, state, dateAcknowledgedUTC FROM mmxPushMessage WHERE messageId = ? ";
 
+  private static final String LOCK_BY_ID_SQL = SELECT_BY_ID_SQL + "FOR UPDATE";
+
   private static final String SELECT_BY_APPID_DEVICEID_SQL = "SELECT messageId, deviceId, appId, dateSentUTC, type, state, dateAcknowledgedUTC FROM mmxPushMessage WHERE appId = ? AND deviceId = ? ORDER BY dateSentUTC DESC";
 
+  private static final String SELECT_APPIDS_SENT_SINCE_SQL = "SELECT DISTINCT appId FROM mmxPushMessage WHERE dateSentUTC >= ?";
+
   private static final String UPDATE_BY_ID_SQL = "UPDATE mmxPushMessage SET state = ?, dateAcknowledgedUTC = ? WHERE messageId = ? ";
 
   private ConnectionProvider provider;
@@ -62,15 +69,17 @@ public class PushMessageDAOImpl implements PushMessageDAO {
     try {
       con = provider.getConnection();
       pstmt = con.prepareStatement(INSERT_SQL);
+      long dateSentUTC = new Date().getTime()/1000L;
       pstmt.setString(1, entity.getMessageId());
       pstmt.setString(2, entity.getDeviceId());
       pstmt.setString(3, entity.getAppId());
-      pstmt.setLong(4, new Date().getTime()/1000L);
+      pstmt.setLong(4, dateSentUTC);
       pstmt.setString(5, entity.getType().name());
       pstmt.setString(6, entity.getState().name());
       pstmt.executeUpdate();
       pstmt.close();
       con.close();
+      StatsRollup.getInstance().pushState(entity.getAppId(), entity.getType(), null, entity.getState(), dateSentUTC, 1);
       LOGGER.debug("add : added pushMessageEntity={}", entity);
     } catch (SQLException sqle) {
       LOGGER.warn("SQL Exception in creating the push message record", sqle);
@@ -80,6 +89,49 @@ public class PushMessageDAOImpl implements PushMessageDAO {
     }
   }
 
+  @Override
+  public void addAll(List<PushMessageEntity> entities) {
+    if (entities == null || entities.isEmpty()) {
+      return;
+    }
+    long startTime = System.nanoTime();
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    boolean autoCommit = true;
+    try {
+      con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      pstmt = con.prepareStatement(INSERT_SQL);
+      long now = new Date().getTime()/1000L;
+      for (PushMessageEntity entity : entities) {
+        pstmt.setString(1, entity.getMessageId());
+        pstmt.setString(2, entity.getDeviceId());
+        pstmt.setString(3, entity.getAppId());
+        pstmt.setLong(4, now);
+        pstmt.setString(5, entity.getType().name());
+        pstmt.setString(6, entity.getState().name());
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+      con.commit();
+      pstmt.close();
+      StatsRollup rollup = StatsRollup.getInstance();
+      for (PushMessageEntity entity : entities) {
+        rollup.pushState(entity.getAppId(), entity.getType(), null, entity.getState(), now, 1);
+      }
+      LOGGER.debug("addAll : added {} push message records", entities.size());
+    } catch (SQLException sqle) {
+      LOGGER.warn("SQL Exception in batch insert of {} push message records", entities.size(), sqle);
+      SqlUtil.rollback(LOGGER, con);
+      throw new DbInteractionException(sqle);
+    } finally {
+      MMXMetrics.time(ADD_BATCH, startTime);
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
   @Override
   public List<PushMessageEntity> getPushMessages(String appId, String deviceId) {
     Connection con = null;
@@ -170,27 +222,71 @@ public class PushMessageDAOImpl implements PushMessageDAO {
     return statsMap;
   }
 
+  @Override
+  public List<String> getAppIdsWithPushMessagesSince(Date since) {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    List<String> appIds = new ArrayList<String>();
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(SELECT_APPIDS_SENT_SINCE_SQL);
+      pstmt.setLong(1, since.getTime()/1000L);
+      rs = pstmt.executeQuery();
+      while (rs.next()) {
+        appIds.add(rs.getString(1));
+      }
+    } catch (SQLException e) {
+      LOGGER.error("getAppIdsWithPushMessagesSince : exception caught since={}", since, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+    return appIds;
+  }
+
   @Override
   public int acknowledgePushMessage(String messageId, Date dateAcknowledged) {
     Connection con = null;
     PreparedStatement pstmt = null;
-    PushMessageEntity rv = null;
+    ResultSet rs = null;
+    boolean autoCommit = true;
     try {
       con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      PushMessageEntity previous = null;
+      if (StatsRollup.isInitialized()) {
+        //lock the row so that the state the update replaces is known
+        pstmt = con.prepareStatement(LOCK_BY_ID_SQL);
+        pstmt.setString(1, messageId);
+        rs = pstmt.executeQuery();
+        if (rs.next()) {
+          previous = new PushMessageEntity.PushMessageEntityBuilder().build(rs);
+        }
+        rs.close();
+        pstmt.close();
+      }
       pstmt = con.prepareStatement(UPDATE_BY_ID_SQL);
       pstmt.setString(1, PushMessageEntity.PushMessageState.ACKNOWLEDGED.name());
       pstmt.setLong(2, new Date().getTime()/1000L);
       pstmt.setString(3, messageId);
 
       int count = pstmt.executeUpdate();
+      con.commit();
       pstmt.close();
-      con.close();
+      if (count > 0 && previous != null && previous.getDateSentUTC() != null) {
+        StatsRollup.getInstance().pushState(previous.getAppId(), previous.getType(), previous.getState(),
+            PushMessageEntity.PushMessageState.ACKNOWLEDGED, previous.getDateSentUTC().longValue(), count);
+      }
       return count;
     } catch (SQLException e) {
       LOGGER.error(e.getMessage(), e);
+      SqlUtil.rollback(LOGGER, con);
       throw new DbInteractionException(e);
     } finally {
-      CloseUtil.close(LOGGER, pstmt, con);
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, rs, pstmt, con);
     }
   }
 
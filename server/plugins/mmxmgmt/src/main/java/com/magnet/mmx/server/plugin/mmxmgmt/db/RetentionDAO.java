@@ -0,0 +1,47 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DAO for purging rows that are older than their retention period.
+ */
+public interface RetentionDAO {
+
+  /**
+   * Get rows of an app that are older than the cutoff, in no particular order.
+   * @param table
+   * @param appId
+   * @param cutoffUTC seconds since epoch
+   * @param limit maximum number of rows
+   * @param allColumns true to get all the columns, false to only get the primary key
+   * @return list of rows, each a map of column name to value
+   * @throws DbInteractionException
+   */
+  public List<Map<String, Object>> getExpiredRows(RetentionTable table, String appId, long cutoffUTC, int limit,
+                                                  boolean allColumns) throws DbInteractionException;
+
+  /**
+   * Delete rows using their primary key. Rows that are no longer older than the cutoff are not deleted.
+   * @param table
+   * @param keys primary key values
+   * @param cutoffUTC seconds since epoch
+   * @return number of rows deleted
+   * @throws DbInteractionException
+   */
+  public int deleteRows(RetentionTable table, List<Object> keys, long cutoffUTC) throws DbInteractionException;
+}
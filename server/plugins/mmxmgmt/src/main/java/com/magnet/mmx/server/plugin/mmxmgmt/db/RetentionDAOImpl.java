@@ -0,0 +1,109 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.util.Helper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ */
+public class RetentionDAOImpl implements RetentionDAO {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RetentionDAOImpl.class);
+
+  private static final String QUERY_EXPIRED_ROWS = "SELECT %s FROM %s WHERE appId = ? AND %s < ? LIMIT ?";
+
+  private static final String DELETE_BY_KEYS = "DELETE FROM %s WHERE %s IN (%s) AND %s < ?";
+
+  private ConnectionProvider provider;
+
+  public RetentionDAOImpl(ConnectionProvider provider) {
+    this.provider = provider;
+  }
+
+  @Override
+  public List<Map<String, Object>> getExpiredRows(RetentionTable table, String appId, long cutoffUTC, int limit,
+                                                  boolean allColumns) throws DbInteractionException {
+    String columns = allColumns ? "*" : table.getKeyColumn();
+    String statementStr = String.format(QUERY_EXPIRED_ROWS, columns, table.getTableName(), table.getDateColumn());
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(limit);
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(statementStr);
+      pstmt.setString(1, appId);
+      pstmt.setLong(2, cutoffUTC);
+      pstmt.setInt(3, limit);
+      rs = pstmt.executeQuery();
+      ResultSetMetaData metaData = rs.getMetaData();
+      int columnCount = metaData.getColumnCount();
+      while (rs.next()) {
+        Map<String, Object> row = new LinkedHashMap<String, Object>(columnCount * 2);
+        for (int i = 1; i <= columnCount; i++) {
+          row.put(metaData.getColumnLabel(i), rs.getObject(i));
+        }
+        rows.add(row);
+      }
+      rs.close();
+      pstmt.close();
+    } catch (SQLException e) {
+      LOGGER.error("getExpiredRows : exception caught table={}, appId={}", new Object[]{table, appId, e});
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+    return rows;
+  }
+
+  @Override
+  public int deleteRows(RetentionTable table, List<Object> keys, long cutoffUTC) throws DbInteractionException {
+    if (keys == null || keys.isEmpty()) {
+      return 0;
+    }
+    String statementStr = String.format(DELETE_BY_KEYS, table.getTableName(), table.getKeyColumn(),
+        Helper.getSQLPlaceHolders(keys.size()), table.getDateColumn());
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(statementStr);
+      int index = 1;
+      for (Object key : keys) {
+        pstmt.setObject(index++, key);
+      }
+      pstmt.setLong(index, cutoffUTC);
+      int count = pstmt.executeUpdate();
+      pstmt.close();
+      return count;
+    } catch (SQLException e) {
+      LOGGER.error("deleteRows : exception caught table={}", table, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+}
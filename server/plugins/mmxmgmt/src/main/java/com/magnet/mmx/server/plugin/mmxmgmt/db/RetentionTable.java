@@ -0,0 +1,52 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+/**
+ * Tables whose rows are purged once they are older than the retention period of their app.
+ */
+public enum RetentionTable {
+  MESSAGE("mmxMessage", "id", "dateQueuedUTC"),
+  PUSH_MESSAGE("mmxPushMessage", "messageId", "dateSentUTC"),
+  WAKEUP("mmxWakeupQueue", "id", "dateCreatedUTC");
+
+  private final String tableName;
+  private final String keyColumn;
+  private final String dateColumn;
+
+  RetentionTable(String tableName, String keyColumn, String dateColumn) {
+    this.tableName = tableName;
+    this.keyColumn = keyColumn;
+    this.dateColumn = dateColumn;
+  }
+
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   * @return name of the primary key column
+   */
+  public String getKeyColumn() {
+    return keyColumn;
+  }
+
+  /**
+   * @return name of the column with the age of the row in seconds since epoch
+   */
+  public String getDateColumn() {
+    return dateColumn;
+  }
+}
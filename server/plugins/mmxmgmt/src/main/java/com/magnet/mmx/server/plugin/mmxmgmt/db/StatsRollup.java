@@ -0,0 +1,438 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXInAppMessageStats;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXInAppTuple;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXPushMessageStats;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXPushTuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the messages and push messages of each app by their current state, bucketed by the
+ * hour the messages were queued or sent.
+ * <p>
+ * The DAOs record a transition whenever they store a message or change its state: the count of
+ * the state the message left is decremented and the count of the state it entered is incremented,
+ * both in the bucket of the hour the message was queued. The stats summed over the window are
+ * therefore the same as the aggregate queries of the DAOs, which count the current state of the
+ * messages queued in the window, at the granularity of an hour.
+ * <p>
+ * Recorded counts are kept in memory and added to the mmxStatsRollup table every flush interval,
+ * after which the rows updated since the previous load are reloaded from the table to pick up the
+ * counts flushed by the other cluster members. The stats of an app are summed from memory, so
+ * their cost depends on the number of apps and states rather than on the number of messages.
+ * <p>
+ * Nothing is recorded unless the rollup has been initialized. The counts of the messages that
+ * change state while the rollup is disabled are off until the messages age out of the window.
+ */
+public class StatsRollup {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StatsRollup.class);
+  private static final long HOUR_SECONDS = 3600L;
+  private static final char SEPARATOR = '\u0000';
+  private static final String NO_TYPE = "";
+  /**
+   * Rows updated this many seconds before the previous load are reloaded, to pick up the rows of
+   * transactions that committed late and of members whose clock is behind.
+   */
+  private static final long LOAD_OVERLAP_SECONDS = 300L;
+
+  private static StatsRollup instance = new StatsRollup();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+
+  private final ConcurrentMap<String, ConcurrentMap<RollupKey, Long>> stored =
+      new ConcurrentHashMap<String, ConcurrentMap<RollupKey, Long>>();
+  private final ConcurrentMap<RollupKey, AtomicLong> pending = new ConcurrentHashMap<RollupKey, AtomicLong>();
+  private StatsRollupDAO dao;
+  private int windowHours;
+  private int retentionHours;
+  private ScheduledExecutorService flusher;
+  private long lastPurgeHourUTC;
+  private long lastLoadUTC;
+  private volatile boolean running;
+
+  StatsRollup() {
+  }
+
+  public static StatsRollup getInstance() {
+    return instance;
+  }
+
+  public static boolean isInitialized() {
+    return initialized.get();
+  }
+
+  /**
+   * Lifecycle method. Load the stored counts of the window and start flushing.
+   * @param dao
+   * @param windowHours number of hours the stats are summed over
+   * @param retentionHours counts older than this are deleted from the table
+   * @param flushSeconds interval between flushes
+   * @throws java.lang.IllegalStateException if the rollup has already been initialized.
+   */
+  public static void initialize(StatsRollupDAO dao, int windowHours, int retentionHours, int flushSeconds) {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    instance.start(dao, windowHours, retentionHours);
+    instance.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("StatsRollupFlusher-%d").setDaemon(true).build());
+    instance.flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          instance.flush();
+        } catch (Throwable t) {
+          LOGGER.warn("Exception in flushing the stats rollup", t);
+        }
+      }
+    }, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+    LOGGER.info("Stats rollup is initialized with windowHours:{}, flushSeconds:{}", windowHours, flushSeconds);
+  }
+
+  /**
+   * Lifecycle method. Stop flushing and flush the counts recorded so far.
+   */
+  public static void teardown() {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
+    }
+    instance.flusher.shutdownNow();
+    instance.stop();
+  }
+
+  void start(StatsRollupDAO dao, int windowHours, int retentionHours) {
+    this.dao = dao;
+    this.windowHours = windowHours;
+    this.retentionHours = Math.max(windowHours, retentionHours);
+    try {
+      long loadStart = currentTimeUTC();
+      load(windowStart(currentHourUTC()), 0L);
+      lastLoadUTC = loadStart;
+    } catch (DbInteractionException e) {
+      LOGGER.warn("start : couldn't load the stored counts, stats start from zero", e);
+    }
+    running = true;
+  }
+
+  void stop() {
+    running = false;
+    try {
+      flush();
+    } catch (DbInteractionException e) {
+      LOGGER.warn("stop : couldn't flush the stats rollup", e);
+    }
+  }
+
+  /**
+   * Record messages of an app that moved from one state to another. Only REGULAR messages are
+   * counted by the message stats, so callers skip the other types.
+   * @param appId
+   * @param from state the messages left, null for messages that are stored
+   * @param to state the messages entered
+   * @param queuedAtUTC time the messages were queued, in seconds since epoch
+   * @param count
+   */
+  public void messageState(String appId, MessageEntity.MessageState from, MessageEntity.MessageState to,
+                           long queuedAtUTC, int count) {
+    transition(StatsRollupEntity.Kind.MESSAGE, appId, NO_TYPE, from == null ? null : from.name(), to.name(),
+        queuedAtUTC, count);
+  }
+
+  /**
+   * Record push messages of an app that moved from one state to another.
+   * @param appId
+   * @param type
+   * @param from state the push messages left, null for push messages that are stored
+   * @param to state the push messages entered
+   * @param sentAtUTC time the push messages were sent, in seconds since epoch
+   * @param count
+   */
+  public void pushState(String appId, PushMessageEntity.PushMessageType type, PushMessageEntity.PushMessageState from,
+                        PushMessageEntity.PushMessageState to, long sentAtUTC, int count) {
+    transition(StatsRollupEntity.Kind.PUSH, appId, type.name(), from == null ? null : from.name(), to.name(),
+        sentAtUTC, count);
+  }
+
+  void transition(StatsRollupEntity.Kind kind, String appId, String type, String from, String to, long timeUTC,
+                  long count) {
+    if (count <= 0 || to.equals(from)) {
+      return;
+    }
+    long hourUTC = timeUTC - timeUTC % HOUR_SECONDS;
+    if (from != null) {
+      record(kind, appId, type, from, hourUTC, -count);
+    }
+    record(kind, appId, type, to, hourUTC, count);
+  }
+
+  private void record(StatsRollupEntity.Kind kind, String appId, String type, String state, long hourUTC,
+                      long delta) {
+    if (!running || appId == null || hourUTC < windowStart(currentHourUTC())) {
+      return;
+    }
+    pendingCounter(new RollupKey(kind, appId, type, state, hourUTC)).addAndGet(delta);
+  }
+
+  /**
+   * Get the message stats of the apps over the window.
+   * @param appIdList
+   * @return map of appId to stats, with an entry for every app in the list
+   */
+  public Map<String, MMXInAppMessageStats> getMessageStats(List<String> appIdList) {
+    Map<String, Map<String, Long>> sums = sum(StatsRollupEntity.Kind.MESSAGE, appIdList);
+    Map<String, MMXInAppMessageStats> statsMap = new HashMap<String, MMXInAppMessageStats>();
+    for (String appId : appIdList) {
+      MMXInAppMessageStats stats = new MMXInAppMessageStats(appId);
+      for (Map.Entry<String, Long> entry : sums.get(appId).entrySet()) {
+        if (entry.getValue().longValue() <= 0) {
+          continue;
+        }
+        String key = entry.getKey();
+        stats.addStats(new MMXInAppTuple(key.substring(key.indexOf(SEPARATOR) + 1), entry.getValue().intValue()));
+      }
+      statsMap.put(appId, stats);
+    }
+    return statsMap;
+  }
+
+  /**
+   * Get the push message stats of the apps over the window.
+   * @param appIdList
+   * @return map of appId to stats, with an entry for every app in the list
+   */
+  public Map<String, MMXPushMessageStats> getPushMessageStats(List<String> appIdList) {
+    Map<String, Map<String, Long>> sums = sum(StatsRollupEntity.Kind.PUSH, appIdList);
+    Map<String, MMXPushMessageStats> statsMap = new HashMap<String, MMXPushMessageStats>();
+    for (String appId : appIdList) {
+      MMXPushMessageStats stats = new MMXPushMessageStats(appId);
+      for (Map.Entry<String, Long> entry : sums.get(appId).entrySet()) {
+        if (entry.getValue().longValue() <= 0) {
+          continue;
+        }
+        String key = entry.getKey();
+        int index = key.indexOf(SEPARATOR);
+        stats.addStats(new MMXPushTuple(key.substring(0, index), key.substring(index + 1), entry.getValue().intValue()));
+      }
+      statsMap.put(appId, stats);
+    }
+    return statsMap;
+  }
+
+  /**
+   * Sum the stored and pending counts of the window by type and state.
+   */
+  private Map<String, Map<String, Long>> sum(StatsRollupEntity.Kind kind, List<String> appIdList) {
+    long start = windowStart(currentHourUTC());
+    Map<String, Map<String, Long>> sums = new HashMap<String, Map<String, Long>>();
+    for (String appId : appIdList) {
+      Map<String, Long> appSums = new HashMap<String, Long>();
+      sums.put(appId, appSums);
+      ConcurrentMap<RollupKey, Long> appStored = stored.get(appId);
+      if (appStored != null) {
+        for (Map.Entry<RollupKey, Long> entry : appStored.entrySet()) {
+          add(appSums, kind, start, entry.getKey(), entry.getValue().longValue());
+        }
+      }
+    }
+    for (Map.Entry<RollupKey, AtomicLong> entry : pending.entrySet()) {
+      Map<String, Long> appSums = sums.get(entry.getKey().appId);
+      if (appSums != null) {
+        add(appSums, kind, start, entry.getKey(), entry.getValue().get());
+      }
+    }
+    return sums;
+  }
+
+  private static void add(Map<String, Long> sums, StatsRollupEntity.Kind kind, long start, RollupKey key, long count) {
+    if (key.kind != kind || key.hourUTC < start || count == 0) {
+      return;
+    }
+    String sumKey = key.type + SEPARATOR + key.state;
+    Long current = sums.get(sumKey);
+    sums.put(sumKey, Long.valueOf(current == null ? count : current.longValue() + count));
+  }
+
+  /**
+   * Add the pending counts to the table and reload the rows updated since the previous load.
+   * If the counts can't be stored they are kept for the next flush.
+   */
+  void flush() {
+    long currentHour = currentHourUTC();
+    long windowStart = windowStart(currentHour);
+    List<StatsRollupEntity> deltas = new ArrayList<StatsRollupEntity>();
+    for (Map.Entry<RollupKey, AtomicLong> entry : pending.entrySet()) {
+      RollupKey key = entry.getKey();
+      long count = entry.getValue().getAndSet(0);
+      if (key.hourUTC < windowStart) {
+        //nothing is recorded for this hour anymore
+        pending.remove(key, entry.getValue());
+      } else if (count != 0) {
+        //move the count to the stored counts first so readers don't miss it
+        addStored(key, count);
+        deltas.add(key.toEntity(count));
+      }
+    }
+    if (!deltas.isEmpty()) {
+      try {
+        dao.add(deltas);
+      } catch (DbInteractionException e) {
+        LOGGER.warn("flush : couldn't store {} counts, keeping them for the next flush", deltas.size());
+        for (StatsRollupEntity delta : deltas) {
+          RollupKey key = new RollupKey(delta);
+          addStored(key, -delta.getCount());
+          pendingCounter(key).addAndGet(delta.getCount());
+        }
+        throw e;
+      }
+    }
+    long loadStart = currentTimeUTC();
+    load(windowStart, lastLoadUTC - LOAD_OVERLAP_SECONDS);
+    lastLoadUTC = loadStart;
+    evict(windowStart);
+    if (currentHour != lastPurgeHourUTC) {
+      lastPurgeHourUTC = currentHour;
+      int count = dao.deleteBefore(currentHour - retentionHours * HOUR_SECONDS);
+      LOGGER.debug("flush : deleted {} expired counts", count);
+    }
+  }
+
+  /**
+   * Replace the counts of the hours starting at or after sinceHourUTC with the stored counts of the
+   * rows updated at or after updatedSinceUTC.
+   */
+  void load(long sinceHourUTC, long updatedSinceUTC) {
+    List<StatsRollupEntity> rollups = dao.getRollups(sinceHourUTC, updatedSinceUTC);
+    for (StatsRollupEntity rollup : rollups) {
+      storedCounts(rollup.getAppId()).put(new RollupKey(rollup), Long.valueOf(rollup.getCount()));
+    }
+    LOGGER.trace("load : loaded {} counts updated since {}", rollups.size(), updatedSinceUTC);
+  }
+
+  private void evict(long windowStart) {
+    for (ConcurrentMap<RollupKey, Long> appStored : stored.values()) {
+      for (RollupKey key : appStored.keySet()) {
+        if (key.hourUTC < windowStart) {
+          appStored.remove(key);
+        }
+      }
+    }
+  }
+
+  private void addStored(RollupKey key, long count) {
+    ConcurrentMap<RollupKey, Long> appStored = storedCounts(key.appId);
+    //only the flusher thread changes the stored counts
+    Long current = appStored.get(key);
+    appStored.put(key, Long.valueOf(current == null ? count : current.longValue() + count));
+  }
+
+  private ConcurrentMap<RollupKey, Long> storedCounts(String appId) {
+    ConcurrentMap<RollupKey, Long> appStored = stored.get(appId);
+    if (appStored == null) {
+      ConcurrentMap<RollupKey, Long> created = new ConcurrentHashMap<RollupKey, Long>();
+      appStored = stored.putIfAbsent(appId, created);
+      if (appStored == null) {
+        appStored = created;
+      }
+    }
+    return appStored;
+  }
+
+  private AtomicLong pendingCounter(RollupKey key) {
+    AtomicLong counter = pending.get(key);
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = pending.putIfAbsent(key, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  private long windowStart(long currentHour) {
+    return currentHour - (windowHours - 1) * HOUR_SECONDS;
+  }
+
+  long currentHourUTC() {
+    long now = currentTimeUTC();
+    return now - now % HOUR_SECONDS;
+  }
+
+  long currentTimeUTC() {
+    return System.currentTimeMillis() / 1000L;
+  }
+
+  private static class RollupKey {
+    private final StatsRollupEntity.Kind kind;
+    private final String appId;
+    private final String type;
+    private final String state;
+    private final long hourUTC;
+
+    RollupKey(StatsRollupEntity.Kind kind, String appId, String type, String state, long hourUTC) {
+      this.kind = kind;
+      this.appId = appId;
+      this.type = type;
+      this.state = state;
+      this.hourUTC = hourUTC;
+    }
+
+    RollupKey(StatsRollupEntity entity) {
+      this(entity.getKind(), entity.getAppId(), entity.getType(), entity.getState(), entity.getHourUTC());
+    }
+
+    StatsRollupEntity toEntity(long count) {
+      return new StatsRollupEntity(appId, kind, type, state, hourUTC, count);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof RollupKey)) {
+        return false;
+      }
+      RollupKey that = (RollupKey) o;
+      return hourUTC == that.hourUTC && kind == that.kind && appId.equals(that.appId) && type.equals(that.type) &&
+          state.equals(that.state);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = kind.hashCode();
+      result = 31 * result + appId.hashCode();
+      result = 31 * result + type.hashCode();
+      result = 31 * result + state.hashCode();
+      result = 31 * result + (int) (hourUTC ^ (hourUTC >>> 32));
+      return result;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import java.util.List;
+
+/**
+ * DAO for the hourly message and push message state counts.
+ */
+public interface StatsRollupDAO {
+
+  /**
+   * Add counts to the stored counts, creating the rows that don't exist yet.
+   * @param deltas counts to add
+   * @throws DbInteractionException
+   */
+  public void add(List<StatsRollupEntity> deltas) throws DbInteractionException;
+
+  /**
+   * Get the counts of all apps for the hours starting at or after the supplied hour whose rows
+   * were updated at or after the supplied time.
+   * @param sinceHourUTC seconds since epoch
+   * @param updatedSinceUTC seconds since epoch, 0 for all rows
+   * @return
+   * @throws DbInteractionException
+   */
+  public List<StatsRollupEntity> getRollups(long sinceHourUTC, long updatedSinceUTC) throws DbInteractionException;
+
+  /**
+   * Delete the counts of the hours before the supplied hour.
+   * @param hourUTC seconds since epoch
+   * @return number of rows deleted
+   * @throws DbInteractionException
+   */
+  public int deleteBefore(long hourUTC) throws DbInteractionException;
+}
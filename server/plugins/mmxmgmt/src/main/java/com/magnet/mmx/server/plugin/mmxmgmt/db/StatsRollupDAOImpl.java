@@ -0,0 +1,128 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.util.SqlUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ */
+public class StatsRollupDAOImpl implements StatsRollupDAO {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StatsRollupDAOImpl.class);
+
+  private static final String UPSERT_ROLLUP = "INSERT INTO mmxStatsRollup (appId, kind, type, state, hourUTC, count, " +
+      "dateUpdatedUTC) VALUES (?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE count = count + VALUES(count), " +
+      "dateUpdatedUTC = VALUES(dateUpdatedUTC)";
+
+  private static final String SELECT_ROLLUPS_SINCE = "SELECT appId, kind, type, state, hourUTC, count FROM mmxStatsRollup " +
+      "WHERE hourUTC >= ? AND dateUpdatedUTC >= ?";
+
+  private static final String DELETE_ROLLUPS_BEFORE = "DELETE FROM mmxStatsRollup WHERE hourUTC < ?";
+
+  private ConnectionProvider provider;
+
+  public StatsRollupDAOImpl(ConnectionProvider provider) {
+    this.provider = provider;
+  }
+
+  @Override
+  public void add(List<StatsRollupEntity> deltas) throws DbInteractionException {
+    if (deltas == null || deltas.isEmpty()) {
+      return;
+    }
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    boolean autoCommit = true;
+    try {
+      con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      pstmt = con.prepareStatement(UPSERT_ROLLUP);
+      long now = new Date().getTime()/1000L;
+      for (StatsRollupEntity delta : deltas) {
+        pstmt.setString(1, delta.getAppId());
+        pstmt.setString(2, delta.getKind().name());
+        pstmt.setString(3, delta.getType());
+        pstmt.setString(4, delta.getState());
+        pstmt.setLong(5, delta.getHourUTC());
+        pstmt.setLong(6, delta.getCount());
+        pstmt.setLong(7, now);
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+      con.commit();
+      pstmt.close();
+    } catch (SQLException e) {
+      LOGGER.warn("SQL Exception in adding {} rollup counts", deltas.size(), e);
+      SqlUtil.rollback(LOGGER, con);
+      throw new DbInteractionException(e);
+    } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
+  @Override
+  public List<StatsRollupEntity> getRollups(long sinceHourUTC, long updatedSinceUTC) throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    List<StatsRollupEntity> rollups = new ArrayList<StatsRollupEntity>();
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(SELECT_ROLLUPS_SINCE);
+      pstmt.setLong(1, sinceHourUTC);
+      pstmt.setLong(2, updatedSinceUTC);
+      rs = pstmt.executeQuery();
+      while (rs.next()) {
+        rollups.add(new StatsRollupEntity(rs.getString(1), StatsRollupEntity.Kind.valueOf(rs.getString(2)),
+            rs.getString(3), rs.getString(4), rs.getLong(5), rs.getLong(6)));
+      }
+    } catch (SQLException e) {
+      LOGGER.error("getRollups : caught exception for sinceHourUTC:{}, updatedSinceUTC:{}",
+          new Object[]{sinceHourUTC, updatedSinceUTC, e});
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+    return rollups;
+  }
+
+  @Override
+  public int deleteBefore(long hourUTC) throws DbInteractionException {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(DELETE_ROLLUPS_BEFORE);
+      pstmt.setLong(1, hourUTC);
+      return pstmt.executeUpdate();
+    } catch (SQLException e) {
+      LOGGER.error("deleteBefore : caught exception for hourUTC:{}", hourUTC, e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+}
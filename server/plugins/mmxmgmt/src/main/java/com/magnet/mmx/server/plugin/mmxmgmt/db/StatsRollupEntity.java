@@ -0,0 +1,110 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+/**
+ * Number of messages or push messages of an app that entered a state during an hour.
+ */
+public class StatsRollupEntity {
+  public enum Kind {
+    MESSAGE,
+    PUSH
+  }
+
+  private String appId;
+  private Kind kind;
+  private String type;
+  private String state;
+  private long hourUTC;
+  private long count;
+
+  public StatsRollupEntity() {
+  }
+
+  public StatsRollupEntity(String appId, Kind kind, String type, String state, long hourUTC, long count) {
+    this.appId = appId;
+    this.kind = kind;
+    this.type = type;
+    this.state = state;
+    this.hourUTC = hourUTC;
+    this.count = count;
+  }
+
+  public String getAppId() {
+    return appId;
+  }
+
+  public void setAppId(String appId) {
+    this.appId = appId;
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  public void setKind(Kind kind) {
+    this.kind = kind;
+  }
+
+  /**
+   * @return push message type, empty for messages
+   */
+  public String getType() {
+    return type;
+  }
+
+  public void setType(String type) {
+    this.type = type;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public void setState(String state) {
+    this.state = state;
+  }
+
+  /**
+   * @return start of the hour in seconds since epoch
+   */
+  public long getHourUTC() {
+    return hourUTC;
+  }
+
+  public void setHourUTC(long hourUTC) {
+    this.hourUTC = hourUTC;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public void setCount(long count) {
+    this.count = count;
+  }
+
+  @Override
+  public String toString() {
+    return "StatsRollupEntity{" +
+        "appId='" + appId + '\'' +
+        ", kind=" + kind +
+        ", type='" + type + '\'' +
+        ", state='" + state + '\'' +
+        ", hourUTC=" + hourUTC +
+        ", count=" + count +
+        '}';
+  }
+}
@@ -40,6 +40,16 @@ public interface UserDAO {
 
   public UserEntity getUser(String username) throws DbInteractionException;
 
+  /**
+   * Get the users with the supplied usernames. The lookup is done using IN queries with at most
+   * {@link com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants#USERNAME_QUERY_CHUNK_SIZE}
+   * usernames each. Usernames that don't exist are not included in the result.
+   * @param usernames list of usernames with the appId suffix
+   * @return list of users in no particular order
+   * @throws DbInteractionException
+   */
+  public List<UserEntity> getUsersByUsername(List<String> usernames) throws DbInteractionException;
+
   /**
    * Retrieve a list of user using the QueryBuilderResult.
    * @param result
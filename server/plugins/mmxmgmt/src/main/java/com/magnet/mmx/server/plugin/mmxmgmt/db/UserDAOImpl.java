@@ -20,6 +20,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.search.user.UserSearchOption;
 import com.magnet.mmx.server.plugin.mmxmgmt.search.user.UserSortOption;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.Helper;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.JIDUtil;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import com.magnet.mmx.server.plugin.mmxmgmt.web.ValueHolder;
 import com.magnet.mmx.util.Utils;
 import org.slf4j.Logger;
@@ -354,4 +355,43 @@ public class UserDAOImpl implements UserDAO {
       CloseUtil.close(LOGGER, pstmt, conn);
     }
   }
+
+  @Override
+  public List<UserEntity> getUsersByUsername(List<String> usernames) throws DbInteractionException {
+    final String statementStr = "SELECT * FROM ofUser WHERE username IN (%s)";
+    List<UserEntity> userList = new ArrayList<UserEntity>(usernames.size());
+    if (usernames.isEmpty()) {
+      return userList;
+    }
+    Connection conn = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      conn = provider.getConnection();
+      int start = 0;
+      do {
+        List<String> chunk = usernames.subList(start,
+            Math.min(start + MMXServerConstants.USERNAME_QUERY_CHUNK_SIZE, usernames.size()));
+        pstmt = conn.prepareStatement(String.format(statementStr, Helper.getSQLPlaceHolders(chunk.size())));
+        int index = 1;
+        for (String username : chunk) {
+          pstmt.setString(index++, username);
+        }
+        LOGGER.trace("getUsersByUsername : executing query : {}", pstmt);
+        rs = pstmt.executeQuery();
+        while (rs.next()) {
+          userList.add(new UserEntity.UserEntityBuilder().build(rs));
+        }
+        rs.close();
+        pstmt.close();
+        start += chunk.size();
+      } while (start < usernames.size());
+      return userList;
+    } catch (SQLException e) {
+      LOGGER.error("getUsersByUsername : caught exception : count={}", usernames.size(), e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, conn);
+    }
+  }
 }
@@ -36,6 +36,17 @@ public interface WakeupEntityDAO {
    */
   public List<WakeupEntity> poll (int maxCount);
 
+  /**
+   * Get up to maxCount unprocessed entries that belong to the supplied shards. The shard of an
+   * entry, CRC32(deviceId) mod shardCount, is stored when the entry is offered. Entries offered
+   * with a larger shard count are polled with shard 0.
+   * @param maxCount
+   * @param shardCount total number of shards
+   * @param shards shards to poll, must not be empty
+   * @return
+   */
+  public List<WakeupEntity> poll (int maxCount, int shardCount, List<Integer> shards);
+
   /**
    * Mark the given wakeup entity as processed. Updating it rather that deleting it
    * helps with the table indexes.
@@ -43,6 +54,12 @@ public interface WakeupEntityDAO {
    */
   public void complete (WakeupEntity entity);
 
+  /**
+   * Mark the given wakeup entities as processed using a single batch update.
+   * @param entities entities with the date sent set
+   */
+  public void complete (List<WakeupEntity> entities);
+
 
   /**
    * Delete all queued unprocessed wakeup records using the supplied information. This
@@ -53,6 +70,16 @@ public interface WakeupEntityDAO {
    */
   public int remove(String appId, PushType type, String token);
 
+  /**
+   * Delete all queued unprocessed wakeup records for the supplied tokens using a single JDBC
+   * batch.
+   * @param appId
+   * @param type
+   * @param tokens
+   * @return number of records deleted
+   */
+  public int remove(String appId, PushType type, List<String> tokens);
+
   /**
    * Delete the wakeup entity record corresponding to the supplied id.
    * @param wakeupEntityId
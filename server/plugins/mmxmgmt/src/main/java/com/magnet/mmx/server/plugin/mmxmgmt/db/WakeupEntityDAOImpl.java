@@ -15,6 +15,11 @@
 package com.magnet.mmx.server.plugin.mmxmgmt.db;
 
 import com.magnet.mmx.protocol.PushType;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.SqlUtil;
+import com.magnet.mmx.server.plugin.mmxmgmt.wakeup.WakeupShardManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,11 +38,15 @@ public class WakeupEntityDAOImpl implements WakeupEntityDAO {
   private Logger LOGGER = LoggerFactory.getLogger(WakeupEntityDAOImpl.class);
 
   private static final String WAKEUP_INSERT = "INSERT INTO mmxWakeupQueue(deviceId,clientToken,tokenType,googleApiKey," +
-      "payload,messageId,dateCreatedUTC,appId) VALUES (?,?,?,?,?,?,?,?)";
+      "payload,messageId,dateCreatedUTC,appId,shard) VALUES (?,?,?,?,?,?,?,?,?)";
 
   private static final String WAKEUP_SELECT_BY_LIMIT = "SELECT id, deviceId,clientToken,tokenType,googleApiKey," +
       "payload,messageId,dateCreatedUTC, appId FROM mmxWakeupQueue WHERE dateSentUTC IS NULL AND clientToken IS NOT NULL ORDER BY dateCreatedUTC LIMIT ?";
 
+  private static final String WAKEUP_SELECT_BY_SHARD = "SELECT id, deviceId,clientToken,tokenType,googleApiKey," +
+      "payload,messageId,dateCreatedUTC, appId FROM mmxWakeupQueue WHERE %s AND dateSentUTC IS NULL AND " +
+      "clientToken IS NOT NULL ORDER BY dateCreatedUTC LIMIT ?";
+
   private static final String WAKEUP_UPDATE = "UPDATE mmxWakeupQueue SET dateSentUTC = ? WHERE dateSentUTC IS NULL AND id = ?";
 
   private static final String DELETE_INVALID_WAKEUP_RECORDS = "DELETE FROM mmxWakeupQueue " +
@@ -76,6 +85,7 @@ public class WakeupEntityDAOImpl implements WakeupEntityDAO {
       pstmt.setString(6, entity.getMessageId());
       pstmt.setLong(7, Long.valueOf((new Date().getTime())/1000L));
       pstmt.setString(8, entity.getAppId());
+      pstmt.setInt(9, WakeupShardManager.shardOf(entity.getDeviceId(), getShardCount()));
       pstmt.executeUpdate();
       pstmt.close();
       con.close();
@@ -113,6 +123,45 @@ public class WakeupEntityDAOImpl implements WakeupEntityDAO {
     return returnList;
   }
 
+  @Override
+  public List<WakeupEntity> poll(int maxCount, int shardCount, List<Integer> shards) {
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    List<WakeupEntity> returnList = new ArrayList<WakeupEntity>(10);
+    //records queued with a larger shard count belong to shard 0
+    boolean orphans = shards.contains(0);
+    String condition = "shard IN (" + SqlUtil.getQs(shards.size()) + ")";
+    if (orphans) {
+      condition = "(" + condition + " OR shard >= ?)";
+    }
+    try {
+      con = provider.getConnection();
+      pstmt = con.prepareStatement(String.format(WAKEUP_SELECT_BY_SHARD, condition));
+      int index = 1;
+      for (Integer shard : shards) {
+        pstmt.setInt(index++, shard);
+      }
+      if (orphans) {
+        pstmt.setInt(index++, shardCount);
+      }
+      pstmt.setInt(index, maxCount);
+      rs = pstmt.executeQuery();
+      while (rs.next()) {
+        WakeupEntity pae = new WakeupEntity.WakeupEntityBuilder().build(rs);
+        returnList.add(pae);
+      }
+      rs.close();
+      pstmt.close();
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      throw new DbInteractionException(e);
+    } finally {
+      CloseUtil.close(LOGGER, rs, pstmt, con);
+    }
+    return returnList;
+  }
+
   @Override
   public void complete(WakeupEntity entity) {
     if (entity.getDateSent() == null) {
@@ -136,6 +185,43 @@ public class WakeupEntityDAOImpl implements WakeupEntityDAO {
     }
   }
 
+  @Override
+  public void complete(List<WakeupEntity> entities) {
+    if (entities == null || entities.isEmpty()) {
+      return;
+    }
+    for (WakeupEntity entity : entities) {
+      if (entity.getDateSent() == null) {
+        throw new IllegalArgumentException("Invalid date sent");
+      }
+    }
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    boolean autoCommit = true;
+    try {
+      con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      pstmt = con.prepareStatement(WAKEUP_UPDATE);
+      for (WakeupEntity entity : entities) {
+        pstmt.setLong(1, entity.getDateSent());
+        pstmt.setInt(2, entity.getId());
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+      con.commit();
+      pstmt.close();
+    } catch (SQLException sqle) {
+      LOGGER.warn("SQL Exception in completing {} wakeup records", entities.size(), sqle);
+      SqlUtil.rollback(LOGGER, con);
+      throw new DbInteractionException(sqle);
+    } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
+
   @Override
   public int remove(String appId, PushType type, String token) {
     Connection con = null;
@@ -158,6 +244,39 @@ public class WakeupEntityDAOImpl implements WakeupEntityDAO {
     }
   }
 
+  @Override
+  public int remove(String appId, PushType type, List<String> tokens) {
+    if (tokens == null || tokens.isEmpty()) {
+      return 0;
+    }
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    boolean autoCommit = true;
+    try {
+      con = provider.getConnection();
+      autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      pstmt = con.prepareStatement(DELETE_INVALID_WAKEUP_RECORDS);
+      for (String token : tokens) {
+        pstmt.setString(1, appId);
+        pstmt.setString(2, type.name());
+        pstmt.setString(3, token);
+        pstmt.addBatch();
+      }
+      int deleteCount = SqlUtil.sumUpdateCounts(pstmt.executeBatch());
+      con.commit();
+      pstmt.close();
+      return deleteCount;
+    } catch (SQLException sqle) {
+      LOGGER.warn("SQL Exception in removing wakeup records for {} tokens", tokens.size(), sqle);
+      SqlUtil.rollback(LOGGER, con);
+      throw new DbInteractionException(sqle);
+    } finally {
+      SqlUtil.restoreAutoCommit(LOGGER, con, autoCommit);
+      CloseUtil.close(LOGGER, pstmt, con);
+    }
+  }
+
   @Override
   public void remove(int wakeupEntityId) {
     Connection con = null;
@@ -214,4 +333,12 @@ public class WakeupEntityDAOImpl implements WakeupEntityDAO {
   protected Date currentTime() {
     return new Date();
   }
+
+  /**
+   * @return number of shards the wakeup queue is split into
+   */
+  protected int getShardCount() {
+    return Math.max(1, MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.WAKEUP_SHARD_COUNT,
+        MMXServerConstants.DEFAULT_WAKEUP_SHARD_COUNT));
+  }
 }
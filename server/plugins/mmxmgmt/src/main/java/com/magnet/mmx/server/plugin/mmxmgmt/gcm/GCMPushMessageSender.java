@@ -14,6 +14,8 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.gcm;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
 import com.google.android.gcm.server.Constants;
 import com.google.android.gcm.server.Message;
 import com.google.android.gcm.server.MulticastResult;
@@ -28,6 +30,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.api.push.PushIdTuple;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.push.PushResult;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Unsent;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.ConnectionProvider;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DbInteractionException;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceEntity;
@@ -37,6 +40,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.db.PushMessageDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.PushMessageDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.PushMessageEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.PushStatus;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.CallbackUrlUtil;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.MMXPushGCMPayloadBuilder;
 import com.magnet.mmx.server.plugin.mmxmgmt.push.PushIdGenerator;
@@ -55,6 +59,9 @@ import java.util.List;
  */
 public class GCMPushMessageSender {
   private static Logger LOGGER = LoggerFactory.getLogger(GCMPushMessageSender.class);
+  private static final Timer SEND = MMXMetrics.timer("push.gcm.send");
+  private static final Counter SENT = MMXMetrics.counter("push.gcm.sent");
+  private static final Counter UNSENT = MMXMetrics.counter("push.gcm.unsent");
   private final int RETRY_COUNT = 1;
   private AppEntity appEntity;
   private Options options;
@@ -81,6 +88,7 @@ public class GCMPushMessageSender {
 
 
   public PushResult sendPush(List<DeviceEntity> deviceList, MMXPushGCMPayloadBuilder builder) {
+    long startTime = System.nanoTime();
     int sentCount = 0;
     int unsentCount = 0;
     int requested = deviceList.size();
@@ -103,6 +111,7 @@ public class GCMPushMessageSender {
       PushMessageDAO messageDAO = new PushMessageDAOImpl(getConnectionProvider());
       DeviceDAO deviceDAO = new DeviceDAOImpl(getConnectionProvider());
       PushIdGenerator generator = new PushIdGeneratorImpl();
+      List<PushMessageEntity> pushMessages = new ArrayList<PushMessageEntity>(deviceList.size());
       Integer ttl = null;
       if (hasOptions && options.getTtl() != null) {
         ttl =  options.getTtl();
@@ -169,7 +178,7 @@ public class GCMPushMessageSender {
         if (nresult == NotificationResult.DELIVERY_IN_PROGRESS_ASSUME_WILL_EVENTUALLY_DELIVER ||
             nresult == NotificationResult.DELIVERED ||
             nresult == NotificationResult.DELIVERY_IN_PROGRESS_REMIND_AGAIN) {
-          writePushMessage(messageDAO, pushId, appId, deviceId);
+          pushMessages.add(buildPushMessage(pushId, appId, deviceId));
           sentCount++;
           PushIdTuple tuple = new PushIdTuple(deviceId, pushId);
           sentList.add(tuple);
@@ -192,7 +201,11 @@ public class GCMPushMessageSender {
           unsentCount++;
         }
       }
+      writePushMessages(messageDAO, pushMessages);
     }
+    MMXMetrics.time(SEND, startTime);
+    SENT.inc(sentCount);
+    UNSENT.inc(unsentCount);
     Count resultCount = new Count(requested, sentCount, unsentCount);
     PushResult result = new PushResult();
     result.setCount(resultCount);
@@ -206,20 +219,28 @@ public class GCMPushMessageSender {
   }
 
 
-  protected void writePushMessage(PushMessageDAO pushMessageDAO, String messageId, String appId, String deviceId) {
-    this.writePushMessage(pushMessageDAO, messageId, appId, deviceId, PushMessageEntity.PushMessageType.API_PUSH);
-  }
-
-  protected void writePushMessage(PushMessageDAO pushMessageDAO, String messageId, String appId, String deviceId, PushMessageEntity.PushMessageType type) {
+  protected PushMessageEntity buildPushMessage(String messageId, String appId, String deviceId) {
     PushMessageEntity message = new PushMessageEntity();
     message.setAppId(appId);
     message.setDeviceId(deviceId);
     message.setMessageId(messageId);
     message.setState(PushMessageEntity.PushMessageState.PUSHED);
-    message.setType(type);
-    pushMessageDAO.add(message);
-    if (LOGGER.isTraceEnabled()) {
-      LOGGER.trace("Push Message with id : " + messageId + " added.");
+    message.setType(PushMessageEntity.PushMessageType.API_PUSH);
+    return message;
+  }
+
+  /**
+   * Write the records of the sent pushes in one batch. The pushes have already been sent, so a
+   * failure is only logged.
+   */
+  protected void writePushMessages(PushMessageDAO pushMessageDAO, List<PushMessageEntity> messages) {
+    try {
+      pushMessageDAO.addAll(messages);
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("Added {} push messages", messages.size());
+      }
+    } catch (DbInteractionException e) {
+      LOGGER.warn("Failed to add {} push message records", messages.size(), e);
     }
   }
 
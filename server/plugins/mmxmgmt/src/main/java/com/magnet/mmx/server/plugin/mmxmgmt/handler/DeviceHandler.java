@@ -155,8 +155,15 @@ public class DeviceHandler extends IQHandler {
         LOGGER.trace("processRegistration : updateDevice resultCount={}, deviceId={}", rowCount, deviceRequest.getDevId());
         deviceDAO.updatePushStatus(deviceRequest.getDevId(), Helper.enumerateOSType(deviceRequest.getOsType()), appId, status);
       }
+      DeviceCache cache = DeviceCache.getInstance();
+      cache.invalidate(appId, userId, deviceRequest.getDevId());
+      if (deviceEntity.getOwnerId() != null && !deviceEntity.getOwnerId().equals(userId)) {
+        //device changed owners; the previous owner's device list is stale too
+        cache.invalidate(appId, deviceEntity.getOwnerId(), deviceRequest.getDevId());
+      }
     } else {
       int id =  deviceDAO.addDevice(userId, appId, deviceRequest);
+      DeviceCache.getInstance().invalidate(appId, userId, deviceRequest.getDevId());
       if (LOGGER.isDebugEnabled()) {
         LOGGER.debug(String.format("Device created with id:%d using request:%s for app id: %s", id, deviceRequest.toString(), appId));
       }
@@ -179,6 +186,7 @@ public class DeviceHandler extends IQHandler {
       return error;
     }
     int id = deviceDAO.deactivateDevice(rqt.getDevId());
+    DeviceCache.getInstance().invalidateDevice(rqt.getDevId());
     MMXStatus devResp = new MMXStatus()
       .setCode(DeviceOperationStatusCode.DEVICE_UNREGISTERED.getCode());
     return IQUtils.createResultIQ(input, devResp.toJson());
@@ -34,6 +34,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.event.MMXMaxAppLimitReachedEvent;
 import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MaxAppLimitExceededException;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.AlertEventsManager;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.AlertsUtil;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.AppEntityDBLoadingEntityCache;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.AppIDGenerator;
 import com.magnet.mmx.util.AppHelper;
 import com.magnet.mmx.util.Utils;
@@ -174,6 +175,7 @@ public class MMXAppManager {
     }
     AppDAO appDAO = new AppDAOImpl(new OpenFireDBConnectionProvider());
     appDAO.updateApp(appId, appName, googleApiKey, googleProjectId, apnsPwd, null, null, false);
+    AppEntityDBLoadingEntityCache.getInstance().purge(appId);
 
     MMXStatus result = new MMXStatus();
     result.setCode(HttpServletResponse.SC_OK);
@@ -208,6 +210,7 @@ public class MMXAppManager {
     // delete all the users for this appId
 
     appDAO.deleteApp(appId);
+    AppEntityDBLoadingEntityCache.getInstance().purge(appId);
   }
 
   private User createUser(String userName, String password, String displayName)
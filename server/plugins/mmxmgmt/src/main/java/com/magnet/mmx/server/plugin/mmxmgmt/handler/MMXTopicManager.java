@@ -41,6 +41,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.db.TopicDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.TopicEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.handler.ConfigureForm.PublishModel;
 import com.magnet.mmx.server.plugin.mmxmgmt.pubsub.PubSubPersistenceManagerExt;
+import com.magnet.mmx.server.plugin.mmxmgmt.pubsub.TopicIndex;
 import com.magnet.mmx.server.plugin.mmxmgmt.pubsub.TopicQueryBuilder;
 import com.magnet.mmx.server.plugin.mmxmgmt.search.PaginationInfo;
 import com.magnet.mmx.server.plugin.mmxmgmt.topic.TopicNode;
@@ -84,7 +85,9 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
@@ -278,6 +281,7 @@ public class MMXTopicManager {
     } else {
       LOGGER.trace("Deleting topic with id:" + topicId);
       gonner.delete();
+      TopicIndex.getInstance().nodeDeleted(appId, topicId);
       result.setSuccess(true);
       result.setNode(TopicNode.build(appId, gonner));
       result.setMessage(INVALID_TOPIC_ID);
@@ -340,6 +344,10 @@ public class MMXTopicManager {
       }
       node.saveToDB();
       CacheFactory.doClusterTask(new RefreshNodeTask(node));
+      if (parentNode == null) {
+        // A new app root node; the index for the app is built again from it.
+        TopicIndex.getInstance().invalidate(nodeId);
+      }
       result = node;
     }
     return (CollectionNode) result;
@@ -664,12 +672,14 @@ public class MMXTopicManager {
           
 //          LOGGER.trace("delete leaf node=" + node.getNodeID());
           child.delete();
+          TopicIndex.getInstance().nodeDeleted(TopicHelper.getRootNodeId(child.getNodeID()), child.getNodeID());
           ++count;
         }
       }
     }
 //    LOGGER.trace("delete node="+node.getNodeID());
     node.delete();
+    TopicIndex.getInstance().nodeDeleted(TopicHelper.getRootNodeId(node.getNodeID()), node.getNodeID());
     ++count;
     return count;
   }
@@ -843,6 +853,7 @@ public class MMXTopicManager {
     // slower because it saves to DB and update the cluster.
     subscription = node.createSubscription(null, owner, subscriber, false,
         optionsForm);
+    TopicIndex.getInstance().subscribed(appId, realTopic, owner);
     
     TopicAction.SubscribeResponse resp = new TopicAction.SubscribeResponse(
         subscription.getID(), StatusCode.SUCCESS.getCode(), 
@@ -868,6 +879,9 @@ public class MMXTopicManager {
         node.cancelSubscription(subscription);
       }
     }
+    if (node.getSubscriptions(owner).isEmpty()) {
+      TopicIndex.getInstance().unsubscribed(appId, realTopic, owner);
+    }
     if (count == 0) {
       throw new MMXException(StatusCode.GONE.getMessage(),
           StatusCode.GONE.getCode());
@@ -881,20 +895,20 @@ public class MMXTopicManager {
   
   public MMXStatus unsubscribeForDev(JID from, String appId, 
                   TopicAction.UnsubscribeForDevRequest rqt) throws MMXException {
-    String prefix = TopicHelper.TOPIC_DELIM + appId + TopicHelper.TOPIC_DELIM;
     int count = 0;
     JID owner = from.asBareJID();
     String devId = rqt.getDevId();
-    for (Node node : mPubSubModule.getNodes()) {
-      if (!node.getNodeID().startsWith(prefix)) {
-        continue;
-      }
+    TopicIndex topicIndex = TopicIndex.getInstance();
+    for (Node node : topicIndex.getSubscribedNodes(appId, owner)) {
       for (NodeSubscription subscription : node.getSubscriptions(owner)) {
         if (devId.equals(subscription.getJID().getResource())) {
           ++count;
           node.cancelSubscription(subscription);
         }
       }
+      if (node.getSubscriptions(owner).isEmpty()) {
+        topicIndex.unsubscribed(appId, node.getNodeID(), owner);
+      }
     }
     MMXStatus status = (new MMXStatus())
         .setCode(StatusCode.SUCCESS.getCode())
@@ -1382,35 +1396,33 @@ public class MMXTopicManager {
     }
 
     // Don't query the DB directly because some items are cached in memory.
-    // Besides, it is faster looping through all cached nodes in memory than 
-    // query the ofPubsubSubscription table because # of nodes should be many
-    // less than # of subscriptions.
-    
-    String prefix = TopicHelper.makePrefix(appId);
+    // Only the nodes subscribed by the user and the descendants of the
+    // subscribed collection nodes are visited; they come from the topic index
+    // instead of a scan of all nodes.
     
     // Find all collection nodes subscribed by the user.
     TreeMap<String, Node> colNodes = new TreeMap<String, Node>();
-    for (Node node : mPubSubModule.getNodes()) {
-      if (!node.getNodeID().startsWith(prefix)) {
-        // Skip topics that do not belong to this app.
+    Map<String, Node> candidates = new LinkedHashMap<String, Node>();
+    for (Node node : TopicIndex.getInstance().getSubscribedNodes(appId, fromUser)) {
+      Collection<NodeSubscription> subs = node.getSubscriptions(fromUser);
+      if (subs == null || subs.size() == 0) {
         continue;
       }
+      candidates.put(node.getNodeID(), node);
       if (node.isCollectionNode()) {
-        Collection<NodeSubscription> subs = node.getSubscriptions(fromUser);
-        if (subs != null && subs.size() > 0) {
-          colNodes.put(node.getNodeID(), node);
-          LOGGER.trace("Collection node=" + node.getNodeID() + " is subscribed");
-        }
+        colNodes.put(node.getNodeID(), node);
+        LOGGER.trace("Collection node=" + node.getNodeID() + " is subscribed");
       }
     }
+    for (Node colNode : colNodes.values()) {
+      addDescendants(candidates, colNode);
+    }
     
     int numSent = 0, numSubs = 0;
     int maxItems = rqt.getMaxItems();
-    for (Node node : mPubSubModule.getNodes()) {
-      if (!node.getNodeID().startsWith(prefix)) {
-        // Skip topics that do not belong to this app.
-        continue;
-      }
+    List<LeafNode> burstNodes = new ArrayList<LeafNode>();
+    List<Collection<NodeSubscription>> burstSubs = new ArrayList<Collection<NodeSubscription>>();
+    for (Node node : candidates.values()) {
       if (maxItems == 1) {
         // Check the leaf node if its last published item should be sent.
         PublishedItem item = node.getLastPublishedItem();
@@ -1466,29 +1478,23 @@ public class MMXTopicManager {
           }
         }
 
-//        LOGGER.trace("Fetch published items from "+node.getNodeID()+", since="+since);
-        List<PublishedItem> items = PubSubPersistenceManagerExt.getPublishedItems(
-            (LeafNode) node, maxItems, since);
-        if (items == null || items.size() == 0) {
-//          LOGGER.trace("No published items in "+node.getNodeID()+", since="+since);
-          continue;
-        }
-        
-        // Either the leaf node or ancestor node has subscriptions with the
-        // latest published item.
-        numSubs += subs.size();
-        for (NodeSubscription sub : subs) {
-          if (sendLastPublishedItems(items, sub, from)) {
-            numSent += items.size();
-//            LOGGER.trace("Sent last published #items="+items.size()+
-//                        ", sub ID="+sub.getID());
-          } else {
-//            LOGGER.warn("cannot send last published items="+items.size()+
-//                        ", sub ID="+sub.getID());
-          }
+        // The published items are fetched for a burst of nodes at a time.
+        burstNodes.add((LeafNode) node);
+        burstSubs.add(subs);
+        if (burstNodes.size() >= PubSubPersistenceManagerExt.MAX_NODES_PER_QUERY) {
+          int[] counts = sendLastPublishedItems(burstNodes, burstSubs, maxItems, since, from);
+          numSubs += counts[0];
+          numSent += counts[1];
+          burstNodes.clear();
+          burstSubs.clear();
         }
       }
     }
+    if (!burstNodes.isEmpty()) {
+      int[] counts = sendLastPublishedItems(burstNodes, burstSubs, maxItems, since, from);
+      numSubs += counts[0];
+      numSent += counts[1];
+    }
     
     MMXStatus status = (new MMXStatus())
         .setCode(Constants.STATUS_CODE_200)
@@ -1496,6 +1502,49 @@ public class MMXTopicManager {
     return status;
   }
   
+  // Fetch the published items of the nodes in one query and send them to the
+  // subscriptions of each node.
+  // @return the number of subscriptions and the number of items sent.
+  private int[] sendLastPublishedItems(List<LeafNode> nodes,
+      List<Collection<NodeSubscription>> nodeSubs, int maxItems, Date since, JID from)
+      throws MMXException {
+    int numSubs = 0, numSent = 0;
+    Map<String, List<PublishedItem>> nodeItems;
+    try {
+      nodeItems = PubSubPersistenceManagerExt.getPublishedItems(nodes, maxItems, since);
+    } catch (SQLException e) {
+      // Don't report a failure to read the items as topics without items.
+      throw new MMXException(e.getMessage(), StatusCode.SERVER_ERROR.getCode());
+    }
+    for (int i = 0; i < nodes.size(); i++) {
+      List<PublishedItem> items = nodeItems.get(nodes.get(i).getNodeID());
+      if (items == null || items.size() == 0) {
+        continue;
+      }
+      // Either the leaf node or ancestor node has subscriptions with the
+      // latest published item.
+      Collection<NodeSubscription> subs = nodeSubs.get(i);
+      numSubs += subs.size();
+      for (NodeSubscription sub : subs) {
+        if (sendLastPublishedItems(items, sub, from)) {
+          numSent += items.size();
+        }
+      }
+    }
+    return new int[] { numSubs, numSent };
+  }
+
+  private void addDescendants(Map<String, Node> nodes, Node node) {
+    for (Node child : node.getNodes()) {
+      if (!nodes.containsKey(child.getNodeID())) {
+        nodes.put(child.getNodeID(), child);
+        if (child.isCollectionNode()) {
+          addDescendants(nodes, child);
+        }
+      }
+    }
+  }
+
   private Node findAncestor(TreeMap<String, Node> map, Node node) {
     Entry<String, Node> entry = map.floorEntry(node.getNodeID());
     if ((entry != null) && node.getNodeID().startsWith(entry.getKey())) {
@@ -152,53 +152,39 @@ public class MessageStateHandler extends IQHandler {
     }
     MsgsState.Response response = new MsgsState.Response();
     MessageDAO dao = getMessageDAO();
-    // TODO: it would be more efficient if the DAO can get messages with a list
-    // of message ID's.
+    Map<String, List<MessageEntity>> messages = dao.getMessages(appId, requestList);
     for (String messageId : requestList) {
-      List<MessageEntity> messageList = dao.getMessages(appId, messageId);
-      if (messageList.size() == 0) {
+      List<MessageEntity> messageList = messages.get(messageId);
+      if (messageList == null || messageList.size() == 0) {
         // For non-existing message ID, return UNKNOWN state.
         MessageStatusList list = new MessageStatusList(1);
         list.add(UNKNOWN_MSG_STATUS);
         response.put(messageId, list);
         continue;
       }
-      HashMap<String, HashMap<String, MessageEntity.MessageState>> result = new
-          HashMap<String, HashMap<String, MessageEntity.MessageState>>();
+      HashMap<String, MessageEntity.MessageState> userMsg = new HashMap<String, MessageEntity.MessageState>();
       for (MessageEntity me : messageList) {
-        HashMap<String, MessageEntity.MessageState> userMsg = result.get(messageId);
-        if (userMsg == null) {
-          userMsg = new HashMap<String, MessageEntity.MessageState>();
-          result.put(messageId, userMsg);
-        }
         String userId = JIDUtil.getUserId(me.getTo());
         MessageEntity.MessageState state = userMsg.get(userId);
-        if (state == null) {
-          state = me.getState();
-          userMsg.put(userId, state);
-        } else {
-          if (state.getPriority() < me.getState().getPriority()) {
-            // Do the state aggregation; use the priority of a state.
-            // If multiple states having same priority is supported, it should 
-            // consider device priority and the modified time.
-            userMsg.put(userId, me.getState());
-          }
+        if (state == null || state.getPriority() < me.getState().getPriority()) {
+          // Do the state aggregation; use the priority of a state.
+          // If multiple states having same priority is supported, it should
+          // consider device priority and the modified time.
+          userMsg.put(userId, me.getState());
         }
       }
 
       // Convert the aggregated result to the final response.
       // TODO: consolidate the MessageEntity.MessageState with Constants.MessageState
-      for (Map.Entry<String, HashMap<String, MessageEntity.MessageState>> entry : result.entrySet()) {
-        MessageStatusList list = new MessageStatusList(entry.getValue().size());
-        for (Map.Entry<String, MessageEntity.MessageState> stateEntry : entry.getValue().entrySet()) {
-          list.add(new MsgsState.MessageStatus()
-            .setRecipient(stateEntry.getKey())
-            .setState(Constants.MessageState.valueOf(stateEntry.getValue().toString())));
-        }
-        response.put(entry.getKey(), list);
+      MessageStatusList list = new MessageStatusList(userMsg.size());
+      for (Map.Entry<String, MessageEntity.MessageState> stateEntry : userMsg.entrySet()) {
+        list.add(new MsgsState.MessageStatus()
+          .setRecipient(stateEntry.getKey())
+          .setState(Constants.MessageState.valueOf(stateEntry.getValue().toString())));
       }
+      response.put(messageId, list);
     }
-    
+
     return IQUtils.createResultIQ(source, response.toJson());
   }
 
@@ -19,6 +19,7 @@ import com.magnet.mmx.protocol.MMXStatus;
 import com.magnet.mmx.protocol.MsgAck;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageDAOImpl;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageWriteBehindQueue;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.OpenFireDBConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.IQUtils;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.JIDUtil;
@@ -60,10 +61,16 @@ public class MsgAckIQHandler extends IQHandler {
 
       String appId = JIDUtil.getAppId(to);
       String deviceId = JIDUtil.getResource(to);
-      MessageDAO messageDAO = getMessageDAO();
-      int count = messageDAO.messageDelivered(appId, deviceId, messageId);
-      if (count == 0) {
-        LOGGER.warn(String.format("No message updated for appId:%s deviceId:%s messageId:%s", appId, deviceId, messageId));
+      MessageWriteBehindQueue queue = MessageWriteBehindQueue.getInstance();
+      if (queue.isRunning()) {
+        //the insert of the message may still be queued
+        queue.messageDelivered(appId, deviceId, messageId);
+      } else {
+        MessageDAO messageDAO = getMessageDAO();
+        int count = messageDAO.messageDelivered(appId, deviceId, messageId);
+        if (count == 0) {
+          LOGGER.warn(String.format("No message updated for appId:%s deviceId:%s messageId:%s", appId, deviceId, messageId));
+        }
       }
     } catch (Throwable t) {
       LOGGER.warn("Throwable in handleIQ", t);
@@ -0,0 +1,80 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.hook;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker for a single hook.
+ * <p>
+ * The circuit opens after failureThreshold consecutive failures. While it is open no requests are
+ * allowed. Once openMillis have passed a single trial request is allowed; success closes the
+ * circuit and failure keeps it open for another openMillis.
+ */
+public class HookCircuitBreaker {
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openMillis;
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicLong retryAt = new AtomicLong();
+
+  public HookCircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * @return true if a request can be made now
+   */
+  public boolean allowRequest() {
+    if (consecutiveFailures.get() < failureThreshold) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    long at = retryAt.get();
+    //only one caller gets the trial request
+    return now >= at && retryAt.compareAndSet(at, now + openMillis);
+  }
+
+  public void success() {
+    consecutiveFailures.set(0);
+  }
+
+  public void failure() {
+    if (consecutiveFailures.incrementAndGet() == failureThreshold) {
+      retryAt.set(System.currentTimeMillis() + openMillis);
+    }
+  }
+
+  /**
+   * @return time in milliseconds at which a trial request is allowed once the circuit is open
+   */
+  public long getRetryAt() {
+    return retryAt.get();
+  }
+
+  public State getState() {
+    if (consecutiveFailures.get() < failureThreshold) {
+      return State.CLOSED;
+    }
+    return System.currentTimeMillis() >= retryAt.get() ? State.HALF_OPEN : State.OPEN;
+  }
+}
@@ -0,0 +1,78 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.hook;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.HookDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.HookEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the hooks defined for an app and hook type. Most apps have no hooks, so the empty
+ * result is cached as well. Entries expire after a short time so hooks added on another cluster
+ * member are picked up.
+ */
+public class HookRegistry {
+  private static HookRegistry instance = new HookRegistry(MMXServerConstants.DEFAULT_HOOK_REGISTRY_TTL_SECONDS);
+
+  private final Cache<String, List<HookEntity>> hooks;
+
+  HookRegistry(int ttlSeconds) {
+    hooks = CacheBuilder.newBuilder()
+        .maximumSize(MMXServerConstants.HOOK_REGISTRY_MAX_SIZE)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  public static HookRegistry getInstance() {
+    return instance;
+  }
+
+  /**
+   * Get the hooks for an app and type, loading them using the DAO if they are not cached.
+   * @param hookDAO
+   * @param appId
+   * @param hookType
+   * @return unmodifiable list of hooks
+   */
+  public List<HookEntity> getHooks(HookDAO hookDAO, String appId, HookType hookType) {
+    String key = key(appId, hookType);
+    List<HookEntity> list = hooks.getIfPresent(key);
+    if (list == null) {
+      list = Collections.unmodifiableList(hookDAO.getHooks(appId, hookType));
+      hooks.put(key, list);
+    }
+    return list;
+  }
+
+  /**
+   * Drop the cached hooks of an app.
+   * @param appId
+   */
+  public void invalidate(String appId) {
+    for (HookType type : HookType.values()) {
+      hooks.invalidate(key(appId, type));
+    }
+  }
+
+  private static String key(String appId, HookType hookType) {
+    return appId + '\u0000' + hookType.name();
+  }
+}
@@ -17,20 +17,12 @@ package com.magnet.mmx.server.plugin.mmxmgmt.hook;
 import com.magnet.mmx.protocol.Constants;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.HookEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.JIDUtil;
-import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import com.magnet.mmx.util.GsonData;
 import com.magnet.mmx.util.JSONifiable;
 import org.dom4j.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.ws.rs.core.MediaType;
-import java.io.BufferedOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -69,54 +61,13 @@ public class MessageWithMetaHookProcessor implements HookProcessor {
         info.setDeviceId(context.getDeviceId());
         info.setRecipientUsernames(Collections.singletonList(JIDUtil.getUserId(context.getToJID())));
         String jsonPayload = info.toJson();
-        LOGGER.info("Posting json payload:" + jsonPayload);
-        int responseCode = processHookPost(hook, context.getAppId(), jsonPayload);
-        if (responseCode == 200) {
-          LOGGER.info("hook information posted");
-        } else {
-          LOGGER.warn("Response code:{} when posting payload:{} to {}", responseCode, payload, hook.getTargetURL());
-        }
+        LOGGER.debug("Posting json payload:{}", jsonPayload);
+        WebHookDispatcher.getInstance().dispatch(hook, context.getAppId(), jsonPayload);
       }
     }
   }
 
 
-  protected static int processHookPost(HookEntity entity, String appId, String payload) {
-    String targetURL = entity.getTargetURL();
-    LOGGER.debug("Sending POST to " + targetURL);
-
-    try {
-      HttpURLConnection urlConnection = getConnection(targetURL);
-      urlConnection.setDoOutput(true);
-      urlConnection.setUseCaches(false);
-      urlConnection.setRequestMethod(METHOD_POST);
-      urlConnection.setRequestProperty(CONTENT_TYPE, MediaType.APPLICATION_JSON_TYPE.toString());
-      urlConnection.setRequestProperty(MMXServerConstants.HTTP_HEADER_APP_ID, appId);
-      OutputStream out = urlConnection.getOutputStream();
-      OutputStreamWriter outputStreamWriter = new OutputStreamWriter(new BufferedOutputStream(out), Constants.UTF8_CHARSET);
-      outputStreamWriter.write(payload);
-      outputStreamWriter.flush();
-      outputStreamWriter.close();
-      out.close();
-      int responseCode = urlConnection.getResponseCode();
-      urlConnection.disconnect();
-      return responseCode;
-    } catch (IOException e) {
-      LOGGER.warn("IOException in posting to target URL", e);
-      return -1;
-    }
-  }
-
-
-  /**
-   * Gets an {@link HttpURLConnection} given an URL.
-   */
-  protected static HttpURLConnection getConnection(String url) throws IOException {
-    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-    return conn;
-  }
-
-
   /**
    * Check if the message meta dictionary contains atleast one key value that matches corresponding key value in eventconfig
    *
@@ -35,12 +35,7 @@ public class UserCreateHookProcessor implements HookProcessor {
     info.setDisplayName(context.getDisplayName());
     info.setUserName(context.getUserName());
     String payload = info.toJson();
-    int responseCode = MessageWithMetaHookProcessor.processHookPost(hook, context.getAppId(), payload);
-    if (responseCode == 200) {
-      LOGGER.info("hook information posted");
-    } else {
-      LOGGER.warn("Response code:{} when posting payload:{} to {}", responseCode, payload, hook.getTargetURL());
-    }
+    WebHookDispatcher.getInstance().dispatch(hook, context.getAppId(), payload);
   }
 
 
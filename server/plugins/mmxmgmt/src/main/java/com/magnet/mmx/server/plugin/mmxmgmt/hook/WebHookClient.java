@@ -0,0 +1,86 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.hook;
+
+import com.magnet.mmx.protocol.Constants;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Posts JSON payloads to webhook targets.
+ * <p>
+ * The response body is always read to the end and the stream closed instead of disconnecting,
+ * which lets the JDK keep-alive cache reuse the connection for the next post to the same host.
+ */
+public class WebHookClient {
+  public static final String METHOD_POST = "POST";
+  public static final String CONTENT_TYPE = "Content-Type";
+  private static final int DRAIN_BUFFER_SIZE = 1024;
+
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+
+  public WebHookClient(int connectTimeoutMillis, int readTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  /**
+   * Post the payload to the target URL.
+   * @param targetURL
+   * @param appId value for the appId header
+   * @param payload JSON payload
+   * @return HTTP response code
+   * @throws IOException if the target couldn't be reached
+   */
+  public int post(String targetURL, String appId, String payload) throws IOException {
+    HttpURLConnection urlConnection = (HttpURLConnection) new URL(targetURL).openConnection();
+    urlConnection.setConnectTimeout(connectTimeoutMillis);
+    urlConnection.setReadTimeout(readTimeoutMillis);
+    urlConnection.setDoOutput(true);
+    urlConnection.setUseCaches(false);
+    urlConnection.setRequestMethod(METHOD_POST);
+    urlConnection.setRequestProperty(CONTENT_TYPE, MediaType.APPLICATION_JSON_TYPE.toString());
+    urlConnection.setRequestProperty(MMXServerConstants.HTTP_HEADER_APP_ID, appId);
+    byte[] body = payload.getBytes(Constants.UTF8_CHARSET);
+    urlConnection.setFixedLengthStreamingMode(body.length);
+    OutputStream out = urlConnection.getOutputStream();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+    int responseCode = urlConnection.getResponseCode();
+    InputStream in = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ? urlConnection.getErrorStream() :
+        urlConnection.getInputStream();
+    if (in != null) {
+      try {
+        byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        while (in.read(buffer) != -1) {
+          //drain so that the connection can be reused
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return responseCode;
+  }
+}
@@ -0,0 +1,535 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.hook;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.HookDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.HookEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers webhook payloads asynchronously.
+ * <p>
+ * Events are placed on a bounded queue and posted by a pool of worker threads. Events for the
+ * same hook that are queued together are posted as a single JSON array when the batch size is
+ * more than one. Failed posts are retried with an exponential backoff; events that still fail
+ * after the maximum number of attempts, or that can't be queued, are written to the dead letter
+ * table. Every hook has a {@link HookCircuitBreaker}, so a failing target doesn't hold up the
+ * workers, and a latency timer. Events for a hook whose circuit is open are queued again when
+ * the circuit allows a trial request; that doesn't count as an attempt.
+ * <p>
+ * If the dispatcher hasn't been initialized, events are posted once on the calling thread.
+ */
+public class WebHookDispatcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WebHookDispatcher.class);
+  private static final long POLL_MILLIS = 100L;
+
+  private static WebHookDispatcher instance = new WebHookDispatcher();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+
+  private HookDAO hookDAO;
+  private WebHookClient client = new WebHookClient(MMXServerConstants.DEFAULT_WEBHOOK_CONNECT_TIMEOUT_MILLIS,
+      MMXServerConstants.DEFAULT_WEBHOOK_READ_TIMEOUT_MILLIS);
+  private BlockingQueue<HookEvent> queue;
+  private ExecutorService workers;
+  private ScheduledExecutorService retryScheduler;
+  private int batchSize = 1;
+  private int maxAttempts = 1;
+  private long retryBaseMillis;
+  private long retryMaxMillis;
+  private int breakerFailures = Integer.MAX_VALUE;
+  private long breakerOpenMillis;
+  private volatile boolean running;
+
+  private final Set<HookEvent> pendingRetries = Collections.newSetFromMap(new ConcurrentHashMap<HookEvent, Boolean>());
+  private final ConcurrentHashMap<Integer, HookStats> hookStats = new ConcurrentHashMap<Integer, HookStats>();
+  private final AtomicLong deliveredCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong retriedCount = new AtomicLong();
+  private final AtomicLong deadLetteredCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  WebHookDispatcher() {
+  }
+
+  public static WebHookDispatcher getInstance() {
+    return instance;
+  }
+
+  /**
+   * Lifecycle method. Start the delivery threads.
+   * @param hookDAO DAO used for writing dead letters
+   * @param settings delivery settings
+   * @throws java.lang.IllegalStateException if the dispatcher has already been initialized.
+   */
+  public static void initialize(HookDAO hookDAO, Settings settings) {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    instance.start(hookDAO, settings);
+    LOGGER.info("Webhook dispatcher is initialized with {}", settings);
+  }
+
+  /**
+   * Lifecycle method. Stop the delivery threads. Events that are still queued or waiting for a
+   * retry are written to the dead letter table.
+   * @param waitSeconds maximum time to wait for the in-flight posts
+   */
+  public static void teardown(long waitSeconds) {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
+    }
+    instance.stop(waitSeconds);
+    LOGGER.info("Webhook dispatcher stopped.");
+  }
+
+  void start(HookDAO hookDAO, Settings settings) {
+    this.hookDAO = hookDAO;
+    this.client = new WebHookClient(settings.connectTimeoutMillis, settings.readTimeoutMillis);
+    this.batchSize = Math.max(1, settings.batchSize);
+    this.maxAttempts = Math.max(1, settings.maxAttempts);
+    this.retryBaseMillis = settings.retryBaseMillis;
+    this.retryMaxMillis = settings.retryMaxMillis;
+    this.breakerFailures = settings.breakerFailures;
+    this.breakerOpenMillis = settings.breakerOpenMillis;
+    this.queue = new ArrayBlockingQueue<HookEvent>(Math.max(1, settings.queueSize));
+    int threads = Math.max(1, settings.threads);
+    this.workers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+        .setNameFormat("WebHookDispatcher-%d").setDaemon(true).build());
+    this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("WebHookRetry-%d").setDaemon(true).build());
+    running = true;
+    for (int i = 0; i < threads; i++) {
+      workers.execute(new Worker());
+    }
+  }
+
+  void stop(long waitSeconds) {
+    running = false;
+    retryScheduler.shutdownNow();
+    workers.shutdown();
+    try {
+      if (!workers.awaitTermination(waitSeconds, TimeUnit.SECONDS)) {
+        LOGGER.warn("stop : webhook workers didn't finish in {} seconds", waitSeconds);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<HookEvent> remaining = new ArrayList<HookEvent>(pendingRetries);
+    pendingRetries.clear();
+    queue.drainTo(remaining);
+    for (HookEvent event : remaining) {
+      deadLetter(event, -1, "dispatcher stopped");
+    }
+  }
+
+  /**
+   * Post the payload to the hook target.
+   * @param hook
+   * @param appId
+   * @param payload JSON payload
+   * @return false if the event couldn't be queued and was written to the dead letter table
+   */
+  public boolean dispatch(HookEntity hook, String appId, String payload) {
+    HookEvent event = new HookEvent(hook, appId, payload);
+    if (!running) {
+      deliver(Collections.singletonList(event), false);
+      return true;
+    }
+    if (queue.offer(event)) {
+      return true;
+    }
+    droppedCount.incrementAndGet();
+    LOGGER.warn("dispatch : webhook queue is full, dead lettering event for hook={}", hook.getId());
+    deadLetter(event, -1, "queue full");
+    return false;
+  }
+
+  /**
+   * Post a list of events for the same hook.
+   * @param events
+   * @param retry true if failed events should be retried
+   */
+  void deliver(List<HookEvent> events, boolean retry) {
+    HookEntity hook = events.get(0).hook;
+    HookStats stats = stats(hook);
+    if (!stats.breaker.allowRequest()) {
+      if (retry) {
+        deferred(events, stats.breaker.getRetryAt() - System.currentTimeMillis());
+      } else {
+        failed(events, -1, "circuit open", false);
+      }
+      return;
+    }
+    String body;
+    if (events.size() == 1) {
+      body = events.get(0).payload;
+    } else {
+      StringBuilder builder = new StringBuilder("[");
+      for (int i = 0; i < events.size(); i++) {
+        if (i > 0) {
+          builder.append(',');
+        }
+        builder.append(events.get(i).payload);
+      }
+      body = builder.append(']').toString();
+    }
+    int responseCode = -1;
+    String error = null;
+    Timer.Context timer = stats.latency.time();
+    try {
+      responseCode = client.post(hook.getTargetURL(), events.get(0).appId, body);
+    } catch (IOException e) {
+      error = e.getClass().getSimpleName() + ": " + e.getMessage();
+      LOGGER.warn("deliver : failed to post to hook={} url={}", new Object[]{hook.getId(), hook.getTargetURL(), e});
+    } finally {
+      timer.stop();
+    }
+    if (responseCode >= 200 && responseCode < 300) {
+      stats.breaker.success();
+      stats.delivered.addAndGet(events.size());
+      deliveredCount.addAndGet(events.size());
+    } else {
+      LOGGER.warn("deliver : response code:{} when posting {} event(s) to {}",
+          new Object[]{responseCode, events.size(), hook.getTargetURL()});
+      stats.breaker.failure();
+      failed(events, responseCode, error != null ? error : "HTTP " + responseCode, retry);
+    }
+  }
+
+  private void failed(List<HookEvent> events, int responseCode, String error, boolean retry) {
+    HookStats stats = stats(events.get(0).hook);
+    stats.failed.addAndGet(events.size());
+    failedCount.addAndGet(events.size());
+    for (HookEvent event : events) {
+      event.attempts++;
+      if (!retry) {
+        continue;
+      }
+      if (event.attempts >= maxAttempts || !running) {
+        deadLetter(event, responseCode, error);
+        continue;
+      }
+      event.lastResponseCode = responseCode;
+      event.lastError = error;
+      retryLater(event, backoffMillis(event.attempts), responseCode, error);
+    }
+  }
+
+  /**
+   * Queue the events again once the open circuit allows a trial request, without counting an
+   * attempt.
+   * @param events
+   * @param delayMillis time until the circuit allows a trial request
+   */
+  private void deferred(List<HookEvent> events, long delayMillis) {
+    for (HookEvent event : events) {
+      if (!running) {
+        deadLetter(event, -1, "circuit open");
+      } else {
+        retryLater(event, Math.max(1L, delayMillis), -1, "circuit open");
+      }
+    }
+  }
+
+  private void retryLater(final HookEvent event, long delayMillis, int responseCode, String error) {
+    pendingRetries.add(event);
+    try {
+      retryScheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (pendingRetries.remove(event)) {
+            retriedCount.incrementAndGet();
+            if (!queue.offer(event)) {
+              deadLetter(event, event.lastResponseCode, "queue full on retry");
+            }
+          }
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      if (pendingRetries.remove(event)) {
+        deadLetter(event, responseCode, error);
+      }
+    }
+  }
+
+  /**
+   * Delay before the next attempt: base * 2^(attempts - 1) capped at the maximum.
+   * @param attempts attempts made so far
+   * @return
+   */
+  long backoffMillis(int attempts) {
+    int shift = Math.min(Math.max(attempts - 1, 0), 30);
+    return Math.min(retryMaxMillis, retryBaseMillis << shift);
+  }
+
+  private void deadLetter(HookEvent event, int responseCode, String error) {
+    deadLetteredCount.incrementAndGet();
+    if (hookDAO == null) {
+      LOGGER.error("deadLetter : dropping event for hook={} after {} attempts", event.hook.getId(), event.attempts);
+      return;
+    }
+    try {
+      hookDAO.addDeadLetter(event.hook, event.appId, event.payload, event.attempts, responseCode, error);
+    } catch (Exception e) {
+      LOGGER.error("deadLetter : failed to write dead letter for hook={}", event.hook.getId(), e);
+    }
+  }
+
+  private HookStats stats(HookEntity hook) {
+    Integer id = Integer.valueOf(hook.getId());
+    HookStats stats = hookStats.get(id);
+    if (stats == null) {
+      HookStats created = new HookStats(hook.getTargetURL(), new HookCircuitBreaker(breakerFailures, breakerOpenMillis));
+      stats = hookStats.putIfAbsent(id, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  public int getQueueDepth() {
+    BlockingQueue<HookEvent> current = queue;
+    return current == null ? 0 : current.size();
+  }
+
+  public long getDeliveredCount() {
+    return deliveredCount.get();
+  }
+
+  /**
+   * @return number of failed attempts, including the posts made on the calling thread that were
+   * rejected by an open circuit
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  public long getRetriedCount() {
+    return retriedCount.get();
+  }
+
+  public long getDeadLetteredCount() {
+    return deadLetteredCount.get();
+  }
+
+  /**
+   * @return number of events that couldn't be queued
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * @return one line per hook with its counters, circuit state and latency sorted by hook id
+   */
+  public String[] getHookStats() {
+    Map<Integer, HookStats> sorted = new TreeMap<Integer, HookStats>(hookStats);
+    List<String> lines = new ArrayList<String>(sorted.size());
+    for (Map.Entry<Integer, HookStats> entry : sorted.entrySet()) {
+      HookStats stats = entry.getValue();
+      Snapshot snapshot = stats.latency.getSnapshot();
+      lines.add(String.format("%d:%s delivered=%d,failed=%d,circuit=%s,meanMs=%.1f,p99Ms=%.1f", entry.getKey(),
+          stats.targetURL, stats.delivered.get(), stats.failed.get(), stats.breaker.getState(),
+          snapshot.getMean() / 1000000d, snapshot.get99thPercentile() / 1000000d));
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  HookCircuitBreaker.State getCircuitState(int hookId) {
+    HookStats stats = hookStats.get(Integer.valueOf(hookId));
+    return stats == null ? HookCircuitBreaker.State.CLOSED : stats.breaker.getState();
+  }
+
+  /**
+   * Delivery settings
+   */
+  public static class Settings {
+    private int queueSize = MMXServerConstants.DEFAULT_WEBHOOK_QUEUE_SIZE;
+    private int threads = MMXServerConstants.DEFAULT_WEBHOOK_THREADS;
+    private int batchSize = MMXServerConstants.DEFAULT_WEBHOOK_BATCH_SIZE;
+    private int maxAttempts = MMXServerConstants.DEFAULT_WEBHOOK_MAX_ATTEMPTS;
+    private long retryBaseMillis = MMXServerConstants.DEFAULT_WEBHOOK_RETRY_BASE_MILLIS;
+    private long retryMaxMillis = MMXServerConstants.DEFAULT_WEBHOOK_RETRY_MAX_MILLIS;
+    private int breakerFailures = MMXServerConstants.DEFAULT_WEBHOOK_BREAKER_FAILURES;
+    private long breakerOpenMillis = MMXServerConstants.DEFAULT_WEBHOOK_BREAKER_OPEN_SECONDS * 1000L;
+    private int connectTimeoutMillis = MMXServerConstants.DEFAULT_WEBHOOK_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = MMXServerConstants.DEFAULT_WEBHOOK_READ_TIMEOUT_MILLIS;
+
+    public Settings setQueueSize(int queueSize) {
+      this.queueSize = queueSize;
+      return this;
+    }
+
+    public Settings setThreads(int threads) {
+      this.threads = threads;
+      return this;
+    }
+
+    public Settings setBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    public Settings setMaxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    public Settings setRetryBaseMillis(long retryBaseMillis) {
+      this.retryBaseMillis = retryBaseMillis;
+      return this;
+    }
+
+    public Settings setRetryMaxMillis(long retryMaxMillis) {
+      this.retryMaxMillis = retryMaxMillis;
+      return this;
+    }
+
+    public Settings setBreakerFailures(int breakerFailures) {
+      this.breakerFailures = breakerFailures;
+      return this;
+    }
+
+    public Settings setBreakerOpenMillis(long breakerOpenMillis) {
+      this.breakerOpenMillis = breakerOpenMillis;
+      return this;
+    }
+
+    public Settings setConnectTimeoutMillis(int connectTimeoutMillis) {
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      return this;
+    }
+
+    public Settings setReadTimeoutMillis(int readTimeoutMillis) {
+      this.readTimeoutMillis = readTimeoutMillis;
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return "Settings{" +
+          "queueSize=" + queueSize +
+          ", threads=" + threads +
+          ", batchSize=" + batchSize +
+          ", maxAttempts=" + maxAttempts +
+          ", retryBaseMillis=" + retryBaseMillis +
+          ", retryMaxMillis=" + retryMaxMillis +
+          ", breakerFailures=" + breakerFailures +
+          ", breakerOpenMillis=" + breakerOpenMillis +
+          ", connectTimeoutMillis=" + connectTimeoutMillis +
+          ", readTimeoutMillis=" + readTimeoutMillis +
+          '}';
+    }
+  }
+
+  /**
+   * A payload to be posted to a hook
+   */
+  static class HookEvent {
+    private final HookEntity hook;
+    private final String appId;
+    private final String payload;
+    private int attempts;
+    private int lastResponseCode;
+    private String lastError;
+
+    HookEvent(HookEntity hook, String appId, String payload) {
+      this.hook = hook;
+      this.appId = appId;
+      this.payload = payload;
+    }
+  }
+
+  /**
+   * Counters, circuit breaker and latency of a hook
+   */
+  private static class HookStats {
+    private final String targetURL;
+    private final HookCircuitBreaker breaker;
+    private final Timer latency = new Timer();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private HookStats(String targetURL, HookCircuitBreaker breaker) {
+      this.targetURL = targetURL;
+      this.breaker = breaker;
+    }
+  }
+
+  /**
+   * Takes events from the queue and posts them, grouped by hook.
+   */
+  private class Worker implements Runnable {
+    @Override
+    public void run() {
+      List<HookEvent> drained = new ArrayList<HookEvent>(batchSize);
+      while (running) {
+        try {
+          HookEvent first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          drained.clear();
+          drained.add(first);
+          if (batchSize > 1) {
+            queue.drainTo(drained, batchSize - 1);
+          }
+          Map<Integer, List<HookEvent>> byHook = new LinkedHashMap<Integer, List<HookEvent>>();
+          for (HookEvent event : drained) {
+            Integer id = Integer.valueOf(event.hook.getId());
+            List<HookEvent> list = byHook.get(id);
+            if (list == null) {
+              list = new ArrayList<HookEvent>();
+              byHook.put(id, list);
+            }
+            list.add(event);
+          }
+          for (List<HookEvent> events : byHook.values()) {
+            deliver(events, true);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (Throwable t) {
+          LOGGER.error("run : unexpected exception in webhook worker", t);
+        }
+      }
+    }
+  }
+}
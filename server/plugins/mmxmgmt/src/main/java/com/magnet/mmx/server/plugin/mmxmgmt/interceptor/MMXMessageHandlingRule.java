@@ -20,26 +20,25 @@ import com.magnet.mmx.protocol.MMXError;
 import com.magnet.mmx.protocol.StatusCode;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceCache;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceNotFoundException;
-import com.magnet.mmx.server.plugin.mmxmgmt.db.HookDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.HookEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageWriteBehindQueue;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.PushStatus;
 import com.magnet.mmx.server.plugin.mmxmgmt.event.MMXXmppRateExceededEvent;
+import com.magnet.mmx.server.plugin.mmxmgmt.hook.HookRegistry;
 import com.magnet.mmx.server.plugin.mmxmgmt.hook.HookType;
 import com.magnet.mmx.server.plugin.mmxmgmt.hook.MessageWithMetaHookContext;
 import com.magnet.mmx.server.plugin.mmxmgmt.hook.MessageWithMetaHookProcessor;
 import com.magnet.mmx.server.plugin.mmxmgmt.message.ErrorMessageBuilder;
-import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.RateLimiterDescriptor;
 import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.RateLimiterService;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.AlertEventsManager;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.AlertsUtil;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.DBUtil;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.JIDUtil;
-import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
-import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXOfflineStorageUtil;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.WakeupUtil;
@@ -48,6 +47,7 @@ import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.PacketError;
 
@@ -111,12 +111,13 @@ public class MMXMessageHandlingRule {
       LOGGER.trace("handle : handling incoming, unprocessed receipt message with fullJID messageId={}", input.getMessage().getID());
       DeliveryConfirmationMessage confirmation = DeliveryConfirmationMessage.build(input.getMessage());
       LOGGER.trace("handle : built from message, confirmation={}", confirmation);
-      DBUtil.getMessageDAO().messageReceived(confirmation.getMessageId(), confirmation.getConfirmingDeviceId());
       MessageEntity messageEntity = getMessageEntity(input.getMessage());
+      MessageWriteBehindQueue.getInstance().messageReceived(messageEntity.getAppId(), confirmation.getMessageId(),
+          confirmation.getConfirmingDeviceId());
       messageEntity.setSourceMessageId(confirmation.getMessageId());
       messageEntity.setType(MessageEntity.MessageType.RECEIPT);
       messageEntity.setState(MessageEntity.MessageState.DELIVERY_ATTEMPTED);
-      DBUtil.getMessageDAO().persist(messageEntity);
+      MessageWriteBehindQueue.getInstance().persist(messageEntity);
       return;
     }
 
@@ -128,11 +129,12 @@ public class MMXMessageHandlingRule {
       LOGGER.trace("handle : handling unprocessed, incoming, non-receipt message with fullJID messageId={}", input.getMessage().getID());
 
       String appId = JIDUtil.getAppId(input.getMessage().getTo());
-      int rate = MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.MAX_XMPP_RATE, MMXServerConstants.DEFAULT_MAX_XMPP_RATE);
-      RateLimiterDescriptor descriptor = new RateLimiterDescriptor(MMXServerConstants.XMPP_RATE_TYPE, appId, rate);
-      LOGGER.trace("handle : checking rate limite for descriptor={}", descriptor);
-      if(!RateLimiterService.isAllowed(descriptor)) {
-        LOGGER.error("handle : Max xmpp message rate reached : {}, appId : {}", rate, appId);
+      JID from = input.getMessage().getFrom();
+      //the escaped node identifies the sending user in the app
+      String sender = from != null ? from.getNode() : null;
+      String senderDevice = from != null ? from.getResource() : null;
+      if(!RateLimiterService.isAllowed(MMXServerConstants.XMPP_RATE_TYPE, appId, sender, senderDevice)) {
+        LOGGER.error("handle : Max xmpp message rate reached for appId : {}, from : {}", appId, from);
         AlertEventsManager.post(new MMXXmppRateExceededEvent(appId, AlertsUtil.getMaxXmppRate()));
         throw new PacketRejectedException("Max message rate has been reached");
       }
@@ -142,7 +144,7 @@ public class MMXMessageHandlingRule {
       if(!Strings.isNullOrEmpty(deviceId) && !Strings.isNullOrEmpty(appId)) {
         try {
           DeviceDAO deviceDao = DBUtil.getDeviceDAO();
-          deviceEntity = deviceDao.getDevice(appId, deviceId);
+          deviceEntity = DeviceCache.getInstance().getDevice(deviceDao, appId, deviceId);
           if(deviceEntity == null) {
             LOGGER.trace("isValidDistributableMessage : No device found for appId={}, deviceId={}, sending error message", appId, deviceId);
             sendDeviceNotFoundErrorMsg(input.getMessage());
@@ -180,12 +182,12 @@ public class MMXMessageHandlingRule {
           }
           messageEntity.setState(MessageEntity.MessageState.PENDING);
         }
-        DBUtil.getMessageDAO().persist(messageEntity);
+        MessageWriteBehindQueue.getInstance().persist(messageEntity);
         processWebHooks(input, deviceId, appId);
         throw new PacketRejectedException("Device offline, stopping processing for the message addressed to fullJID=" + input.getMessage().getTo());
       } else {
         messageEntity.setState(MessageEntity.MessageState.DELIVERY_ATTEMPTED);
-        DBUtil.getMessageDAO().persist(messageEntity);
+        MessageWriteBehindQueue.getInstance().persist(messageEntity);
         processWebHooks(input, deviceId, appId);
       }
     }
@@ -193,10 +195,8 @@ public class MMXMessageHandlingRule {
 
   private void processWebHooks(MMXMsgRuleInput input, String deviceId, String appId) {
     LOGGER.debug("Getting hooks for appId:{}", appId);
-    //process any hooks for message with header
-    //TODO: Process this on a separate thread
-    HookDAO hookDAO = DBUtil.getHookDAO();
-    List<HookEntity> hooks = hookDAO.getHooks(appId, HookType.MESSAGE_WITH_META);
+    //process any hooks for message with header, the payloads are posted by the WebHookDispatcher
+    List<HookEntity> hooks = HookRegistry.getInstance().getHooks(DBUtil.getHookDAO(), appId, HookType.MESSAGE_WITH_META);
     for (HookEntity hook : hooks) {
       LOGGER.debug("Process hook:{}", hook);
       Message message = input.getMessage();
@@ -252,7 +252,7 @@ public class MMXMessageHandlingRule {
         messageEntity.setState(MessageEntity.MessageState.PENDING);
       }
       processWebHooks(input, pair.getJID().getResource(), messageEntity.getAppId());
-      DBUtil.getMessageDAO().persist(messageEntity);
+      MessageWriteBehindQueue.getInstance().persist(messageEntity);
     }
 
     if (result.noDevices()) {
@@ -14,8 +14,12 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.interceptor;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
 import com.magnet.mmx.server.plugin.mmxmgmt.context.ContextDispatcherFactory;
 import com.magnet.mmx.server.plugin.mmxmgmt.context.GeoEventDispatcher;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
+import com.magnet.mmx.server.plugin.mmxmgmt.pubsub.TopicIndex;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.IQUtils;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXMessageUtil;
 import org.apache.commons.lang.RandomStringUtils;
@@ -34,10 +38,14 @@ import org.xmpp.packet.Packet;
  * 1. Distributing a message targeted to a user to all registered devices for the user
  * 2. Recording the message
  * 3. Queueing wake up notifications for messages targeted to offline resources
+ * 4. Recording the native pubsub subscriptions in the topic index
  * <p/>
  */
 public class MMXPacketInterceptor implements PacketInterceptor {
   private static Logger LOGGER = LoggerFactory.getLogger(MMXPacketInterceptor.class);
+  private static final Counter PACKETS = MMXMetrics.counter("interceptor.packets");
+  private static final Counter GEO_EVENTS = MMXMetrics.counter("interceptor.geo");
+  private static final Timer MESSAGES = MMXMetrics.timer("interceptor.messages");
   private final String ID = RandomStringUtils.randomAlphanumeric(10);
   private MMXMessageHandlingRule messageHandlingRule;
 
@@ -49,9 +57,20 @@ public class MMXPacketInterceptor implements PacketInterceptor {
   public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed) throws
       PacketRejectedException {
     LOGGER.trace("interceptPacket : interceptor id={}", ID);
+    PACKETS.inc();
+
+    if (incoming && processed) {
+      String subscriptionNode = IQUtils.getSubscriptionNode(packet);
+      if (subscriptionNode != null) {
+        // subscribed or unsubscribed with the native pubsub protocol
+        TopicIndex.getInstance().subscriptionChanged(subscriptionNode, packet.getFrom());
+        return;
+      }
+    }
 
     IQ geo = IQUtils.isValidGeoIQ(packet);
     if (geo != null) {
+      GEO_EVENTS.inc();
       // send it to the geoservice component
       try {
         ContextDispatcherFactory.getInstance().getDispatcher(GeoEventDispatcher.class.getName()).dispatchToExternalService(geo);
@@ -70,6 +89,11 @@ public class MMXPacketInterceptor implements PacketInterceptor {
 
     Message mmxMessage = (Message) packet;
 
-    messageHandlingRule.handle(new MMXMsgRuleInput(mmxMessage, session, incoming, processed, MMXMessageUtil.isConfirmationMessage(mmxMessage), (mmxMessage.getTo().getResource() == null)));
+    long startTime = System.nanoTime();
+    try {
+      messageHandlingRule.handle(new MMXMsgRuleInput(mmxMessage, session, incoming, processed, MMXMessageUtil.isConfirmationMessage(mmxMessage), (mmxMessage.getTo().getResource() == null)));
+    } finally {
+      MMXMetrics.time(MESSAGES, startTime);
+    }
   }
 }
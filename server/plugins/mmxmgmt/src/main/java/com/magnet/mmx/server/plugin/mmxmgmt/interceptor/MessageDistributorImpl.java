@@ -14,9 +14,13 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.interceptor;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.*;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.MessageFanoutRouter;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.JIDUtil;
-import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXExecutors;
 import org.jivesoftware.openfire.PacketRouter;
 import org.jivesoftware.openfire.XMPPServer;
 import org.slf4j.Logger;
@@ -26,22 +30,24 @@ import org.xmpp.packet.Message;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
 
 /**
  */
 public class MessageDistributorImpl implements MessageDistributor {
-  private static final String POOL_NAME = "DistributionExecutor";
-  private static final int POOL_SIZE = 10;
   private static final Logger LOGGER = LoggerFactory.getLogger(MessageDistributorImpl.class);
+  private static final Timer DISTRIBUTE = MMXMetrics.timer("distributor.distribute");
+  private static final Histogram DEVICES = MMXMetrics.histogram("distributor.devices");
+  private static final Counter ONLINE = MMXMetrics.counter("distributor.online");
+  private static final Counter OFFLINE = MMXMetrics.counter("distributor.offline");
 
   @Override
   public DistributionResult distribute(Message message, DistributionContext context) {
+    long startTime = System.nanoTime();
     DeviceDAO deviceDAO = getDeviceDAO();
     String bareUserId = context.getBareUserId();
     String appKey = context.getAppId();
     String domain = context.getServerHostname();
-    List<DeviceEntity> devices = deviceDAO.getDevices(appKey, bareUserId, DeviceStatus.ACTIVE);
+    List<DeviceEntity> devices = DeviceCache.getInstance().getActiveDevices(deviceDAO, appKey, bareUserId);
     LOGGER.info("distribute : Distributing messages for user={}, messageId={}, numDevices={} ", new Object[]{context.getBareUserId(), context.getMessageId(), devices.size()});
 
     List<JID> distributed = new ArrayList<JID>();
@@ -53,9 +59,8 @@ public class MessageDistributorImpl implements MessageDistributor {
       JID deviceSpecificJID = buildToAddress(bareUserId, appKey, domain, deviceId);
       cloned.setTo(deviceSpecificJID);
       MMXPresenceFinder finder = getPresenceFinder();
-      if(finder.isOnline(deviceSpecificJID)) {
+      if(finder.isOnline(deviceSpecificJID) && route(cloned)) {
        LOGGER.trace("distribute : found online deviceSpecificJID={}", deviceSpecificJID);
-       route(cloned);
        distributed.add(deviceSpecificJID);
       } else {
         LOGGER.trace("distribute : not found online deviceSpecificJID={}", deviceSpecificJID);
@@ -63,17 +68,19 @@ public class MessageDistributorImpl implements MessageDistributor {
         undistributed.add(pair);
       }
     }
+    DEVICES.update(devices.size());
+    ONLINE.inc(distributed.size());
+    OFFLINE.inc(undistributed.size());
+    MMXMetrics.time(DISTRIBUTE, startTime);
     return new DistributionResultImpl(distributed, undistributed, noDevices);
   }
 
-  private void route(final Message cloned) {
-    ExecutorService service = MMXExecutors.getOrCreate(POOL_NAME, POOL_SIZE);
-    service.submit(new Runnable() {
-      @Override
-      public void run() {
-        getPacketRouter().route(cloned);
-      }
-    });
+  /**
+   * @return false if the fan-out router dropped the message; the device is then handled like an
+   * offline device so that the message is stored offline.
+   */
+  protected boolean route(Message cloned) {
+    return MessageFanoutRouter.getInstance().route(getPacketRouter(), cloned);
   }
 
   private JID buildToAddress (String userId, String appKey, String domain, String deviceId ) {
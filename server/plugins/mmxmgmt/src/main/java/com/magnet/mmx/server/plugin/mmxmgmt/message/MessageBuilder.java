@@ -104,9 +104,20 @@ public class MessageBuilder {
   }
 
   public Message build() {
+    Message message = buildTemplate();
+    message.setID(generateId());
+    message.setTo(buildToJID());
+    return message;
+  }
+
+  /**
+   * Build the parts of the message that are the same for all the recipients of a request: the
+   * mmx payload, the sender, the receipt request and the body. The template has no id and no
+   * recipient; use {@link #buildFrom(org.xmpp.packet.Message)} to create the message for a recipient.
+   * @return message template
+   */
+  public Message buildTemplate() {
     Message message = new Message();
-    String id = idGenerator.generate(userId, appEntity.getAppId(), deviceEntity != null ? deviceEntity.getDeviceId(): null);
-    message.setID(id);
     Element mmxElement = message.addChildElement(Constants.MMX, Constants.MMX_NS_MSG_PAYLOAD);
 
     if (replyTo != null) {
@@ -134,7 +145,6 @@ public class MessageBuilder {
 
     message.setType(Message.Type.chat);
     message.setFrom(buildFromJID());
-    message.setTo(buildToJID());
     if (receipt) {
       //add the element for requesting read receipt
       message.addChildElement(Constants.XMPP_REQUEST,Constants.XMPP_NS_RECEIPTS);
@@ -145,6 +155,22 @@ public class MessageBuilder {
     return message;
   }
 
+  /**
+   * Build the message for the current user id and device by copying a template built using
+   * {@link #buildTemplate()}. The template itself is not modified and should not be routed.
+   * @param template
+   * @return message with a new id
+   */
+  public Message buildFrom(Message template) {
+    Message message = template.createCopy();
+    message.setID(generateId());
+    message.setTo(buildToJID());
+    return message;
+  }
+
+  private String generateId() {
+    return idGenerator.generate(userId, appEntity.getAppId(), deviceEntity != null ? deviceEntity.getDeviceId(): null);
+  }
 
   private JID buildToJID() {
     String appId = appEntity.getAppId();
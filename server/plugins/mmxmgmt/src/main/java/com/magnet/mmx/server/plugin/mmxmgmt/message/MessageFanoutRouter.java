@@ -0,0 +1,356 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.message;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jivesoftware.openfire.PacketRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Router for the per-device copies of a message created during fan-out.
+ * <p>
+ * Messages are placed on one of a fixed number of bounded lanes using the hash of the full
+ * destination JID. Every lane is served by a single thread, so messages for the same device
+ * are routed in the order they were submitted. What happens when a lane is full is decided by
+ * the configured {@link RejectionPolicy}.
+ * <p>
+ * If the router hasn't been initialized, messages are routed on the calling thread.
+ */
+public class MessageFanoutRouter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MessageFanoutRouter.class);
+
+  /**
+   * What to do with a message when its lane is full.
+   */
+  public enum RejectionPolicy {
+    /**
+     * Wait for room on the lane. Keeps the per-device order. A lane thread never waits; messages
+     * it submits while routing (e.g. the fan-out of a bare JID message) are routed inline when
+     * their lane is full, because waiting could deadlock the lanes.
+     */
+    BLOCK,
+    /**
+     * Route the message on the submitting thread. The message can overtake earlier messages
+     * for the same device that are still queued.
+     */
+    CALLER_RUNS,
+    /**
+     * Don't route the message. {@link #route(PacketRouter, Message)} returns false and the caller
+     * is responsible for the message, e.g. by storing it offline.
+     */
+    DROP;
+
+    /**
+     * Lenient lookup used for configuration values.
+     * @param value
+     * @param defaultPolicy returned if value doesn't match any policy
+     * @return
+     */
+    public static RejectionPolicy fromString(String value, RejectionPolicy defaultPolicy) {
+      if (value != null) {
+        for (RejectionPolicy policy : values()) {
+          if (policy.name().equalsIgnoreCase(value.trim())) {
+            return policy;
+          }
+        }
+      }
+      return defaultPolicy;
+    }
+  }
+
+  private static MessageFanoutRouter instance = new MessageFanoutRouter();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+  /**
+   * Set on the lane threads
+   */
+  private static final ThreadLocal<Boolean> laneThread = new ThreadLocal<Boolean>();
+
+  private List<BlockingQueue<RouteTask>> lanes;
+  private ExecutorService workers;
+  private volatile RejectionPolicy rejectionPolicy = RejectionPolicy.BLOCK;
+  private volatile boolean running;
+
+  private final Timer latencyTimer = new Timer();
+  private final AtomicLong routedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+
+  MessageFanoutRouter() {
+  }
+
+  /**
+   * Get the singleton instance of the router
+   * @return
+   */
+  public static MessageFanoutRouter getInstance() {
+    return instance;
+  }
+
+  /**
+   * Lifecycle method. Start the lane threads.
+   * @param laneCount number of lanes (and threads)
+   * @param queueSize capacity of each lane
+   * @param policy policy applied when a lane is full
+   * @throws java.lang.IllegalStateException if the router has already been initialized.
+   */
+  public static void initialize(int laneCount, int queueSize, RejectionPolicy policy) {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    instance.start(laneCount, queueSize, policy);
+    LOGGER.info("Message fan-out router is initialized with lanes:{}, queueSize:{}, rejectionPolicy:{}",
+        new Object[]{laneCount, queueSize, policy});
+  }
+
+  /**
+   * Lifecycle method. Stop accepting messages and route the ones that have been queued.
+   * @param waitSeconds maximum time to wait for the lanes to drain
+   */
+  public static void teardown(long waitSeconds) {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
+    }
+    instance.stop(waitSeconds);
+    LOGGER.info("Message fan-out router stopped.");
+  }
+
+  void start(int laneCount, int queueSize, RejectionPolicy policy) {
+    int count = Math.max(1, laneCount);
+    this.rejectionPolicy = policy == null ? RejectionPolicy.BLOCK : policy;
+    this.lanes = new ArrayList<BlockingQueue<RouteTask>>(count);
+    this.workers = Executors.newFixedThreadPool(count, new ThreadFactoryBuilder()
+        .setNameFormat("MessageFanout-%d").setDaemon(true).build());
+    running = true;
+    for (int i = 0; i < count; i++) {
+      BlockingQueue<RouteTask> lane = new ArrayBlockingQueue<RouteTask>(Math.max(1, queueSize));
+      lanes.add(lane);
+      workers.execute(new LaneWorker(lane));
+    }
+  }
+
+  void stop(long waitSeconds) {
+    running = false;
+    workers.shutdown();
+    try {
+      if (!workers.awaitTermination(waitSeconds, TimeUnit.SECONDS)) {
+        LOGGER.warn("stop : lanes didn't drain in {} seconds", waitSeconds);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (BlockingQueue<RouteTask> lane : lanes) {
+      List<RouteTask> remaining = new ArrayList<RouteTask>(lane.size());
+      lane.drainTo(remaining);
+      for (RouteTask task : remaining) {
+        task.run();
+      }
+    }
+  }
+
+  /**
+   * Change the rejection policy of a running router.
+   * @param policy
+   */
+  public void setRejectionPolicy(RejectionPolicy policy) {
+    if (policy != null) {
+      LOGGER.info("setRejectionPolicy : {}", policy);
+      this.rejectionPolicy = policy;
+    }
+  }
+
+  public RejectionPolicy getRejectionPolicy() {
+    return rejectionPolicy;
+  }
+
+  /**
+   * Route the message using the supplied router.
+   * @param router router used for delivering the message
+   * @param message message with a full JID as the destination
+   * @return false if the message was dropped by the rejection policy and has to be stored
+   * offline by the caller
+   */
+  public boolean route(PacketRouter router, Message message) {
+    RouteTask task = new RouteTask(router, message);
+    if (!running) {
+      task.run();
+      return true;
+    }
+    BlockingQueue<RouteTask> lane = lanes.get(laneIndex(message.getTo(), lanes.size()));
+    if (lane.offer(task)) {
+      return true;
+    }
+    switch (rejectionPolicy) {
+      case CALLER_RUNS:
+        rejectedCount.incrementAndGet();
+        task.run();
+        return true;
+      case DROP:
+        rejectedCount.incrementAndGet();
+        LOGGER.warn("route : lane is full, dropping messageId={} to={}", message.getID(), message.getTo());
+        return false;
+      default:
+        rejectedCount.incrementAndGet();
+        if (laneThread.get() != null) {
+          task.run();
+          return true;
+        }
+        try {
+          lane.put(task);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          task.run();
+        }
+        return true;
+    }
+  }
+
+  static int laneIndex(JID to, int laneCount) {
+    if (to == null) {
+      return 0;
+    }
+    int h = to.toString().hashCode();
+    h ^= (h >>> 16);
+    return (h & Integer.MAX_VALUE) % laneCount;
+  }
+
+  /**
+   * @return number of messages waiting to be routed across all lanes.
+   */
+  public int getQueueDepth() {
+    List<BlockingQueue<RouteTask>> current = lanes;
+    if (current == null) {
+      return 0;
+    }
+    int depth = 0;
+    for (BlockingQueue<RouteTask> lane : current) {
+      depth += lane.size();
+    }
+    return depth;
+  }
+
+  /**
+   * @return depth of the most loaded lane.
+   */
+  public int getMaxLaneDepth() {
+    List<BlockingQueue<RouteTask>> current = lanes;
+    if (current == null) {
+      return 0;
+    }
+    int max = 0;
+    for (BlockingQueue<RouteTask> lane : current) {
+      max = Math.max(max, lane.size());
+    }
+    return max;
+  }
+
+  public long getRoutedCount() {
+    return routedCount.get();
+  }
+
+  /**
+   * @return number of times a lane was full and the rejection policy was applied.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * @return mean time from submission to routing completion in milliseconds.
+   */
+  public double getMeanLatencyMillis() {
+    return latencyTimer.getSnapshot().getMean() / 1000000d;
+  }
+
+  /**
+   * @return 99th percentile of the time from submission to routing completion in milliseconds.
+   */
+  public double get99thPercentileLatencyMillis() {
+    Snapshot snapshot = latencyTimer.getSnapshot();
+    return snapshot.get99thPercentile() / 1000000d;
+  }
+
+  /**
+   * A message to be routed
+   */
+  private class RouteTask implements Runnable {
+    private final PacketRouter router;
+    private final Message message;
+    private final long submittedAt = System.nanoTime();
+
+    private RouteTask(PacketRouter router, Message message) {
+      this.router = router;
+      this.message = message;
+    }
+
+    @Override
+    public void run() {
+      try {
+        router.route(message);
+        routedCount.incrementAndGet();
+      } catch (Throwable t) {
+        failedCount.incrementAndGet();
+        LOGGER.error("run : failed to route messageId={} to={}", new Object[]{message.getID(), message.getTo(), t});
+      } finally {
+        latencyTimer.update(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  /**
+   * Single consumer of a lane
+   */
+  private class LaneWorker implements Runnable {
+    private final BlockingQueue<RouteTask> lane;
+
+    private LaneWorker(BlockingQueue<RouteTask> lane) {
+      this.lane = lane;
+    }
+
+    @Override
+    public void run() {
+      laneThread.set(Boolean.TRUE);
+      while (running || !lane.isEmpty()) {
+        try {
+          RouteTask task = lane.poll(100L, TimeUnit.MILLISECONDS);
+          if (task != null) {
+            task.run();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+}
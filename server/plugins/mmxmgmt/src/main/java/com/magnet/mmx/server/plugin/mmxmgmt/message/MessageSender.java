@@ -14,6 +14,7 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.message;
 
+import com.magnet.mmx.server.plugin.mmxmgmt.api.SentMessageId;
 import com.magnet.mmx.server.plugin.mmxmgmt.topic.TopicPostMessageRequest;
 
 /**
@@ -21,6 +22,20 @@ import com.magnet.mmx.server.plugin.mmxmgmt.topic.TopicPostMessageRequest;
  */
 public interface MessageSender {
 
+  /**
+   * Receives the outcome for each recipient of a send request as soon as it is known.
+   */
+  public interface RecipientListener {
+    public void sent(SentMessageId sentMessageId);
+
+    public void unsent(UnsentMessage unsentMessage);
+
+    /**
+     * Called after every chunk of recipients has been processed.
+     */
+    public void chunkDone();
+  }
+
   /**
    * Send a message using the information in the request object.
    *
@@ -30,6 +45,28 @@ public interface MessageSender {
    */
   public SendMessageResult send(String appId, com.magnet.mmx.server.plugin.mmxmgmt.api.SendMessageRequest request);
 
+  /**
+   * Send a message using the information in the request object. The sent and unsent recipients
+   * are reported to the listener instead of being collected in the result, which only has the
+   * count.
+   *
+   * @param appId
+   * @param request
+   * @param listener
+   * @return
+   */
+  public SendMessageResult send(String appId, com.magnet.mmx.server.plugin.mmxmgmt.api.SendMessageRequest request,
+                                RecipientListener listener);
+
+  /**
+   * Validate the request without sending any message.
+   *
+   * @param appId
+   * @param request
+   * @return result with the error details or null if the request is valid
+   */
+  public SendMessageResult validate(String appId, com.magnet.mmx.server.plugin.mmxmgmt.api.SendMessageRequest request);
+
   /**
    * Post a message to a topic.
    * @param topicName name of the topic
@@ -41,7 +41,9 @@ import com.magnet.mmx.server.plugin.mmxmgmt.servlet.TopicResource;
 import com.magnet.mmx.server.plugin.mmxmgmt.topic.TopicPostMessageRequest;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.Helper;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.JIDUtil;
-import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXExecutors;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import com.magnet.mmx.server.plugin.mmxmgmt.web.SendMessageRequest;
 import com.magnet.mmx.util.TopicHelper;
 import org.jivesoftware.openfire.PacketRouter;
@@ -54,9 +56,11 @@ import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
 
 /**
  */
@@ -78,13 +82,49 @@ public class MessageSenderImpl implements MessageSender {
   private static final String SEND_MESSAGE_STATUS_OK = "OK";
   private static final String SEND_MESSAGE_STATUS_ERROR = "ERROR";
 
-  private static final String POOL_NAME = "RESTMessageSender";
-  private static final int POOL_SIZE = 10;
-  private static final int MAX_USERNAME_COUNT = 1000;
-
 
   @Override
   public SendMessageResult send(String appId, com.magnet.mmx.server.plugin.mmxmgmt.api.SendMessageRequest request) {
+    final List<SentMessageId> sentList = new LinkedList<SentMessageId>();
+    final List<UnsentMessage> unsentList = new LinkedList<UnsentMessage>();
+    SendMessageResult result = send(appId, request, new RecipientListener() {
+      @Override
+      public void sent(SentMessageId sentMessageId) {
+        sentList.add(sentMessageId);
+      }
+
+      @Override
+      public void unsent(UnsentMessage unsentMessage) {
+        unsentList.add(unsentMessage);
+      }
+
+      @Override
+      public void chunkDone() {
+      }
+    });
+    if (!result.isError()) {
+      result.setSentList(sentList);
+      if (request.getRecipientUsernames() != null && !request.getRecipientUsernames().isEmpty()) {
+        result.setUnsentList(unsentList);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public SendMessageResult validate(String appId, com.magnet.mmx.server.plugin.mmxmgmt.api.SendMessageRequest request) {
+    ConnectionProvider provider = getConnectionProvider();
+    ValidationResult validationResult = validateRequest(appId, request, new AppDAOImpl(provider), new DeviceDAOImpl(provider));
+    if (validationResult.isValid()) {
+      return null;
+    }
+    LOGGER.info("Send message request validation failed");
+    return failure(validationResult);
+  }
+
+  @Override
+  public SendMessageResult send(String appId, com.magnet.mmx.server.plugin.mmxmgmt.api.SendMessageRequest request,
+                                RecipientListener listener) {
     ConnectionProvider provider = getConnectionProvider();
     AppDAO appDAO = new AppDAOImpl(provider);
     DeviceDAO deviceDAO = new DeviceDAOImpl(provider);
@@ -99,56 +139,20 @@ public class MessageSenderImpl implements MessageSender {
        */
       int requested = 0;
       int sent = 0;
-      int unsent = 0;
-      List<SentMessageId> sentList = new LinkedList<SentMessageId>();
-      List<UnsentMessage> unsentList = new LinkedList<UnsentMessage>();
       Count count = null;
 
       if (request.getRecipientUsernames() != null && !request.getRecipientUsernames().isEmpty()) {
-        List<String> userList = request.getRecipientUsernames();
-        UserDAO userDAO = new UserDAOImpl(getConnectionProvider());
-        for (String username : userList) {
-          requested++;
-          String mmxUsername = Helper.getMMXUsername(username, appId);
-          UserEntity userEntity = userDAO.getUser(mmxUsername);
-          if (userEntity == null) {
-            LOGGER.info("User with name:{} not found", username);
-            UnsentMessage badUser = new UnsentMessage(username, ErrorCode.INVALID_USER_NAME.getCode(), ErrorMessages.ERROR_USERNAME_NOT_FOUND);
-            unsentList.add(badUser);
-            unsent++;
-          } else {
-            MessageBuilder builder = new MessageBuilder();
-            builder.setAppEntity(validationResult.getAppEntity())
-                .setIdGenerator(new MessageIdGeneratorImpl())
-                .setUtcTime(System.currentTimeMillis())
-                .setDeviceEntity(validationResult.getDeviceEntity())
-                .setUserId(username)
-                .setReplyTo(request.getReplyTo())
-                .setMessageContent(request.getContent())
-                .setMetadata(request.getMetadata())
-                .setDomain(domain)
-                .setReceipt(request.isReceipt());
-            Message message = builder.build();
-            String messageId = message.getID();
-            routeMessage(message);
-            SentMessageId sentMessageId = new SentMessageId(username, null, messageId);
-            sentList.add(sentMessageId);
-            sent++;
-          }
-        }
+        count = sendToUsers(appId, request, validationResult, domain, listener);
         //prepare the response
-        count = new Count(requested, sent, unsent);
         SendMessageResult internalResult = new SendMessageResult();
         internalResult.setError(false);
-        internalResult.setSentList(sentList);
-        internalResult.setUnsentList(unsentList);
         internalResult.setCount(count);
         result = internalResult;
       } else if (request.getDeviceId() != null) {
         MessageBuilder builder = new MessageBuilder();
         String recipient = validationResult.getDeviceEntity().getOwnerId();
         builder.setAppEntity(validationResult.getAppEntity())
-            .setIdGenerator(new MessageIdGeneratorImpl())
+            .setIdGenerator(TimeOrderedMessageIdGenerator.getInstance())
             .setUtcTime(System.currentTimeMillis())
             .setDeviceEntity(validationResult.getDeviceEntity())
             .setUserId(recipient)
@@ -160,16 +164,20 @@ public class MessageSenderImpl implements MessageSender {
         Message message = builder.build();
         LOGGER.info("Message has been built");
         String messageId = message.getID();
-        routeMessage(message);
         requested++;
-        sent++;
-        count = new Count(requested, sent, 0);
+        int unsent = 0;
+        if (routeMessage(message)) {
+          sent++;
+          listener.sent(new SentMessageId(recipient, request.getDeviceId(), messageId));
+        } else {
+          unsent++;
+          listener.unsent(dropped(recipient));
+        }
+        count = new Count(requested, sent, unsent);
         SendMessageResult internalResult = new SendMessageResult();
         internalResult.setError(false);
         internalResult.setErrorMessage(SEND_MESSAGE_STATUS_OK);
         internalResult.setCount(count);
-        sentList.add(new SentMessageId(recipient, request.getDeviceId(), messageId));
-        internalResult.setSentList(sentList);
         result = internalResult;
       } else {
         //else use the target definition
@@ -183,12 +191,13 @@ public class MessageSenderImpl implements MessageSender {
           UserTargetResolver resolver = new UserTargetResolver();
           List<UserEntity> userEntityList = resolver.resolve(appId, target);
           requested = userEntityList.size();
+          int unsent = 0;
           for (UserEntity ue : userEntityList) {
             //get the bare user id.
             String recipient = JIDUtil.getUserId(ue.getUsername());
             MessageBuilder builder = new MessageBuilder();
             builder.setAppEntity(validationResult.getAppEntity())
-                .setIdGenerator(new MessageIdGeneratorImpl())
+                .setIdGenerator(TimeOrderedMessageIdGenerator.getInstance())
                 .setUtcTime(System.currentTimeMillis())
                 .setUserId(recipient)
                 .setReplyTo(request.getReplyTo())
@@ -199,30 +208,34 @@ public class MessageSenderImpl implements MessageSender {
             Message message = builder.build();
             LOGGER.info("Message has been built for recipient:{}", recipient);
             String messageId = message.getID();
-            routeMessage(message);
-            sent++;
-            sentList.add(new SentMessageId(recipient, null, messageId));
+            if (routeMessage(message)) {
+              sent++;
+              listener.sent(new SentMessageId(recipient, null, messageId));
+            } else {
+              unsent++;
+              listener.unsent(dropped(recipient));
+            }
           }
-          count = new Count(requested, sent, 0);
+          count = new Count(requested, sent, unsent);
           SendMessageResult internalResult = new SendMessageResult();
           internalResult.setError(false);
           internalResult.setErrorMessage(SEND_MESSAGE_STATUS_OK);
           internalResult.setCount(count);
-          internalResult.setSentList(sentList);
           result = internalResult;
-        } else if (deviceQuery != null) {
+        } else if (deviceQuery != null || target.getGeoQuery() != null) {
           if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Using user deviceQuery");
+            LOGGER.debug("Using device query:{} geo query:{}", deviceQuery != null, target.getGeoQuery() != null);
           }
           DeviceTargetResolver resolver = new DeviceTargetResolver();
           List<DeviceEntity> deviceEntityList = resolver.resolve(appId, target);
           requested = deviceEntityList.size();
+          int unsent = 0;
           for (DeviceEntity de : deviceEntityList) {
             //get the bare user id.
             String recipient = de.getOwnerId();
             MessageBuilder builder = new MessageBuilder();
             builder.setAppEntity(validationResult.getAppEntity())
-                .setIdGenerator(new MessageIdGeneratorImpl())
+                .setIdGenerator(TimeOrderedMessageIdGenerator.getInstance())
                 .setUtcTime(System.currentTimeMillis())
                 .setDeviceEntity(de)
                 .setUserId(recipient)
@@ -234,31 +247,107 @@ public class MessageSenderImpl implements MessageSender {
             Message message = builder.build();
             LOGGER.info("Message has been built for device id:{}", de.getDeviceId());
             String messageId = message.getID();
-            routeMessage(message);
-            sent++;
-            sentList.add(new SentMessageId(recipient, de.getDeviceId(), messageId));
+            if (routeMessage(message)) {
+              sent++;
+              listener.sent(new SentMessageId(recipient, de.getDeviceId(), messageId));
+            } else {
+              unsent++;
+              listener.unsent(dropped(recipient));
+            }
           }
           //completed sending messages
-          count = new Count(requested, sent, 0);
+          count = new Count(requested, sent, unsent);
           SendMessageResult internalResult = new SendMessageResult();
           internalResult.setError(false);
           internalResult.setErrorMessage(SEND_MESSAGE_STATUS_OK);
           internalResult.setCount(count);
-          internalResult.setSentList(sentList);
           result = internalResult;
         }
       }
       return result;
     } else {
       LOGGER.info("Send message request validation failed");
-      result = new SendMessageResult();
-      result.setErrorMessage(validationResult.getFailureMessage());
-      result.setError(true);
-      result.setErrorCode(validationResult.getValidationFailureCode());
+      result = failure(validationResult);
     }
     return result;
   }
 
+  /**
+   * Send the message to the recipient usernames in the request. The users are looked up in chunks
+   * and the message for every recipient is copied from a template built once for the request.
+   * Routing is done by the {@link MessageFanoutRouter}, whose bounded lanes limit the number of
+   * messages in flight.
+   * @return count of the requested, sent and unsent messages
+   */
+  private Count sendToUsers(String appId, com.magnet.mmx.server.plugin.mmxmgmt.api.SendMessageRequest request,
+                            ValidationResult validationResult, String domain, RecipientListener listener) {
+    List<String> userList = request.getRecipientUsernames();
+    UserDAO userDAO = new UserDAOImpl(getConnectionProvider());
+    MessageBuilder builder = new MessageBuilder();
+    builder.setAppEntity(validationResult.getAppEntity())
+        .setIdGenerator(TimeOrderedMessageIdGenerator.getInstance())
+        .setUtcTime(System.currentTimeMillis())
+        .setDeviceEntity(validationResult.getDeviceEntity())
+        .setReplyTo(request.getReplyTo())
+        .setMessageContent(request.getContent())
+        .setMetadata(request.getMetadata())
+        .setDomain(domain)
+        .setReceipt(request.isReceipt());
+    Message template = builder.buildTemplate();
+    int sent = 0;
+    int unsent = 0;
+    int start = 0;
+    do {
+      List<String> chunk = userList.subList(start,
+          Math.min(start + MMXServerConstants.USERNAME_QUERY_CHUNK_SIZE, userList.size()));
+      List<String> mmxUsernames = new ArrayList<String>(chunk.size());
+      for (String username : chunk) {
+        mmxUsernames.add(Helper.getMMXUsername(username, appId));
+      }
+      //username comparison in the DB is case insensitive
+      Set<String> existing = new HashSet<String>(chunk.size());
+      for (UserEntity userEntity : userDAO.getUsersByUsername(mmxUsernames)) {
+        existing.add(userEntity.getUsername().toLowerCase());
+      }
+      for (int i = 0; i < chunk.size(); i++) {
+        String username = chunk.get(i);
+        if (!existing.contains(mmxUsernames.get(i).toLowerCase())) {
+          LOGGER.info("User with name:{} not found", username);
+          listener.unsent(new UnsentMessage(username, ErrorCode.INVALID_USER_NAME.getCode(), ErrorMessages.ERROR_USERNAME_NOT_FOUND));
+          unsent++;
+        } else {
+          Message message = builder.setUserId(username).buildFrom(template);
+          if (routeMessage(message)) {
+            listener.sent(new SentMessageId(username, null, message.getID()));
+            sent++;
+          } else {
+            listener.unsent(dropped(username));
+            unsent++;
+          }
+        }
+      }
+      start += chunk.size();
+      listener.chunkDone();
+    } while (start < userList.size());
+    return new Count(userList.size(), sent, unsent);
+  }
+
+  /**
+   * @return unsent entry for a recipient whose message was dropped by the fan-out router
+   */
+  private static UnsentMessage dropped(String recipient) {
+    return new UnsentMessage(recipient, ErrorCode.SEND_MESSAGE_DROPPED.getCode(),
+        ErrorMessages.ERROR_SEND_MESSAGE_DROPPED);
+  }
+
+  private static SendMessageResult failure(ValidationResult validationResult) {
+    SendMessageResult result = new SendMessageResult();
+    result.setErrorMessage(validationResult.getFailureMessage());
+    result.setError(true);
+    result.setErrorCode(validationResult.getValidationFailureCode());
+    return result;
+  }
+
   /**
    * Post errorMessage
    *
@@ -299,7 +388,7 @@ public class MessageSenderImpl implements MessageSender {
       //ok validated.
       TopicMessageBuilder builder = new TopicMessageBuilder();
       builder.setAppEntity(validationResult.getAppEntity())
-          .setIdGenerator(new MessageIdGeneratorImpl())
+          .setIdGenerator(TimeOrderedMessageIdGenerator.getInstance())
           .setUtcTime(System.currentTimeMillis())
           .setRequest(request)
           .setDomain(domain)
@@ -395,8 +484,10 @@ public class MessageSenderImpl implements MessageSender {
     }
     if (userList != null) {
       int size = userList.size();
-      if (size > MAX_USERNAME_COUNT){
-        String message = String.format(ErrorMessages.ERROR_USERNAME_LIST_TOO_LONG, MAX_USERNAME_COUNT);
+      int maxCount = MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.SEND_MESSAGE_MAX_RECIPIENTS,
+          MMXServerConstants.DEFAULT_SEND_MESSAGE_MAX_RECIPIENTS);
+      if (size > maxCount){
+        String message = String.format(ErrorMessages.ERROR_USERNAME_LIST_TOO_LONG, maxCount);
         return ValidationResult.failure(message,
             ErrorCode.SEND_MESSAGE_USERNAME_LIST_TOO_BIG.getCode());
       }
@@ -470,14 +561,18 @@ public class MessageSenderImpl implements MessageSender {
     return router;
   }
 
-  protected void routeMessage(final Message message) {
-      ExecutorService service = MMXExecutors.getOrCreate(POOL_NAME, POOL_SIZE);
-      service.submit(new Runnable() {
-        @Override
-        public void run() {
-          getPacketRouter().route(message);
-        }
-      });
+  /**
+   * Route the message using the fan-out router.
+   * @param message
+   * @return false if the router dropped the message because its lane is full; the recipient is
+   * then reported as unsent so that the caller can retry
+   */
+  protected boolean routeMessage(Message message) {
+    return getFanoutRouter().route(getPacketRouter(), message);
+  }
+
+  protected MessageFanoutRouter getFanoutRouter() {
+    return MessageFanoutRouter.getInstance();
   }
 
   protected void routeMessage(IQ message) {
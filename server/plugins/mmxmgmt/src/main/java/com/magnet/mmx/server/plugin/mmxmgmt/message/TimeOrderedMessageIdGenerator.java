@@ -0,0 +1,150 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.message;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe id generator that creates time ordered identifiers without hashing.
+ * <p>
+ * An id is 128 bits written as 32 lower case hex characters, which is the same length as the
+ * MD5 based ids of {@link MessageIdGeneratorImpl}:
+ * <pre>
+ *   48 bits   milliseconds since the epoch
+ *   16 bits   node id of the cluster member
+ *   64 bits   sequence, starting at a random value
+ * </pre>
+ * Ids sort by creation time, so rows keyed by them are appended to the end of an index. The
+ * sequence makes the ids unique on a node and the node id makes them unique in the cluster.
+ * The supplied clientId, appId, deviceId and topicId are not part of the id.
+ * A single instance is meant to be shared; see {@link #getInstance()}.
+ */
+public class TimeOrderedMessageIdGenerator implements MessageIdGenerator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TimeOrderedMessageIdGenerator.class);
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final int ID_LENGTH = 32;
+  private static final int MAX_NODE_ID = 0xFFFF;
+  private static final long TIME_MASK = 0xFFFFFFFFFFFFL;
+
+  private static volatile TimeOrderedMessageIdGenerator instance = new TimeOrderedMessageIdGenerator(
+      newRandom().nextInt(MAX_NODE_ID + 1));
+
+  private final int nodeId;
+  private final AtomicLong sequence;
+
+  /**
+   * Constructor
+   * @param nodeId value between 0 and 65535 that is unique in the cluster
+   */
+  public TimeOrderedMessageIdGenerator(int nodeId) {
+    if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+      throw new IllegalArgumentException("nodeId must be between 0 and " + MAX_NODE_ID);
+    }
+    this.nodeId = nodeId;
+    this.sequence = new AtomicLong(newRandom().nextLong());
+  }
+
+  /**
+   * Get the shared generator.
+   * @return
+   */
+  public static TimeOrderedMessageIdGenerator getInstance() {
+    return instance;
+  }
+
+  /**
+   * Lifecycle method. Replace the shared generator with one using the supplied node id.
+   * @param nodeId value between 0 and 65535 that is unique in the cluster
+   */
+  public static void initialize(int nodeId) {
+    LOGGER.info("Message id generator is initialized with nodeId:{}", nodeId);
+    instance = new TimeOrderedMessageIdGenerator(nodeId);
+  }
+
+  /**
+   * Derive a 16 bit node id from the cluster node id.
+   * @param clusterNodeId
+   * @return
+   */
+  public static int toNodeId(byte[] clusterNodeId) {
+    int hash = Arrays.hashCode(clusterNodeId);
+    return (hash ^ (hash >>> 16)) & MAX_NODE_ID;
+  }
+
+  @Override
+  public String generate(String clientId, String appId, String deviceId) {
+    return nextId();
+  }
+
+  @Override
+  public String generateTopicMessageId(String appId, String topicId) {
+    return nextId();
+  }
+
+  @Override
+  public String generateItemIdentifier(String topicId) {
+    return nextId();
+  }
+
+  public int getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Get the creation time encoded in an id generated by this class.
+   * @param id
+   * @return milliseconds since the epoch
+   */
+  public static long getTimestamp(String id) {
+    return Long.parseLong(id.substring(0, 12), 16);
+  }
+
+  String nextId() {
+    long time = getCurrentTimeMillis() & TIME_MASK;
+    long seq = sequence.getAndIncrement();
+    char[] chars = new char[ID_LENGTH];
+    writeHex(chars, 0, time, 12);
+    writeHex(chars, 12, nodeId, 4);
+    writeHex(chars, 16, seq, 16);
+    return new String(chars);
+  }
+
+  protected long getCurrentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  private static void writeHex(char[] chars, int offset, long value, int digits) {
+    for (int i = offset + digits - 1; i >= offset; i--) {
+      chars[i] = HEX[(int) (value & 0xF)];
+      value >>>= 4;
+    }
+  }
+
+  private static Random newRandom() {
+    try {
+      return SecureRandom.getInstance(MMXServerConstants.SECURE_RANDOM_ALGORITHM);
+    } catch (Throwable t) {
+      LOGGER.error("Problem in initializing the random number generator. Falling back to java.util.Random", t);
+      return new Random();
+    }
+  }
+}
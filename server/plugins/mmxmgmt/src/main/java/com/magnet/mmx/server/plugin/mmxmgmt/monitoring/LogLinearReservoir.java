@@ -0,0 +1,284 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.monitoring;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reservoir that counts values in log-linear buckets, in the style of HdrHistogram.
+ * <p>
+ * Values below 2^SUB_BUCKET_BITS are counted exactly. Each larger power of two is split into
+ * 2^SUB_BUCKET_BITS equal buckets, so a reported quantile is within about 3% of the recorded value.
+ * Recording is a couple of atomic increments and never blocks, which makes the reservoir safe to
+ * use on the packet handling threads.
+ * <p>
+ * The buckets are rotated every window: a snapshot covers the values recorded in the current and
+ * the previous window, that is the last one to two windows, so quantiles, min, max and mean follow
+ * the recent distribution instead of everything since startup. Only {@link BucketSnapshot#getSum()}
+ * is cumulative, to go with the cumulative count of the timer or histogram.
+ */
+public class LogLinearReservoir implements Reservoir {
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+  /**
+   * Number of values returned by {@link Snapshot#getValues()}.
+   */
+  static final int SAMPLE_SIZE = 1028;
+  /**
+   * Length of a window in seconds.
+   */
+  static final long DEFAULT_WINDOW_SECONDS = 60;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Clock clock;
+  private final long windowNanos;
+  private final AtomicLong rotateAt;
+  private final AtomicReference<Window> current = new AtomicReference<Window>(new Window());
+  private volatile Window previous = new Window();
+  private final AtomicLong totalSum = new AtomicLong();
+
+  public LogLinearReservoir() {
+    this(DEFAULT_WINDOW_SECONDS, TimeUnit.SECONDS, Clock.defaultClock());
+  }
+
+  /**
+   * @param window length of a window
+   * @param unit unit of window
+   * @param clock clock used to rotate the windows
+   */
+  public LogLinearReservoir(long window, TimeUnit unit, Clock clock) {
+    this.clock = clock;
+    this.windowNanos = unit.toNanos(window);
+    this.rotateAt = new AtomicLong(clock.getTick() + windowNanos);
+  }
+
+  /**
+   * @return number of values in the current and the previous window
+   */
+  @Override
+  public int size() {
+    rotateIfDue();
+    long count = current.get().count.get() + previous.count.get();
+    return (int) Math.min(count, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Record a value. Negative values are recorded as 0.
+   * @param value
+   */
+  @Override
+  public void update(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    rotateIfDue();
+    current.get().update(value);
+    totalSum.addAndGet(value);
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    rotateIfDue();
+    Window recent = current.get();
+    Window older = previous;
+    long[] copy = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = recent.counts.get(i) + older.counts.get(i);
+      total += copy[i];
+    }
+    return new BucketSnapshot(copy, total, recent.sum.get() + older.sum.get(),
+        Math.min(recent.min.get(), older.min.get()), Math.max(recent.max.get(), older.max.get()), totalSum.get());
+  }
+
+  /**
+   * Start a new window once the current one is over. Only the thread that wins the race rotates;
+   * a value recorded into the window being retired still shows up as part of the previous window.
+   */
+  private void rotateIfDue() {
+    long now = clock.getTick();
+    long due = rotateAt.get();
+    if (now - due < 0 || !rotateAt.compareAndSet(due, now + windowNanos)) {
+      return;
+    }
+    Window retired = current.getAndSet(new Window());
+    //nothing recorded for a whole window, so the retired window is too old to report
+    previous = now - due < windowNanos ? retired : new Window();
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) ((value - (1L << exponent)) >>> shift);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @param index
+   * @return the value in the middle of the bucket
+   */
+  static long representative(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lower = (1L << (shift + SUB_BUCKET_BITS)) + ((long) (index % SUB_BUCKETS) << shift);
+    return lower + ((1L << shift) >>> 1);
+  }
+
+  /**
+   * Counts of a single window
+   */
+  private static class Window {
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    private void update(long value) {
+      counts.incrementAndGet(index(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long current;
+      while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+        //retry
+      }
+      while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        //retry
+      }
+    }
+  }
+
+  static class BucketSnapshot extends Snapshot {
+    private final long[] counts;
+    private final long total;
+    private final long sum;
+    private final long min;
+    private final long max;
+    private final long totalSum;
+
+    BucketSnapshot(long[] counts, long total, long sum, long min, long max, long totalSum) {
+      this.counts = counts;
+      this.total = total;
+      this.sum = sum;
+      this.min = min;
+      this.max = max;
+      this.totalSum = totalSum;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+      if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+        throw new IllegalArgumentException(quantile + " is not in [0..1]");
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.max(min, Math.min(max, representative(i)));
+        }
+      }
+      return max;
+    }
+
+    /**
+     * @return up to {@link #SAMPLE_SIZE} values spread evenly over the distribution
+     */
+    @Override
+    public long[] getValues() {
+      int size = (int) Math.min(total, SAMPLE_SIZE);
+      long[] values = new long[size];
+      for (int i = 0; i < size; i++) {
+        values[i] = (long) getValue((i + 0.5d) / size);
+      }
+      return values;
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long getMax() {
+      return total == 0 ? 0 : max;
+    }
+
+    @Override
+    public double getMean() {
+      return total == 0 ? 0 : (double) sum / total;
+    }
+
+    @Override
+    public long getMin() {
+      return total == 0 ? 0 : min;
+    }
+
+    @Override
+    public double getStdDev() {
+      if (total <= 1) {
+        return 0;
+      }
+      double mean = getMean();
+      double variance = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          double diff = representative(i) - mean;
+          variance += counts[i] * diff * diff;
+        }
+      }
+      return Math.sqrt(variance / (total - 1));
+    }
+
+    /**
+     * @return sum of all the values recorded since the reservoir was created
+     */
+    public long getSum() {
+      return totalSum;
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(output, UTF8));
+      try {
+        for (long value : getValues()) {
+          out.printf("%d%n", value);
+        }
+      } finally {
+        out.close();
+      }
+    }
+  }
+}
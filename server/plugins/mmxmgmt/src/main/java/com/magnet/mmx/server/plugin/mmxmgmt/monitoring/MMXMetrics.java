@@ -0,0 +1,159 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.monitoring;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registry of the hot path metrics of the plugin.
+ * <p>
+ * Counters, timers and histograms are created on first use and live as long as the plugin. Timers
+ * and histograms record into a {@link LogLinearReservoir}, so recording is lock free. The metrics
+ * are collected whether or not they are exported; {@link #initialize(String, boolean)} optionally
+ * exposes them as MBeans and the admin server renders them for Prometheus at /metrics.
+ */
+public class MMXMetrics {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MMXMetrics.class);
+  private static final MetricRegistry registry = new MetricRegistry();
+  private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+  private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+  private static JmxReporter jmxReporter;
+
+  public static MetricRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Get the counter with the name, creating it if needed.
+   * @param name dot separated metric name
+   * @return counter
+   */
+  public static Counter counter(String name) {
+    return registry.counter(name);
+  }
+
+  /**
+   * Get the timer with the name, creating it if needed.
+   * @param name dot separated metric name
+   * @return timer backed by a {@link LogLinearReservoir}
+   */
+  public static Timer timer(String name) {
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      Timer created = new Timer(new LogLinearReservoir());
+      timer = timers.putIfAbsent(name, created);
+      if (timer == null) {
+        registry.register(name, created);
+        timer = created;
+      }
+    }
+    return timer;
+  }
+
+  /**
+   * Get the histogram with the name, creating it if needed.
+   * @param name dot separated metric name
+   * @return histogram backed by a {@link LogLinearReservoir}
+   */
+  public static Histogram histogram(String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      Histogram created = new Histogram(new LogLinearReservoir());
+      histogram = histograms.putIfAbsent(name, created);
+      if (histogram == null) {
+        registry.register(name, created);
+        histogram = created;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Register a gauge, replacing any gauge with the same name. Gauges usually reference
+   * components that are created on startup, so they are removed by {@link #teardown()}.
+   * @param name dot separated metric name
+   * @param gauge
+   */
+  public static void gauge(String name, Gauge<?> gauge) {
+    registry.remove(name);
+    registry.register(name, gauge);
+  }
+
+  /**
+   * Record the time elapsed since startNanos.
+   * @param timer
+   * @param startNanos value of {@link System#nanoTime()} when the operation started
+   */
+  public static void time(Timer timer, long startNanos) {
+    timer.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Lifecycle method.
+   * @param jmxDomain domain of the metric MBeans
+   * @param jmxEnabled true to expose the metrics as MBeans
+   */
+  public static void initialize(String jmxDomain, boolean jmxEnabled) {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    if (jmxEnabled) {
+      jmxReporter = JmxReporter.forRegistry(registry)
+          .inDomain(jmxDomain)
+          .convertDurationsTo(TimeUnit.MILLISECONDS)
+          .convertRatesTo(TimeUnit.SECONDS)
+          .build();
+      jmxReporter.start();
+      LOGGER.info("initialize : metrics exposed as MBeans in domain={}", jmxDomain);
+    }
+  }
+
+  /**
+   * Lifecycle method. Stop the JMX export and drop the gauges.
+   */
+  public static void teardown() {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
+    }
+    if (jmxReporter != null) {
+      jmxReporter.stop();
+      jmxReporter = null;
+    }
+    registry.removeMatching(new MetricFilter() {
+      @Override
+      public boolean matches(String name, Metric metric) {
+        return metric instanceof Gauge;
+      }
+    });
+  }
+
+  public static boolean isInitialized() {
+    return initialized.get();
+  }
+}
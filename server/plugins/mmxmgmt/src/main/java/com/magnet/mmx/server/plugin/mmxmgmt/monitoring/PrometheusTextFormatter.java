@@ -0,0 +1,142 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.monitoring;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Renders a {@link MetricRegistry} in the Prometheus text exposition format (version 0.0.4).
+ * <p>
+ * Counters and meters are rendered as counters, gauges with a numeric or boolean value as gauges,
+ * and histograms and timers as summaries with quantiles, a sum and a count. Timer values are
+ * in seconds. Metric names are prefixed and have the characters Prometheus doesn't allow replaced
+ * by '_'.
+ */
+public class PrometheusTextFormatter {
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.99, 0.999};
+  private static final double NANOS_PER_SECOND = 1000000000d;
+
+  private final String prefix;
+
+  public PrometheusTextFormatter(String prefix) {
+    this.prefix = prefix;
+  }
+
+  public void write(MetricRegistry registry, Writer out) throws IOException {
+    for (Map.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
+      String name = name(entry.getKey());
+      type(out, name, "counter");
+      sample(out, name, null, entry.getValue().getCount());
+    }
+    for (Map.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
+      String name = name(entry.getKey());
+      type(out, name, "counter");
+      sample(out, name, null, entry.getValue().getCount());
+    }
+    for (Map.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+      Object value = entry.getValue().getValue();
+      double number;
+      if (value instanceof Number) {
+        number = ((Number) value).doubleValue();
+      } else if (value instanceof Boolean) {
+        number = ((Boolean) value) ? 1 : 0;
+      } else {
+        continue;
+      }
+      String name = name(entry.getKey());
+      type(out, name, "gauge");
+      sample(out, name, null, number);
+    }
+    for (Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet()) {
+      Histogram histogram = entry.getValue();
+      summary(out, name(entry.getKey()), histogram.getSnapshot(), histogram.getCount(), 1d);
+    }
+    for (Map.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
+      Timer timer = entry.getValue();
+      summary(out, name(entry.getKey()) + "_seconds", timer.getSnapshot(), timer.getCount(), NANOS_PER_SECOND);
+    }
+    out.flush();
+  }
+
+  private void summary(Writer out, String name, Snapshot snapshot, long count, double divisor) throws IOException {
+    type(out, name, "summary");
+    for (double quantile : QUANTILES) {
+      sample(out, name, Double.toString(quantile), snapshot.getValue(quantile) / divisor);
+    }
+    double sum;
+    if (snapshot instanceof LogLinearReservoir.BucketSnapshot) {
+      sum = ((LogLinearReservoir.BucketSnapshot) snapshot).getSum();
+    } else {
+      sum = snapshot.getMean() * snapshot.size();
+    }
+    sample(out, name + "_sum", null, sum / divisor);
+    sample(out, name + "_count", null, count);
+  }
+
+  private static void type(Writer out, String name, String type) throws IOException {
+    out.write("# TYPE ");
+    out.write(name);
+    out.write(' ');
+    out.write(type);
+    out.write('\n');
+  }
+
+  private static void sample(Writer out, String name, String quantile, double value) throws IOException {
+    out.write(name);
+    if (quantile != null) {
+      out.write("{quantile=\"");
+      out.write(quantile);
+      out.write("\"}");
+    }
+    out.write(' ');
+    out.write(format(value));
+    out.write('\n');
+  }
+
+  static String format(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  String name(String metricName) {
+    StringBuilder builder = new StringBuilder(prefix.length() + metricName.length() + 1);
+    builder.append(prefix).append('_');
+    for (int i = 0; i < metricName.length(); i++) {
+      char c = metricName.charAt(i);
+      boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == ':';
+      builder.append(valid ? c : '_');
+    }
+    return builder.toString();
+  }
+}
@@ -14,62 +14,145 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.monitoring;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Iterator;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Rate limits XMPP messages and REST requests using a {@link TokenBucketRateLimiter} per rate type.
+ * <p>
+ * The limits are read from the configuration by {@link #configure()}, which is called on startup,
+ * when a rate property changes and when the cluster membership changes. The configured limits are
+ * per instance unless {@link MMXConfigKeys#RATE_LIMIT_CLUSTER_AGGREGATE} is set, in which case
+ * each cluster member enforces an equal share of the configured limit.
  */
 public class RateLimiterService {
   private static final Logger LOGGER = LoggerFactory.getLogger(RateLimiterService.class);
-  private static LoadingCache<RateLimiterDescriptor, RateLimiter> rateLimiterMap = CacheBuilder.newBuilder()
-          .maximumSize(100)
-          .build(
-                  new CacheLoader<RateLimiterDescriptor, RateLimiter>() {
-                    public RateLimiter load(RateLimiterDescriptor descriptor) {
-                      return RateLimiter.create(descriptor.getPermitsPerSecond());
-                    }
-                  });
+  private static final ConcurrentHashMap<String, TokenBucketRateLimiter> limiters =
+      new ConcurrentHashMap<String, TokenBucketRateLimiter>();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+  private static ScheduledExecutorService sweeper;
 
-  private static RateLimiter getOrCreate(RateLimiterDescriptor descriptor) throws ExecutionException {
-    return rateLimiterMap.get(descriptor);
+  /**
+   * Lifecycle method. Load the limits and start removing idle buckets.
+   */
+  public static void initialize() {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    configure();
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("RateLimitSweeper-%d").setDaemon(true).build());
+    long interval = MMXServerConstants.RATE_LIMIT_SWEEP_INTERVAL_SECONDS;
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (TokenBucketRateLimiter limiter : limiters.values()) {
+            int removed = limiter.purgeIdle();
+            LOGGER.trace("purgeIdle : removed {} buckets of type={}", removed, limiter.getType());
+          }
+        } catch (Throwable t) {
+          LOGGER.error("run : unexpected exception removing idle rate limit buckets", t);
+        }
+      }
+    }, interval, interval, TimeUnit.SECONDS);
   }
 
-  public static boolean isAllowed(RateLimiterDescriptor descriptor) {
-    if(descriptor.getPermitsPerSecond() <= 0) {
-      LOGGER.trace("isAllowed : rate limiting disabled");
-      return true;
+  /**
+   * Lifecycle method.
+   */
+  public static void teardown() {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
     }
-    try {
-      LOGGER.trace("isAllowed : getting ratelimiter for descriptor={}", descriptor);
-      RateLimiter r = getOrCreate(descriptor);
-      LOGGER.trace("isAllowed : retireved ratelimiter={}, rate={}", r, r.getRate());
-      return r.tryAcquire();
-    } catch (ExecutionException e) {
-      LOGGER.error("isAllowed : Caught exception getting RateLimiter for descriptor : {}", descriptor, e);
-      return false;
+    sweeper.shutdownNow();
+    limiters.clear();
+  }
+
+  /**
+   * (Re)load the limits from the configuration. The buckets are kept.
+   */
+  public static void configure() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    boolean aggregate = configuration.getBoolean(MMXConfigKeys.RATE_LIMIT_CLUSTER_AGGREGATE,
+        MMXServerConstants.DEFAULT_RATE_LIMIT_CLUSTER_AGGREGATE);
+    int members = 1;
+    if (aggregate && ClusterManager.isClusteringEnabled()) {
+      members = Math.max(1, ClusterManager.getNodesInfo().size());
     }
+    setRate(MMXServerConstants.XMPP_RATE_TYPE, TokenBucketRateLimiter.Scope.APP,
+        configuration.getInt(MMXConfigKeys.MAX_XMPP_RATE, MMXServerConstants.DEFAULT_MAX_XMPP_RATE), members);
+    setRate(MMXServerConstants.XMPP_RATE_TYPE, TokenBucketRateLimiter.Scope.USER,
+        configuration.getInt(MMXConfigKeys.MAX_XMPP_RATE_PER_USER, MMXServerConstants.DEFAULT_MAX_XMPP_RATE_PER_USER), members);
+    setRate(MMXServerConstants.XMPP_RATE_TYPE, TokenBucketRateLimiter.Scope.DEVICE,
+        configuration.getInt(MMXConfigKeys.MAX_XMPP_RATE_PER_DEVICE, MMXServerConstants.DEFAULT_MAX_XMPP_RATE_PER_DEVICE), members);
+    setRate(MMXServerConstants.HTTP_RATE_TYPE, TokenBucketRateLimiter.Scope.APP,
+        configuration.getInt(MMXConfigKeys.MAX_HTTP_RATE, MMXServerConstants.DEFAULT_MAX_HTTP_RATE), members);
   }
 
-  public static void updateRates(String type, long rate) {
-    LOGGER.debug("updateRates : type={}, rate={}", type, rate);
-    Iterator<RateLimiterDescriptor> iterator = rateLimiterMap.asMap().keySet().iterator();
-    while(iterator.hasNext()) {
-      RateLimiterDescriptor oldRateDesc = iterator.next();
-      if(type.equals(oldRateDesc.getType())) {
-        LOGGER.trace("updateRates : invalidated rate={}", oldRateDesc);
-        rateLimiterMap.invalidate(oldRateDesc);
-        RateLimiterDescriptor newRateDesc = new RateLimiterDescriptor(oldRateDesc.getType(), oldRateDesc.getAppId(), rate);
-        LOGGER.trace("updateRates : updating rate desc={}, rate={}", newRateDesc, rate);
-        rateLimiterMap.put(newRateDesc, RateLimiter.create(rate));
-        rateLimiterMap.refresh(newRateDesc);
+  private static void setRate(String type, TokenBucketRateLimiter.Scope scope, long rate, int members) {
+    long share = rate > 0 ? Math.max(1L, rate / members) : rate;
+    LOGGER.debug("setRate : type={}, scope={}, rate={}", new Object[]{type, scope, share});
+    getLimiter(type).setRate(scope, share);
+  }
+
+  /**
+   * Get the limiter for a rate type, creating it if needed.
+   * @param type
+   * @return
+   */
+  public static TokenBucketRateLimiter getLimiter(String type) {
+    TokenBucketRateLimiter limiter = limiters.get(type);
+    if (limiter == null) {
+      TokenBucketRateLimiter created = new TokenBucketRateLimiter(type);
+      limiter = limiters.putIfAbsent(type, created);
+      if (limiter == null) {
+        limiter = created;
       }
     }
+    return limiter;
+  }
+
+  /**
+   * Check the configured limits of the type.
+   * @param type rate type
+   * @param appId
+   * @param userId null if the user limit doesn't apply
+   * @param deviceId null if the device limit doesn't apply
+   * @return true if the request is allowed
+   */
+  public static boolean isAllowed(String type, String appId, String userId, String deviceId) {
+    return getLimiter(type).tryAcquire(appId, userId, deviceId);
+  }
+
+  /**
+   * @param type
+   * @return number of requests of the type that were rejected
+   */
+  public static long getRejectedCount(String type) {
+    TokenBucketRateLimiter limiter = limiters.get(type);
+    return limiter == null ? 0L : limiter.getRejectedCount();
+  }
+
+  /**
+   * @return number of buckets of all types
+   */
+  public static long getBucketCount() {
+    long count = 0;
+    for (TokenBucketRateLimiter limiter : limiters.values()) {
+      count += limiter.getBucketCount();
+    }
+    return count;
   }
 }
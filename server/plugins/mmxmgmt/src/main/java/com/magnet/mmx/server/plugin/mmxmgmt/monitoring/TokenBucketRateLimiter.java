@@ -0,0 +1,192 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.monitoring;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free token bucket rate limiter for one type of traffic, with separate limits for the
+ * app, user and device scopes.
+ * <p>
+ * A bucket is a single AtomicLong holding the time at which the bucket is full again (generic cell
+ * rate algorithm); a permit is taken with a compare-and-set. A bucket holds up to one second worth
+ * of permits, like Guava's RateLimiter. The limits are kept in arrays and read on every acquire, so
+ * a changed limit takes effect right away without dropping the buckets.
+ * <p>
+ * A bucket that is full is equivalent to a new one. {@link #purgeIdle()} only removes full buckets,
+ * so removing buckets never resets a budget.
+ */
+public class TokenBucketRateLimiter {
+  public enum Scope {
+    APP,
+    USER,
+    DEVICE
+  }
+
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  private static final char KEY_SEPARATOR = '\u0000';
+
+  private final String type;
+  private final AtomicLongArray rates = new AtomicLongArray(Scope.values().length);
+  private final AtomicLongArray intervals = new AtomicLongArray(Scope.values().length);
+  private final ConcurrentHashMap<String, AtomicLong>[] buckets;
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  @SuppressWarnings("unchecked")
+  public TokenBucketRateLimiter(String type) {
+    this.type = type;
+    buckets = new ConcurrentHashMap[Scope.values().length];
+    for (Scope scope : Scope.values()) {
+      buckets[scope.ordinal()] = new ConcurrentHashMap<String, AtomicLong>();
+      rates.set(scope.ordinal(), -1L);
+    }
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * Set the limit for a scope. Existing buckets are kept and use the new limit from the next acquire.
+   * @param scope
+   * @param permitsPerSecond permits per second for each app, user or device; 0 or less disables the limit
+   */
+  public void setRate(Scope scope, long permitsPerSecond) {
+    int index = scope.ordinal();
+    rates.set(index, permitsPerSecond);
+    intervals.set(index, permitsPerSecond > 0 ? Math.max(1L, NANOS_PER_SECOND / permitsPerSecond) : 0L);
+    if (permitsPerSecond <= 0) {
+      buckets[index].clear();
+    }
+  }
+
+  /**
+   * @param scope
+   * @return permits per second; 0 or less if the scope is not limited
+   */
+  public long getRate(Scope scope) {
+    return rates.get(scope.ordinal());
+  }
+
+  /**
+   * Take a permit from the device, user and app buckets, in that order. A request that is
+   * rejected by a narrower scope doesn't use up the budget of the app, and the permits already
+   * taken from the narrower scopes are given back when a wider scope rejects the request.
+   * @param appId can't be null
+   * @param userId null if the user scope doesn't apply
+   * @param deviceId null if the device scope doesn't apply
+   * @return true if the request is allowed
+   */
+  public boolean tryAcquire(String appId, String userId, String deviceId) {
+    long now = nanoTime();
+    boolean allowed = false;
+    if (deviceId == null || tryAcquire(Scope.DEVICE, appId, deviceId, now)) {
+      if (userId == null || tryAcquire(Scope.USER, appId, userId, now)) {
+        allowed = tryAcquire(Scope.APP, appId, null, now);
+        if (!allowed && userId != null) {
+          release(Scope.USER, appId, userId);
+        }
+      }
+      if (!allowed && deviceId != null) {
+        release(Scope.DEVICE, appId, deviceId);
+      }
+    }
+    if (!allowed) {
+      rejectedCount.incrementAndGet();
+    }
+    return allowed;
+  }
+
+  private boolean tryAcquire(Scope scope, String appId, String id, long now) {
+    int index = scope.ordinal();
+    long interval = intervals.get(index);
+    if (interval == 0L) {
+      return true;
+    }
+    String key = id == null ? appId : appId + KEY_SEPARATOR + id;
+    ConcurrentHashMap<String, AtomicLong> map = buckets[index];
+    AtomicLong bucket = map.get(key);
+    if (bucket == null) {
+      AtomicLong created = new AtomicLong(now);
+      bucket = map.putIfAbsent(key, created);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    while (true) {
+      long fullAt = bucket.get();
+      long next = (fullAt - now > 0 ? fullAt : now) + interval;
+      if (next - now > NANOS_PER_SECOND) {
+        return false;
+      }
+      if (bucket.compareAndSet(fullAt, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Give back a permit taken by {@link #tryAcquire(Scope, String, String, long)}.
+   */
+  private void release(Scope scope, String appId, String id) {
+    int index = scope.ordinal();
+    long interval = intervals.get(index);
+    if (interval == 0L) {
+      return;
+    }
+    AtomicLong bucket = buckets[index].get(id == null ? appId : appId + KEY_SEPARATOR + id);
+    if (bucket != null) {
+      bucket.addAndGet(-interval);
+    }
+  }
+
+  /**
+   * Remove the buckets that are full.
+   * @return number of buckets removed
+   */
+  public int purgeIdle() {
+    long now = nanoTime();
+    int removed = 0;
+    for (ConcurrentHashMap<String, AtomicLong> map : buckets) {
+      Iterator<AtomicLong> iterator = map.values().iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().get() - now <= 0) {
+          iterator.remove();
+          removed++;
+        }
+      }
+    }
+    return removed;
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  public int getBucketCount() {
+    int count = 0;
+    for (ConcurrentHashMap<String, AtomicLong> map : buckets) {
+      count += map.size();
+    }
+    return count;
+  }
+
+  protected long nanoTime() {
+    return System.nanoTime();
+  }
+}
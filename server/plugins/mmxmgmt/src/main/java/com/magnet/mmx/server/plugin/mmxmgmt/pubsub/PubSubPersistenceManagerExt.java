@@ -49,8 +49,11 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Extra functionality to the PubSubPersistenceManager.
@@ -74,6 +77,15 @@ public class PubSubPersistenceManagerExt {
       + LOAD_ITEMS_BTWN_PREDICATE;
   private static final String LOAD_ITEMS_BTWN = "SELECT id,jid,creationDate,payload FROM ofPubsubItem "
       + LOAD_ITEMS_BTWN_PREDICATE;
+  /**
+   * Items of a node limited to a number of rows; one branch of the multi-node query.
+   */
+  private static final String LOAD_NODE_ITEMS_LIMITED = "SELECT nodeID,id,jid,creationDate,payload FROM ofPubsubItem "
+      + LOAD_ITEMS_PREDICATE + " LIMIT ?";
+  /**
+   * Max number of nodes whose published items are fetched in one query and delivered at a time.
+   */
+  public static final int MAX_NODES_PER_QUERY = 128;
   private static final String GET_ITEM_COUNT = "SELECT count(*) from ofPubsubItem WHERE nodeID=? AND serviceID=?";
   private static final String SEARCH_PROJECTION = 
       "nodeID,leaf,name,description,persistItems,maxItems,maxPayloadSize,publisherModel,creationDate,modificationDate,creator,subscriptionEnabled";
@@ -170,6 +182,119 @@ public class PubSubPersistenceManagerExt {
     return results;
   }
 
+  /**
+   * Get the latest published items of multiple nodes. The nodes are queried in chunks of
+   * {@link #MAX_NODES_PER_QUERY}, one statement per chunk: a UNION ALL of a per-node select
+   * limited to the row limit of the node, so the number of items read for a node is limited by
+   * the database the same way as in
+   * {@link #getPublishedItems(org.jivesoftware.openfire.pubsub.LeafNode, int, java.util.Date)}
+   * and each branch can use the (serviceID, nodeID) key.
+   * @param nodes leaf nodes of the same pubsub service
+   * @param maxRows max number of items per node, -1 for the node limit
+   * @param since only items published at or after this date are returned
+   * @return map of nodeID to the published items; nodes without items are not included.
+   * @throws SQLException if the items can't be read; items of earlier chunks are not returned
+   */
+  public static Map<String, List<PublishedItem>> getPublishedItems(List<LeafNode> nodes,
+                                                                  int maxRows, Date since) throws SQLException {
+    if (nodes == null || nodes.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    PubSubPersistenceManager.flushPendingItems();
+
+    boolean descending = JiveGlobals.getBooleanProperty(
+        "xmpp.pubsub.order.descending", false);
+    String dateString = StringUtils.dateToMillis(since);
+    String serviceID = nodes.get(0).getService().getServiceID();
+    //nodes by the nodeID stored in the DB
+    Map<String, LeafNode> byNodeID = new LinkedHashMap<String, LeafNode>(nodes.size());
+    for (LeafNode node : nodes) {
+      byNodeID.put(encodeNodeID(node.getNodeID()), node);
+    }
+    List<String> nodeIDs = new ArrayList<String>(byNodeID.keySet());
+    Map<String, List<PublishedItem>> results = new HashMap<String, List<PublishedItem>>(nodeIDs.size());
+
+    Connection con = null;
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      con = DbConnectionManager.getConnection();
+      int start = 0;
+      do {
+        List<String> chunk = nodeIDs.subList(start, Math.min(start + MAX_NODES_PER_QUERY, nodeIDs.size()));
+        pstmt = con.prepareStatement(getLoadNodesItemsSql(chunk.size()));
+        int index = 1;
+        for (String nodeID : chunk) {
+          pstmt.setString(index++, serviceID);
+          pstmt.setString(index++, nodeID);
+          pstmt.setString(index++, dateString);
+          pstmt.setInt(index++, getMaxRows(byNodeID.get(nodeID), maxRows));
+        }
+        LOGGER.trace("getPublishedItems : executing statement for {} nodes", chunk.size());
+        rs = pstmt.executeQuery();
+        while (rs.next()) {
+          LeafNode node = byNodeID.get(rs.getString(1));
+          if (node == null) {
+            continue;
+          }
+          List<PublishedItem> items = results.get(node.getNodeID());
+          if (items == null) {
+            items = new LinkedList<PublishedItem>();
+            results.put(node.getNodeID(), items);
+          }
+          PublishedItem item = new PublishedItem(node, new JID(rs.getString(3)), rs.getString(2),
+              new Date(Long.parseLong(rs.getString(4).trim())));
+          if (rs.getString(5) != null) {
+            item.setPayloadXML(rs.getString(5));
+          }
+          //rows of a node come newest first
+          if (descending)
+            items.add(item);
+          else
+            items.add(0, item);
+        }
+        DbConnectionManager.closeResultSet(rs);
+        DbConnectionManager.closeStatement(pstmt);
+        rs = null;
+        pstmt = null;
+        start += chunk.size();
+      } while (start < nodeIDs.size());
+    } catch (SQLException sqle) {
+      LOGGER.error("getPublishedItems : failed to read the items of {} nodes", nodeIDs.size(), sqle);
+      throw sqle;
+    } finally {
+      DbConnectionManager.closeConnection(rs, pstmt, con);
+    }
+    return results;
+  }
+
+  /**
+   * @param nodeCount number of nodes in the query
+   * @return UNION ALL of {@link #LOAD_NODE_ITEMS_LIMITED} for each node
+   */
+  private static String getLoadNodesItemsSql(int nodeCount) {
+    StringBuilder sql = new StringBuilder(nodeCount * (LOAD_NODE_ITEMS_LIMITED.length() + 13));
+    for (int i = 0; i < nodeCount; i++) {
+      if (i > 0) {
+        sql.append(" UNION ALL ");
+      }
+      sql.append('(').append(LOAD_NODE_ITEMS_LIMITED).append(')');
+    }
+    return sql.toString();
+  }
+
+  private static int getMaxRows(LeafNode node, int maxRows) {
+    int maxPublished = node.getMaxPublishedItems();
+    if (maxRows != -1) {
+      return (maxPublished == -1) ?
+          Math.min(maxRows, MAX_ROWS_FETCH) : Math.min(maxRows, maxPublished);
+    } else if (maxPublished != -1) {
+      return Math.min(MAX_ROWS_FETCH, maxPublished);
+    }
+    return MAX_ROWS_FETCH;
+  }
+
   public static int getPublishedItemCount(LeafNode node, Date since) {
     Connection con = null;
     PreparedStatement pstmt = null;
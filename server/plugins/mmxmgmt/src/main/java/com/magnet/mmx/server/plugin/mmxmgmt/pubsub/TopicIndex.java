@@ -0,0 +1,387 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.pubsub;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import com.magnet.mmx.util.TopicHelper;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.pubsub.Node;
+import org.jivesoftware.openfire.pubsub.NodeSubscription;
+import org.jivesoftware.openfire.pubsub.PubSubService;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory index of the pubsub nodes each user of an app is subscribed to.
+ * <p>
+ * The index of an app is built from the app root node on first use and then kept current by
+ * {@link com.magnet.mmx.server.plugin.mmxmgmt.handler.MMXTopicManager} as topics are deleted,
+ * subscribed and unsubscribed, and by
+ * {@link com.magnet.mmx.server.plugin.mmxmgmt.interceptor.MMXPacketInterceptor} for the
+ * subscriptions made with the native pubsub protocol. Changes are also applied on the other
+ * cluster members using {@link TopicIndexUpdateTask}. Changes made while an index is built are
+ * recorded and applied to it before it is used. Entries expire after a while so changes made
+ * some other way are picked up eventually. Callers must still check the returned nodes and
+ * subscriptions against the pubsub service.
+ */
+public class TopicIndex {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TopicIndex.class);
+
+  private final PubSubService pubSubService;
+  private final LoadingCache<String, AppIndex> apps;
+  private final ConcurrentHashMap<String, Build> builds = new ConcurrentHashMap<String, Build>();
+
+  private static class TopicIndexHolder {
+    private static final TopicIndex INSTANCE = new TopicIndex(XMPPServer.getInstance().getPubSubModule(),
+        MMXServerConstants.TOPIC_INDEX_EXPIRY_MINUTES);
+  }
+
+  public static TopicIndex getInstance() {
+    return TopicIndexHolder.INSTANCE;
+  }
+
+  TopicIndex(PubSubService pubSubService, long expiryMinutes) {
+    this(pubSubService, expiryMinutes, Ticker.systemTicker());
+  }
+
+  TopicIndex(PubSubService pubSubService, long expiryMinutes, Ticker ticker) {
+    this.pubSubService = pubSubService;
+    this.apps = CacheBuilder.newBuilder()
+        .expireAfterWrite(expiryMinutes, TimeUnit.MINUTES)
+        .ticker(ticker)
+        .build(new CacheLoader<String, AppIndex>() {
+          @Override
+          public AppIndex load(String appId) throws Exception {
+            return build(appId);
+          }
+        });
+  }
+
+  /**
+   * Get the nodes in the app that the user has subscribed to. Nodes that no longer exist
+   * are skipped.
+   * @param appId
+   * @param user bare or full JID of the user
+   * @return
+   */
+  public List<Node> getSubscribedNodes(String appId, JID user) {
+    AppIndex index = index(appId);
+    Set<String> nodeIds = index.subscribedNodeIds.get(user.toBareJID());
+    if (nodeIds == null || nodeIds.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Node> nodes = new ArrayList<Node>(nodeIds.size());
+    for (String nodeId : nodeIds) {
+      Node node = pubSubService.getNode(nodeId);
+      if (node == null) {
+        nodeIds.remove(nodeId);
+      } else {
+        nodes.add(node);
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * Remove a node on this node and the rest of the cluster.
+   * @param appId
+   * @param nodeId
+   */
+  public void nodeDeleted(String appId, String nodeId) {
+    nodeDeletedLocal(appId, nodeId);
+    broadcast(new TopicIndexUpdateTask(TopicIndexUpdateTask.Type.DELETED, appId, nodeId, null));
+  }
+
+  /**
+   * Record a subscription on this node and the rest of the cluster.
+   * @param appId
+   * @param nodeId
+   * @param user JID of the subscription owner
+   */
+  public void subscribed(String appId, String nodeId, JID user) {
+    subscribedLocal(appId, nodeId, user.toBareJID());
+    broadcast(new TopicIndexUpdateTask(TopicIndexUpdateTask.Type.SUBSCRIBED, appId, nodeId, user.toBareJID()));
+  }
+
+  /**
+   * Remove a subscription on this node and the rest of the cluster. Call this only after the
+   * user's last subscription to the node is cancelled.
+   * @param appId
+   * @param nodeId
+   * @param user JID of the subscription owner
+   */
+  public void unsubscribed(String appId, String nodeId, JID user) {
+    unsubscribedLocal(appId, nodeId, user.toBareJID());
+    broadcast(new TopicIndexUpdateTask(TopicIndexUpdateTask.Type.UNSUBSCRIBED, appId, nodeId, user.toBareJID()));
+  }
+
+  /**
+   * Record the subscription state of a user to a node, as the pubsub service has it now, on this
+   * node and the rest of the cluster. Use it after a subscription is made or cancelled with the
+   * native pubsub protocol.
+   * @param nodeId
+   * @param user JID of the subscription owner
+   */
+  public void subscriptionChanged(String nodeId, JID user) {
+    Node node = pubSubService.getNode(nodeId);
+    if (node == null) {
+      return;
+    }
+    String appId = TopicHelper.getRootNodeId(nodeId);
+    Collection<NodeSubscription> subscriptions = node.getSubscriptions(user.asBareJID());
+    if (subscriptions == null || subscriptions.isEmpty()) {
+      unsubscribed(appId, nodeId, user);
+    } else {
+      subscribed(appId, nodeId, user);
+    }
+  }
+
+  /**
+   * Drop the index for an app on this node and the rest of the cluster. It is rebuilt on next use.
+   * @param appId
+   */
+  public void invalidate(String appId) {
+    invalidateLocal(appId);
+    broadcast(new TopicIndexUpdateTask(TopicIndexUpdateTask.Type.INVALIDATE, appId, null, null));
+  }
+
+  /*
+   * The local update methods only touch an index that has been built or is being built; an
+   * index built later reads the current state from the pubsub service.
+   */
+  void nodeDeletedLocal(String appId, String nodeId) {
+    update(appId, new Update(Update.Type.DELETED, nodeId, null));
+  }
+
+  void subscribedLocal(String appId, String nodeId, String bareJID) {
+    update(appId, new Update(Update.Type.SUBSCRIBED, nodeId, bareJID));
+  }
+
+  void unsubscribedLocal(String appId, String nodeId, String bareJID) {
+    update(appId, new Update(Update.Type.UNSUBSCRIBED, nodeId, bareJID));
+  }
+
+  void invalidateLocal(String appId) {
+    Build build = builds.get(appId);
+    if (build != null) {
+      build.invalidated = true;
+    }
+    apps.invalidate(appId);
+  }
+
+  private void update(String appId, Update update) {
+    Build build = builds.get(appId);
+    if (build != null) {
+      build.apply(update);
+    }
+    AppIndex index = apps.getIfPresent(appId);
+    if (index != null && (build == null || index != build.index)) {
+      update.applyTo(index);
+    }
+  }
+
+  /**
+   * Get the index of an app, building it if needed. Once the built index is in the cache the
+   * updates find it there, so its build is forgotten.
+   */
+  private AppIndex index(String appId) {
+    AppIndex index = apps.getUnchecked(appId);
+    Build build = builds.get(appId);
+    if (build != null && build.index == index) {
+      builds.remove(appId, build);
+      if (build.invalidated) {
+        // invalidated while it was built; the cache may still have kept it
+        apps.invalidate(appId);
+        return index(appId);
+      }
+    }
+    return index;
+  }
+
+  private AppIndex build(String appId) {
+    Build build = new Build();
+    builds.put(appId, build);
+    try {
+      scan(appId, build.index);
+    } catch (RuntimeException e) {
+      builds.remove(appId, build);
+      throw e;
+    }
+    build.replay();
+    return build.index;
+  }
+
+  private void scan(String appId, AppIndex index) {
+    long startTime = System.nanoTime();
+    Node root = pubSubService.getNode(appId);
+    if (root != null && root.isCollectionNode()) {
+      for (Node child : root.getNodes()) {
+        addTree(index, child);
+      }
+    } else {
+      // Without an app root the nodes are not linked to it, fall back to a full scan.
+      String prefix = TopicHelper.makePrefix(appId);
+      for (Node node : pubSubService.getNodes()) {
+        if (node.getNodeID().startsWith(prefix)) {
+          addNode(index, node);
+        }
+      }
+    }
+    LOGGER.debug("scan : indexed {} users for appId={} in {} milliseconds", new Object[]{index.subscribedNodeIds.size(), appId,
+        TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS)});
+  }
+
+  private void addTree(AppIndex index, Node node) {
+    addNode(index, node);
+    if (node.isCollectionNode()) {
+      for (Node child : node.getNodes()) {
+        addTree(index, child);
+      }
+    }
+  }
+
+  private void addNode(AppIndex index, Node node) {
+    Collection<NodeSubscription> subscriptions = node.getAllSubscriptions();
+    if (subscriptions != null) {
+      for (NodeSubscription subscription : subscriptions) {
+        index.subscribe(subscription.getOwner().toBareJID(), node.getNodeID());
+      }
+    }
+  }
+
+  private static void broadcast(TopicIndexUpdateTask task) {
+    if (!ClusterManager.isClusteringEnabled()) {
+      return;
+    }
+    try {
+      CacheFactory.doClusterTask(task);
+    } catch (Exception e) {
+      LOGGER.warn("broadcast : failed to send topic index task={}", task, e);
+    }
+  }
+
+  /**
+   * Subscriptions of a single app
+   */
+  private static class AppIndex {
+    private final ConcurrentHashMap<String, Set<String>> subscribedNodeIds = new ConcurrentHashMap<String, Set<String>>();
+
+    private void subscribe(String bareJID, String nodeId) {
+      Set<String> subscribed = subscribedNodeIds.get(bareJID);
+      if (subscribed == null) {
+        Set<String> created = newConcurrentSet();
+        subscribed = subscribedNodeIds.putIfAbsent(bareJID, created);
+        if (subscribed == null) {
+          subscribed = created;
+        }
+      }
+      subscribed.add(nodeId);
+    }
+
+    private void unsubscribe(String bareJID, String nodeId) {
+      Set<String> subscribed = subscribedNodeIds.get(bareJID);
+      if (subscribed != null) {
+        subscribed.remove(nodeId);
+      }
+    }
+
+    private void remove(String nodeId) {
+      for (Set<String> subscribed : subscribedNodeIds.values()) {
+        subscribed.remove(nodeId);
+      }
+    }
+
+    private static Set<String> newConcurrentSet() {
+      return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+  }
+
+  /**
+   * A change to the index of an app.
+   */
+  private static class Update {
+    enum Type {
+      DELETED,
+      SUBSCRIBED,
+      UNSUBSCRIBED
+    }
+
+    private final Type type;
+    private final String nodeId;
+    private final String bareJID;
+
+    private Update(Type type, String nodeId, String bareJID) {
+      this.type = type;
+      this.nodeId = nodeId;
+      this.bareJID = bareJID;
+    }
+
+    private void applyTo(AppIndex index) {
+      switch (type) {
+        case DELETED:
+          index.remove(nodeId);
+          break;
+        case SUBSCRIBED:
+          index.subscribe(bareJID, nodeId);
+          break;
+        case UNSUBSCRIBED:
+          index.unsubscribe(bareJID, nodeId);
+          break;
+      }
+    }
+  }
+
+  /**
+   * An index being built. The pubsub service may have been read before a change was made, so the
+   * changes are recorded until the scan is done and then applied in order.
+   */
+  private static class Build {
+    private final AppIndex index = new AppIndex();
+    private final List<Update> pending = new ArrayList<Update>();
+    private boolean replayed;
+    private volatile boolean invalidated;
+
+    private synchronized void apply(Update update) {
+      if (replayed) {
+        update.applyTo(index);
+      } else {
+        pending.add(update);
+      }
+    }
+
+    private synchronized void replay() {
+      for (Update update : pending) {
+        update.applyTo(index);
+      }
+      pending.clear();
+      replayed = true;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.pubsub;
+
+import org.jivesoftware.util.cache.ClusterTask;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Cluster task that applies a {@link TopicIndex} change on the other cluster members.
+ */
+public class TopicIndexUpdateTask implements ClusterTask {
+
+  enum Type {
+    DELETED,
+    SUBSCRIBED,
+    UNSUBSCRIBED,
+    INVALIDATE
+  }
+
+  private Type type;
+  private String appId;
+  private String nodeId;
+  private String bareJID;
+
+  /**
+   * Required for deserialization.
+   */
+  public TopicIndexUpdateTask() {
+  }
+
+  TopicIndexUpdateTask(Type type, String appId, String nodeId, String bareJID) {
+    this.type = type;
+    this.appId = appId;
+    this.nodeId = nodeId;
+    this.bareJID = bareJID;
+  }
+
+  @Override
+  public Object getResult() {
+    return null;
+  }
+
+  @Override
+  public void run() {
+    TopicIndex index = TopicIndex.getInstance();
+    switch (type) {
+      case DELETED:
+        index.nodeDeletedLocal(appId, nodeId);
+        break;
+      case SUBSCRIBED:
+        index.subscribedLocal(appId, nodeId, bareJID);
+        break;
+      case UNSUBSCRIBED:
+        index.unsubscribedLocal(appId, nodeId, bareJID);
+        break;
+      case INVALIDATE:
+        index.invalidateLocal(appId);
+        break;
+    }
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeUTF(type.name());
+    out.writeUTF(appId);
+    writeNullable(out, nodeId);
+    writeNullable(out, bareJID);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    type = Type.valueOf(in.readUTF());
+    appId = in.readUTF();
+    nodeId = readNullable(in);
+    bareJID = readNullable(in);
+  }
+
+  private static void writeNullable(ObjectOutput out, String s) throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readNullable(ObjectInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  @Override
+  public String toString() {
+    return "TopicIndexUpdateTask{" +
+        "type=" + type +
+        ", appId='" + appId + '\'' +
+        ", nodeId='" + nodeId + '\'' +
+        ", bareJID='" + bareJID + '\'' +
+        '}';
+  }
+}
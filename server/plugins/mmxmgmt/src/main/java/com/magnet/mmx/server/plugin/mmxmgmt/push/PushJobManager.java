@@ -0,0 +1,260 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.push;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.magnet.mmx.server.common.data.AppEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.SendPushMessageRequest;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.JacksonJSONObjectMapperProvider;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.DBUtil;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Processes queued push jobs using a fixed pool of worker threads.
+ * <p>
+ * A job is claimed by changing its state from QUEUED to RUNNING, so a job is processed only once
+ * even if it is submitted on several cluster members. Queued jobs, including the jobs that were
+ * interrupted by a teardown, are submitted again when the manager is started and every
+ * leaseSeconds/2 after that, and continue from their last recorded device.
+ * <p>
+ * A running job records its progress after every page, which renews its lease. Running jobs whose
+ * progress hasn't been recorded for leaseSeconds are queued again by the same periodic sweep, so
+ * the jobs of a member that crashed are picked up by the members that are still running. The lease
+ * must be several times longer than the time it takes to push a page, otherwise a job that is still
+ * running could be queued again.
+ */
+public class PushJobManager {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PushJobManager.class);
+  private static final ObjectMapper MAPPER = new JacksonJSONObjectMapperProvider().getContext(SendPushMessageRequest.class);
+
+  private static PushJobManager instance = new PushJobManager();
+  private static AtomicBoolean initialized = new AtomicBoolean(false);
+
+  private ExecutorService workers;
+  private ScheduledExecutorService sweeper;
+  private int pageSize;
+  private final Set<Integer> submitted = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  public static PushJobManager getInstance() {
+    return instance;
+  }
+
+  /**
+   * Lifecycle method. Start the worker threads and submit the jobs that are queued.
+   * @param threads number of jobs processed at the same time
+   * @param pageSize number of devices resolved and pushed at a time
+   * @param leaseSeconds time after which a running job without progress is queued again
+   * @throws java.lang.IllegalStateException if the manager has already been initialized.
+   */
+  public static void initialize(int threads, int pageSize, int leaseSeconds) {
+    if (!initialized.compareAndSet(false, true)) {
+      throw new IllegalStateException("Can't initialize multiple times");
+    }
+    instance.start(threads, pageSize, leaseSeconds);
+    LOGGER.info("Push job manager is initialized with threads:{} pageSize:{} leaseSeconds:{}",
+        new Object[]{threads, pageSize, leaseSeconds});
+  }
+
+  /**
+   * Lifecycle method. Stop the worker threads. Running jobs stop after their current page and are
+   * queued again.
+   * @param waitSeconds maximum time to wait for the running jobs to stop
+   */
+  public static void teardown(long waitSeconds) {
+    if (!initialized.compareAndSet(true, false)) {
+      return;
+    }
+    instance.stop(waitSeconds);
+    LOGGER.info("Push job manager stopped.");
+  }
+
+  synchronized void start(int threads, int pageSize, int leaseSeconds) {
+    this.pageSize = Math.max(1, pageSize);
+    this.workers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactoryBuilder()
+        .setNameFormat("PushJobWorker-%d").setDaemon(true).build());
+    sweep(leaseSeconds);
+    final int lease = Math.max(1, leaseSeconds);
+    long period = Math.max(1, lease / 2);
+    this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("PushJobSweeper-%d").setDaemon(true).build());
+    this.sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep(lease);
+        } catch (Throwable t) {
+          LOGGER.warn("Exception in sweeping the push jobs", t);
+        }
+      }
+    }, period, period, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Queue the stale running jobs again and submit the queued jobs that aren't submitted on this
+   * member yet. Submitting a job that another member claims is harmless: the claim is a compare
+   * and set of its state.
+   * @param leaseSeconds
+   * @return number of jobs submitted
+   */
+  int sweep(int leaseSeconds) {
+    requeueStaleJobs(leaseSeconds);
+    int count = 0;
+    for (PushJobEntity job : getPushJobDAO().getJobs(PushJobEntity.State.QUEUED)) {
+      if (submit(job.getId())) {
+        count++;
+      }
+    }
+    if (count > 0) {
+      LOGGER.info("sweep : submitted {} queued push jobs", count);
+    }
+    return count;
+  }
+
+  /**
+   * Queue the running jobs again whose progress hasn't been recorded for leaseSeconds.
+   * @param leaseSeconds
+   * @return number of jobs queued again
+   */
+  int requeueStaleJobs(int leaseSeconds) {
+    long updatedBefore = System.currentTimeMillis()/1000L - Math.max(1, leaseSeconds);
+    int count = getPushJobDAO().requeueStaleJobs(updatedBefore);
+    if (count > 0) {
+      LOGGER.warn("requeueStaleJobs : queued {} running push jobs again after their lease expired", count);
+    }
+    return count;
+  }
+
+  synchronized void stop(long waitSeconds) {
+    sweeper.shutdownNow();
+    sweeper = null;
+    ExecutorService service = workers;
+    workers = null;
+    service.shutdownNow();
+    try {
+      if (!service.awaitTermination(waitSeconds, TimeUnit.SECONDS)) {
+        LOGGER.warn("stop : push jobs still running after {} seconds", waitSeconds);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // the jobs that were waiting for a worker were dropped by shutdownNow and are still queued
+    submitted.clear();
+  }
+
+  /**
+   * Queue a job for a send push request. If the manager hasn't been started the job stays queued
+   * until it is.
+   * @param appId
+   * @param request validated request
+   * @return id of the job
+   * @throws IOException if the request can't be written as JSON
+   */
+  public int queue(String appId, SendPushMessageRequest request) throws IOException {
+    int jobId = getPushJobDAO().createJob(appId, MAPPER.writeValueAsString(request), PushJobEntity.State.QUEUED);
+    submit(jobId);
+    return jobId;
+  }
+
+  /**
+   * Cancel a job that is queued or running. A running job stops after its current page.
+   * @param jobId
+   * @return true if the job was cancelled; false if it had already finished
+   */
+  public boolean cancel(int jobId) {
+    PushJobDAO jobDAO = getPushJobDAO();
+    return jobDAO.updateState(jobId, PushJobEntity.State.QUEUED, PushJobEntity.State.CANCELLED) ||
+        jobDAO.updateState(jobId, PushJobEntity.State.RUNNING, PushJobEntity.State.CANCELLED);
+  }
+
+  /**
+   * Submit a job to the workers unless it is already waiting for or running on a worker.
+   * @return true if the job was submitted
+   */
+  private synchronized boolean submit(final int jobId) {
+    if (workers == null) {
+      LOGGER.debug("submit : push job:{} stays queued until the manager is started", jobId);
+      return false;
+    }
+    if (!submitted.add(jobId)) {
+      return false;
+    }
+    try {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            process(jobId);
+          } finally {
+            submitted.remove(jobId);
+          }
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      submitted.remove(jobId);
+      LOGGER.warn("submit : push job:{} stays queued; the manager is stopping", jobId);
+      return false;
+    }
+  }
+
+  void process(int jobId) {
+    PushJobDAO jobDAO = getPushJobDAO();
+    PushJobEntity job = jobDAO.getJob(jobId);
+    if (job == null || !jobDAO.updateState(jobId, PushJobEntity.State.QUEUED, PushJobEntity.State.RUNNING)) {
+      //cancelled or claimed by another node
+      return;
+    }
+    try {
+      SendPushMessageRequest request = MAPPER.readValue(job.getRequest(), SendPushMessageRequest.class);
+      AppEntity appEntity = getAppDAO().getAppForAppKey(job.getAppId());
+      if (appEntity == null) {
+        LOGGER.warn("process : app:{} of push job:{} not found", job.getAppId(), jobId);
+        jobDAO.updateState(jobId, PushJobEntity.State.RUNNING, PushJobEntity.State.FAILED);
+        return;
+      }
+      new PushJobProcessor(appEntity, request, jobDAO).process(job, request.getTarget(), pageSize, null);
+    } catch (IOException e) {
+      LOGGER.warn("process : request of push job:{} can't be read", jobId, e);
+      jobDAO.updateState(jobId, PushJobEntity.State.RUNNING, PushJobEntity.State.FAILED);
+    } catch (Throwable t) {
+      //the processor has marked the job as failed
+      LOGGER.warn("process : push job:{} failed", jobId, t);
+    }
+  }
+
+  protected PushJobDAO getPushJobDAO() {
+    return DBUtil.getPushJobDAO();
+  }
+
+  protected AppDAO getAppDAO() {
+    return DBUtil.getAppDAO();
+  }
+}
@@ -0,0 +1,248 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.push;
+
+import com.magnet.mmx.protocol.Constants;
+import com.magnet.mmx.protocol.PushType;
+import com.magnet.mmx.server.common.data.AppEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorCode;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Count;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.PushIdTuple;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.PushResult;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.SendPushMessageRequest;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Target;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Unsent;
+import com.magnet.mmx.server.plugin.mmxmgmt.apns.APNSPushMessageSender;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceTargetResolver;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.gcm.GCMPushMessageSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pushes to the devices of a target that is resolved page by page.
+ * <p>
+ * Every page is split by push type. The iOS devices of a page are sent using a single connection
+ * from the APNS connection pool and the android devices using a single GCM sender; the push
+ * message records of a page are written in one batch. Once a page has been pushed the job records
+ * the id of its last device and the running counts, so a job that was interrupted can be continued
+ * from where it stopped by processing it again.
+ * <p>
+ * A job that is cancelled stops after the page that is being pushed. A job whose thread is
+ * interrupted is put back in the QUEUED state.
+ */
+public class PushJobProcessor {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PushJobProcessor.class);
+
+  /**
+   * Receives the result of every page.
+   */
+  public interface PageListener {
+    public void pagePushed(PushResult result);
+  }
+
+  private final APNSPushMessageSender apnsSender;
+  private final GCMPushMessageSender gcmSender;
+  private final MMXPushAPNSPayloadBuilder apnsBuilder;
+  private final MMXPushGCMPayloadBuilder gcmBuilder;
+  private final PushJobDAO jobDAO;
+
+  private int requested;
+  private int sent;
+  private int unsent;
+  private int invalidToken;
+  private boolean cancelled;
+  private boolean interrupted;
+
+  public PushJobProcessor(AppEntity appEntity, SendPushMessageRequest request, PushJobDAO jobDAO) {
+    this.apnsSender = new APNSPushMessageSender(appEntity, request.getOptions());
+    this.gcmSender = new GCMPushMessageSender(appEntity, request.getOptions());
+    this.apnsBuilder = apnsBuilder(request);
+    this.gcmBuilder = gcmBuilder(request);
+    this.jobDAO = jobDAO;
+  }
+
+  /**
+   * Push to the devices of the target starting after the last device recorded in the job. The job
+   * must be in the RUNNING state.
+   * @param job
+   * @param target
+   * @param pageSize number of devices resolved at a time
+   * @param listener receives the result of every page; can be null
+   * @return count for the whole job including the pages pushed before it was continued
+   * @throws ResolutionException if the target is invalid
+   */
+  public Count process(final PushJobEntity job, Target target, int pageSize, final PageListener listener)
+      throws ResolutionException {
+    requested = job.getRequested();
+    sent = job.getSent();
+    unsent = job.getUnsent();
+    invalidToken = job.getInvalidToken();
+    long startTime = System.currentTimeMillis();
+    try {
+      getResolver().resolve(job.getAppId(), target, job.getLastDeviceId(), pageSize,
+          new DeviceTargetResolver.PageHandler() {
+            @Override
+            public boolean handle(List<DeviceEntity> page) {
+              PushResult result = pushPage(page);
+              jobDAO.updateProgress(job.getId(), page.get(page.size() - 1).getId(), requested, sent, unsent,
+                  invalidToken);
+              if (listener != null) {
+                listener.pagePushed(result);
+              }
+              return shouldContinue(job.getId());
+            }
+          });
+    } catch (RuntimeException e) {
+      LOGGER.warn("process : push job:{} failed after requested:{}", job.getId(), requested);
+      jobDAO.updateState(job.getId(), PushJobEntity.State.RUNNING, PushJobEntity.State.FAILED);
+      throw e;
+    }
+    if (interrupted) {
+      LOGGER.info("process : push job:{} interrupted after requested:{}; it is queued again", job.getId(), requested);
+      jobDAO.updateState(job.getId(), PushJobEntity.State.RUNNING, PushJobEntity.State.QUEUED);
+    } else if (cancelled) {
+      LOGGER.info("process : push job:{} cancelled after requested:{}", job.getId(), requested);
+    } else {
+      jobDAO.updateState(job.getId(), PushJobEntity.State.RUNNING, PushJobEntity.State.COMPLETE);
+      LOGGER.info("process : push job:{} requested:{} sent:{} unsent:{} in {} milliseconds",
+          new Object[]{job.getId(), requested, sent, unsent, System.currentTimeMillis() - startTime});
+    }
+    return new Count(requested, sent, unsent);
+  }
+
+  public int getInvalidToken() {
+    return invalidToken;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public boolean isInterrupted() {
+    return interrupted;
+  }
+
+  /**
+   * Push a page of devices. Devices without a push type are skipped as they are for a
+   * synchronous push.
+   * @param page
+   * @return combined result of the page
+   */
+  PushResult pushPage(List<DeviceEntity> page) {
+    DeviceHolder holder = DeviceHolder.build(page);
+    List<PushIdTuple> sentList = new ArrayList<PushIdTuple>(page.size());
+    List<Unsent> unsentList = new ArrayList<Unsent>();
+    int pageRequested = 0;
+    int pageSent = 0;
+    int pageUnsent = 0;
+    List<DeviceEntity> iosDevices = holder.getDevices(PushType.APNS);
+    if (!iosDevices.isEmpty()) {
+      PushResult result = apnsSender.sendPush(iosDevices, apnsBuilder);
+      pageRequested += result.getCount().getRequested();
+      pageSent += result.getCount().getSent();
+      pageUnsent += result.getCount().getUnsent();
+      sentList.addAll(result.getSentList());
+      unsentList.addAll(result.getUnsentList());
+    }
+    List<DeviceEntity> androidDevices = holder.getDevices(PushType.GCM);
+    if (!androidDevices.isEmpty()) {
+      PushResult result = gcmSender.sendPush(androidDevices, gcmBuilder);
+      pageRequested += result.getCount().getRequested();
+      pageSent += result.getCount().getSent();
+      pageUnsent += result.getCount().getUnsent();
+      sentList.addAll(result.getSentList());
+      unsentList.addAll(result.getUnsentList());
+    }
+    requested += pageRequested;
+    sent += pageSent;
+    unsent += pageUnsent;
+    for (Unsent u : unsentList) {
+      if (u.getCode() == ErrorCode.APNS_INVALID_TOKEN.getCode() || u.getCode() == ErrorCode.GCM_INVALID_TOKEN.getCode()) {
+        invalidToken++;
+      }
+    }
+
+    PushResult result = new PushResult();
+    result.setCount(new Count(pageRequested, pageSent, pageUnsent));
+    result.setSentList(sentList);
+    result.setUnsentList(unsentList);
+    return result;
+  }
+
+  private boolean shouldContinue(int jobId) {
+    if (Thread.currentThread().isInterrupted()) {
+      interrupted = true;
+      return false;
+    }
+    PushJobEntity current = jobDAO.getJob(jobId);
+    if (current == null || current.getState() == PushJobEntity.State.CANCELLED) {
+      cancelled = true;
+      return false;
+    }
+    return true;
+  }
+
+  protected DeviceTargetResolver getResolver() {
+    return new DeviceTargetResolver();
+  }
+
+  /**
+   * Build the APNS payload builder for a send push request.
+   * @param request
+   * @return
+   */
+  public static MMXPushAPNSPayloadBuilder apnsBuilder(SendPushMessageRequest request) {
+    MMXPushAPNSPayloadBuilder builder = new MMXPushAPNSPayloadBuilder();
+    builder.setBody(request.getBody())
+        .setTitle(request.getTitle());
+
+    if (request.getIos() != null) {
+      builder.setBadge(request.getIos().getBadge());
+      if (request.getIos().isSilent()) {
+        builder.silent();
+      }
+      builder.setCategory(request.getIos().getCategory());
+    }
+    builder.setCustomDictionary(request.getCustom())
+        .setSound(request.getSound())
+        .setType(new MMXPushHeader(Constants.MMX, Constants.MMX_ACTION_CODE_PUSH));
+    return builder;
+  }
+
+  /**
+   * Build the GCM payload builder for a send push request.
+   * @param request
+   * @return
+   */
+  public static MMXPushGCMPayloadBuilder gcmBuilder(SendPushMessageRequest request) {
+    MMXPushGCMPayloadBuilder builder = new MMXPushGCMPayloadBuilder();
+    builder.setBody(request.getBody())
+        .setTitle(request.getTitle());
+
+    if (request.getAndroid() != null) {
+      builder.setIcon(request.getAndroid().getIcon());
+    }
+    builder.setCustomDictionary(request.getCustom())
+        .setSound(request.getSound())
+        .setType(new MMXPushHeader(Constants.MMX, Constants.MMX_ACTION_CODE_PUSH));
+    return builder;
+  }
+}
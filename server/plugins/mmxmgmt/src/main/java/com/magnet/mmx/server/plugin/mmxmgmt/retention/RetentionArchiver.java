@@ -0,0 +1,100 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.retention;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.RetentionTable;
+import com.magnet.mmx.util.GsonData;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes purged rows to gzip compressed files with one JSON object per line. A purge run writes
+ * one file per table, named after the table and the start of the run.
+ * <p>
+ * Every call appends a complete gzip member and syncs the file, so the rows are on disk before
+ * they are deleted. gunzip and GZIPInputStream read the concatenated members as a single stream.
+ */
+public class RetentionArchiver {
+  private static final String FILE_SUFFIX = ".ndjson.gz";
+  private static final String DATE_FORMAT = "yyyyMMdd-HHmmss";
+  private static final int BUFFER_SIZE = 8192;
+
+  private final File directory;
+  private final String runStamp;
+  private final Gson gson = GsonData.getGson();
+
+  /**
+   * @param directory directory for the archive files
+   * @param runDate start of the purge run
+   */
+  public RetentionArchiver(File directory, Date runDate) {
+    this.directory = directory;
+    SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    this.runStamp = format.format(runDate);
+  }
+
+  /**
+   * Append rows to the archive file of the table.
+   * @param table
+   * @param rows rows to archive
+   * @throws IOException if the rows couldn't be written; the rows must not be purged in that case
+   */
+  public void archive(RetentionTable table, List<Map<String, Object>> rows) throws IOException {
+    if (rows.isEmpty()) {
+      return;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create archive directory " + directory);
+    }
+    FileOutputStream file = new FileOutputStream(getFile(table), true);
+    try {
+      BufferedOutputStream buffered = new BufferedOutputStream(file, BUFFER_SIZE);
+      GZIPOutputStream gzip = new GZIPOutputStream(buffered, BUFFER_SIZE);
+      Writer writer = new OutputStreamWriter(gzip, Charsets.UTF_8);
+      for (Map<String, Object> row : rows) {
+        gson.toJson(row, writer);
+        writer.write('\n');
+      }
+      writer.flush();
+      gzip.finish();
+      buffered.flush();
+      file.getFD().sync();
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * @param table
+   * @return archive file of the table for this run
+   */
+  public File getFile(RetentionTable table) {
+    return new File(directory, table.getTableName() + "-" + runStamp + FILE_SUFFIX);
+  }
+}
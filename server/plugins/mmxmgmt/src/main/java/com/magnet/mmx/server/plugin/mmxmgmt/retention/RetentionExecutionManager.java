@@ -0,0 +1,68 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.retention;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.wakeup.SchedulerThreadFactory;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Has the scheduler that runs the retention processor at the specified frequency.
+ */
+public class RetentionExecutionManager {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RetentionExecutionManager.class);
+  private static final String POOL_NAME = "Retention";
+  private static final String RETENTION_TASK_LOCK_KEY = "retentionTaskLockKey";
+  private Lock lock;
+
+  private final int threadPoolSize = 1;
+  private final ScheduledExecutorService scheduler =
+      Executors.newScheduledThreadPool(threadPoolSize, new SchedulerThreadFactory(POOL_NAME));
+
+  public void start(int initialDelayMinutes, int intervalMinutes) {
+    try {
+      LOGGER.trace("start : getting lock");
+      lock = CacheFactory.getLock(RETENTION_TASK_LOCK_KEY);
+    } catch (Exception e) {
+      LOGGER.error("start : caught exception getting lock");
+    }
+    LOGGER.info("scheduling retention processor. initialDelay(min):{} interval(min):{}", initialDelayMinutes, intervalMinutes);
+    //fixed delay so that a long purge isn't followed by another one right away
+    scheduler.scheduleWithFixedDelay(new RetentionProcessor(lock), initialDelayMinutes, intervalMinutes, TimeUnit.MINUTES);
+  }
+
+  public void stop() {
+    LOGGER.info("stopping retention processor");
+    //interrupt a running purge, it stops after the current batch
+    scheduler.shutdownNow();
+    releaseLock();
+  }
+
+  private void releaseLock() {
+    if(lock != null) {
+      try {
+        lock.unlock();
+      } catch (Exception e) {
+        LOGGER.error("releaseLock : Ignorable - caught exception releasing clustered lock", e);
+      }
+    }
+  }
+}
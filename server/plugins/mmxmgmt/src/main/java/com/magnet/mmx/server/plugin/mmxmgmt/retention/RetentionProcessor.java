@@ -0,0 +1,213 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.retention;
+
+import com.google.common.base.Strings;
+import com.magnet.mmx.server.common.data.AppEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.AppConfigurationCache;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.RetentionDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.RetentionTable;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.DBUtil;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXClusterableTask;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Processor that purges the messages, push messages and wakeups that are older than the
+ * retention period of their app.
+ * <p>
+ * Rows are deleted in batches with a pause in between, so that the deletes don't hold locks on
+ * large parts of a table or cause replication lag. If an archive directory is configured the
+ * rows of a batch are written to the archive before they are deleted.
+ * <p>
+ * The retention period in days is read from the app configuration first and then from the
+ * server configuration. A period of 0 or less keeps the rows forever.
+ */
+public class RetentionProcessor extends MMXClusterableTask implements Runnable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RetentionProcessor.class);
+  private static final long SECONDS_PER_DAY = 24L * 60L * 60L;
+
+  private final RetentionStats stats = RetentionStats.getInstance();
+
+  public RetentionProcessor(Lock lock) {
+    super(lock);
+  }
+
+  @Override
+  public void run() {
+    if (!canExecute()) {
+      LOGGER.trace("run : Unable to acquire clustered lock, not running");
+      return;
+    }
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    int batchSize = configuration.getInt(MMXConfigKeys.RETENTION_BATCH_SIZE, MMXServerConstants.DEFAULT_RETENTION_BATCH_SIZE);
+    long pauseMillis = configuration.getLong(MMXConfigKeys.RETENTION_BATCH_PAUSE_MILLIS,
+        MMXServerConstants.DEFAULT_RETENTION_BATCH_PAUSE_MILLIS);
+    String archiveDir = configuration.getString(MMXConfigKeys.RETENTION_ARCHIVE_DIR, null);
+    try {
+      purge(System.currentTimeMillis(), Math.max(1, batchSize), pauseMillis,
+          Strings.isNullOrEmpty(archiveDir) ? null : new File(archiveDir));
+    } catch (InterruptedException e) {
+      LOGGER.info("run : interrupted, stopping purge");
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      LOGGER.error("run : purge failed", e);
+    }
+  }
+
+  /**
+   * Purge the expired rows of all apps.
+   * @param now current time in milliseconds
+   * @param batchSize maximum number of rows deleted by a single statement
+   * @param pauseMillis pause between the batches
+   * @param archiveDirectory directory to archive the rows in; null to not archive the rows
+   * @return number of rows purged
+   * @throws IOException if rows couldn't be archived
+   * @throws InterruptedException
+   */
+  long purge(long now, int batchSize, long pauseMillis, File archiveDirectory) throws IOException, InterruptedException {
+    long startTime = System.nanoTime();
+    RetentionArchiver archiver = archiveDirectory == null ? null : new RetentionArchiver(archiveDirectory, new Date(now));
+    RetentionDAO dao = getRetentionDAO();
+    long nowUTC = now / 1000L;
+    long total = 0;
+    List<String> appIds = getAppIds();
+    for (RetentionTable table : RetentionTable.values()) {
+      for (String appId : appIds) {
+        int days = getRetentionDays(appId, table);
+        if (days > 0) {
+          total += purge(dao, archiver, table, appId, nowUTC - days * SECONDS_PER_DAY, batchSize, pauseMillis);
+        }
+      }
+    }
+    long elapsedMillis = (System.nanoTime() - startTime) / 1000000L;
+    stats.runCompleted(total, elapsedMillis);
+    LOGGER.info(String.format("Purged [%d] expired rows in [%d] milliseconds", total, elapsedMillis));
+    return total;
+  }
+
+  private int purge(RetentionDAO dao, RetentionArchiver archiver, RetentionTable table, String appId, long cutoffUTC,
+                    int batchSize, long pauseMillis) throws IOException, InterruptedException {
+    int purged = 0;
+    while (true) {
+      List<Map<String, Object>> rows = dao.getExpiredRows(table, appId, cutoffUTC, batchSize, archiver != null);
+      if (rows.isEmpty()) {
+        break;
+      }
+      if (archiver != null) {
+        archiver.archive(table, rows);
+        stats.archived(rows.size());
+      }
+      List<Object> keys = new ArrayList<Object>(rows.size());
+      for (Map<String, Object> row : rows) {
+        keys.add(getValue(row, table.getKeyColumn()));
+      }
+      int count = dao.deleteRows(table, keys, cutoffUTC);
+      purged += count;
+      stats.purged(table, count);
+      if (rows.size() < batchSize || count == 0) {
+        break;
+      }
+      if (pauseMillis > 0) {
+        Thread.sleep(pauseMillis);
+      }
+    }
+    if (purged > 0) {
+      LOGGER.debug("purge : table={}, appId={}, purged={}", new Object[]{table.getTableName(), appId, purged});
+    }
+    return purged;
+  }
+
+  /**
+   * Get the retention period for rows of an app.
+   * @param appId
+   * @param table
+   * @return retention period in days, 0 or less if the rows are kept forever
+   */
+  protected int getRetentionDays(String appId, RetentionTable table) {
+    String key = getRetentionKey(table);
+    int days = MMXConfiguration.getConfiguration().getInt(key, getDefaultRetentionDays(table));
+    String appValue = AppConfigurationCache.getInstance().getString(appId, key);
+    if (!Strings.isNullOrEmpty(appValue)) {
+      try {
+        days = Integer.parseInt(appValue.trim());
+      } catch (NumberFormatException e) {
+        LOGGER.warn("getRetentionDays : ignoring invalid value={} of key={} for appId={}", new Object[]{appValue, key, appId});
+      }
+    }
+    return days;
+  }
+
+  protected List<String> getAppIds() {
+    List<AppEntity> apps = DBUtil.getAppDAO().getAllApps();
+    List<String> appIds = new ArrayList<String>(apps.size());
+    for (AppEntity app : apps) {
+      appIds.add(app.getAppId());
+    }
+    return appIds;
+  }
+
+  protected RetentionDAO getRetentionDAO() {
+    return DBUtil.getRetentionDAO();
+  }
+
+  static String getRetentionKey(RetentionTable table) {
+    switch (table) {
+      case MESSAGE:
+        return MMXConfigKeys.RETENTION_MESSAGE_DAYS;
+      case PUSH_MESSAGE:
+        return MMXConfigKeys.RETENTION_PUSH_MESSAGE_DAYS;
+      default:
+        return MMXConfigKeys.RETENTION_WAKEUP_DAYS;
+    }
+  }
+
+  static int getDefaultRetentionDays(RetentionTable table) {
+    switch (table) {
+      case MESSAGE:
+        return MMXServerConstants.DEFAULT_RETENTION_MESSAGE_DAYS;
+      case PUSH_MESSAGE:
+        return MMXServerConstants.DEFAULT_RETENTION_PUSH_MESSAGE_DAYS;
+      default:
+        return MMXServerConstants.DEFAULT_RETENTION_WAKEUP_DAYS;
+    }
+  }
+
+  /**
+   * Column names may be returned in a different case by the JDBC driver.
+   */
+  private static Object getValue(Map<String, Object> row, String column) {
+    Object value = row.get(column);
+    if (value == null) {
+      for (Map.Entry<String, Object> entry : row.entrySet()) {
+        if (column.equalsIgnoreCase(entry.getKey())) {
+          return entry.getValue();
+        }
+      }
+    }
+    return value;
+  }
+}
@@ -0,0 +1,83 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.retention;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.db.RetentionTable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for the rows purged by this node.
+ */
+public class RetentionStats {
+  private static final RetentionStats INSTANCE = new RetentionStats();
+
+  private final AtomicLongArray purged = new AtomicLongArray(RetentionTable.values().length);
+  private final AtomicLong archivedCount = new AtomicLong();
+  private final AtomicLong runCount = new AtomicLong();
+  private final AtomicLong totalMillis = new AtomicLong();
+  private volatile long lastRunMillis;
+  private volatile long lastRunRowCount;
+
+  RetentionStats() {
+  }
+
+  public static RetentionStats getInstance() {
+    return INSTANCE;
+  }
+
+  void purged(RetentionTable table, int count) {
+    purged.addAndGet(table.ordinal(), count);
+  }
+
+  void archived(int count) {
+    archivedCount.addAndGet(count);
+  }
+
+  void runCompleted(long rowCount, long elapsedMillis) {
+    runCount.incrementAndGet();
+    totalMillis.addAndGet(elapsedMillis);
+    lastRunMillis = elapsedMillis;
+    lastRunRowCount = rowCount;
+  }
+
+  public long getPurgedCount(RetentionTable table) {
+    return purged.get(table.ordinal());
+  }
+
+  public long getArchivedCount() {
+    return archivedCount.get();
+  }
+
+  public long getRunCount() {
+    return runCount.get();
+  }
+
+  /**
+   * @return time spent purging in all runs
+   */
+  public long getTotalMillis() {
+    return totalMillis.get();
+  }
+
+  public long getLastRunMillis() {
+    return lastRunMillis;
+  }
+
+  public long getLastRunRowCount() {
+    return lastRunRowCount;
+  }
+}
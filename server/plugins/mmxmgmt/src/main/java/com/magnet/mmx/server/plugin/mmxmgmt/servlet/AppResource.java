@@ -22,6 +22,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorMessages;
 import com.magnet.mmx.server.plugin.mmxmgmt.apns.APNSCertificateValidator;
 import com.magnet.mmx.server.plugin.mmxmgmt.apns.APNSConnectionPool;
 import com.magnet.mmx.server.plugin.mmxmgmt.apns.APNSConnectionPoolImpl;
+import com.magnet.mmx.server.plugin.mmxmgmt.apns.APNSDeliveryEngine;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppAlreadyExistsException;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppConfigurationCache;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppConfigurationEntity;
@@ -34,6 +35,7 @@ import com.magnet.mmx.server.plugin.mmxmgmt.db.OpenFireDBConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.gcm.GCMAPIKeyValidator;
 import com.magnet.mmx.server.plugin.mmxmgmt.handler.MMXAppManager;
 import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MaxAppLimitExceededException;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.AppEntityDBLoadingEntityCache;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
@@ -196,6 +198,7 @@ public class AppResource {
 
       dao.updateApp(appId, request.getName(), request.getGoogleAPIKey(),request.getGoogleProjectId(),
           request.getApnsCertPassword(), request.getOwnerEmail(), request.getGuestSecret(), request.isApnsCertProduction());
+      AppEntityDBLoadingEntityCache.getInstance().purge(appId);
       AppEntity revised = dao.getAppForAppKey(appId);
       return new JSONFriendlyAppEntityDecorator(revised);
     } catch (WebApplicationException e) {
@@ -361,12 +364,15 @@ public class AppResource {
       String md5String = DigestUtils.md5Hex(certificate);
       LOGGER.info("MD5 for apns cert for is {}", md5String);
       dao.updateAPNsCertificateAndPassword(appId, certificate, password);
+      AppEntityDBLoadingEntityCache.getInstance().purge(appId);
       /*
        * if there are any connections established we need to purge them
        */
       APNSConnectionPool connectionPool = APNSConnectionPoolImpl.getInstance();
       LOGGER.info("Clearing open APNS connections");
       connectionPool.remove(appId, appEntity.isApnsCertProduction());
+      APNSDeliveryEngine.getInstance().remove(appId, appEntity.isApnsCertProduction());
+      APNSConnectionPoolImpl.getInstance().prewarm(appId, appEntity.isApnsCertProduction());
       return Response.ok().status(Response.Status.OK).build();
     } catch (WebApplicationException e) {
       throw e;
@@ -412,8 +418,10 @@ public class AppResource {
     }
     try {
       dao.clearAPNsCertificateAndPassword(appId);
+      AppEntityDBLoadingEntityCache.getInstance().purge(appId);
       APNSConnectionPool connectionPool = APNSConnectionPoolImpl.getInstance();
       connectionPool.remove(appId, appEntity.isApnsCertProduction());
+      APNSDeliveryEngine.getInstance().remove(appId, appEntity.isApnsCertProduction());
       return Response.ok().status(Response.Status.OK).build();
     } catch (Throwable t) {
       LOGGER.warn("Throwable when deleting APNs certificate", t);
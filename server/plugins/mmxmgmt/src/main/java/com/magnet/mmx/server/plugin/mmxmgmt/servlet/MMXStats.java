@@ -38,8 +38,8 @@ public class MMXStats {
   public MMXAppStats[] getAppStats() {
     List<MMXAppStats> mmxAppStats = new ArrayList<MMXAppStats>();
 
-    Map<String, MMXInAppMessageStats> inAppMessageStats = getMessageDao().getMessageStats(appIdList);
-    Map<String, MMXPushMessageStats> pushMessageStats = getPushMessageDao().getPushMessageStats(appIdList);
+    Map<String, MMXInAppMessageStats> inAppMessageStats = getMessageStats();
+    Map<String, MMXPushMessageStats> pushMessageStats = getPushMessageStats();
     LOGGER.trace("getAppStats : getting device stats");
     Map<String, MMXDeviceStats> deviceStats = getDeviceDao().getDeviceStats(appIdList);
 
@@ -57,8 +57,8 @@ public class MMXStats {
   public MMXAppStats getFirst() {
     List<MMXAppStats> mmxAppStats = new ArrayList<MMXAppStats>();
 
-    Map<String, MMXInAppMessageStats> inAppMessageStats = getMessageDao().getMessageStats(appIdList);
-    Map<String, MMXPushMessageStats> pushMessageStats = getPushMessageDao().getPushMessageStats(appIdList);
+    Map<String, MMXInAppMessageStats> inAppMessageStats = getMessageStats();
+    Map<String, MMXPushMessageStats> pushMessageStats = getPushMessageStats();
     Map<String, MMXDeviceStats> deviceStats = getDeviceDao().getDeviceStats(appIdList);
 
     for(String appId : appIdList) {
@@ -72,6 +72,25 @@ public class MMXStats {
     return mmxAppStats.get(0);
   }
 
+  /**
+   * Message stats come from the rollup when it is running, otherwise they are aggregated from
+   * the messages. Both count the current state of the messages queued in the window; the rollup
+   * buckets the messages by the hour they were queued. See {@link StatsRollup}.
+   */
+  private Map<String, MMXInAppMessageStats> getMessageStats() {
+    if (StatsRollup.isInitialized()) {
+      return StatsRollup.getInstance().getMessageStats(appIdList);
+    }
+    return getMessageDao().getMessageStats(appIdList);
+  }
+
+  private Map<String, MMXPushMessageStats> getPushMessageStats() {
+    if (StatsRollup.isInitialized()) {
+      return StatsRollup.getInstance().getPushMessageStats(appIdList);
+    }
+    return getPushMessageDao().getPushMessageStats(appIdList);
+  }
+
   private MessageDAO getMessageDao() {
     return new MessageDAOImpl(new OpenFireDBConnectionProvider());
   }
@@ -0,0 +1,45 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.servlet;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.PrometheusTextFormatter;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Servlet that renders the hot path metrics in the Prometheus text format.
+ */
+public class MetricsServlet extends AbstractSecureServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetricsServlet.class);
+
+  private final PrometheusTextFormatter formatter = new PrometheusTextFormatter(MMXServerConstants.METRICS_PREFIX);
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse response) throws ServletException, IOException {
+    LOGGER.trace("doGet : Getting metrics");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(PrometheusTextFormatter.CONTENT_TYPE);
+    PrintWriter out = response.getWriter();
+    formatter.write(MMXMetrics.getRegistry(), out);
+  }
+}
@@ -0,0 +1,66 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.util;
+
+import org.jivesoftware.util.cache.ClusterTask;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Cluster task that removes a stale app from the {@link AppEntityDBLoadingEntityCache} of the
+ * other cluster members.
+ */
+public class AppEntityCacheInvalidationTask implements ClusterTask {
+  private String appId;
+
+  /**
+   * Required for deserialization.
+   */
+  public AppEntityCacheInvalidationTask() {
+  }
+
+  AppEntityCacheInvalidationTask(String appId) {
+    this.appId = appId;
+  }
+
+  @Override
+  public Object getResult() {
+    return null;
+  }
+
+  @Override
+  public void run() {
+    AppEntityDBLoadingEntityCache.getInstance().purgeLocal(appId);
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeUTF(appId);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    appId = in.readUTF();
+  }
+
+  @Override
+  public String toString() {
+    return "AppEntityCacheInvalidationTask{" +
+        "appId='" + appId + '\'' +
+        '}';
+  }
+}
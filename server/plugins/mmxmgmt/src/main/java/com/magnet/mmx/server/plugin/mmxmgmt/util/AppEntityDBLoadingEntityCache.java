@@ -14,46 +14,147 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.util;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.AppDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.ConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.OpenFireDBConnectionProvider;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Cache of app entities keyed by appId.
+ * <p>
+ * App IDs that don't exist are remembered for a short time so that requests using bad app IDs
+ * don't reach the database. Anything that creates, changes or deletes an app must call
+ * {@link #purge(String)}; purges are also sent to the other cluster members using
+ * {@link AppEntityCacheInvalidationTask}. Cached entities are shared and must not be modified by callers.
  */
 public class AppEntityDBLoadingEntityCache  implements DBEntityCache<AppEntity> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AppEntityDBLoadingEntityCache.class);
 
-  private static AppEntityDBLoadingEntityCache INSTANCE;
-  private static int CACHE_SIZE = 100;
+  private static volatile AppEntityDBLoadingEntityCache instance = new AppEntityDBLoadingEntityCache(
+      MMXServerConstants.DEFAULT_APP_CACHE_MAX_SIZE, MMXServerConstants.DEFAULT_APP_CACHE_TTL_SECONDS,
+      MMXServerConstants.DEFAULT_APP_CACHE_NEGATIVE_TTL_SECONDS, new AppEntityDBLoader());
 
-  private LoadingCache<String,AppEntity> cache;
+  private final LoadingCache<String,AppEntity> cache;
+  private final Cache<String,Boolean> missing;
 
   public AppEntityDBLoadingEntityCache(int size, CacheLoader<String, AppEntity> appEntityCacheLoader) {
+    this(size, MMXServerConstants.DEFAULT_APP_CACHE_TTL_SECONDS,
+        MMXServerConstants.DEFAULT_APP_CACHE_NEGATIVE_TTL_SECONDS, appEntityCacheLoader);
+  }
+
+  /**
+   * Constructor
+   * @param size maximum number of apps cached; also the maximum number of unknown app IDs remembered
+   * @param ttlSeconds time after which an app is reloaded from the database
+   * @param negativeTtlSeconds time for which an unknown app ID is remembered
+   * @param appEntityCacheLoader
+   */
+  public AppEntityDBLoadingEntityCache(int size, int ttlSeconds, int negativeTtlSeconds,
+                                       CacheLoader<String, AppEntity> appEntityCacheLoader) {
     cache = CacheBuilder.newBuilder()
-        .maximumSize(CACHE_SIZE)
+        .maximumSize(size)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .recordStats()
         .build(appEntityCacheLoader);
+    missing = CacheBuilder.newBuilder()
+        .maximumSize(size)
+        .expireAfterWrite(negativeTtlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * Get the shared instance of the app cache.
+   * @return
+   */
+  public static AppEntityDBLoadingEntityCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Lifecycle method. Replace the shared instance with one using the supplied sizing.
+   * @param maxSize maximum number of cached apps; 0 disables caching
+   * @param ttlSeconds time after which an app is reloaded from the database
+   * @param negativeTtlSeconds time for which an unknown app ID is remembered
+   */
+  public static void initialize(int maxSize, int ttlSeconds, int negativeTtlSeconds) {
+    LOGGER.info("App cache is initialized with maxSize:{}, ttlSeconds:{}, negativeTtlSeconds:{}",
+        new Object[]{maxSize, ttlSeconds, negativeTtlSeconds});
+    instance = new AppEntityDBLoadingEntityCache(Math.max(0, maxSize), Math.max(1, ttlSeconds),
+        Math.max(1, negativeTtlSeconds), new AppEntityDBLoader());
   }
 
+  /**
+   * Get the app for the appId.
+   * @param key appId
+   * @return app entity or null if the app doesn't exist
+   */
   @Override
   public AppEntity get(String key) {
+    if (key == null || missing.getIfPresent(key) != null) {
+      return null;
+    }
     try {
       return cache.get(key);
     } catch (ExecutionException e) {
+      if (e.getCause() instanceof AppEntityNotFoundException) {
+        missing.put(key, Boolean.TRUE);
+      } else {
+        LOGGER.warn("get : failed to load app with appId={}", key, e.getCause());
+      }
       return null;
     }
   }
 
+  /**
+   * Remove the app from the cache on this node and the rest of the cluster.
+   * @param key appId
+   */
   @Override
   public void purge(String key) {
-    cache.refresh(key);
+    purgeLocal(key);
+    if (!ClusterManager.isClusteringEnabled()) {
+      return;
+    }
+    try {
+      CacheFactory.doClusterTask(new AppEntityCacheInvalidationTask(key));
+    } catch (Exception e) {
+      LOGGER.warn("purge : failed to send app cache invalidation task for appId={}", key, e);
+    }
   }
 
+  void purgeLocal(String key) {
+    LOGGER.trace("purgeLocal : appId={}", key);
+    cache.invalidate(key);
+    missing.invalidate(key);
+  }
+
+  /**
+   * @return statistics of the cached apps.
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  public long getSize() {
+    return cache.size();
+  }
+
+  public long getMissingSize() {
+    return missing.size();
+  }
 
   private static class AppEntityNotFoundException extends Exception {
     private AppEntityNotFoundException(String message) {
@@ -55,4 +55,20 @@ public class DBUtil {
     return new HookDAOImpl(new OpenFireDBConnectionProvider());
   }
 
+  public static OfflineMessageDAO getOfflineMessageDAO() {
+    return new OfflineMessageDAOImpl(new OpenFireDBConnectionProvider());
+  }
+
+  public static RetentionDAO getRetentionDAO() {
+    return new RetentionDAOImpl(new OpenFireDBConnectionProvider());
+  }
+
+  public static PushJobDAO getPushJobDAO() {
+    return new PushJobDAOImpl(new OpenFireDBConnectionProvider());
+  }
+
+  public static StatsRollupDAO getStatsRollupDAO() {
+    return new StatsRollupDAOImpl(new OpenFireDBConnectionProvider());
+  }
+
 }
@@ -27,6 +27,7 @@ import org.xmpp.packet.PacketError.Condition;
 
 
 public class IQUtils {
+  private static final String PUBSUB_NS = "http://jabber.org/protocol/pubsub";
 
 
   public static IQ isValidGeoIQ(Packet packet) {
@@ -49,6 +50,31 @@ public class IQUtils {
     }
     return null;
   }
+
+  /**
+   * Get the node of a native pubsub subscribe or unsubscribe request.
+   * @param packet
+   * @return the node ID, or null if the packet is not a subscribe or unsubscribe request
+   */
+  public static String getSubscriptionNode(Packet packet) {
+    if (packet instanceof IQ) {
+      IQ iqPacket = (IQ)packet;
+      if (IQ.Type.set == iqPacket.getType()) {
+        Element element = iqPacket.getChildElement();
+        if (element != null && PUBSUB_NS.equals(element.getNamespaceURI())) {
+          Element action = element.element("subscribe");
+          if (action == null) {
+            action = element.element("unsubscribe");
+          }
+          if (action != null) {
+            return action.attributeValue("node");
+          }
+        }
+      }
+    }
+    return null;
+  }
+
   /**
    * Get the <code>command</code> attribute value from the IQ MMX element.
    * @param iq The request IQ.
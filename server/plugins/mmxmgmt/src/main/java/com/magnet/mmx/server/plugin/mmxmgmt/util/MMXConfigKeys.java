@@ -61,6 +61,11 @@ public interface MMXConfigKeys {
    */
   public static final String MESSAGE_TIMEOUT_MINUTES = "mmx.timeout.period.minutes";
 
+  /**
+   * Key to get the number of primary keys covered by a single update of the message timeout sweep.
+   */
+  public static final String MESSAGE_TIMEOUT_BATCH_SIZE = "mmx.timeout.batch.size";
+
   @Deprecated
   public static final String PUSH_CALLBACK_URL = "mmx.push.callbackurl";
 
@@ -83,6 +88,12 @@ public interface MMXConfigKeys {
   public static final String MAX_APP_PER_OWNER = "mmx.cluster.max.apps";
   public static final String MAX_XMPP_RATE = "mmx.instance.max.xmpp.rate.per.sec";
   public static final String MAX_HTTP_RATE = "mmx.instance.max.http.rate.per.sec";
+  public static final String MAX_XMPP_RATE_PER_USER = "mmx.instance.max.xmpp.rate.per.user.per.sec";
+  public static final String MAX_XMPP_RATE_PER_DEVICE = "mmx.instance.max.xmpp.rate.per.device.per.sec";
+  /**
+   * If true the rate limits are for the whole cluster and every member enforces an equal share.
+   */
+  public static final String RATE_LIMIT_CLUSTER_AGGREGATE = "mmx.rate.limit.cluster.aggregate";
   public static final String ALERT_EMAIL_SUBJECT = "mmx.alert.email.subject";
   public static final String ALERT_EMAIL_HOST="mmx.alert.email.host";
   public static final String ALERT_EMAIL_PORT="mmx.alert.email.port";
@@ -100,6 +111,9 @@ public interface MMXConfigKeys {
   public static final String APNS_POOL_MAX_CONNECTIONS_PER_APP = "mmx.apns.pool.max.app.connections";
   public static final String APNS_POOL_MAX_IDLE_CONNECTIONS_PER_APP = "mmx.apns.pool.max.idle.count";
   public static final String APNS_POOL_IDLE_TTL_MINUTES = "mmx.apns.pool.idle.ttl.min";
+  public static final String APNS_POOL_ADJUST_INTERVAL_SECONDS = "mmx.apns.pool.adjust.interval.sec";
+  public static final String APNS_POOL_SLOW_BORROW_MILLIS = "mmx.apns.pool.slow.borrow.millis";
+  public static final String APNS_POOL_PREWARM_HOURS = "mmx.apns.pool.prewarm.hours";
 
   /**
    * Keys related to https for the rest API
@@ -150,4 +164,143 @@ public interface MMXConfigKeys {
    */
   public static final String APNS_FEEDBACK_PROCESS_INITIAL_DELAY_MINUTES = "mmx.apns.feedback.initialwait.min";
   public static final String APNS_FEEDBACK_PROCESS_FREQUENCY_MINUTES = "mmx.apns.feedback.frequency.min";
+  /*
+   * Only apps that sent APNS pushes or wakeups in the last days are visited; at most concurrency
+   * apps are processed at the same time.
+   */
+  public static final String APNS_FEEDBACK_RECENT_PUSH_DAYS = "mmx.apns.feedback.recent.push.days";
+  public static final String APNS_FEEDBACK_CONCURRENCY = "mmx.apns.feedback.concurrency";
+  public static final String APNS_FEEDBACK_RUN_TIMEOUT_MINUTES = "mmx.apns.feedback.run.timeout.min";
+
+  /*
+   * Write-behind persistence of message state
+   */
+  public static final String MESSAGE_WRITE_BEHIND_ENABLED = "mmx.message.writebehind.enabled";
+  public static final String MESSAGE_WRITE_BEHIND_QUEUE_SIZE = "mmx.message.writebehind.queue.size";
+  public static final String MESSAGE_WRITE_BEHIND_BATCH_SIZE = "mmx.message.writebehind.batch.size";
+  public static final String MESSAGE_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS = "mmx.message.writebehind.flush.interval.ms";
+  public static final String MESSAGE_WRITE_BEHIND_WRITER_COUNT = "mmx.message.writebehind.writers";
+
+  /*
+   * Write-behind offline message storage
+   */
+  public static final String OFFLINE_WRITE_BEHIND_QUEUE_SIZE = "mmx.offline.writebehind.queue.size";
+  public static final String OFFLINE_WRITE_BEHIND_BATCH_SIZE = "mmx.offline.writebehind.batch.size";
+  public static final String OFFLINE_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS = "mmx.offline.writebehind.flush.interval.ms";
+  public static final String OFFLINE_WRITE_BEHIND_WRITER_COUNT = "mmx.offline.writebehind.writers";
+
+  /*
+   * Message id generation. The node id is a value between 0 and 65535 that is unique in the cluster;
+   * if not set it is derived from the cluster node id.
+   */
+  public static final String MESSAGE_ID_NODE_ID = "mmx.message.id.node";
+
+  /*
+   * Device lookup cache
+   */
+  public static final String DEVICE_CACHE_MAX_SIZE = "mmx.device.cache.max.size";
+  public static final String DEVICE_CACHE_TTL_SECONDS = "mmx.device.cache.ttl.secs";
+
+  /*
+   * App cache used for authenticating requests
+   */
+  public static final String APP_CACHE_MAX_SIZE = "mmx.app.cache.max.size";
+  public static final String APP_CACHE_TTL_SECONDS = "mmx.app.cache.ttl.secs";
+  public static final String APP_CACHE_NEGATIVE_TTL_SECONDS = "mmx.app.cache.negative.ttl.secs";
+
+  /*
+   * Fan-out routing of per device messages
+   */
+  public static final String MESSAGE_FANOUT_LANE_COUNT = "mmx.message.fanout.lanes";
+  public static final String MESSAGE_FANOUT_LANE_QUEUE_SIZE = "mmx.message.fanout.lane.queue.size";
+  public static final String MESSAGE_FANOUT_REJECTION_POLICY = "mmx.message.fanout.rejection.policy";
+
+  /*
+   * Wakeup dispatch
+   */
+  public static final String WAKEUP_DISPATCH_THREADS = "mmx.wakeup.dispatch.threads";
+  public static final String WAKEUP_APNS_BATCH_SIZE = "mmx.wakeup.apns.batch.size";
+  public static final String WAKEUP_PARTITIONED = "mmx.wakeup.partitioned";
+  public static final String WAKEUP_SHARD_COUNT = "mmx.wakeup.shard.count";
+  public static final String WAKEUP_SHARD_LEASE_SECONDS = "mmx.wakeup.shard.lease.secs";
+
+  /*
+   * Webhook delivery
+   */
+  public static final String WEBHOOK_QUEUE_SIZE = "mmx.webhook.queue.size";
+  public static final String WEBHOOK_THREADS = "mmx.webhook.threads";
+  public static final String WEBHOOK_BATCH_SIZE = "mmx.webhook.batch.size";
+  public static final String WEBHOOK_MAX_ATTEMPTS = "mmx.webhook.max.attempts";
+  public static final String WEBHOOK_RETRY_BASE_MILLIS = "mmx.webhook.retry.base.ms";
+  public static final String WEBHOOK_RETRY_MAX_MILLIS = "mmx.webhook.retry.max.ms";
+  public static final String WEBHOOK_BREAKER_FAILURES = "mmx.webhook.breaker.failures";
+  public static final String WEBHOOK_BREAKER_OPEN_SECONDS = "mmx.webhook.breaker.open.secs";
+  public static final String WEBHOOK_CONNECT_TIMEOUT_MILLIS = "mmx.webhook.connect.timeout.ms";
+  public static final String WEBHOOK_READ_TIMEOUT_MILLIS = "mmx.webhook.read.timeout.ms";
+
+  /*
+   * Geo event dispatch
+   */
+  public static final String GEO_DISPATCH_CONSUMERS = "mmx.geo.dispatch.consumers";
+  public static final String GEO_DISPATCH_QUEUE_SIZE = "mmx.geo.dispatch.queue.size";
+  public static final String GEO_DISPATCH_BATCH_SIZE = "mmx.geo.dispatch.batch.size";
+
+  /*
+   * Geo location index
+   */
+  public static final String GEO_INDEX_ENABLED = "mmx.geo.index.enabled";
+  public static final String GEO_INDEX_MAX_AGE_SECONDS = "mmx.geo.index.max.age.secs";
+
+  /*
+   * Retention of messages, push messages and wakeups. The retention periods can also be
+   * set per app in the app configuration.
+   */
+  public static final String RETENTION_ENABLED = "mmx.retention.enabled";
+  public static final String RETENTION_INITIAL_DELAY_MINUTES = "mmx.retention.initial.delay.minutes";
+  public static final String RETENTION_INTERVAL_MINUTES = "mmx.retention.interval.minutes";
+  public static final String RETENTION_BATCH_SIZE = "mmx.retention.batch.size";
+  public static final String RETENTION_BATCH_PAUSE_MILLIS = "mmx.retention.batch.pause.ms";
+  public static final String RETENTION_ARCHIVE_DIR = "mmx.retention.archive.dir";
+  public static final String RETENTION_MESSAGE_DAYS = "mmx.retention.message.days";
+  public static final String RETENTION_PUSH_MESSAGE_DAYS = "mmx.retention.push.message.days";
+  public static final String RETENTION_WAKEUP_DAYS = "mmx.retention.wakeup.days";
+
+  /*
+   * REST send_message to a list of usernames. Responses for more recipients than the stream
+   * threshold are written while the messages are being sent.
+   */
+  public static final String SEND_MESSAGE_MAX_RECIPIENTS = "mmx.send.message.max.recipients";
+  public static final String SEND_MESSAGE_STREAM_THRESHOLD = "mmx.send.message.stream.threshold";
+
+  /*
+   * Push jobs. The devices of a job are resolved and pushed page by page; queued jobs are
+   * processed by a pool of worker threads.
+   */
+  public static final String PUSH_PAGE_SIZE = "mmx.push.page.size";
+  public static final String PUSH_JOB_THREADS = "mmx.push.job.threads";
+  public static final String PUSH_JOB_LEASE_SECONDS = "mmx.push.job.lease.secs";
+
+  /*
+   * Asynchronous APNS delivery. Notifications are queued on one long lived connection per app and
+   * the written notifications are cached so they can be resent after the gateway rejects one.
+   */
+  public static final String APNS_ASYNC_ENABLED = "mmx.apns.async.enabled";
+  public static final String APNS_ASYNC_CACHE_LENGTH = "mmx.apns.async.cache.length";
+  public static final String APNS_ASYNC_IDLE_MINUTES = "mmx.apns.async.idle.minutes";
+  public static final String APNS_ASYNC_MAX_IN_FLIGHT = "mmx.apns.async.max.inflight";
+  public static final String APNS_ASYNC_IN_FLIGHT_WAIT_MILLIS = "mmx.apns.async.inflight.wait.millis";
+
+  /*
+   * Message and push message stats by current state, bucketed by the hour the messages were queued.
+   * Counts are kept in memory and added to the mmxStatsRollup table every flush interval. When
+   * disabled, the stats endpoints aggregate the messages instead.
+   */
+  public static final String STATS_ROLLUP_ENABLED = "mmx.stats.rollup.enabled";
+  public static final String STATS_ROLLUP_FLUSH_SECONDS = "mmx.stats.rollup.flush.sec";
+
+  /*
+   * Hot path metrics. The metrics are always collected; these control where they are exported.
+   */
+  public static final String METRICS_JMX_ENABLED = "mmx.metrics.jmx.enabled";
+  public static final String METRICS_ENDPOINT_ENABLED = "mmx.metrics.endpoint.enabled";
 }
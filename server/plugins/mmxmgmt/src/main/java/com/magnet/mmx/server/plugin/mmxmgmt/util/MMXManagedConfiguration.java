@@ -14,6 +14,18 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.util;
 
+import com.magnet.mmx.server.plugin.mmxmgmt.context.ContextDispatcherFactory;
+import com.magnet.mmx.server.plugin.mmxmgmt.context.GeoEventDispatcher;
+import com.magnet.mmx.server.plugin.mmxmgmt.context.GeoLocationIndex;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceCache;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageWriteBehindQueue;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.OfflineMessageWriteBehindQueue;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.RetentionTable;
+import com.magnet.mmx.server.plugin.mmxmgmt.hook.WebHookDispatcher;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.MessageFanoutRouter;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.RateLimiterService;
+import com.magnet.mmx.server.plugin.mmxmgmt.retention.RetentionStats;
+import com.magnet.mmx.server.plugin.mmxmgmt.wakeup.WakeupDispatchStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -367,4 +379,304 @@ public class MMXManagedConfiguration implements MMXManagedConfigurationMBean {
     LOGGER.trace("setMmxAlertEmailBccList : {}", mmxAlertEmailBccList);
     configuration.setValue(MMXConfigKeys.ALERT_EMAIL_BCC_LIST, mmxAlertEmailBccList);
   }
+
+  @Override
+  public int getMessageWriteQueueDepth() {
+    return MessageWriteBehindQueue.getInstance().getQueueDepth();
+  }
+
+  @Override
+  public long getMessageWriteCount() {
+    return MessageWriteBehindQueue.getInstance().getWrittenCount();
+  }
+
+  @Override
+  public long getMessageWriteBlockedCount() {
+    return MessageWriteBehindQueue.getInstance().getBlockedCount();
+  }
+
+  @Override
+  public long getMessageWriteFailedCount() {
+    return MessageWriteBehindQueue.getInstance().getFailedCount();
+  }
+
+  @Override
+  public long getMessageWriteFlushCount() {
+    return MessageWriteBehindQueue.getInstance().getFlushCount();
+  }
+
+  @Override
+  public double getMessageWriteMeanFlushMillis() {
+    return MessageWriteBehindQueue.getInstance().getMeanFlushMillis();
+  }
+
+  @Override
+  public double getMessageWrite99thPercentileFlushMillis() {
+    return MessageWriteBehindQueue.getInstance().get99thPercentileFlushMillis();
+  }
+
+  @Override
+  public int getOfflineWriteQueueDepth() {
+    return OfflineMessageWriteBehindQueue.getInstance().getQueueDepth();
+  }
+
+  @Override
+  public long getOfflineWriteAddedCount() {
+    return OfflineMessageWriteBehindQueue.getInstance().getAddedCount();
+  }
+
+  @Override
+  public long getOfflineWriteRemovedCount() {
+    return OfflineMessageWriteBehindQueue.getInstance().getRemovedCount();
+  }
+
+  @Override
+  public long getOfflineWriteCancelledCount() {
+    return OfflineMessageWriteBehindQueue.getInstance().getCancelledCount();
+  }
+
+  @Override
+  public long getOfflineWriteBlockedCount() {
+    return OfflineMessageWriteBehindQueue.getInstance().getBlockedCount();
+  }
+
+  @Override
+  public long getOfflineWriteFailedCount() {
+    return OfflineMessageWriteBehindQueue.getInstance().getFailedCount();
+  }
+
+  @Override
+  public long getDeviceCacheHitCount() {
+    return DeviceCache.getInstance().getStats().hitCount();
+  }
+
+  @Override
+  public long getDeviceCacheMissCount() {
+    return DeviceCache.getInstance().getStats().missCount();
+  }
+
+  @Override
+  public long getDeviceCacheEvictionCount() {
+    return DeviceCache.getInstance().getStats().evictionCount();
+  }
+
+  @Override
+  public long getDeviceCacheSize() {
+    return DeviceCache.getInstance().getSize();
+  }
+
+  @Override
+  public long getAppCacheHitCount() {
+    return AppEntityDBLoadingEntityCache.getInstance().getStats().hitCount();
+  }
+
+  @Override
+  public long getAppCacheMissCount() {
+    return AppEntityDBLoadingEntityCache.getInstance().getStats().missCount();
+  }
+
+  @Override
+  public long getAppCacheSize() {
+    return AppEntityDBLoadingEntityCache.getInstance().getSize();
+  }
+
+  @Override
+  public long getAppCacheUnknownAppIdCount() {
+    return AppEntityDBLoadingEntityCache.getInstance().getMissingSize();
+  }
+
+  @Override
+  public int getMessageFanoutQueueDepth() {
+    return MessageFanoutRouter.getInstance().getQueueDepth();
+  }
+
+  @Override
+  public int getMessageFanoutMaxLaneDepth() {
+    return MessageFanoutRouter.getInstance().getMaxLaneDepth();
+  }
+
+  @Override
+  public long getMessageFanoutRoutedCount() {
+    return MessageFanoutRouter.getInstance().getRoutedCount();
+  }
+
+  @Override
+  public long getMessageFanoutRejectedCount() {
+    return MessageFanoutRouter.getInstance().getRejectedCount();
+  }
+
+  @Override
+  public double getMessageFanoutMeanLatencyMillis() {
+    return MessageFanoutRouter.getInstance().getMeanLatencyMillis();
+  }
+
+  @Override
+  public double getMessageFanout99thPercentileLatencyMillis() {
+    return MessageFanoutRouter.getInstance().get99thPercentileLatencyMillis();
+  }
+
+  @Override
+  public long getWakeupSentCount() {
+    return WakeupDispatchStats.getInstance().getSentCount();
+  }
+
+  @Override
+  public long getWakeupFailedCount() {
+    return WakeupDispatchStats.getInstance().getFailedCount();
+  }
+
+  @Override
+  public long getWakeupInvalidTokenCount() {
+    return WakeupDispatchStats.getInstance().getInvalidTokenCount();
+  }
+
+  @Override
+  public long getWakeupRequestCount() {
+    return WakeupDispatchStats.getInstance().getRequestCount();
+  }
+
+  @Override
+  public double getWakeupLastChunkRate() {
+    return WakeupDispatchStats.getInstance().getLastChunkRate();
+  }
+
+  @Override
+  public String[] getWakeupAppStats() {
+    return WakeupDispatchStats.getInstance().getAppStats();
+  }
+
+  @Override
+  public int getWebHookQueueDepth() {
+    return WebHookDispatcher.getInstance().getQueueDepth();
+  }
+
+  @Override
+  public long getWebHookDeliveredCount() {
+    return WebHookDispatcher.getInstance().getDeliveredCount();
+  }
+
+  @Override
+  public long getWebHookFailedCount() {
+    return WebHookDispatcher.getInstance().getFailedCount();
+  }
+
+  @Override
+  public long getWebHookRetriedCount() {
+    return WebHookDispatcher.getInstance().getRetriedCount();
+  }
+
+  @Override
+  public long getWebHookDeadLetteredCount() {
+    return WebHookDispatcher.getInstance().getDeadLetteredCount();
+  }
+
+  @Override
+  public long getWebHookDroppedCount() {
+    return WebHookDispatcher.getInstance().getDroppedCount();
+  }
+
+  @Override
+  public String[] getWebHookStats() {
+    return WebHookDispatcher.getInstance().getHookStats();
+  }
+
+  @Override
+  public int getGeoEventQueueDepth() {
+    GeoEventDispatcher dispatcher = getGeoEventDispatcher();
+    return dispatcher == null ? 0 : dispatcher.getQueueDepth();
+  }
+
+  @Override
+  public long getGeoEventDispatchedCount() {
+    GeoEventDispatcher dispatcher = getGeoEventDispatcher();
+    return dispatcher == null ? 0 : dispatcher.getDispatchedCount();
+  }
+
+  @Override
+  public long getGeoEventCoalescedCount() {
+    GeoEventDispatcher dispatcher = getGeoEventDispatcher();
+    return dispatcher == null ? 0 : dispatcher.getCoalescedCount();
+  }
+
+  @Override
+  public long getGeoEventDroppedCount() {
+    GeoEventDispatcher dispatcher = getGeoEventDispatcher();
+    return dispatcher == null ? 0 : dispatcher.getDroppedCount();
+  }
+
+  @Override
+  public double getGeoEventMeanLatencyMillis() {
+    GeoEventDispatcher dispatcher = getGeoEventDispatcher();
+    return dispatcher == null ? 0 : dispatcher.getMeanLatencyMillis();
+  }
+
+  @Override
+  public double getGeoEvent99thPercentileLatencyMillis() {
+    GeoEventDispatcher dispatcher = getGeoEventDispatcher();
+    return dispatcher == null ? 0 : dispatcher.get99thPercentileLatencyMillis();
+  }
+
+  @Override
+  public int getGeoIndexedDeviceCount() {
+    return GeoLocationIndex.getInstance().getIndexedCount();
+  }
+
+  @Override
+  public long getXmppRateLimitRejectedCount() {
+    return RateLimiterService.getRejectedCount(MMXServerConstants.XMPP_RATE_TYPE);
+  }
+
+  @Override
+  public long getHttpRateLimitRejectedCount() {
+    return RateLimiterService.getRejectedCount(MMXServerConstants.HTTP_RATE_TYPE);
+  }
+
+  @Override
+  public long getRateLimitBucketCount() {
+    return RateLimiterService.getBucketCount();
+  }
+
+  @Override
+  public long getRetentionPurgedMessageCount() {
+    return RetentionStats.getInstance().getPurgedCount(RetentionTable.MESSAGE);
+  }
+
+  @Override
+  public long getRetentionPurgedPushMessageCount() {
+    return RetentionStats.getInstance().getPurgedCount(RetentionTable.PUSH_MESSAGE);
+  }
+
+  @Override
+  public long getRetentionPurgedWakeupCount() {
+    return RetentionStats.getInstance().getPurgedCount(RetentionTable.WAKEUP);
+  }
+
+  @Override
+  public long getRetentionArchivedCount() {
+    return RetentionStats.getInstance().getArchivedCount();
+  }
+
+  @Override
+  public long getRetentionRunCount() {
+    return RetentionStats.getInstance().getRunCount();
+  }
+
+  @Override
+  public long getRetentionTotalMillis() {
+    return RetentionStats.getInstance().getTotalMillis();
+  }
+
+  @Override
+  public long getRetentionLastRunMillis() {
+    return RetentionStats.getInstance().getLastRunMillis();
+  }
+
+  private GeoEventDispatcher getGeoEventDispatcher() {
+    try {
+      return (GeoEventDispatcher) ContextDispatcherFactory.getInstance().getDispatcher(GeoEventDispatcher.class.getName());
+    } catch (Exception e) {
+      LOGGER.warn("getGeoEventDispatcher : geo event dispatcher is not available", e);
+      return null;
+    }
+  }
 }
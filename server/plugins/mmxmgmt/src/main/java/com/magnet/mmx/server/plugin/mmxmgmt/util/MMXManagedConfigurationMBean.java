@@ -117,4 +117,148 @@ public interface MMXManagedConfigurationMBean {
   public String getMmxAlertEmailBccList();
   public void setMmxAlertEmailBccList(String mmxAlertEmailBccList);
 
+  /*
+   * Message write-behind queue statistics
+   */
+  public int getMessageWriteQueueDepth();
+
+  public long getMessageWriteCount();
+
+  public long getMessageWriteBlockedCount();
+
+  public long getMessageWriteFailedCount();
+
+  public long getMessageWriteFlushCount();
+
+  public double getMessageWriteMeanFlushMillis();
+
+  public double getMessageWrite99thPercentileFlushMillis();
+
+  /*
+   * Offline message write-behind queue statistics
+   */
+  public int getOfflineWriteQueueDepth();
+
+  public long getOfflineWriteAddedCount();
+
+  public long getOfflineWriteRemovedCount();
+
+  public long getOfflineWriteCancelledCount();
+
+  public long getOfflineWriteBlockedCount();
+
+  public long getOfflineWriteFailedCount();
+
+  /*
+   * Device cache statistics
+   */
+  public long getDeviceCacheHitCount();
+
+  public long getDeviceCacheMissCount();
+
+  public long getDeviceCacheEvictionCount();
+
+  public long getDeviceCacheSize();
+
+  /*
+   * App cache statistics
+   */
+  public long getAppCacheHitCount();
+
+  public long getAppCacheMissCount();
+
+  public long getAppCacheSize();
+
+  public long getAppCacheUnknownAppIdCount();
+
+  /*
+   * Message fan-out router statistics
+   */
+  public int getMessageFanoutQueueDepth();
+
+  public int getMessageFanoutMaxLaneDepth();
+
+  public long getMessageFanoutRoutedCount();
+
+  public long getMessageFanoutRejectedCount();
+
+  public double getMessageFanoutMeanLatencyMillis();
+
+  public double getMessageFanout99thPercentileLatencyMillis();
+
+  /*
+   * Wakeup dispatch statistics
+   */
+  public long getWakeupSentCount();
+
+  public long getWakeupFailedCount();
+
+  public long getWakeupInvalidTokenCount();
+
+  public long getWakeupRequestCount();
+
+  public double getWakeupLastChunkRate();
+
+  public String[] getWakeupAppStats();
+
+  /*
+   * Webhook delivery statistics
+   */
+  public int getWebHookQueueDepth();
+
+  public long getWebHookDeliveredCount();
+
+  public long getWebHookFailedCount();
+
+  public long getWebHookRetriedCount();
+
+  public long getWebHookDeadLetteredCount();
+
+  public long getWebHookDroppedCount();
+
+  public String[] getWebHookStats();
+
+  /*
+   * Geo event dispatch statistics
+   */
+  public int getGeoEventQueueDepth();
+
+  public long getGeoEventDispatchedCount();
+
+  public long getGeoEventCoalescedCount();
+
+  public long getGeoEventDroppedCount();
+
+  public double getGeoEventMeanLatencyMillis();
+
+  public double getGeoEvent99thPercentileLatencyMillis();
+
+  public int getGeoIndexedDeviceCount();
+
+  /*
+   * Rate limit statistics
+   */
+  public long getXmppRateLimitRejectedCount();
+
+  public long getHttpRateLimitRejectedCount();
+
+  public long getRateLimitBucketCount();
+
+  /*
+   * Retention statistics
+   */
+  public long getRetentionPurgedMessageCount();
+
+  public long getRetentionPurgedPushMessageCount();
+
+  public long getRetentionPurgedWakeupCount();
+
+  public long getRetentionArchivedCount();
+
+  public long getRetentionRunCount();
+
+  public long getRetentionTotalMillis();
+
+  public long getRetentionLastRunMillis();
+
 }
@@ -14,47 +14,29 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.util;
 
-import org.jivesoftware.openfire.XMPPServer;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.OfflineMessageWriteBehindQueue;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.Message;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-
 /**
  */
 public class MMXOfflineStorageUtil {
   private static final Logger LOGGER = LoggerFactory.getLogger(MMXOfflineStorageUtil.class);
   private static final String MMX_CACHE = "mmxStorageCache";
-  private static Executor service = Executors.newFixedThreadPool(20);
   private static Cache mmxStorageCache = null;
 
   public static void storeMessage(final Message message) {
     LOGGER.debug("storeMessage : sender={}, receiver={}, messageId={}", new Object[]{message.getTo(), message.getFrom(), message.getID()});
     LOGGER.trace("storeMessage : message={}", message.toString().replaceAll("[\\r\\n]+", ""));
-    String receiver = message.getTo().toFullJID();
-    String messageId = message.getID();
-
-    service.execute(new Runnable() {
-      @Override
-      public void run() {
-        LOGGER.trace("storeMessage.run : addMessage from={}, to={}, messageId={}", new Object[]{message.getFrom(), message.getTo(), message.getID()});
-        XMPPServer.getInstance().getOfflineMessageStore().addMessage(message);
-      }
-    });
+    OfflineMessageWriteBehindQueue.getInstance().add(message);
   }
 
   public static void removeMessage(final String username, final String messageId) {
-    service.execute(new Runnable() {
-      @Override
-      public void run() {
-        LOGGER.trace("removeMessage.run : deleteMessage : username={}, messageId={}", username, messageId);
-        XMPPServer.getInstance().getOfflineMessageStore().deleteMessage(username, messageId);
-      }
-    });
+    LOGGER.trace("removeMessage : username={}, messageId={}", username, messageId);
+    OfflineMessageWriteBehindQueue.getInstance().remove(username, messageId);
   }
 
   private synchronized static Cache getOrCreateCache() {
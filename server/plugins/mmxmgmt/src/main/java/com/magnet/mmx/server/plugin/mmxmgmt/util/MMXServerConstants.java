@@ -44,6 +44,10 @@ public final class MMXServerConstants {
   public static final int DEFAULT_MAX_DEVICES_PER_APP = -1;
   public static final int DEFAULT_MAX_XMPP_RATE = -1;
   public static final int DEFAULT_MAX_HTTP_RATE = -1;
+  public static final int DEFAULT_MAX_XMPP_RATE_PER_USER = -1;
+  public static final int DEFAULT_MAX_XMPP_RATE_PER_DEVICE = -1;
+  public static final boolean DEFAULT_RATE_LIMIT_CLUSTER_AGGREGATE = false;
+  public static final int RATE_LIMIT_SWEEP_INTERVAL_SECONDS = 60;
 
   public static final String PUSH_CALLBACK_CONTEXT = "/mmxmgmt";
   public static final String PUSH_CALLBACK_ENDPOINT = "/v1/pushreply";
@@ -68,8 +72,13 @@ public final class MMXServerConstants {
    */
   public static final int APNS_POOL_MAX_TOTAL_CONNECTIONS = 100;
   public static final int APNS_POOL_MAX_CONNECTIONS_PER_APP = 20;
-  public static final int APNS_POOL_MAX_IDLE_CONNECTIONS_PER_APP = 1;
+  public static final int APNS_POOL_MAX_IDLE_CONNECTIONS_PER_APP = 20;
   public static final int APNS_POOL_IDLE_TTL_MINUTES = 10;
+  public static final int APNS_POOL_EVICTION_RUN_SECONDS = 60;
+  public static final int DEFAULT_APNS_POOL_ADJUST_INTERVAL_SECONDS = 30;
+  public static final long DEFAULT_APNS_POOL_SLOW_BORROW_MILLIS = 50L;
+  public static final int DEFAULT_APNS_POOL_PREWARM_HOURS = 24;
+  public static final String APNS_POOL_MBEAN_NAME = "com.magnet.mmx.server.plugin.mmxmgmt:type=APNSConnectionPoolMBean";
 
   /**
    * Default values  related to https for the rest API
@@ -110,6 +119,10 @@ public final class MMXServerConstants {
    */
   public static final int DEFAULT_APNS_FEEDBACK_PROCESS_INITIAL_DELAY_MINUTES = 10;
   public static final int DEFAULT_APNS_FEEDBACK_PROCESS_FREQUENCY_MINUTES = 6*60; //6 hrs in minutes
+  public static final int DEFAULT_APNS_FEEDBACK_RECENT_PUSH_DAYS = 7;
+  public static final int DEFAULT_APNS_FEEDBACK_CONCURRENCY = 5;
+  public static final int DEFAULT_APNS_FEEDBACK_RUN_TIMEOUT_MINUTES = 30;
+  public static final String APNS_FEEDBACK_MBEAN_NAME = "com.magnet.mmx.server.plugin.mmxmgmt:type=APNSFeedbackStatsMBean";
 
   public static final String OFFSET_PARAM = "offset";
   public static final String SIZE_PARAM = "size";
@@ -141,4 +154,174 @@ public final class MMXServerConstants {
    * authentication.
    */
   public final static int MMX_RATE_LIMIT_PRIORITY = Priorities.AUTHENTICATION + 1;
+
+  /**
+   * The REST metrics filter runs before authentication so that rejected requests are timed too.
+   */
+  public final static int MMX_METRICS_PRIORITY = Priorities.AUTHENTICATION - 1;
+
+  /**
+   * Number of message ids in the IN clause of a single message lookup; some DBMS
+   * cannot handle more than 255 arguments in the IN clause.
+   */
+  public final static int MESSAGE_ID_QUERY_CHUNK_SIZE = 128;
+
+  /**
+   * Number of primary keys covered by a single update of the message timeout sweep
+   */
+  public static final int DEFAULT_MESSAGE_TIMEOUT_BATCH_SIZE = 1000;
+
+  /**
+   * Default values related to write-behind persistence of message state
+   */
+  public static final boolean DEFAULT_MESSAGE_WRITE_BEHIND_ENABLED = false;
+  public static final int DEFAULT_MESSAGE_WRITE_BEHIND_QUEUE_SIZE = 10000;
+  public static final int DEFAULT_MESSAGE_WRITE_BEHIND_BATCH_SIZE = 100;
+  public static final int DEFAULT_MESSAGE_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS = 50;
+  public static final int DEFAULT_MESSAGE_WRITE_BEHIND_WRITER_COUNT = 2;
+  public static final int MESSAGE_WRITE_BEHIND_SHUTDOWN_WAIT_SECONDS = 30;
+
+  /**
+   * Default values related to write-behind offline message storage
+   */
+  public static final int DEFAULT_OFFLINE_WRITE_BEHIND_QUEUE_SIZE = 10000;
+  public static final int DEFAULT_OFFLINE_WRITE_BEHIND_BATCH_SIZE = 100;
+  public static final int DEFAULT_OFFLINE_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS = 50;
+  public static final int DEFAULT_OFFLINE_WRITE_BEHIND_WRITER_COUNT = 4;
+  public static final int OFFLINE_WRITE_BEHIND_SHUTDOWN_WAIT_SECONDS = 30;
+
+  /**
+   * Default values related to the device lookup cache
+   */
+  public static final int DEFAULT_DEVICE_CACHE_MAX_SIZE = 10000;
+  public static final int DEFAULT_DEVICE_CACHE_TTL_SECONDS = 300;
+
+  /**
+   * Default values related to the app cache
+   */
+  public static final int DEFAULT_APP_CACHE_MAX_SIZE = 1000;
+  public static final int DEFAULT_APP_CACHE_TTL_SECONDS = 600;
+  public static final int DEFAULT_APP_CACHE_NEGATIVE_TTL_SECONDS = 60;
+
+  /**
+   * Default values related to fan-out routing of per device messages
+   */
+  public static final int DEFAULT_MESSAGE_FANOUT_LANE_COUNT = 10;
+  public static final int DEFAULT_MESSAGE_FANOUT_LANE_QUEUE_SIZE = 1000;
+  public static final String DEFAULT_MESSAGE_FANOUT_REJECTION_POLICY = "BLOCK";
+  public static final int MESSAGE_FANOUT_SHUTDOWN_WAIT_SECONDS = 10;
+
+  /**
+   * Default values related to wakeup dispatch
+   */
+  public static final int DEFAULT_WAKEUP_DISPATCH_THREADS = 10;
+  public static final int DEFAULT_WAKEUP_APNS_BATCH_SIZE = 100;
+  public static final boolean DEFAULT_WAKEUP_PARTITIONED = true;
+  public static final int DEFAULT_WAKEUP_SHARD_COUNT = 16;
+  public static final int DEFAULT_WAKEUP_SHARD_LEASE_SECONDS = 120;
+
+  /**
+   * Default values related to webhook delivery
+   */
+  public static final int DEFAULT_WEBHOOK_QUEUE_SIZE = 10000;
+  public static final int DEFAULT_WEBHOOK_THREADS = 4;
+  public static final int DEFAULT_WEBHOOK_BATCH_SIZE = 1;
+  public static final int DEFAULT_WEBHOOK_MAX_ATTEMPTS = 5;
+  public static final long DEFAULT_WEBHOOK_RETRY_BASE_MILLIS = 1000L;
+  public static final long DEFAULT_WEBHOOK_RETRY_MAX_MILLIS = 60000L;
+  public static final int DEFAULT_WEBHOOK_BREAKER_FAILURES = 5;
+  public static final int DEFAULT_WEBHOOK_BREAKER_OPEN_SECONDS = 30;
+  public static final int DEFAULT_WEBHOOK_CONNECT_TIMEOUT_MILLIS = 5000;
+  public static final int DEFAULT_WEBHOOK_READ_TIMEOUT_MILLIS = 10000;
+  public static final int WEBHOOK_SHUTDOWN_WAIT_SECONDS = 10;
+  public static final int DEFAULT_HOOK_REGISTRY_TTL_SECONDS = 60;
+  public static final int HOOK_REGISTRY_MAX_SIZE = 10000;
+
+  /**
+   * Default values related to geo event dispatch
+   */
+  public static final int DEFAULT_GEO_DISPATCH_CONSUMERS = 5;
+  public static final int DEFAULT_GEO_DISPATCH_QUEUE_SIZE = 10000;
+  public static final int DEFAULT_GEO_DISPATCH_BATCH_SIZE = 50;
+  public static final int GEO_DISPATCH_SHUTDOWN_WAIT_SECONDS = 10;
+
+  /**
+   * Default values related to the geo location index
+   */
+  public static final boolean DEFAULT_GEO_INDEX_ENABLED = true;
+  public static final int DEFAULT_GEO_INDEX_MAX_AGE_SECONDS = 3600;
+  public static final int GEO_INDEX_SWEEP_MAX_INTERVAL_SECONDS = 60;
+  public static final int GEO_QUERY_MAX_SIZE = 1000;
+
+  /**
+   * Default values related to retention of messages, push messages and wakeups
+   */
+  public static final boolean DEFAULT_RETENTION_ENABLED = false;
+  public static final int DEFAULT_RETENTION_INITIAL_DELAY_MINUTES = 10;
+  public static final int DEFAULT_RETENTION_INTERVAL_MINUTES = 60;
+  public static final int DEFAULT_RETENTION_BATCH_SIZE = 500;
+  public static final long DEFAULT_RETENTION_BATCH_PAUSE_MILLIS = 200L;
+  public static final int DEFAULT_RETENTION_MESSAGE_DAYS = 30;
+  public static final int DEFAULT_RETENTION_PUSH_MESSAGE_DAYS = 30;
+  public static final int DEFAULT_RETENTION_WAKEUP_DAYS = 7;
+
+  /**
+   * Default values related to REST send_message to a list of usernames
+   */
+  public static final int DEFAULT_SEND_MESSAGE_MAX_RECIPIENTS = 10000;
+  public static final int DEFAULT_SEND_MESSAGE_STREAM_THRESHOLD = 1000;
+
+  /**
+   * Default values related to push jobs
+   */
+  public static final int DEFAULT_PUSH_PAGE_SIZE = 500;
+  public static final int DEFAULT_PUSH_JOB_THREADS = 2;
+  public static final int DEFAULT_PUSH_JOB_LEASE_SECONDS = 600;
+  public static final int PUSH_JOB_SHUTDOWN_WAIT_SECONDS = 10;
+
+  /**
+   * Default values related to asynchronous APNS delivery
+   */
+  public static final boolean DEFAULT_APNS_ASYNC_ENABLED = false;
+  public static final int DEFAULT_APNS_ASYNC_CACHE_LENGTH = 1000;
+  public static final int DEFAULT_APNS_ASYNC_IDLE_MINUTES = 10;
+  public static final int DEFAULT_APNS_ASYNC_MAX_IN_FLIGHT = 10000;
+  public static final long DEFAULT_APNS_ASYNC_IN_FLIGHT_WAIT_MILLIS = 2000L;
+  public static final String APNS_DELIVERY_MBEAN_NAME = "com.magnet.mmx.server.plugin.mmxmgmt:type=APNSDeliveryEngineMBean";
+
+  /**
+   * Default values related to the message and push message stats rollup
+   */
+  public static final boolean DEFAULT_STATS_ROLLUP_ENABLED = true;
+  public static final int DEFAULT_STATS_ROLLUP_FLUSH_SECONDS = 60;
+  public static final int STATS_ROLLUP_WINDOW_HOURS = 7*24;
+  public static final int STATS_ROLLUP_RETENTION_HOURS = 8*24;
+
+  /**
+   * Number of usernames in the IN clause of a single user lookup
+   */
+  public final static int USERNAME_QUERY_CHUNK_SIZE = 128;
+
+  /**
+   * Number of device ids in the IN clause of a single device lookup
+   */
+  public final static int DEVICE_ID_QUERY_CHUNK_SIZE = 128;
+
+  /**
+   * Maximum number of devices a geo push target resolves to
+   */
+  public final static int GEO_PUSH_TARGET_MAX_SIZE = 10000;
+
+  /**
+   * Time after which the in memory topic index of an app is rebuilt
+   */
+  public static final int TOPIC_INDEX_EXPIRY_MINUTES = 30;
+
+  /**
+   * Default values related to hot path metrics
+   */
+  public static final boolean DEFAULT_METRICS_JMX_ENABLED = true;
+  public static final boolean DEFAULT_METRICS_ENDPOINT_ENABLED = true;
+  public static final String METRICS_JMX_DOMAIN = "com.magnet.mmx.server.plugin.mmxmgmt.metrics";
+  public static final String METRICS_PREFIX = "mmx";
 }
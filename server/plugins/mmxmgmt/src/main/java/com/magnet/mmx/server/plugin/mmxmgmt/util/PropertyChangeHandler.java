@@ -15,6 +15,7 @@
 package com.magnet.mmx.server.plugin.mmxmgmt.util;
 
 import com.google.common.base.Strings;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.MessageFanoutRouter;
 import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.RateLimiterService;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.component.ExternalComponentManager;
@@ -29,12 +30,15 @@ public class PropertyChangeHandler {
     if(Strings.isNullOrEmpty(property)) {
       return;
     }
-    if (property.equals(MMXConfigKeys.MAX_XMPP_RATE)) {
-      int rate = MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.MAX_XMPP_RATE, MMXServerConstants.DEFAULT_MAX_XMPP_RATE);
-      RateLimiterService.updateRates(MMXServerConstants.XMPP_RATE_TYPE, rate);
-    } else if(property.equals(MMXConfigKeys.MAX_HTTP_RATE)) {
-      int rate = MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.MAX_HTTP_RATE, MMXServerConstants.DEFAULT_MAX_HTTP_RATE);
-      RateLimiterService.updateRates(MMXServerConstants.HTTP_RATE_TYPE, rate);
+    if (property.equals(MMXConfigKeys.MAX_XMPP_RATE) || property.equals(MMXConfigKeys.MAX_HTTP_RATE) ||
+        property.equals(MMXConfigKeys.MAX_XMPP_RATE_PER_USER) || property.equals(MMXConfigKeys.MAX_XMPP_RATE_PER_DEVICE) ||
+        property.equals(MMXConfigKeys.RATE_LIMIT_CLUSTER_AGGREGATE)) {
+      RateLimiterService.configure();
+    } else if (MMXConfigKeys.MESSAGE_FANOUT_REJECTION_POLICY.equals(property)) {
+      String value = MMXConfiguration.getConfiguration().getString(MMXConfigKeys.MESSAGE_FANOUT_REJECTION_POLICY,
+          MMXServerConstants.DEFAULT_MESSAGE_FANOUT_REJECTION_POLICY);
+      MessageFanoutRouter router = MessageFanoutRouter.getInstance();
+      router.setRejectionPolicy(MessageFanoutRouter.RejectionPolicy.fromString(value, router.getRejectionPolicy()));
     } else if (MMXConfigKeys.EXT_SERVICE_EVENT_GEO_SECRET.equals(property)) {
       // update the secret for geo component
       // TODO add proper Rest API to configure components
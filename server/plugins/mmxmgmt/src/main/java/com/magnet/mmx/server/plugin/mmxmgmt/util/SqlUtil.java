@@ -18,7 +18,10 @@ import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import org.slf4j.Logger;
 
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.List;
 
 /**
@@ -47,4 +50,53 @@ public class SqlUtil {
     List<String> newList = Lists.transform(values, singleQuotedListTransform);
     return  " " + OP_BRACE + Joiner.on(",").join(newList) + CL_BRACE + " ";
   }
+
+  /**
+   * Add up the update counts returned by executeBatch. Drivers that don't report the count of a
+   * statement return a negative value for it, which is not counted.
+   * @param counts
+   * @return
+   */
+  public static int sumUpdateCounts(int[] counts) {
+    int sum = 0;
+    for (int count : counts) {
+      if (count > 0) {
+        sum += count;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Roll back the current transaction of the connection. A failure is logged and not rethrown
+   * so that the exception that caused the rollback is the one reported.
+   * @param logger
+   * @param con can be null
+   */
+  public static void rollback(Logger logger, Connection con) {
+    if (con != null) {
+      try {
+        con.rollback();
+      } catch (SQLException e) {
+        logger.warn("Exception in rolling back batch", e);
+      }
+    }
+  }
+
+  /**
+   * Put back the autoCommit mode the connection had before a transaction, before it is returned
+   * to the pool. A failure is logged and not rethrown.
+   * @param logger
+   * @param con can be null
+   * @param autoCommit
+   */
+  public static void restoreAutoCommit(Logger logger, Connection con, boolean autoCommit) {
+    if (con != null) {
+      try {
+        con.setAutoCommit(autoCommit);
+      } catch (SQLException e) {
+        logger.warn("Exception in restoring autoCommit", e);
+      }
+    }
+  }
 }
@@ -19,6 +19,9 @@ import com.google.android.gcm.server.Message;
 import com.google.android.gcm.server.MulticastResult;
 import com.google.android.gcm.server.Result;
 import com.google.android.gcm.server.Sender;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +29,7 @@ import java.io.IOException;
 import java.net.HttpRetryException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of WakeupNotifier interface using GCM
@@ -35,6 +39,21 @@ public class GCMWakeupNotifierImpl implements WakeupNotifier {
 
   private static Logger LOGGER = LoggerFactory.getLogger(GCMWakeupNotifierImpl.class);
   private static final int RETRY_COUNT = 5;
+  private static final int SENDER_CACHE_SIZE = 1000;
+  private static final int SENDER_CACHE_IDLE_MINUTES = 60;
+
+  /**
+   * Senders keyed by the Google API key so they are not created for every request.
+   */
+  private static final LoadingCache<String, Sender> senders = CacheBuilder.newBuilder()
+      .maximumSize(SENDER_CACHE_SIZE)
+      .expireAfterAccess(SENDER_CACHE_IDLE_MINUTES, TimeUnit.MINUTES)
+      .build(new CacheLoader<String, Sender>() {
+        @Override
+        public Sender load(String senderIdentifier) throws Exception {
+          return new Sender(senderIdentifier);
+        }
+      });
 
   @Override
   public List<NotificationResult> sendNotification(List<String> deviceTokens, String payload, NotificationSystemContext context) {
@@ -53,7 +72,7 @@ public class GCMWakeupNotifierImpl implements WakeupNotifier {
     //Prepare a simple payload to push
     NotificationResult[] results = new NotificationResult[deviceTokens.size()];
 
-    Sender sender = new Sender(senderIdentifier);
+    Sender sender = senders.getUnchecked(senderIdentifier);
     Message.Builder mb = new Message.Builder().
         addData("msg", payload);
 
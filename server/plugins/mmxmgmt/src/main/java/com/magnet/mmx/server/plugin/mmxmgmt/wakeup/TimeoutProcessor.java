@@ -14,16 +14,21 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.wakeup;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.OpenFireDBConnectionProvider;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXClusterableTask;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -31,6 +36,8 @@ import java.util.concurrent.locks.Lock;
  */
 public class TimeoutProcessor extends MMXClusterableTask implements Runnable {
   private static Logger LOGGER = LoggerFactory.getLogger(TimeoutProcessor.class);
+  private static final Timer RUNS = MMXMetrics.timer("timeout.run");
+  private static final Counter MESSAGES = MMXMetrics.counter("timeout.messages");
 
   private static final int DEFAULT_TIMEOUT_MINUTES = 180;
 
@@ -49,6 +56,8 @@ public class TimeoutProcessor extends MMXClusterableTask implements Runnable {
 
     Date now = new Date();
     int timeoutMinutes = MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.MESSAGE_TIMEOUT_MINUTES, DEFAULT_TIMEOUT_MINUTES);
+    int batchSize = MMXConfiguration.getConfiguration().getInt(MMXConfigKeys.MESSAGE_TIMEOUT_BATCH_SIZE,
+        MMXServerConstants.DEFAULT_MESSAGE_TIMEOUT_BATCH_SIZE);
     if (LOGGER.isDebugEnabled()) {
       LOGGER.debug("Processing timeout processor");
       LOGGER.debug("Timeout period in minutes:" + timeoutMinutes);
@@ -56,12 +65,14 @@ public class TimeoutProcessor extends MMXClusterableTask implements Runnable {
     long startTime = System.nanoTime();
     MessageDAO messageDAO = getMessageDAO();
     long utcTimeInSeconds = now.getTime() / 1000L;
-    int messageCount = messageDAO.messageTimeout(utcTimeInSeconds, timeoutMinutes);
+    int messageCount = messageDAO.messageTimeout(utcTimeInSeconds, timeoutMinutes, Math.max(1, batchSize));
     long endTime = System.nanoTime();
     long delta = endTime - startTime;
+    RUNS.update(delta, TimeUnit.NANOSECONDS);
+    MESSAGES.inc(messageCount);
     LOGGER.info("Completed timeout processing");
     String template = "Processed [%d] timeout messages in [%d] milliseconds";
-    LOGGER.info(String.format(template, messageCount, (delta / 1000)));
+    LOGGER.info(String.format(template, messageCount, (delta / 1000000L)));
   }
 
 
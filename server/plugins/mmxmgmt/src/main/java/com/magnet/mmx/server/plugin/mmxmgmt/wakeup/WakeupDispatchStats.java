@@ -0,0 +1,153 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.wakeup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the wakeup notifications sent by this node, in total and per app.
+ */
+public class WakeupDispatchStats {
+  /**
+   * Key used for wakeups that don't have an appId
+   */
+  static final String UNKNOWN_APP = "unknown";
+
+  private static final WakeupDispatchStats INSTANCE = new WakeupDispatchStats();
+
+  private final ConcurrentHashMap<String, AppCounters> apps = new ConcurrentHashMap<String, AppCounters>();
+  private final AppCounters total = new AppCounters();
+  private final AtomicLong requestCount = new AtomicLong();
+  private volatile double lastChunkRate;
+
+  WakeupDispatchStats() {
+  }
+
+  public static WakeupDispatchStats getInstance() {
+    return INSTANCE;
+  }
+
+  void requestSent() {
+    requestCount.incrementAndGet();
+  }
+
+  void sent(String appId) {
+    total.sent.incrementAndGet();
+    counters(appId).sent.incrementAndGet();
+  }
+
+  void failed(String appId) {
+    total.failed.incrementAndGet();
+    counters(appId).failed.incrementAndGet();
+  }
+
+  void invalidToken(String appId) {
+    total.invalidToken.incrementAndGet();
+    counters(appId).invalidToken.incrementAndGet();
+  }
+
+  /**
+   * Record the throughput of a processed chunk.
+   * @param sent number of wakeups sent
+   * @param elapsedNanos time taken to process the chunk
+   */
+  void chunkProcessed(int sent, long elapsedNanos) {
+    lastChunkRate = elapsedNanos > 0 ? sent * 1000000000d / elapsedNanos : 0d;
+  }
+
+  private AppCounters counters(String appId) {
+    String key = appId == null ? UNKNOWN_APP : appId;
+    AppCounters counters = apps.get(key);
+    if (counters == null) {
+      AppCounters created = new AppCounters();
+      counters = apps.putIfAbsent(key, created);
+      if (counters == null) {
+        counters = created;
+      }
+    }
+    return counters;
+  }
+
+  public long getSentCount() {
+    return total.sent.get();
+  }
+
+  public long getFailedCount() {
+    return total.failed.get();
+  }
+
+  public long getInvalidTokenCount() {
+    return total.invalidToken.get();
+  }
+
+  /**
+   * @return number of requests made to GCM and APNS
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * @return wakeups sent per second while processing the last chunk
+   */
+  public double getLastChunkRate() {
+    return lastChunkRate;
+  }
+
+  /**
+   * Get the sent count for an app.
+   * @param appId appId or null for wakeups without an appId
+   * @return
+   */
+  public long getSentCount(String appId) {
+    AppCounters counters = apps.get(appId == null ? UNKNOWN_APP : appId);
+    return counters == null ? 0L : counters.sent.get();
+  }
+
+  /**
+   * Get the failed count for an app.
+   * @param appId appId or null for wakeups without an appId
+   * @return
+   */
+  public long getFailedCount(String appId) {
+    AppCounters counters = apps.get(appId == null ? UNKNOWN_APP : appId);
+    return counters == null ? 0L : counters.failed.get();
+  }
+
+  /**
+   * @return one line per app in the format appId:sent=N,failed=N,invalidToken=N sorted by appId
+   */
+  public String[] getAppStats() {
+    Map<String, AppCounters> sorted = new TreeMap<String, AppCounters>(apps);
+    List<String> lines = new ArrayList<String>(sorted.size());
+    for (Map.Entry<String, AppCounters> entry : sorted.entrySet()) {
+      AppCounters counters = entry.getValue();
+      lines.add(entry.getKey() + ":sent=" + counters.sent.get() + ",failed=" + counters.failed.get() +
+          ",invalidToken=" + counters.invalidToken.get());
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  private static class AppCounters {
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong invalidToken = new AtomicLong();
+  }
+}
@@ -0,0 +1,221 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.wakeup;
+
+import com.magnet.mmx.protocol.PushType;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.WakeupEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends the notifications for a chunk of wakeup entities.
+ * <p>
+ * GCM entities that share the sender identifier and the payload are sent as a single multicast
+ * request of up to {@link #GCM_MULTICAST_LIMIT} tokens. APNS entities are grouped by app,
+ * certificate type and payload, and every group of up to apnsBatchSize tokens is sent over its own
+ * pooled connection. All the requests are made in parallel using the supplied executor.
+ * <p>
+ * A dispatcher is used for a single chunk: add the entities and then call {@link #dispatch()}.
+ */
+public class WakeupDispatcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WakeupDispatcher.class);
+
+  /**
+   * Maximum number of registration ids GCM accepts in a multicast request
+   */
+  public static final int GCM_MULTICAST_LIMIT = 1000;
+
+  private final WakeupNotifier gcmNotifier;
+  private final WakeupNotifier apnsNotifier;
+  private final ExecutorService executor;
+  private final int apnsBatchSize;
+  private final WakeupDispatchStats stats;
+
+  private final Map<String, Batch> open = new LinkedHashMap<String, Batch>();
+  private final List<Batch> batches = new ArrayList<Batch>();
+
+  public WakeupDispatcher(WakeupNotifier gcmNotifier, WakeupNotifier apnsNotifier, ExecutorService executor,
+                          int apnsBatchSize) {
+    this(gcmNotifier, apnsNotifier, executor, apnsBatchSize, WakeupDispatchStats.getInstance());
+  }
+
+  WakeupDispatcher(WakeupNotifier gcmNotifier, WakeupNotifier apnsNotifier, ExecutorService executor,
+                   int apnsBatchSize, WakeupDispatchStats stats) {
+    this.gcmNotifier = gcmNotifier;
+    this.apnsNotifier = apnsNotifier;
+    this.executor = executor;
+    this.apnsBatchSize = Math.max(1, Math.min(apnsBatchSize, GCM_MULTICAST_LIMIT));
+    this.stats = stats;
+  }
+
+  /**
+   * Add a GCM wakeup. The entity must have a token and a sender identifier.
+   * @param entity
+   */
+  public void addGCM(WakeupEntity entity) {
+    String key = PushType.GCM.name() + '\u0000' + entity.getSenderIdentifier() + '\u0000' + entity.getPayload();
+    add(key, entity, new GCMWakeupNotifierImpl.GCMNotificationSystemContext(entity.getSenderIdentifier()),
+        gcmNotifier, GCM_MULTICAST_LIMIT);
+  }
+
+  /**
+   * Add an APNS wakeup. The entity must have a token and an appId.
+   * @param entity
+   * @param apnsCertProduction true if the app uses a production certificate
+   */
+  public void addAPNS(WakeupEntity entity, boolean apnsCertProduction) {
+    String key = PushType.APNS.name() + '\u0000' + entity.getAppId() + '\u0000' + apnsCertProduction + '\u0000' +
+        entity.getPayload();
+    add(key, entity, new APNSWakeupNotifierImpl.APNSNotificationSystemContext(entity.getAppId(), apnsCertProduction),
+        apnsNotifier, apnsBatchSize);
+  }
+
+  private void add(String key, WakeupEntity entity, WakeupNotifier.NotificationSystemContext context,
+                   WakeupNotifier notifier, int limit) {
+    Batch batch = open.get(key);
+    if (batch == null) {
+      batch = new Batch(notifier, context, entity.getPayload());
+      open.put(key, batch);
+      batches.add(batch);
+    }
+    batch.entities.add(entity);
+    if (batch.entities.size() >= limit) {
+      open.remove(key);
+    }
+  }
+
+  /**
+   * Send all the added wakeups and wait for the results.
+   * @return outcome of the wakeups
+   */
+  public Result dispatch() {
+    Result result = new Result();
+    for (final Batch batch : batches) {
+      try {
+        batch.future = executor.submit(new Callable<List<NotificationResult>>() {
+          @Override
+          public List<NotificationResult> call() throws Exception {
+            return batch.send();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        LOGGER.warn("dispatch : executor rejected the batch, sending on the calling thread");
+      }
+    }
+    for (Batch batch : batches) {
+      List<NotificationResult> results = null;
+      try {
+        results = batch.future != null ? batch.future.get() : batch.send();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        batch.future.cancel(true);
+      } catch (ExecutionException e) {
+        LOGGER.error("dispatch : failed to send wakeup batch of size:{}", batch.entities.size(), e.getCause());
+      } catch (RuntimeException e) {
+        LOGGER.error("dispatch : failed to send wakeup batch of size:{}", batch.entities.size(), e);
+      }
+      collect(batch, results, result);
+    }
+    open.clear();
+    batches.clear();
+    return result;
+  }
+
+  private void collect(Batch batch, List<NotificationResult> results, Result result) {
+    stats.requestSent();
+    for (int i = 0; i < batch.entities.size(); i++) {
+      WakeupEntity entity = batch.entities.get(i);
+      NotificationResult r = (results != null && i < results.size()) ? results.get(i) : null;
+      if (r == NotificationResult.DELIVERY_IN_PROGRESS_ASSUME_WILL_EVENTUALLY_DELIVER) {
+        result.completed.add(entity);
+        stats.sent(entity.getAppId());
+      } else if (r == NotificationResult.DELIVERY_FAILED_INVALID_TOKEN) {
+        result.invalidToken.add(entity);
+        stats.invalidToken(entity.getAppId());
+      } else if (r == NotificationResult.DELIVERY_FAILED_INVALID_API_KEY) {
+        result.badApiKey.add(entity);
+        stats.failed(entity.getAppId());
+      } else {
+        stats.failed(entity.getAppId());
+      }
+    }
+  }
+
+  /**
+   * Entities that share a notifier context and payload
+   */
+  private static class Batch {
+    private final WakeupNotifier notifier;
+    private final WakeupNotifier.NotificationSystemContext context;
+    private final String payload;
+    private final List<WakeupEntity> entities = new ArrayList<WakeupEntity>();
+    private Future<List<NotificationResult>> future;
+
+    private Batch(WakeupNotifier notifier, WakeupNotifier.NotificationSystemContext context, String payload) {
+      this.notifier = notifier;
+      this.context = context;
+      this.payload = payload;
+    }
+
+    private List<NotificationResult> send() {
+      List<String> tokens = new ArrayList<String>(entities.size());
+      for (WakeupEntity entity : entities) {
+        tokens.add(entity.getToken());
+      }
+      return notifier.sendNotification(tokens, payload, context);
+    }
+  }
+
+  /**
+   * Outcome of a dispatch. Entities that are in none of the lists failed and are left in the queue.
+   */
+  public static class Result {
+    private final List<WakeupEntity> completed = new LinkedList<WakeupEntity>();
+    private final List<WakeupEntity> invalidToken = new LinkedList<WakeupEntity>();
+    private final List<WakeupEntity> badApiKey = new LinkedList<WakeupEntity>();
+
+    /**
+     * @return entities for which the notification was accepted
+     */
+    public List<WakeupEntity> getCompleted() {
+      return completed;
+    }
+
+    /**
+     * @return entities whose token was rejected as invalid
+     */
+    public List<WakeupEntity> getInvalidToken() {
+      return invalidToken;
+    }
+
+    /**
+     * @return GCM entities whose Google API key was rejected
+     */
+    public List<WakeupEntity> getBadApiKey() {
+      return badApiKey;
+    }
+  }
+}
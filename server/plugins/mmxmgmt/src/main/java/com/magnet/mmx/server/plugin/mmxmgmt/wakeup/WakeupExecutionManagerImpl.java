@@ -14,6 +14,10 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.wakeup;
 
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +40,7 @@ public class WakeupExecutionManagerImpl implements WakeupExecutionManager {
   private final ScheduledExecutorService scheduler =
       Executors.newScheduledThreadPool(threadPoolSize, new SchedulerThreadFactory(POOL_NAME));
   private Lock lock;
+  private WakeupShardManager shardManager;
 
   @Override
   public void startWakeupExecution(WakeupConfig config) {
@@ -45,9 +50,19 @@ public class WakeupExecutionManagerImpl implements WakeupExecutionManager {
     } catch (Exception e) {
       LOGGER.error("startWakeupExecution : caught exception  getting lock");
     }
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    if (configuration.getBoolean(MMXConfigKeys.WAKEUP_PARTITIONED, MMXServerConstants.DEFAULT_WAKEUP_PARTITIONED)) {
+      int shardCount = configuration.getInt(MMXConfigKeys.WAKEUP_SHARD_COUNT, MMXServerConstants.DEFAULT_WAKEUP_SHARD_COUNT);
+      int leaseSeconds = configuration.getInt(MMXConfigKeys.WAKEUP_SHARD_LEASE_SECONDS, MMXServerConstants.DEFAULT_WAKEUP_SHARD_LEASE_SECONDS);
+      //a lease must survive until the next run renews it
+      leaseSeconds = (int) Math.max(leaseSeconds, 3 * config.getPeriod());
+      shardManager = new WakeupShardManager(shardCount, leaseSeconds);
+      ClusterManager.addListener(shardManager);
+      LOGGER.info("Partitioning wakeup queue into {} shards with lease of {} seconds", shardCount, leaseSeconds);
+    }
     LOGGER.info("Scheduling wakeup execution with config:{}", config);
     final ScheduledFuture<?> wakeupScheduledHandler =
-        scheduler.scheduleAtFixedRate(new WakeupProcessor(lock), config.getInitialDelay(), config.getPeriod(), TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(new WakeupProcessor(lock, shardManager), config.getInitialDelay(), config.getPeriod(), TimeUnit.SECONDS);
   }
 
   @Override
@@ -55,6 +70,20 @@ public class WakeupExecutionManagerImpl implements WakeupExecutionManager {
     LOGGER.info("Stopping wakeup execution");
     scheduler.shutdown();
     releaseLock();
+    releaseShards();
+  }
+
+  private void releaseShards() {
+    if (shardManager != null) {
+      ClusterManager.removeListener(shardManager);
+      try {
+        if (ClusterManager.isClusteringEnabled()) {
+          shardManager.releaseShards();
+        }
+      } catch (Exception e) {
+        LOGGER.error("releaseShards : Ignorable - caught exception releasing wakeup shards", e);
+      }
+    }
   }
 
   private void releaseLock() {
@@ -14,6 +14,8 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.wakeup;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
 import com.magnet.mmx.protocol.PushType;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAO;
@@ -21,19 +23,27 @@ import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAOImpl;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DevicePushTokenInvalidator;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageDAOImpl;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.MessageWriteBehindQueue;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.OpenFireDBConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.WakeupEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.WakeupEntityDAO;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.WakeupEntityDAOImpl;
+import com.magnet.mmx.server.plugin.mmxmgmt.monitoring.MMXMetrics;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.AppEntityDBLoadingEntityCache;
 import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXClusterableTask;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfigKeys;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXConfiguration;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXExecutors;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
@@ -43,21 +53,54 @@ import java.util.concurrent.locks.Lock;
  */
 public class WakeupProcessor extends MMXClusterableTask implements Runnable {
   private Logger LOGGER = LoggerFactory.getLogger(WakeupProcessor.class);
+  private static final Timer CHUNKS = MMXMetrics.timer("wakeup.chunk");
+  private static final Counter MESSAGES = MMXMetrics.counter("wakeup.messages");
+  private static final Counter BAD_API_KEY = MMXMetrics.counter("wakeup.badApiKey");
   private final int WAKE_UP_CHUNK = 1000;
-  private static final int CACHE_SIZE = 100;
-  private static AppEntityDBLoadingEntityCache appCache = new AppEntityDBLoadingEntityCache(CACHE_SIZE, new AppEntityDBLoadingEntityCache.AppEntityDBLoader());
+  private static final String DISPATCH_POOL_NAME = "WakeupDispatch";
+
+  private final WakeupShardManager shardManager;
+  private List<Integer> shards;
 
   public WakeupProcessor(Lock lock) {
+    this(lock, null);
+  }
+
+  /**
+   * Constructor
+   * @param lock clustered lock used when the queue is not partitioned
+   * @param shardManager if not null, a clustered node only processes the shards it owns.
+   */
+  public WakeupProcessor(Lock lock, WakeupShardManager shardManager) {
     super(lock);
+    this.shardManager = shardManager;
   }
 
   @Override
   public void run() {
-    if(!canExecute()) {
+    shards = null;
+    if (shardManager != null && ClusterManager.isClusteringEnabled()) {
+      //the shards stay with this node until the chunk polled from them is processed
+      shards = shardManager.beginRun();
+      try {
+        if (shards.isEmpty()) {
+          LOGGER.trace("WakeupProcessor.run() : No wakeup shards owned by this node, not running");
+          return;
+        }
+        LOGGER.debug("WakeupProcessor.run() : Processing wakeup shards:{}", shards);
+        process();
+      } finally {
+        shardManager.endRun();
+      }
+    } else if(!canExecute()) {
       LOGGER.trace("WakeupProcessor.run() : Unable to acquire clustered lock, not running");
-      return;
+    } else {
+      LOGGER.debug("WakeupProcessor.run() : Successfully acquired wakeupProcessor lock");
+      process();
     }
-    LOGGER.debug("WakeupProcessor.run() : Successfully acquired wakeupProcessor lock");
+  }
+
+  private void process() {
     Date d = new Date();
     LOGGER.info("Processing wakeup at:" + d);
     WakeupEntityDAO dao = getWakeupEntityDAO();
@@ -70,79 +113,90 @@ public class WakeupProcessor extends MMXClusterableTask implements Runnable {
       return;
     }
     long startTime = System.nanoTime();
-    int count = 0;
-    /**
-     * initialize the notifiers
-     */
-    WakeupNotifier gcmNotifier = getGCMWakeupNotifier();
-    WakeupNotifier apnsNotifier = getAPNSWakeupNotifier();
-    List<WakeupEntity> completed = new LinkedList<WakeupEntity> ();
-    List<WakeupEntity> badGoogleAPIKey = new LinkedList<WakeupEntity>();
+    WakeupDispatcher dispatcher = getWakeupDispatcher();
 
-    DeviceDAO deviceDAO = getDeviceDAO();
     for (WakeupEntity wkEntity : wakeupList) {
       if (wkEntity.getType() ==  PushType.GCM) {
-        String token = wkEntity.getToken();
-        if (token == null ||  wkEntity.getSenderIdentifier() == null) {
+        if (wkEntity.getToken() == null ||  wkEntity.getSenderIdentifier() == null) {
           LOGGER.info("Skipping wakeup record:" + wkEntity.toString());
           continue;
         }
-        List<NotificationResult> results = gcmNotifier.sendNotification(Collections.singletonList(wkEntity.getToken()), wkEntity.getPayload(), new GCMWakeupNotifierImpl.GCMNotificationSystemContext(wkEntity.getSenderIdentifier()));
-        if (results.get(0) == NotificationResult.DELIVERY_IN_PROGRESS_ASSUME_WILL_EVENTUALLY_DELIVER) {
-          completed.add(wkEntity);
-          count++;
-        } else if (results.get(0) == NotificationResult.DELIVERY_FAILED_INVALID_TOKEN) {
-          //change PushStatus for the device to INVALID
-          String appId = wkEntity.getAppId();
-          DevicePushTokenInvalidator invalidator = new DevicePushTokenInvalidator();
-          invalidator.invalidateToken(appId, PushType.GCM, token);
-        } else if (results.get(0) == NotificationResult.DELIVERY_FAILED_INVALID_API_KEY) {
-          badGoogleAPIKey.add(wkEntity);
-        }
+        dispatcher.addGCM(wkEntity);
       } else if (wkEntity.getType() == PushType.APNS) {
         //handle APNS wake up notification
         String appId = wkEntity.getAppId();
         if (appId  != null) {
-          AppEntity appEntity = getAppEntity(appId);
           if (wkEntity.getToken() == null) {
             LOGGER.info("Skipping wakeup record:" + wkEntity.toString());
             continue;
           }
-          WakeupNotifier.NotificationSystemContext context = new APNSWakeupNotifierImpl.APNSNotificationSystemContext(appId, appEntity.isApnsCertProduction());
-          List<NotificationResult> results = apnsNotifier.sendNotification(Collections.singletonList(wkEntity.getToken()), wkEntity.getPayload(), context);
-          if (results.get(0) == NotificationResult.DELIVERY_IN_PROGRESS_ASSUME_WILL_EVENTUALLY_DELIVER) {
-            completed.add(wkEntity);
-            count++;
-          }
+          AppEntity appEntity = getAppEntity(appId);
+          dispatcher.addAPNS(wkEntity, appEntity.isApnsCertProduction());
         }
       }
     }
+    WakeupDispatcher.Result result = dispatcher.dispatch();
+    List<WakeupEntity> completed = result.getCompleted();
+
+    //change PushStatus for the devices with invalid tokens to INVALID
+    Set<String> invalidated = new HashSet<String>();
+    DevicePushTokenInvalidator invalidator = new DevicePushTokenInvalidator();
+    for (WakeupEntity wkEntity : result.getInvalidToken()) {
+      if (invalidated.add(wkEntity.getAppId() + ":" + wkEntity.getToken())) {
+        invalidator.invalidateToken(wkEntity.getAppId(), wkEntity.getType(), wkEntity.getToken());
+      }
+    }
     //mark the processed items with a dateSent timestamp.
     Date dateSent = new Date();
     for (WakeupEntity entity : completed) {
       entity.setDateSent(dateSent.getTime()/1000L);
-      dao.complete(entity);
-      // update the message state to wakeup sent
-      messageDAO.wakeupSent(entity.getMessageId(), entity.getDeviceId());
+    }
+    dao.complete(completed);
+    // update the message state to wakeup sent; the insert of a message may still be queued
+    MessageWriteBehindQueue queue = MessageWriteBehindQueue.getInstance();
+    if (queue.isRunning()) {
+      queue.wakeupSent(completed);
+    } else {
+      messageDAO.wakeupSent(completed);
     }
     /**
      * for wakeup entries that are identified as having bad api keys
      * delete the wakeup entries and change the message status to pending
      */
-    for (WakeupEntity wk : badGoogleAPIKey) {
+    for (WakeupEntity wk : result.getBadApiKey()) {
       messageDAO.changeStateToPending(wk.getAppId(), wk.getMessageId(), wk.getDeviceId());
       dao.remove(wk.getId());
     }
 
     long endTime = System.nanoTime();
     long delta = endTime - startTime;
+    int count = completed.size();
+    WakeupDispatchStats.getInstance().chunkProcessed(count, delta);
+    CHUNKS.update(delta, TimeUnit.NANOSECONDS);
+    MESSAGES.inc(count);
+    BAD_API_KEY.inc(result.getBadApiKey().size());
     LOGGER.info("Completed processing wakeup chunk");
     String template = "Processed [%d] wakeup messages in [%d] milliseconds";
     LOGGER.info(String.format(template, count, TimeUnit.MILLISECONDS.convert(delta, TimeUnit.NANOSECONDS)));
   }
 
+  /**
+   * Get the dispatcher for a chunk of wakeup entities. The notifications are sent in parallel
+   * using a shared pool.
+   * @return
+   */
+  protected WakeupDispatcher getWakeupDispatcher() {
+    MMXConfiguration configuration = MMXConfiguration.getConfiguration();
+    int threads = configuration.getInt(MMXConfigKeys.WAKEUP_DISPATCH_THREADS, MMXServerConstants.DEFAULT_WAKEUP_DISPATCH_THREADS);
+    int apnsBatchSize = configuration.getInt(MMXConfigKeys.WAKEUP_APNS_BATCH_SIZE, MMXServerConstants.DEFAULT_WAKEUP_APNS_BATCH_SIZE);
+    ExecutorService executor = MMXExecutors.getOrCreate(DISPATCH_POOL_NAME, threads);
+    return new WakeupDispatcher(getGCMWakeupNotifier(), getAPNSWakeupNotifier(), executor, apnsBatchSize);
+  }
 
   protected List<WakeupEntity> retrievePendingList(WakeupEntityDAO dao) {
+    if (shards != null) {
+      return dao.poll(WAKE_UP_CHUNK, shardManager.getShardCount(), shards);
+    }
     return dao.poll(WAKE_UP_CHUNK);
   }
 
@@ -170,6 +224,6 @@ public class WakeupProcessor extends MMXClusterableTask implements Runnable {
   }
 
   protected AppEntity getAppEntity (String appId ) {
-    return appCache.get(appId);
+    return AppEntityDBLoadingEntityCache.getInstance().get(appId);
   }
 }
@@ -0,0 +1,307 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.wakeup;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterEventListener;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.cluster.ClusterNodeInfo;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Splits the wakeup queue into a fixed number of shards and decides which shards this cluster
+ * member processes.
+ * <p>
+ * A wakeup record belongs to shard CRC32(deviceId) mod shardCount, which is stored with the record
+ * when it is queued. The shards are spread over the cluster members ordered by node id, and a
+ * member processes a shard only while it holds the lease for it. Leases are kept in a clustered
+ * cache and renewed on every run. A lease is free when it has expired, when it was released or
+ * when its owner is no longer a cluster member, so shards move to the remaining members as soon as
+ * the membership changes. Members release the leases they no longer own when they are notified
+ * about a join.
+ * <p>
+ * Leases are only released between runs: a rebalance requested by a cluster event while a run is
+ * processing its chunk is deferred until {@link #endRun()}, so a shard isn't handed to another
+ * member while the records polled from it are still being sent.
+ */
+public class WakeupShardManager implements ClusterEventListener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WakeupShardManager.class);
+  private static final String LEASE_CACHE = "MMX Wakeup Shard Leases";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final char SEPARATOR = '|';
+
+  private final int shardCount;
+  private final long leaseMillis;
+  private Cache leases;
+  private volatile List<Integer> owned = Collections.emptyList();
+  private final ReentrantLock runLock = new ReentrantLock();
+  private volatile boolean rebalancePending;
+
+  /**
+   * Constructor
+   * @param shardCount number of shards, must be the same on all members
+   * @param leaseSeconds lease duration; should be longer than the wakeup period
+   */
+  public WakeupShardManager(int shardCount, int leaseSeconds) {
+    this.shardCount = Math.max(1, shardCount);
+    this.leaseMillis = Math.max(1, leaseSeconds) * 1000L;
+  }
+
+  /**
+   * Get the shard of a device. This matches MOD(CRC32(deviceId), shardCount) in SQL.
+   * @param deviceId
+   * @param shardCount
+   * @return
+   */
+  public static int shardOf(String deviceId, int shardCount) {
+    CRC32 crc = new CRC32();
+    crc.update(deviceId.getBytes(UTF8));
+    return (int) (crc.getValue() % shardCount);
+  }
+
+  /**
+   * Get the shards that are assigned to the given member.
+   * @param members node ids of all the cluster members
+   * @param self node id of this member
+   * @param shardCount
+   * @return list of shards, empty if self is not one of the members
+   */
+  static List<Integer> assignedShards(Collection<String> members, String self, int shardCount) {
+    List<String> sorted = new ArrayList<String>(new TreeSet<String>(members));
+    int index = sorted.indexOf(self);
+    if (index < 0) {
+      return Collections.emptyList();
+    }
+    List<Integer> shards = new ArrayList<Integer>();
+    for (int shard = index; shard < shardCount; shard += sorted.size()) {
+      shards.add(shard);
+    }
+    return shards;
+  }
+
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * @return shards owned after the last call to {@link #claimShards()}
+   */
+  public List<Integer> getOwnedShards() {
+    return owned;
+  }
+
+  /**
+   * Start a run of the wakeup processor. Claims the shards of this member and keeps them until
+   * {@link #endRun()} is called, which must follow in a finally block.
+   * @return the shards this member may process in this run
+   */
+  public List<Integer> beginRun() {
+    runLock.lock();
+    try {
+      //the claim below includes any rebalance requested so far
+      rebalancePending = false;
+      return claimShards();
+    } catch (RuntimeException e) {
+      runLock.unlock();
+      throw e;
+    }
+  }
+
+  /**
+   * End a run started by {@link #beginRun()} and do the rebalance requested during the run.
+   */
+  public void endRun() {
+    runLock.unlock();
+    if (rebalancePending) {
+      rebalance();
+    }
+  }
+
+  /**
+   * Claim or renew the leases of the shards assigned to this member and release the others.
+   * @return the shards this member may process now
+   */
+  public synchronized List<Integer> claimShards() {
+    Collection<String> members = getMembers();
+    String self = getSelf();
+    List<Integer> assigned = assignedShards(members, self, shardCount);
+    List<Integer> claimed = new ArrayList<Integer>(assigned.size());
+    long now = System.currentTimeMillis();
+    Cache cache = getLeaseCache();
+    for (int shard = 0; shard < shardCount; shard++) {
+      boolean wanted = assigned.contains(shard);
+      Lock lock = CacheFactory.getLock(shard, cache);
+      lock.lock();
+      try {
+        String lease = (String) cache.get(shard);
+        String owner = leaseOwner(lease);
+        if (wanted) {
+          if (owner == null || self.equals(owner) || leaseExpiry(lease) < now || !members.contains(owner)) {
+            cache.put(shard, self + SEPARATOR + (now + leaseMillis));
+            claimed.add(shard);
+          } else {
+            LOGGER.debug("claimShards : shard={} is still leased by node={}", shard, owner);
+          }
+        } else if (self.equals(owner)) {
+          cache.remove(shard);
+        }
+      } catch (Exception e) {
+        LOGGER.warn("claimShards : failed to update lease for shard={}", shard, e);
+      } finally {
+        lock.unlock();
+      }
+    }
+    if (!claimed.equals(owned)) {
+      LOGGER.info("claimShards : node={} owns shards={} of {} with {} cluster members",
+          new Object[]{self, claimed, shardCount, members.size()});
+    }
+    owned = Collections.unmodifiableList(claimed);
+    return owned;
+  }
+
+  /**
+   * Release all the leases held by this member.
+   */
+  public void releaseShards() {
+    //wait for the run in progress to finish with its shards
+    runLock.lock();
+    try {
+      releaseLeases();
+    } finally {
+      runLock.unlock();
+    }
+  }
+
+  private synchronized void releaseLeases() {
+    String self = getSelf();
+    Cache cache = getLeaseCache();
+    for (Integer shard : owned) {
+      Lock lock = CacheFactory.getLock(shard, cache);
+      lock.lock();
+      try {
+        if (self.equals(leaseOwner((String) cache.get(shard)))) {
+          cache.remove(shard);
+        }
+      } catch (Exception e) {
+        LOGGER.warn("releaseShards : failed to release lease for shard={}", shard, e);
+      } finally {
+        lock.unlock();
+      }
+    }
+    owned = Collections.emptyList();
+  }
+
+  /**
+   * Rebalance now if no run is in progress, otherwise leave it to the end of the run.
+   */
+  private void rebalance() {
+    rebalancePending = true;
+    while (rebalancePending && runLock.tryLock()) {
+      try {
+        rebalancePending = false;
+        claimShards();
+      } catch (Exception e) {
+        LOGGER.warn("rebalance : failed to rebalance wakeup shards", e);
+      } finally {
+        runLock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public void joinedCluster() {
+    rebalance();
+  }
+
+  @Override
+  public void joinedCluster(byte[] nodeID) {
+    LOGGER.debug("joinedCluster : rebalancing wakeup shards");
+    rebalance();
+  }
+
+  @Override
+  public void leftCluster() {
+    // this member stopped clustering; its leases are ignored by the others now
+    owned = Collections.emptyList();
+  }
+
+  @Override
+  public void leftCluster(byte[] nodeID) {
+    LOGGER.debug("leftCluster : rebalancing wakeup shards");
+    rebalance();
+  }
+
+  @Override
+  public void markedAsSeniorClusterMember() {
+  }
+
+  protected Collection<String> getMembers() {
+    List<String> members = new ArrayList<String>();
+    for (ClusterNodeInfo info : ClusterManager.getNodesInfo()) {
+      members.add(info.getNodeID().toString());
+    }
+    String self = getSelf();
+    if (!members.contains(self)) {
+      members.add(self);
+    }
+    return members;
+  }
+
+  protected String getSelf() {
+    return XMPPServer.getInstance().getNodeID().toString();
+  }
+
+  protected synchronized Cache getLeaseCache() {
+    if (leases == null) {
+      leases = CacheFactory.createCache(LEASE_CACHE);
+    }
+    return leases;
+  }
+
+  /*
+   * Leases are stored as "owner|expiresAtMillis" so the cache holds only JDK types.
+   */
+  private static String leaseOwner(String lease) {
+    if (lease == null) {
+      return null;
+    }
+    int index = lease.lastIndexOf(SEPARATOR);
+    return index < 0 ? null : lease.substring(0, index);
+  }
+
+  private static long leaseExpiry(String lease) {
+    if (lease == null) {
+      return 0L;
+    }
+    try {
+      return Long.parseLong(lease.substring(lease.lastIndexOf(SEPARATOR) + 1));
+    } catch (NumberFormatException e) {
+      return 0L;
+    }
+  }
+}
@@ -1,7 +1,7 @@
 # $Revision$
 # $Date$
 
-INSERT INTO ofVersion (name, version) VALUES ('mmxappmgmt', 4);
+INSERT INTO ofVersion (name, version) VALUES ('mmxappmgmt', 7);
 
 CREATE TABLE mmxApp (
   id                INT           NOT NULL AUTO_INCREMENT PRIMARY KEY,
@@ -52,6 +52,9 @@ CREATE TABLE mmxDevice (
   UNIQUE KEY `devicid_type_osType_appid` (`deviceId`,`osType`, `appId`)
 );
 
+/* paged resolution of push targets by app; the primary key is part of the index */
+CREATE INDEX mmxDevice_appId_status ON mmxDevice(appId, status);
+
 CREATE TABLE mmxMessage (
   id               int(11)         NOT NULL AUTO_INCREMENT,
   messageId        varchar(100)    NOT NULL,
@@ -67,7 +70,16 @@ CREATE TABLE mmxMessage (
   PRIMARY KEY (id)
   );
 
-CREATE INDEX mmxMessage_messageId ON mmxMessage(messageId);
+CREATE INDEX mmxMessage_messageId_deviceId ON mmxMessage(messageId, deviceId);
+
+/* timeout sweep and retrieval by state */
+CREATE INDEX mmxMessage_state_dateQueued ON mmxMessage(state, dateQueuedUTC);
+
+/* message stats and search by app */
+CREATE INDEX mmxMessage_appId_type_dateQueued ON mmxMessage(appId, messageType, dateQueuedUTC);
+
+/* retention purges by app and age */
+CREATE INDEX mmxMessage_appId_dateQueued ON mmxMessage(appId, dateQueuedUTC);
 
  CREATE TABLE mmxWakeupQueue (
     id              int(11)        NOT NULL AUTO_INCREMENT,
@@ -80,6 +92,7 @@ CREATE INDEX mmxMessage_messageId ON mmxMessage(messageId);
     messageId       varchar(100)   NOT NULL,
     dateCreatedUTC     int(11),
     dateSentUTC        int(11),     /* date when we sent the wakeup */
+    shard           smallint       NOT NULL DEFAULT 0, /* CRC32(deviceId) mod the wakeup shard count */
     PRIMARY KEY (id)
  );
 
@@ -87,6 +100,12 @@ CREATE INDEX mmxWakeupQueue_dateCreated ON mmxWakeupQueue(dateCreatedUTC);
 
 CREATE INDEX mmxWakeupQueue_dateSent ON mmxWakeupQueue(dateSentUTC);
 
+/* retention purges by app and age */
+CREATE INDEX mmxWakeupQueue_appId_dateCreated ON mmxWakeupQueue(appId, dateCreatedUTC);
+
+/* polling of the unsent wakeups of a cluster member's shards */
+CREATE INDEX mmxWakeupQueue_shard_dateSent_dateCreated ON mmxWakeupQueue(shard, dateSentUTC, dateCreatedUTC);
+
 /* TABLE for maintaining the push messages */
  CREATE TABLE mmxPushMessage (
     messageId   varchar(50)     NOT NULL,
@@ -99,6 +118,9 @@ CREATE INDEX mmxWakeupQueue_dateSent ON mmxWakeupQueue(dateSentUTC);
     PRIMARY KEY (messageId)
  );
 
+/* retention purges by app and age */
+CREATE INDEX mmxPushMessage_appId_dateSent ON mmxPushMessage(appId, dateSentUTC);
+
 /* Table for maintaining resource tagging data */
 
 create Table mmxTag (
@@ -174,4 +196,58 @@ CREATE TABLE mmxWebHook (
     dateCreated  datetime     NOT NULL DEFAULT now(),
     dateUpdated  datetime     NULL,
     FOREIGN KEY (appId) REFERENCES mmxApp(appId) ON DELETE CASCADE
-);
\ No newline at end of file
+);
+
+/* Table for webhook payloads that couldn't be delivered */
+
+CREATE TABLE mmxWebHookDeadLetter (
+    id           INT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    hookId       INT             NOT NULL,
+    appId        VARCHAR(16)     NOT NULL,
+    targetURL    VARCHAR(500)    NOT NULL,
+    payload      MEDIUMTEXT      NOT NULL,
+    attempts     INT             NOT NULL,
+    responseCode INT             NOT NULL,
+    lastError    VARCHAR(500)    NULL,
+    dateCreated  datetime     NOT NULL DEFAULT now(),
+    FOREIGN KEY (appId) REFERENCES mmxApp(appId) ON DELETE CASCADE
+);
+
+CREATE INDEX mmxWebHookDeadLetter_hookId ON mmxWebHookDeadLetter(hookId);
+
+/* Table for tracking push jobs; the devices of a job are resolved and pushed page by page */
+CREATE TABLE mmxPushJob (
+    id             INT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    appId          VARCHAR(16)     NOT NULL,
+    request        MEDIUMTEXT      NOT NULL,   /* JSON of the send push request */
+    state          VARCHAR(20)     NOT NULL,   /* QUEUED, RUNNING, COMPLETE, FAILED, CANCELLED */
+    lastDeviceId   INT             NOT NULL DEFAULT 0,   /* mmxDevice.id of the last device pushed */
+    requested      INT             NOT NULL DEFAULT 0,
+    sent           INT             NOT NULL DEFAULT 0,
+    unsent         INT             NOT NULL DEFAULT 0,
+    invalidToken   INT             NOT NULL DEFAULT 0,   /* unsent because the push token is invalid */
+    dateCreatedUTC INT(11)         NOT NULL,
+    dateStartedUTC INT(11),
+    dateUpdatedUTC INT(11)         NOT NULL,
+    FOREIGN KEY (appId) REFERENCES mmxApp(appId) ON DELETE CASCADE
+);
+
+CREATE INDEX mmxPushJob_state ON mmxPushJob(state);
+
+/* Counts of messages and push messages by their current state, bucketed by the hour they were
+   queued or sent. The stats endpoints read these instead of aggregating mmxMessage and
+   mmxPushMessage. */
+CREATE TABLE mmxStatsRollup (
+    appId          VARCHAR(16)     NOT NULL,
+    kind           VARCHAR(10)     NOT NULL,   /* MESSAGE or PUSH */
+    type           VARCHAR(16)     NOT NULL,   /* push message type, empty for messages */
+    state          VARCHAR(50)     NOT NULL,
+    hourUTC        INT(11)         NOT NULL,   /* start of the hour */
+    count          BIGINT          NOT NULL DEFAULT 0,
+    dateUpdatedUTC INT(11)         NOT NULL DEFAULT 0,   /* last update, for loading the counts of other members */
+    PRIMARY KEY (appId, kind, type, state, hourUTC)
+);
+
+CREATE INDEX mmxStatsRollup_hour ON mmxStatsRollup(hourUTC);
+
+CREATE INDEX mmxStatsRollup_updated ON mmxStatsRollup(dateUpdatedUTC);
@@ -0,0 +1,17 @@
+UPDATE ofVersion SET version=6 WHERE name = 'mmxappmgmt';
+
+/* Table for webhook payloads that couldn't be delivered */
+CREATE TABLE IF NOT EXISTS mmxWebHookDeadLetter (
+    id           INT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    hookId       INT             NOT NULL,
+    appId        VARCHAR(16)     NOT NULL,
+    targetURL    VARCHAR(500)    NOT NULL,
+    payload      MEDIUMTEXT      NOT NULL,
+    attempts     INT             NOT NULL,
+    responseCode INT             NOT NULL,
+    lastError    VARCHAR(500)    NULL,
+    dateCreated  datetime     NOT NULL DEFAULT now(),
+    FOREIGN KEY (appId) REFERENCES mmxApp(appId) ON DELETE CASCADE
+);
+
+CREATE INDEX mmxWebHookDeadLetter_hookId ON mmxWebHookDeadLetter(hookId);
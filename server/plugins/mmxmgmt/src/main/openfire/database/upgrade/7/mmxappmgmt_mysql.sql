@@ -0,0 +1,79 @@
+UPDATE ofVersion SET version=7 WHERE name = 'mmxappmgmt';
+
+/* Indexes for the message state queries. The messageId index is replaced by one that also
+   covers the deviceId used by the state updates. */
+CREATE INDEX mmxMessage_messageId_deviceId ON mmxMessage(messageId, deviceId);
+
+DROP INDEX mmxMessage_messageId ON mmxMessage;
+
+/* timeout sweep and retrieval by state */
+CREATE INDEX mmxMessage_state_dateQueued ON mmxMessage(state, dateQueuedUTC);
+
+/* message stats and search by app */
+CREATE INDEX mmxMessage_appId_type_dateQueued ON mmxMessage(appId, messageType, dateQueuedUTC);
+
+/* retention purges by app and age */
+CREATE INDEX mmxMessage_appId_dateQueued ON mmxMessage(appId, dateQueuedUTC);
+
+CREATE INDEX mmxPushMessage_appId_dateSent ON mmxPushMessage(appId, dateSentUTC);
+
+CREATE INDEX mmxWakeupQueue_appId_dateCreated ON mmxWakeupQueue(appId, dateCreatedUTC);
+
+/* Shard of the wakeups, CRC32(deviceId) mod the wakeup shard count, for polling the unsent wakeups
+   of a cluster member's shards. The unsent wakeups are assigned with the default count of 16. */
+ALTER TABLE mmxWakeupQueue ADD COLUMN shard smallint NOT NULL DEFAULT 0;
+
+UPDATE mmxWakeupQueue SET shard = MOD(CRC32(deviceId), 16) WHERE dateSentUTC IS NULL;
+
+CREATE INDEX mmxWakeupQueue_shard_dateSent_dateCreated ON mmxWakeupQueue(shard, dateSentUTC, dateCreatedUTC);
+
+/* paged resolution of push targets by app */
+CREATE INDEX mmxDevice_appId_status ON mmxDevice(appId, status);
+
+/* Table for tracking push jobs; the devices of a job are resolved and pushed page by page */
+CREATE TABLE IF NOT EXISTS mmxPushJob (
+    id             INT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    appId          VARCHAR(16)     NOT NULL,
+    request        MEDIUMTEXT      NOT NULL,   /* JSON of the send push request */
+    state          VARCHAR(20)     NOT NULL,   /* QUEUED, RUNNING, COMPLETE, FAILED, CANCELLED */
+    lastDeviceId   INT             NOT NULL DEFAULT 0,   /* mmxDevice.id of the last device pushed */
+    requested      INT             NOT NULL DEFAULT 0,
+    sent           INT             NOT NULL DEFAULT 0,
+    unsent         INT             NOT NULL DEFAULT 0,
+    invalidToken   INT             NOT NULL DEFAULT 0,   /* unsent because the push token is invalid */
+    dateCreatedUTC INT(11)         NOT NULL,
+    dateStartedUTC INT(11),
+    dateUpdatedUTC INT(11)         NOT NULL,
+    FOREIGN KEY (appId) REFERENCES mmxApp(appId) ON DELETE CASCADE
+);
+
+CREATE INDEX mmxPushJob_state ON mmxPushJob(state);
+
+/* Counts of messages and push messages by their current state, bucketed by the hour they were
+   queued or sent. The stats endpoints read these instead of aggregating mmxMessage and
+   mmxPushMessage. */
+CREATE TABLE IF NOT EXISTS mmxStatsRollup (
+    appId          VARCHAR(16)     NOT NULL,
+    kind           VARCHAR(10)     NOT NULL,   /* MESSAGE or PUSH */
+    type           VARCHAR(16)     NOT NULL,   /* push message type, empty for messages */
+    state          VARCHAR(50)     NOT NULL,
+    hourUTC        INT(11)         NOT NULL,   /* start of the hour */
+    count          BIGINT          NOT NULL DEFAULT 0,
+    dateUpdatedUTC INT(11)         NOT NULL DEFAULT 0,   /* last update, for loading the counts of other members */
+    PRIMARY KEY (appId, kind, type, state, hourUTC)
+);
+
+CREATE INDEX mmxStatsRollup_hour ON mmxStatsRollup(hourUTC);
+
+CREATE INDEX mmxStatsRollup_updated ON mmxStatsRollup(dateUpdatedUTC);
+
+/* Seed the counts with the messages and push messages of the stats window */
+INSERT INTO mmxStatsRollup (appId, kind, type, state, hourUTC, count, dateUpdatedUTC)
+    SELECT appId, 'MESSAGE', '', state, dateQueuedUTC - MOD(dateQueuedUTC, 3600), COUNT(*), UNIX_TIMESTAMP()
+    FROM mmxMessage WHERE messageType = 'REGULAR' AND dateQueuedUTC >= UNIX_TIMESTAMP() - 8*24*3600
+    GROUP BY appId, state, dateQueuedUTC - MOD(dateQueuedUTC, 3600);
+
+INSERT INTO mmxStatsRollup (appId, kind, type, state, hourUTC, count, dateUpdatedUTC)
+    SELECT appId, 'PUSH', type, state, dateSentUTC - MOD(dateSentUTC, 3600), COUNT(*), UNIX_TIMESTAMP()
+    FROM mmxPushMessage WHERE dateSentUTC >= UNIX_TIMESTAMP() - 8*24*3600
+    GROUP BY appId, type, state, dateSentUTC - MOD(dateSentUTC, 3600);
@@ -0,0 +1,132 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.api;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Count;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DbInteractionException;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.MessageSender;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.SendMessageResult;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.TopicPostResult;
+import com.magnet.mmx.server.plugin.mmxmgmt.message.UnsentMessage;
+import com.magnet.mmx.server.plugin.mmxmgmt.topic.TopicPostMessageRequest;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class SendMessageStreamingOutputTest {
+  private static final String APP_ID = "streamapp";
+
+  @Test
+  public void testCompleteResponse() throws Exception {
+    JsonNode response = write(new StubSender(false));
+    assertEquals(4, response.get("sentList").size());
+    assertEquals(1, response.get("unsentList").size());
+    assertEquals(5, response.get("count").get("requested").getIntValue());
+    assertFalse(response.has("error"));
+  }
+
+  @Test
+  public void testFailureIsReportedInTheBody() throws Exception {
+    JsonNode response = write(new StubSender(true));
+    //the first chunk was sent before the failure
+    assertEquals(2, response.get("sentList").size());
+    assertEquals(1, response.get("unsentList").size());
+    assertEquals(2, response.get("count").get("sent").getIntValue());
+    assertEquals(1, response.get("count").get("unsent").getIntValue());
+    assertEquals(ErrorCode.SEND_MESSAGE_ISE.getCode(), response.get("error").get("code").getIntValue());
+  }
+
+  @Test
+  public void testFlushedAfterEveryChunk() throws Exception {
+    final AtomicInteger flushes = new AtomicInteger();
+    OutputStream output = new FilterOutputStream(new ByteArrayOutputStream()) {
+      @Override
+      public void flush() {
+        flushes.incrementAndGet();
+      }
+    };
+    new SendMessageStreamingOutput(new StubSender(false), APP_ID, request()).write(output);
+    //two chunks plus the close
+    assertTrue(flushes.get() >= 2);
+  }
+
+  private static JsonNode write(MessageSender sender) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new SendMessageStreamingOutput(sender, APP_ID, request()).write(output);
+    return new ObjectMapper().readTree(output.toString("UTF-8"));
+  }
+
+  private static SendMessageRequest request() {
+    SendMessageRequest request = new SendMessageRequest();
+    request.setRecipientUsernames(Arrays.asList("u1", "u2", "u3", "u4", "u5"));
+    return request;
+  }
+
+  /**
+   * Sends to the recipients in chunks of 3; the first chunk has an unknown user. Fails with a
+   * DbInteractionException instead of sending the second chunk if requested.
+   */
+  private static class StubSender implements MessageSender {
+    private final boolean fail;
+
+    StubSender(boolean fail) {
+      this.fail = fail;
+    }
+
+    @Override
+    public SendMessageResult send(String appId, SendMessageRequest request) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SendMessageResult send(String appId, SendMessageRequest request, RecipientListener listener) {
+      listener.sent(new SentMessageId("u1", null, "m1"));
+      listener.unsent(new UnsentMessage("u2", ErrorCode.INVALID_USER_NAME.getCode(), "not found"));
+      listener.sent(new SentMessageId("u3", null, "m3"));
+      listener.chunkDone();
+      if (fail) {
+        throw new DbInteractionException("connection lost");
+      }
+      listener.sent(new SentMessageId("u4", null, "m4"));
+      listener.sent(new SentMessageId("u5", null, "m5"));
+      listener.chunkDone();
+      SendMessageResult result = new SendMessageResult();
+      result.setCount(new Count(5, 4, 1));
+      return result;
+    }
+
+    @Override
+    public SendMessageResult validate(String appId, SendMessageRequest request) {
+      return null;
+    }
+
+    @Override
+    public TopicPostResult postMessage(String topicName, String appId, TopicPostMessageRequest request) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -16,6 +16,7 @@ package com.magnet.mmx.server.plugin.mmxmgmt.apns;
 
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.ConnectionProvider;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -134,6 +135,48 @@ public class APNSConnectionPoolImplTest {
     assertEquals("Object got created too many times", MAX_OBJECTS_PER_KEY, count);
   }
 
+  @Test
+  public void testWarmConnectionIsBorrowed() {
+    APNSConnectionPoolImpl pool = APNSConnectionPoolImpl.getInstance();
+    String testAppId = "prewarmTestApp";
+    APNSConnectionPoolImpl.APNSConnectionKey key = new APNSConnectionPoolImpl.APNSConnectionKey(testAppId, false);
+    pool.warm(key, 1);
+    assertEquals(1, objectFactory.getCreatedCount(key));
+    APNSConnection connection = pool.getConnection(testAppId, false);
+    assertTrue("Didn't get a connection", connection != null);
+    pool.returnConnection(connection);
+    assertEquals("Warm connection wasn't used", 1, objectFactory.getCreatedCount(key));
+  }
+
+  @Test
+  public void testAdjustFollowsDemand() {
+    APNSConnectionPoolImpl pool = APNSConnectionPoolImpl.getInstance();
+    String testAppId = "adaptiveTestApp";
+    APNSConnectionPoolImpl.APNSConnectionKey key = new APNSConnectionPoolImpl.APNSConnectionKey(testAppId, true);
+    long slowBorrow = MMXServerConstants.DEFAULT_APNS_POOL_SLOW_BORROW_MILLIS;
+
+    pool.stats(key).borrowed(slowBorrow, 1);
+    pool.adjust();
+    assertEquals(2, pool.stats(key).getTarget());
+    assertEquals(2, objectFactory.getCreatedCount(key));
+
+    //capped at the per key maximum
+    pool.stats(key).borrowed(slowBorrow, MAX_OBJECTS_PER_KEY);
+    pool.adjust();
+    assertEquals(MAX_OBJECTS_PER_KEY, pool.stats(key).getTarget());
+    assertEquals(MAX_OBJECTS_PER_KEY, objectFactory.getCreatedCount(key));
+
+    //no demand
+    pool.adjust();
+    assertEquals(MAX_OBJECTS_PER_KEY - 1, pool.stats(key).getTarget());
+
+    boolean found = false;
+    for (String stats : pool.getKeyStats()) {
+      found |= stats.startsWith("appId=" + testAppId + ", production=true");
+    }
+    assertTrue("Missing key stats", found);
+  }
+
   @Test
   public void testGetForAppWithBadCert() {
     APNSConnectionPoolImpl pool = APNSConnectionPoolImpl.getInstance();
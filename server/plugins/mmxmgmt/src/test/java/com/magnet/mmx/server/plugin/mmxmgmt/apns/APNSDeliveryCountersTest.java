@@ -0,0 +1,92 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.apns;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the in flight limit of the channel counters and their roll up into the app counters.
+ */
+public class APNSDeliveryCountersTest {
+
+  @Test
+  public void testRefusedAboveLimit() throws Exception {
+    APNSDeliveryCounters app = new APNSDeliveryCounters("app");
+    APNSDeliveryCounters channel = new APNSDeliveryCounters("app", app);
+    assertTrue(channel.queued(2, 0L));
+    assertTrue(channel.queued(2, 0L));
+    assertFalse(channel.queued(2, 10L));
+    assertEquals(2, channel.getInFlight());
+    assertEquals(1, channel.getFailed());
+    assertEquals(2, app.getInFlight());
+    assertEquals(1, app.getFailed());
+
+    channel.written(false);
+    assertTrue(channel.queued(2, 0L));
+    assertEquals(2, app.getInFlight());
+    assertEquals(1, app.getSent());
+  }
+
+  @Test
+  public void testWaitingSenderIsReleasedByWrite() throws Exception {
+    final APNSDeliveryCounters channel = new APNSDeliveryCounters("app", new APNSDeliveryCounters("app"));
+    assertTrue(channel.queued(1, 0L));
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicBoolean queued = new AtomicBoolean();
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          queued.set(channel.queued(1, TimeUnit.SECONDS.toMillis(10)));
+        } catch (InterruptedException e) {
+          //fail below
+        }
+      }
+    };
+    sender.start();
+    started.await();
+    Thread.sleep(50L);
+    channel.written(false);
+    sender.join(TimeUnit.SECONDS.toMillis(10));
+    assertTrue(queued.get());
+    assertEquals(1, channel.getInFlight());
+    assertEquals(0, channel.getFailed());
+  }
+
+  @Test
+  public void testDroppedAreFailed() throws Exception {
+    APNSDeliveryCounters app = new APNSDeliveryCounters("app");
+    APNSDeliveryCounters other = new APNSDeliveryCounters("app", app);
+    APNSDeliveryCounters channel = new APNSDeliveryCounters("app", app);
+    assertTrue(other.queued(10, 0L));
+    for (int i = 0; i < 3; i++) {
+      assertTrue(channel.queued(10, 0L));
+    }
+    assertEquals(3, channel.dropped());
+    assertEquals(0, channel.getInFlight());
+    assertEquals(3, channel.getFailed());
+    assertEquals(1, app.getInFlight());
+    assertEquals(3, app.getFailed());
+  }
+}
@@ -0,0 +1,151 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.apns;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsServiceBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the delivery engine against a local TLS gateway.
+ */
+public class APNSDeliveryEngineTest {
+  private static final String APP_ID = "deliveryapp";
+  private static final String TOKEN_1 = token('1');
+  private static final String BAD_TOKEN = token('B');
+  private static final String TOKEN_3 = token('3');
+  private static final String TOKEN_4 = token('4');
+  private static final String PAYLOAD = "{\"aps\":{\"alert\":\"hello\"}}";
+
+  private StubAPNSGateway gateway;
+  private APNSDeliveryEngine engine;
+  private final List<String> invalidated = new CopyOnWriteArrayList<String>();
+
+  @Before
+  public void setup() throws Exception {
+    gateway = new StubAPNSGateway(BAD_TOKEN);
+    final SSLContext clientContext = StubAPNSGateway.clientContext();
+    engine = new APNSDeliveryEngine() {
+      @Override
+      ApnsServiceBuilder newServiceBuilder(APNSConnectionPoolImpl.APNSConnectionKey key) {
+        return APNS.newService().withSSLContext(clientContext).withGatewayDestination("127.0.0.1", gateway.getPort());
+      }
+
+      @Override
+      ApnsDelegate newDelegate(APNSConnectionPoolImpl.APNSConnectionKey key, APNSDeliveryCounters counters) {
+        return new APNSDeliveryDelegate(key, counters) {
+          @Override
+          void invalidateToken(String deviceToken) {
+            invalidated.add(deviceToken);
+          }
+        };
+      }
+    };
+    engine.start(new APNSDeliveryEngine.Settings().setCacheLength(100).setIdleMinutes(10));
+  }
+
+  @After
+  public void teardown() {
+    engine.stop();
+    gateway.stop();
+  }
+
+  @Test
+  public void testResendAfterRejectedNotification() throws Exception {
+    APNSConnection connection = engine.getConnection(APP_ID, false);
+    assertNotNull(connection);
+    connection.send(TOKEN_1, PAYLOAD);
+    connection.send(BAD_TOKEN, PAYLOAD);
+    //written behind the rejected notification and dropped by the gateway
+    connection.send(TOKEN_3, PAYLOAD, 60);
+    final APNSDeliveryCounters counters = engine.getCounters(APP_ID);
+    waitFor(new Condition() {
+      @Override
+      public boolean met() {
+        return counters.getFailed() == 1;
+      }
+    });
+    connection.send(TOKEN_4, PAYLOAD);
+    waitFor(new Condition() {
+      @Override
+      public boolean met() {
+        return gateway.getReceivedTokens().size() == 4;
+      }
+    });
+    assertEquals(Arrays.asList(TOKEN_1, BAD_TOKEN, TOKEN_3, TOKEN_4), gateway.getReceivedTokens());
+    waitFor(new Condition() {
+      @Override
+      public boolean met() {
+        return counters.getInFlight() == 0;
+      }
+    });
+    assertEquals(4, counters.getSent());
+    assertEquals(1, counters.getResent());
+    assertEquals(1, counters.getFailed());
+    assertEquals(Arrays.asList(BAD_TOKEN), invalidated);
+  }
+
+  @Test
+  public void testChannelIsSharedUntilEvicted() {
+    APNSConnection first = engine.getConnection(APP_ID, true);
+    assertSame(first, engine.getConnection(APP_ID, true));
+    assertNotSame(first, engine.getConnection(APP_ID, false));
+    assertEquals(2, engine.getChannelCount());
+
+    //used since the cutoff
+    engine.evictIdle(System.currentTimeMillis() - 60000L);
+    assertEquals(2, engine.getChannelCount());
+    assertSame(first, engine.getConnection(APP_ID, true));
+
+    engine.evictIdle(System.currentTimeMillis() + 1);
+    assertEquals(0, engine.getChannelCount());
+    assertNotSame(first, engine.getConnection(APP_ID, true));
+
+    engine.remove(APP_ID, true);
+    assertEquals(0, engine.getChannelCount());
+  }
+
+  private static String token(char c) {
+    char[] chars = new char[64];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  private static void waitFor(Condition condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (!condition.met() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertTrue("Condition not met in time", condition.met());
+  }
+
+  private interface Condition {
+    boolean met();
+  }
+}
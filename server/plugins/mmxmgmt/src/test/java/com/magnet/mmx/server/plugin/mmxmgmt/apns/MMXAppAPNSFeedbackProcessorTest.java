@@ -33,6 +33,7 @@ import java.util.Arrays;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class MMXAppAPNSFeedbackProcessorTest {
 
@@ -71,6 +72,34 @@ public class MMXAppAPNSFeedbackProcessorTest {
     assertNotNull("Expecting a not null result", result);
     int invalid = badTokens.length;
     assertEquals("Non matching invalidated count", invalid, result.getInvalidatedCount());
+    assertTrue("Expecting a latency", result.getLatencyMillis() >= 0);
+  }
+
+  @Test
+  public void test2Stats() throws Exception {
+    APNSFeedbackStats stats = new APNSFeedbackStats();
+    MMXAppAPNSFeedbackProcessResult result = new MMXAppAPNSFeedbackProcessResult();
+    result.setAppId("statsapp");
+    result.setInvalidatedCount(3);
+    result.setInvalidatedDeviceCount(2);
+    result.setLatencyMillis(40L);
+    stats.record(result);
+    result.setLatencyMillis(10L);
+    stats.record(result);
+    stats.recordFailure("statsapp");
+    stats.recordRun(1, 50L);
+
+    APNSFeedbackStats.AppStats appStats = stats.getAppStats("statsapp");
+    assertEquals(2, appStats.getProcessed());
+    assertEquals(1, appStats.getFailures());
+    assertEquals(6, appStats.getInactive());
+    assertEquals(4, appStats.getInvalidated());
+    assertEquals(10L, appStats.getLastLatencyMillis());
+    assertEquals(40L, appStats.getMaxLatencyMillis());
+    assertEquals(6, stats.getInactiveTokenCount());
+    assertEquals(1, stats.getFailedCount());
+    assertEquals(1, stats.getRunCount());
+    assertEquals(1, stats.getAppStats().length);
   }
 
 }
@@ -0,0 +1,187 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.apns;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * TLS gateway that understands enhanced format APNS notifications.
+ * <p>
+ * A notification for one of the rejected tokens is answered with an invalid token error response
+ * once the next notification has been received on the connection, the same way the real gateway
+ * answers after notifications have been pipelined behind the rejected one. Notifications received
+ * after the error response are dropped.
+ */
+class StubAPNSGateway {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StubAPNSGateway.class);
+  static final String KEYSTORE = "apns-stub-gateway.jks";
+  static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+  private static final int COMMAND_ENHANCED = 1;
+  private static final int COMMAND_ERROR = 8;
+  private static final int STATUS_INVALID_TOKEN = 8;
+
+  private final SSLServerSocket serverSocket;
+  private final Set<String> rejectedTokens;
+  private final List<String> receivedTokens = new CopyOnWriteArrayList<String>();
+  private volatile boolean running = true;
+
+  StubAPNSGateway(String... rejectedTokens) throws Exception {
+    this.rejectedTokens = new HashSet<String>(Arrays.asList(rejectedTokens));
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore(), KEYSTORE_PASSWORD);
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagerFactory.getKeyManagers(), null, null);
+    serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running) {
+          try {
+            final Socket socket = serverSocket.accept();
+            Thread handler = new Thread(new Runnable() {
+              @Override
+              public void run() {
+                handle(socket);
+              }
+            }, "StubAPNSGatewayConnection");
+            handler.setDaemon(true);
+            handler.start();
+          } catch (IOException e) {
+            if (running) {
+              LOGGER.warn("Accept failed", e);
+            }
+          }
+        }
+      }
+    }, "StubAPNSGateway");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * @return client context that trusts the gateway certificate
+   */
+  static SSLContext clientContext() throws Exception {
+    TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(keyStore());
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, trustManagerFactory.getTrustManagers(), null);
+    return context;
+  }
+
+  private static KeyStore keyStore() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = StubAPNSGateway.class.getClassLoader().getResourceAsStream(KEYSTORE);
+    try {
+      keyStore.load(in, KEYSTORE_PASSWORD);
+    } finally {
+      in.close();
+    }
+    return keyStore;
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return hex tokens of the notifications in the order they were accepted
+   */
+  List<String> getReceivedTokens() {
+    return receivedTokens;
+  }
+
+  void stop() {
+    running = false;
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      //ignore
+    }
+  }
+
+  private void handle(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      Integer rejectedId = null;
+      boolean errorSent = false;
+      while (running) {
+        int command = in.read();
+        if (command != COMMAND_ENHANCED) {
+          break;
+        }
+        int id = in.readInt();
+        in.readInt(); //expiry
+        byte[] token = new byte[in.readUnsignedShort()];
+        in.readFully(token);
+        byte[] payload = new byte[in.readUnsignedShort()];
+        in.readFully(payload);
+        if (errorSent) {
+          continue;
+        }
+        String hexToken = toHex(token);
+        if (rejectedId != null) {
+          out.write(new byte[]{COMMAND_ERROR, STATUS_INVALID_TOKEN,
+              (byte) (rejectedId >> 24), (byte) (rejectedId >> 16), (byte) (rejectedId >> 8), (byte) rejectedId.intValue()});
+          out.flush();
+          errorSent = true;
+          continue;
+        }
+        receivedTokens.add(hexToken);
+        if (rejectedTokens.contains(hexToken)) {
+          rejectedId = id;
+        }
+      }
+    } catch (EOFException e) {
+      //client closed the connection
+    } catch (IOException e) {
+      LOGGER.debug("Connection closed", e);
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        //ignore
+      }
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(String.format("%02X", b & 0xFF));
+    }
+    return builder.toString();
+  }
+}
@@ -36,4 +36,9 @@ public class StubMMXAppAPNSFeedbackProcessor extends MMXAppAPNSFeedbackProcessor
     return connection;
   }
 
+  @Override
+  protected void returnAPNSConnection(APNSConnection connection) {
+    //stub connections aren't pooled
+  }
+
 }
@@ -16,6 +16,13 @@ package com.magnet.mmx.server.plugin.mmxmgmt.context;
 
 import org.junit.Test;
 import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class GeoEventDispatcherTest {
 
@@ -29,4 +36,48 @@ public class GeoEventDispatcherTest {
     }
     dispatcher.shutdown();
   }
+
+  @Test
+  public void testLatestLocationOfDeviceIsKept() throws Exception {
+    GeoEventDispatcher dispatcher = new GeoEventDispatcher(0, 10, 10, false);
+    IQ last = null;
+    for (int i = 0; i < 5; i++) {
+      last = geoIQ("device1");
+      dispatcher.dispatchToExternalService(last);
+    }
+    dispatcher.dispatchToExternalService(geoIQ("device2"));
+    assertEquals(2, dispatcher.getQueueDepth());
+    assertEquals(4, dispatcher.getCoalescedCount());
+
+    List<GeoEventDispatcher.GeoEvent> batch = dispatcher.takeBatch(10L);
+    assertEquals(2, batch.size());
+    assertSame(last, batch.get(0).getIQ());
+    assertEquals(0, dispatcher.getQueueDepth());
+    assertTrue(dispatcher.takeBatch(10L).isEmpty());
+    dispatcher.shutdown();
+  }
+
+  @Test
+  public void testOldestLocationIsDroppedWhenFull() throws Exception {
+    GeoEventDispatcher dispatcher = new GeoEventDispatcher(0, 3, 2, false);
+    for (int i = 0; i < 5; i++) {
+      dispatcher.dispatchToExternalService(geoIQ("device" + i));
+    }
+    assertEquals(3, dispatcher.getQueueDepth());
+    assertEquals(2, dispatcher.getDroppedCount());
+
+    List<GeoEventDispatcher.GeoEvent> batch = dispatcher.takeBatch(10L);
+    assertEquals(2, batch.size());
+    assertEquals("device2", batch.get(0).getIQ().getFrom().getResource());
+    assertEquals("device3", batch.get(1).getIQ().getFrom().getResource());
+    assertEquals(1, dispatcher.takeBatch(10L).size());
+    dispatcher.shutdown();
+  }
+
+  private static IQ geoIQ(String deviceId) {
+    IQ iq = new IQ(IQ.Type.set);
+    iq.setFrom(new JID("user1%app1", "localhost", deviceId));
+    iq.setTo("pubsub.localhost");
+    return iq;
+  }
 }
@@ -0,0 +1,152 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.context;
+
+import com.magnet.ext.geo.GeohashEncoderDecoderFactory;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.query.GeoQuery;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class GeoLocationIndexTest {
+  private static final String APP_ID = "geoapp";
+
+  private GeoLocationIndex index;
+
+  @Before
+  public void setup() {
+    index = new GeoLocationIndex() {
+      @Override
+      boolean isClusteringEnabled() {
+        return false;
+      }
+    };
+    //San Francisco
+    index.update(APP_ID, "user1", "sf", 37.7749, -122.4194, Integer.valueOf(10));
+    //Oakland, about 13 km from San Francisco
+    index.update(APP_ID, "user2", "oakland", 37.8044, -122.2712, null);
+    //San Jose, about 68 km from San Francisco
+    index.update(APP_ID, "user3", "sanjose", 37.3382, -121.8863, null);
+    //Los Angeles
+    index.update(APP_ID, "user4", "la", 34.0522, -118.2437, null);
+    //Fiji, next to the 180th meridian
+    index.update(APP_ID, "user5", "fiji", -17.7134, 179.9, null);
+    index.update("otherapp", "user1", "sf2", 37.7749, -122.4194, null);
+  }
+
+  @Test
+  public void testRadiusQueryIsSortedByDistance() {
+    List<DeviceLocation> result = index.withinRadius(APP_ID, 37.7749, -122.4194, 20, 0);
+    assertEquals(2, result.size());
+    assertEquals("sf", result.get(0).getDeviceId());
+    assertEquals("oakland", result.get(1).getDeviceId());
+    assertTrue(result.get(1).getDistanceKm() > 10 && result.get(1).getDistanceKm() < 20);
+
+    assertEquals(3, index.withinRadius(APP_ID, 37.7749, -122.4194, 100, 0).size());
+    assertEquals(1, index.withinRadius(APP_ID, 37.7749, -122.4194, 100, 1).size());
+  }
+
+  @Test
+  public void testBoundingBoxQuery() {
+    List<DeviceLocation> result = index.withinBoundingBox(APP_ID, 37.0, -123.0, 38.0, -121.0, 0);
+    Set<String> ids = new HashSet<String>();
+    for (DeviceLocation location : result) {
+      ids.add(location.getDeviceId());
+    }
+    assertEquals(3, ids.size());
+    assertTrue(ids.contains("sanjose"));
+    assertTrue(index.withinBoundingBox("unknownapp", -90, -180, 90, 180, 0).isEmpty());
+  }
+
+  @Test
+  public void testQueryAcrossAntimeridian() {
+    List<DeviceLocation> result = index.withinBoundingBox(APP_ID, -20, 179, -15, -179, 0);
+    assertEquals(1, result.size());
+    assertEquals("fiji", result.get(0).getDeviceId());
+    assertEquals(1, index.withinRadius(APP_ID, -17.7, -179.9, 50, 0).size());
+  }
+
+  @Test
+  public void testUpdateMovesDevice() {
+    index.update(APP_ID, "user1", "sf", 34.05, -118.25, null);
+    assertEquals(1, index.withinRadius(APP_ID, 37.7749, -122.4194, 20, 0).size());
+    assertEquals(2, index.withinRadius(APP_ID, 34.0522, -118.2437, 5, 0).size());
+    index.remove(APP_ID, "sf");
+    assertNull(index.getLocation(APP_ID, "sf"));
+    assertEquals(1, index.withinRadius(APP_ID, 34.0522, -118.2437, 5, 0).size());
+  }
+
+  @Test
+  public void testSearchUsingGeoQuery() {
+    GeoQuery query = new GeoQuery();
+    query.setLatitude(37.7749);
+    query.setLongitude(-122.4194);
+    query.setRadiusKm(1.0);
+    assertEquals(1, index.search(APP_ID, query, 10).size());
+    assertEquals(1, index.search("otherapp", query, 10).size());
+  }
+
+  @Test
+  public void testMergeKeepsNewestLocationOfADevice() {
+    List<DeviceLocation> first = new ArrayList<DeviceLocation>();
+    first.add(location("moved", 1000L, 5.0));
+    first.add(location("far", 1000L, 9.0));
+    List<DeviceLocation> second = new ArrayList<DeviceLocation>();
+    second.add(location("near", 1000L, 1.0));
+    second.add(location("moved", 2000L, 2.0));
+    List<List<DeviceLocation>> lists = new ArrayList<List<DeviceLocation>>();
+    lists.add(first);
+    lists.add(second);
+
+    List<DeviceLocation> merged = GeoLocationIndex.merge(lists, true, 0);
+    assertEquals(3, merged.size());
+    assertEquals("near", merged.get(0).getDeviceId());
+    assertEquals("moved", merged.get(1).getDeviceId());
+    assertEquals(2000L, merged.get(1).getTimestamp());
+    assertEquals("far", merged.get(2).getDeviceId());
+
+    assertEquals(2, GeoLocationIndex.merge(lists, true, 2).size());
+  }
+
+  @Test
+  public void testCoveringCells() {
+    Set<String> cells = GeoLocationIndex.coveringCells(GeohashEncoderDecoderFactory.createEncoderDecoder(),
+        37.0, -123.0, 38.0, -121.0);
+    assertTrue(cells.size() <= GeoLocationIndex.MAX_CELLS);
+    assertTrue(cells.size() > 1);
+    assertTrue(GeoLocationIndex.coveringCells(GeohashEncoderDecoderFactory.createEncoderDecoder(),
+        -90, -180, 90, 180).size() <= GeoLocationIndex.MAX_CELLS);
+  }
+
+  @Test
+  public void testDistance() {
+    double distance = GeoLocationIndex.distanceKm(37.7749, -122.4194, 34.0522, -118.2437);
+    assertTrue("Unexpected distance " + distance, distance > 555 && distance < 562);
+  }
+
+  private static DeviceLocation location(String deviceId, long timestamp, double distanceKm) {
+    return new DeviceLocation(deviceId, "user", 0d, 0d, null, "s00000000000", timestamp).withDistance(distanceKm);
+  }
+}
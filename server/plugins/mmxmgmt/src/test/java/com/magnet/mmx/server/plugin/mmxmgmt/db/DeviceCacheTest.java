@@ -0,0 +1,122 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import mockit.Mock;
+import mockit.MockUp;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ */
+public class DeviceCacheTest {
+  private static final String APP_ID = "cacheapp";
+  private static final String USER_ID = "cacheuser";
+
+  private final AtomicInteger listLoads = new AtomicInteger();
+  private final AtomicInteger deviceLoads = new AtomicInteger();
+
+  @Before
+  public void setup() {
+    listLoads.set(0);
+    deviceLoads.set(0);
+    new MockUp<DeviceDAOImpl>() {
+      @Mock
+      public List<DeviceEntity> getDevices(String appId, String userId, DeviceStatus status) {
+        listLoads.incrementAndGet();
+        List<DeviceEntity> list = new ArrayList<DeviceEntity>();
+        list.add(device(appId, userId, "d1", "token1"));
+        list.add(device(appId, userId, "d2", "token2"));
+        return list;
+      }
+
+      @Mock
+      public DeviceEntity getDevice(String appId, String deviceId) {
+        deviceLoads.incrementAndGet();
+        return device(appId, USER_ID, deviceId, "token-" + deviceId);
+      }
+    };
+  }
+
+  @Test
+  public void testLookupsAreCached() throws Exception {
+    DeviceCache cache = new DeviceCache(100, 60);
+    DeviceDAO dao = new DeviceDAOImpl(null);
+
+    List<DeviceEntity> first = cache.getActiveDevices(dao, APP_ID, USER_ID);
+    List<DeviceEntity> second = cache.getActiveDevices(dao, APP_ID, USER_ID);
+    assertSame(first, second);
+    assertEquals(1, listLoads.get());
+
+    DeviceEntity device = cache.getDevice(dao, APP_ID, "d1");
+    assertSame(device, cache.getDevice(dao, APP_ID, "d1"));
+    assertEquals(1, deviceLoads.get());
+
+    assertEquals(2, cache.getStats().hitCount());
+    assertEquals(2, cache.getStats().missCount());
+  }
+
+  @Test
+  public void testInvalidateUserDevice() throws Exception {
+    DeviceCache cache = new DeviceCache(100, 60);
+    DeviceDAO dao = new DeviceDAOImpl(null);
+    cache.getActiveDevices(dao, APP_ID, USER_ID);
+    cache.getDevice(dao, APP_ID, "d1");
+
+    cache.invalidateLocal(APP_ID, USER_ID, "d1");
+    cache.getActiveDevices(dao, APP_ID, USER_ID);
+    cache.getDevice(dao, APP_ID, "d1");
+    assertEquals(2, listLoads.get());
+    assertEquals(2, deviceLoads.get());
+  }
+
+  @Test
+  public void testInvalidateByDeviceIdAndToken() throws Exception {
+    DeviceCache cache = new DeviceCache(100, 60);
+    DeviceDAO dao = new DeviceDAOImpl(null);
+    cache.getActiveDevices(dao, APP_ID, USER_ID);
+    cache.getActiveDevices(dao, APP_ID, "otheruser");
+    cache.getDevice(dao, APP_ID, "d3");
+
+    //d2 belongs to both users
+    cache.invalidateDeviceLocal("d2");
+    assertEquals(1, cache.getSize());
+
+    cache.getActiveDevices(dao, APP_ID, USER_ID);
+    cache.invalidateTokenLocal("someotherapp", "token1");
+    assertEquals(2, cache.getSize());
+    cache.invalidateTokenLocal(APP_ID, "token1");
+    assertEquals(1, cache.getSize());
+    cache.invalidateTokenLocal(APP_ID, "token-d3");
+    assertEquals(0, cache.getSize());
+  }
+
+  private static DeviceEntity device(String appId, String userId, String deviceId, String token) {
+    DeviceEntity entity = new DeviceEntity();
+    entity.setAppId(appId);
+    entity.setOwnerId(userId);
+    entity.setDeviceId(deviceId);
+    entity.setClientToken(token);
+    entity.setStatus(DeviceStatus.ACTIVE);
+    return entity;
+  }
+}
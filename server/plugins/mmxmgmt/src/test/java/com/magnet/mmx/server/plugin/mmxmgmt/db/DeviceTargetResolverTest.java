@@ -36,6 +36,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.TestCase.assertNotNull;
 
 /**
@@ -181,4 +182,46 @@ public class DeviceTargetResolverTest {
     assertEquals("Non matching entity list size", 1, size);
 
   }
+
+  @Test
+  public void testResolveInPages() throws Exception {
+    String appId = "azi6dw1weq";
+    Target target = new Target();
+    DeviceQuery query = new DeviceQuery();
+    query.setTags(new ArrayList<String>());
+    query.getTags().add("secure");
+    query.getTags().add("office");
+    target.setDeviceQuery(query);
+    DeviceTargetResolver resolver = new DeviceTargetResolver() {
+      @Override
+      protected ConnectionProvider getConnectionProvider() {
+        return new BasicDataSourceConnectionProvider(ds);
+      }
+    };
+    final List<Integer> pageSizes = new ArrayList<Integer>();
+    final List<Integer> ids = new ArrayList<Integer>();
+    DeviceTargetResolver.PageHandler handler = new DeviceTargetResolver.PageHandler() {
+      @Override
+      public boolean handle(List<DeviceEntity> page) {
+        pageSizes.add(page.size());
+        for (DeviceEntity device : page) {
+          ids.add(device.getId());
+        }
+        return true;
+      }
+    };
+    int count = resolver.resolve(appId, target, 0, 2, handler);
+    assertEquals("Non matching resolved count", 3, count);
+    assertEquals("Non matching page count", 2, pageSizes.size());
+    assertEquals("Non matching first page size", 2, pageSizes.get(0).intValue());
+    assertTrue("Devices not ordered by id", ids.get(0) < ids.get(1) && ids.get(1) < ids.get(2));
+
+    //continue after the first page
+    pageSizes.clear();
+    int afterId = ids.get(1);
+    ids.clear();
+    count = resolver.resolve(appId, target, afterId, 2, handler);
+    assertEquals("Non matching resolved count after first page", 1, count);
+    assertEquals("Non matching page count after first page", 1, pageSizes.size());
+  }
 }
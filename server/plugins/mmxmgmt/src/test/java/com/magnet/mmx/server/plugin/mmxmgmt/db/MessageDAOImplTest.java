@@ -41,9 +41,11 @@ import java.sql.Timestamp;
 import java.sql.Types;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import static org.junit.Assert.assertEquals;
@@ -52,6 +54,9 @@ import static org.junit.Assert.assertTrue;
 /**
  */
 public class MessageDAOImplTest {
+  private static final org.slf4j.Logger LOGGER = org.slf4j.LoggerFactory.getLogger(MessageDAOImplTest.class);
+  private static final String TIMEOUT_APP_ID = "timeoutapp";
+  private static final String TIMEOUT_DEVICE_ID = "timeoutdevice";
   private static BasicDataSource ds;
 
   @BeforeClass
@@ -169,6 +174,65 @@ public class MessageDAOImplTest {
     assertEquals("Non matching list size", expectedSize, count);
   }
 
+  @Test
+  public void testTimeoutMessageAcrossIdWindows() throws SQLException {
+    long currentUTCTime = 1000000000L; // well before the dates of the loaded messages
+    int timeoutMinutes = 10;
+    long cutoff = currentUTCTime - timeoutMinutes * 60L;
+    MessageDAO dao = new MessageDAOImpl(new BasicDataSourceConnectionProvider(ds));
+    try {
+      //interleave rows that time out with rows that don't so every id window has a mix
+      insertMessage("timeout-1", MessageEntity.MessageState.WAKEUP_SENT, cutoff - 1, null);
+      insertMessage("keep-at-cutoff", MessageEntity.MessageState.WAKEUP_SENT, cutoff, null);
+      insertMessage("timeout-2", MessageEntity.MessageState.WAKEUP_SENT, cutoff - 3600, null);
+      insertMessage("keep-delivered", MessageEntity.MessageState.DELIVERED, cutoff - 1, null);
+      insertMessage("keep-acknowledged", MessageEntity.MessageState.WAKEUP_SENT, cutoff - 1, cutoff);
+      insertMessage("timeout-3", MessageEntity.MessageState.WAKEUP_SENT, cutoff - 1, null);
+      insertMessage("keep-after-cutoff", MessageEntity.MessageState.WAKEUP_SENT, cutoff + 1, null);
+      insertMessage("timeout-4", MessageEntity.MessageState.WAKEUP_SENT, cutoff - 1, null);
+
+      int count = dao.messageTimeout(currentUTCTime, timeoutMinutes, 2);
+      assertEquals("Non matching timeout count", 4, count);
+      for (int i = 1; i <= 4; i++) {
+        assertEquals(MessageEntity.MessageState.WAKEUP_TIMEDOUT, dao.get("timeout-" + i, TIMEOUT_DEVICE_ID).getState());
+      }
+      assertEquals(MessageEntity.MessageState.WAKEUP_SENT, dao.get("keep-at-cutoff", TIMEOUT_DEVICE_ID).getState());
+      assertEquals(MessageEntity.MessageState.WAKEUP_SENT, dao.get("keep-after-cutoff", TIMEOUT_DEVICE_ID).getState());
+      assertEquals(MessageEntity.MessageState.WAKEUP_SENT, dao.get("keep-acknowledged", TIMEOUT_DEVICE_ID).getState());
+      assertEquals(MessageEntity.MessageState.DELIVERED, dao.get("keep-delivered", TIMEOUT_DEVICE_ID).getState());
+
+      //a window wider than the id range and a second pass find nothing more
+      assertEquals(0, dao.messageTimeout(currentUTCTime, timeoutMinutes, 1000));
+      //moving the clock forward picks up the rows at and after the old cutoff
+      assertEquals(2, dao.messageTimeout(currentUTCTime + 2, timeoutMinutes, 3));
+    } finally {
+      deleteMessages(TIMEOUT_APP_ID);
+    }
+  }
+
+  @Test
+  public void testGetMessagesForIdList() {
+    MessageDAO dao = new MessageDAOImpl(new BasicDataSourceConnectionProvider(ds));
+    List<String> messageIds = new ArrayList<String>();
+    messageIds.add("13966ac5baa289a8");
+    //more ids than a single query can take
+    for (int i = 0; i < 300; i++) {
+      messageIds.add("unknown-" + i);
+    }
+    messageIds.add("1396563a44077708");
+    messageIds.add("13966ac5baa289a8");
+    //belongs to a different app
+    messageIds.add("sWoNarzoTGOZEL0UTwDB2w-5");
+
+    Map<String, List<MessageEntity>> messages = dao.getMessages("PrivateApp1", messageIds);
+    assertEquals("Non matching message count", 2, messages.size());
+    List<MessageEntity> list = messages.get("1396563a44077708");
+    assertEquals(1, list.size());
+    assertEquals("device2", list.get(0).getDeviceId());
+    assertEquals(1, messages.get("13966ac5baa289a8").size());
+    assertTrue(dao.getMessages("PrivateApp1", new ArrayList<String>()).isEmpty());
+  }
+
   @Test
   public void testMessageDelivered() {
 
@@ -207,6 +271,45 @@ public class MessageDAOImplTest {
 
 
 
+  private static void insertMessage(String messageId, MessageEntity.MessageState state, long dateQueuedUTC,
+                                    Long dateAcknowledgedUTC) throws SQLException {
+    Connection conn = null;
+    PreparedStatement pstmt = null;
+    try {
+      conn = ds.getConnection();
+      pstmt = conn.prepareStatement("INSERT INTO mmxMessage (messageId, deviceId, fromJID, toJID, dateQueuedUTC, " +
+          "state, appId, dateAcknowledgedUTC, messageType) VALUES (?, ?, ?, ?, ?, ?, ?, ?, 'REGULAR')");
+      pstmt.setString(1, messageId);
+      pstmt.setString(2, TIMEOUT_DEVICE_ID);
+      pstmt.setString(3, "sender%" + TIMEOUT_APP_ID + "@localhost/device1");
+      pstmt.setString(4, "receiver%" + TIMEOUT_APP_ID + "@localhost/" + TIMEOUT_DEVICE_ID);
+      pstmt.setLong(5, dateQueuedUTC);
+      pstmt.setString(6, state.name());
+      pstmt.setString(7, TIMEOUT_APP_ID);
+      if (dateAcknowledgedUTC == null) {
+        pstmt.setNull(8, Types.INTEGER);
+      } else {
+        pstmt.setLong(8, dateAcknowledgedUTC);
+      }
+      pstmt.executeUpdate();
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, conn);
+    }
+  }
+
+  private static void deleteMessages(String appId) throws SQLException {
+    Connection conn = null;
+    PreparedStatement pstmt = null;
+    try {
+      conn = ds.getConnection();
+      pstmt = conn.prepareStatement("DELETE FROM mmxMessage WHERE appId = ?");
+      pstmt.setString(1, appId);
+      pstmt.executeUpdate();
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, conn);
+    }
+  }
+
   public static class CustomTimestampDataType extends AbstractDataType {
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CustomTimestampDataType.class);
 
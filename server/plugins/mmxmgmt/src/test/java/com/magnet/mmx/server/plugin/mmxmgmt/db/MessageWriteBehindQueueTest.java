@@ -0,0 +1,195 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import mockit.Mock;
+import mockit.MockUp;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class MessageWriteBehindQueueTest {
+
+  @Test
+  public void testAllWritesAreFlushedInOrderOnStop() {
+    final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+    new MockUp<MessageDAOImpl>() {
+      @Mock
+      public void persist(List<MessageEntity> entities) {
+        for (MessageEntity e : entities) {
+          log.add("I:" + e.getMessageId() + ":" + e.getDeviceId());
+        }
+      }
+
+      @Mock
+      public void messageReceived(List<MessageEntity> received) {
+        for (MessageEntity e : received) {
+          log.add("R:" + e.getMessageId() + ":" + e.getDeviceId());
+        }
+      }
+    };
+    MessageWriteBehindQueue queue = new MessageWriteBehindQueue();
+    queue.start(new MessageDAOImpl(null), 50, 7, 5L, 3);
+
+    int count = 500;
+    MessageEntity entity = new MessageEntity();
+    entity.setState(MessageEntity.MessageState.PENDING);
+    for (int i = 0; i < count; i++) {
+      entity.setMessageId("m" + i);
+      entity.setDeviceId("d" + i);
+      queue.persist(entity);
+      queue.messageReceived("m" + i, "d" + i);
+    }
+    queue.stop(10);
+
+    assertEquals("Not all writes were flushed", 2 * count, log.size());
+    assertEquals("Queue not empty", 0, queue.getQueueDepth());
+    Map<String, Integer> position = new HashMap<String, Integer>();
+    for (int i = 0; i < log.size(); i++) {
+      position.put(log.get(i), Integer.valueOf(i));
+    }
+    for (int i = 0; i < count; i++) {
+      Integer insert = position.get("I:m" + i + ":d" + i);
+      Integer received = position.get("R:m" + i + ":d" + i);
+      assertTrue("Missing insert for m" + i, insert != null);
+      assertTrue("Missing receipt for m" + i, received != null);
+      assertTrue("Receipt flushed before insert for m" + i, insert.intValue() < received.intValue());
+    }
+    assertEquals(2 * count, queue.getWrittenCount());
+  }
+
+  @Test
+  public void testStateUpdatesFollowTheInsert() {
+    final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+    new MockUp<MessageDAOImpl>() {
+      @Mock
+      public void persist(List<MessageEntity> entities) {
+        for (MessageEntity e : entities) {
+          log.add("I:" + e.getMessageId());
+        }
+      }
+
+      @Mock
+      public void wakeupSent(List<WakeupEntity> sent) {
+        for (WakeupEntity e : sent) {
+          log.add("W:" + e.getMessageId());
+        }
+      }
+
+      @Mock
+      public int messageDelivered(String appId, String deviceId, String messageId) {
+        log.add("D:" + messageId);
+        return 1;
+      }
+    };
+    MessageWriteBehindQueue queue = new MessageWriteBehindQueue();
+    queue.start(new MessageDAOImpl(null), 50, 7, 5L, 3);
+
+    int count = 200;
+    MessageEntity entity = new MessageEntity();
+    entity.setState(MessageEntity.MessageState.WAKEUP_REQUIRED);
+    for (int i = 0; i < count; i++) {
+      entity.setMessageId("m" + i);
+      entity.setDeviceId("d" + i);
+      queue.persist(entity);
+      WakeupEntity wakeup = new WakeupEntity();
+      wakeup.setMessageId("m" + i);
+      wakeup.setDeviceId("d" + i);
+      queue.wakeupSent(Collections.singletonList(wakeup));
+      queue.messageDelivered("app", "d" + i, "m" + i);
+    }
+    queue.stop(10);
+
+    assertEquals(3 * count, log.size());
+    for (int i = 0; i < count; i++) {
+      int insert = log.indexOf("I:m" + i);
+      int wakeup = log.indexOf("W:m" + i);
+      int delivered = log.indexOf("D:m" + i);
+      assertTrue("Wakeup flushed before insert for m" + i, insert >= 0 && insert < wakeup);
+      assertTrue("Delivered flushed before wakeup for m" + i, wakeup < delivered);
+    }
+  }
+
+  @Test
+  public void testWritesAfterStopAreSynchronous() {
+    final List<String> persisted = Collections.synchronizedList(new ArrayList<String>());
+    new MockUp<MessageDAOImpl>() {
+      @Mock
+      public void persist(MessageEntity entity) {
+        persisted.add(entity.getMessageId());
+      }
+    };
+    MessageWriteBehindQueue queue = new MessageWriteBehindQueue();
+    queue.start(new MessageDAOImpl(null), 10, 10, 5L, 1);
+    queue.stop(10);
+    assertTrue(!queue.isRunning());
+
+    MessageEntity entity = new MessageEntity();
+    entity.setMessageId("late");
+    queue.persist(entity);
+    assertEquals(Collections.singletonList("late"), persisted);
+  }
+
+  @Test
+  public void testFailedBatchIsRetriedIndividually() {
+    final List<String> persisted = Collections.synchronizedList(new ArrayList<String>());
+    new MockUp<MessageDAOImpl>() {
+      @Mock
+      public void persist(List<MessageEntity> entities) {
+        if (entities.size() > 1) {
+          throw new DbInteractionException("batch failed");
+        }
+        MessageEntity e = entities.get(0);
+        if ("bad".equals(e.getMessageId())) {
+          throw new DbInteractionException("bad row");
+        }
+        persisted.add(e.getMessageId());
+      }
+    };
+    MessageWriteBehindQueue queue = new MessageWriteBehindQueue();
+    List<MessageWriteBehindQueue.PendingWrite> writes = new ArrayList<MessageWriteBehindQueue.PendingWrite>();
+    for (String id : new String[]{"a", "bad", "b"}) {
+      MessageEntity e = new MessageEntity();
+      e.setMessageId(id);
+      writes.add(new MessageWriteBehindQueue.PendingWrite(MessageWriteBehindQueue.WriteType.INSERT, e));
+    }
+    queue.start(new MessageDAOImpl(null), 10, 10, 5L, 1);
+    queue.flush(writes);
+    queue.stop(10);
+
+    assertEquals(2, persisted.size());
+    assertEquals(1, queue.getFailedCount());
+  }
+
+  @Test
+  public void testLaneIndexIsStable() {
+    for (int i = 0; i < 1000; i++) {
+      String id = Integer.toHexString(i * 7919);
+      int lane = MessageWriteBehindQueue.laneIndex(id, 4);
+      assertTrue(lane >= 0 && lane < 4);
+      assertEquals(lane, MessageWriteBehindQueue.laneIndex(id, 4));
+    }
+    assertEquals(0, MessageWriteBehindQueue.laneIndex(null, 4));
+  }
+}
@@ -0,0 +1,132 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class OfflineMessageWriteBehindQueueTest {
+  private static final String USER_1 = "user1%offlineapp";
+  private static final String USER_2 = "user2%offlineapp";
+
+  private final List<String> added = Collections.synchronizedList(new ArrayList<String>());
+  private final List<String> removed = Collections.synchronizedList(new ArrayList<String>());
+  private final List<Integer> removeCalls = Collections.synchronizedList(new ArrayList<Integer>());
+  private OfflineMessageWriteBehindQueue queue;
+
+  @Before
+  public void setup() {
+    queue = new OfflineMessageWriteBehindQueue();
+    queue.start(new RecordingOfflineMessageDAO(), 100, 100, 500L, 1);
+  }
+
+  @After
+  public void teardown() {
+    queue.stop(10);
+  }
+
+  @Test
+  public void testRemoveCancelsQueuedAdd() {
+    queue.add(message(USER_1, "m1"));
+    queue.add(message(USER_1, "m2"));
+    queue.add(message(USER_2, "m3"));
+    queue.remove(USER_1, "m2");
+    queue.stop(10);
+
+    assertEquals(Arrays.asList(USER_1 + ":m1", USER_2 + ":m3"), added);
+    assertTrue("Cancelled add reached the database", removed.isEmpty());
+    assertEquals(1, queue.getCancelledCount());
+    assertEquals(2, queue.getAddedCount());
+  }
+
+  @Test
+  public void testRemoveAfterWriteIsFlushed() throws Exception {
+    queue.add(message(USER_1, "m1"));
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (queue.getAddedCount() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertEquals(1, queue.getAddedCount());
+    //the user can be passed as a full JID
+    queue.remove(USER_1 + "@localhost/device1", "m1");
+    queue.stop(10);
+
+    assertEquals(Arrays.asList(USER_1 + ":m1"), removed);
+    assertEquals(0, queue.getCancelledCount());
+  }
+
+  @Test
+  public void testRemovesAreGroupedPerUser() {
+    List<OfflineMessageWriteBehindQueue.PendingOperation> operations =
+        new ArrayList<OfflineMessageWriteBehindQueue.PendingOperation>();
+    operations.add(new OfflineMessageWriteBehindQueue.PendingOperation(USER_1, "m1", null));
+    operations.add(new OfflineMessageWriteBehindQueue.PendingOperation(USER_2, "m2", null));
+    operations.add(new OfflineMessageWriteBehindQueue.PendingOperation(USER_1, "m3", null));
+    operations.add(new OfflineMessageWriteBehindQueue.PendingOperation(USER_2, "m4", null));
+    operations.add(new OfflineMessageWriteBehindQueue.PendingOperation(USER_1, "m5", null));
+    queue.flush(operations);
+
+    assertEquals(Arrays.asList(3, 2), removeCalls);
+    assertEquals(Arrays.asList(USER_1 + ":m1", USER_1 + ":m3", USER_1 + ":m5", USER_2 + ":m2", USER_2 + ":m4"), removed);
+  }
+
+  @Test
+  public void testDuplicateAddIsStoredOnce() {
+    queue.add(message(USER_1, "m1"));
+    queue.add(message(USER_1, "m1"));
+    queue.stop(10);
+
+    assertEquals(Arrays.asList(USER_1 + ":m1"), added);
+  }
+
+  private static Message message(String username, String packetId) {
+    Message message = new Message();
+    message.setTo(new JID(username, "localhost", "device1"));
+    message.setID(packetId);
+    return message;
+  }
+
+  private class RecordingOfflineMessageDAO implements OfflineMessageDAO {
+    @Override
+    public void addMessages(List<Message> messages) throws DbInteractionException {
+      for (Message message : messages) {
+        added.add(message.getTo().getNode() + ":" + message.getID());
+      }
+    }
+
+    @Override
+    public int deleteMessages(String username, Collection<String> packetIds) throws DbInteractionException {
+      removeCalls.add(packetIds.size());
+      for (String packetId : packetIds) {
+        removed.add(username + ":" + packetId);
+      }
+      return packetIds.size();
+    }
+  }
+}
@@ -0,0 +1,297 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.db;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXInAppMessageStats;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXInAppTuple;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXPushMessageStats;
+import com.magnet.mmx.server.plugin.mmxmgmt.servlet.MMXPushTuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ */
+public class StatsRollupTest {
+  private static final String APP_ID = "rollupapp";
+  private static final long HOUR = 3600L;
+  private static final long START_HOUR = 1000L * HOUR;
+
+  private InMemoryStatsRollupDAO dao;
+  private TestStatsRollup rollup;
+
+  @Before
+  public void setup() {
+    dao = new InMemoryStatsRollupDAO();
+    rollup = new TestStatsRollup();
+    at(START_HOUR);
+    rollup.start(dao, 24, 48);
+  }
+
+  @Test
+  public void testCountsAreServedBeforeAndAfterFlush() {
+    rollup.messageState(APP_ID, null, MessageEntity.MessageState.PENDING, START_HOUR, 3);
+    rollup.messageState(APP_ID, MessageEntity.MessageState.PENDING, MessageEntity.MessageState.DELIVERED, START_HOUR, 2);
+    rollup.pushState(APP_ID, PushMessageEntity.PushMessageType.API_PUSH, null, PushMessageEntity.PushMessageState.PUSHED,
+        START_HOUR, 4);
+    assertEquals(1, messageCount(APP_ID, "PENDING"));
+    assertEquals(2, messageCount(APP_ID, "DELIVERED"));
+    assertEquals(4, pushCount(APP_ID, "API_PUSH", "PUSHED"));
+
+    rollup.flush();
+    assertEquals(3, dao.rows.size());
+    assertEquals(1, messageCount(APP_ID, "PENDING"));
+    assertEquals(2, messageCount(APP_ID, "DELIVERED"));
+    assertEquals(4, pushCount(APP_ID, "API_PUSH", "PUSHED"));
+
+    //a second flush doesn't add the counts again
+    at(START_HOUR + 60);
+    rollup.flush();
+    assertEquals(1, dao.stored(APP_ID, "PENDING"));
+    assertEquals(1, messageCount(APP_ID, "PENDING"));
+  }
+
+  @Test
+  public void testTransitionsKeepCurrentState() {
+    rollup.messageState(APP_ID, null, MessageEntity.MessageState.WAKEUP_REQUIRED, START_HOUR, 2);
+    rollup.messageState(APP_ID, MessageEntity.MessageState.WAKEUP_REQUIRED, MessageEntity.MessageState.WAKEUP_SENT,
+        START_HOUR, 2);
+    rollup.flush();
+    rollup.messageState(APP_ID, MessageEntity.MessageState.WAKEUP_SENT, MessageEntity.MessageState.DELIVERED,
+        START_HOUR, 1);
+    //moving a message to the state it is in changes nothing
+    rollup.messageState(APP_ID, MessageEntity.MessageState.DELIVERED, MessageEntity.MessageState.DELIVERED,
+        START_HOUR, 1);
+    assertEquals(0, messageCount(APP_ID, "WAKEUP_REQUIRED"));
+    assertEquals(1, messageCount(APP_ID, "WAKEUP_SENT"));
+    assertEquals(1, messageCount(APP_ID, "DELIVERED"));
+    //states without messages aren't reported
+    assertEquals(2, rollup.getMessageStats(Arrays.asList(APP_ID)).get(APP_ID).getStats().size());
+
+    at(START_HOUR + 60);
+    rollup.flush();
+    assertEquals(0, dao.stored(APP_ID, "WAKEUP_REQUIRED"));
+    assertEquals(1, dao.stored(APP_ID, "WAKEUP_SENT"));
+    assertEquals(1, dao.stored(APP_ID, "DELIVERED"));
+  }
+
+  @Test
+  public void testTransitionsAreBucketedByQueuedHour() {
+    rollup.messageState(APP_ID, null, MessageEntity.MessageState.PENDING, START_HOUR + 10, 1);
+    at(START_HOUR + 5 * HOUR);
+    rollup.messageState(APP_ID, MessageEntity.MessageState.PENDING, MessageEntity.MessageState.DELIVERED,
+        START_HOUR + 10, 1);
+    rollup.flush();
+    assertEquals(0, dao.stored(APP_ID, "PENDING", START_HOUR));
+    assertEquals(1, dao.stored(APP_ID, "DELIVERED", START_HOUR));
+
+    //the message leaves the stats when the hour it was queued leaves the window
+    at(START_HOUR + 24 * HOUR);
+    assertEquals(0, messageCount(APP_ID, "DELIVERED"));
+    //and its later transitions aren't recorded
+    rollup.messageState(APP_ID, MessageEntity.MessageState.DELIVERED, MessageEntity.MessageState.RECEIVED,
+        START_HOUR + 10, 1);
+    rollup.flush();
+    assertEquals(0, dao.stored(APP_ID, "RECEIVED"));
+  }
+
+  @Test
+  public void testFailedFlushKeepsCounts() {
+    rollup.messageState(APP_ID, null, MessageEntity.MessageState.PENDING, START_HOUR, 5);
+    dao.fail = true;
+    try {
+      rollup.flush();
+      fail("Expected the flush to fail");
+    } catch (DbInteractionException e) {
+      //expected
+    }
+    assertEquals(5, messageCount(APP_ID, "PENDING"));
+    dao.fail = false;
+    rollup.flush();
+    assertEquals(5, dao.stored(APP_ID, "PENDING"));
+    assertEquals(5, messageCount(APP_ID, "PENDING"));
+  }
+
+  @Test
+  public void testCountsOfOtherMembersAreLoaded() {
+    rollup.messageState(APP_ID, null, MessageEntity.MessageState.PENDING, START_HOUR, 1);
+    rollup.pushState(APP_ID, PushMessageEntity.PushMessageType.API_PUSH, null, PushMessageEntity.PushMessageState.PUSHED,
+        START_HOUR, 1);
+    dao.add(Arrays.asList(new StatsRollupEntity(APP_ID, StatsRollupEntity.Kind.MESSAGE, "", "PENDING", START_HOUR, 6L)));
+    rollup.flush();
+    assertEquals(7, messageCount(APP_ID, "PENDING"));
+
+    //another member moves messages queued hours ago
+    at(START_HOUR + 3 * HOUR);
+    rollup.flush();
+    dao.add(Arrays.asList(
+        new StatsRollupEntity(APP_ID, StatsRollupEntity.Kind.MESSAGE, "", "PENDING", START_HOUR, -2L),
+        new StatsRollupEntity(APP_ID, StatsRollupEntity.Kind.MESSAGE, "", "DELIVERED", START_HOUR, 2L)));
+    at(START_HOUR + 3 * HOUR + 60);
+    rollup.flush();
+    assertEquals(5, messageCount(APP_ID, "PENDING"));
+    assertEquals(2, messageCount(APP_ID, "DELIVERED"));
+    //only the rows updated since the previous load are loaded
+    assertEquals(2, dao.lastLoaded);
+    assertEquals(1, pushCount(APP_ID, "API_PUSH", "PUSHED"));
+  }
+
+  @Test
+  public void testCountsOutsideWindowAreDropped() {
+    rollup.messageState(APP_ID, null, MessageEntity.MessageState.PENDING, START_HOUR, 2);
+    rollup.flush();
+    at(START_HOUR + 23 * HOUR);
+    rollup.messageState(APP_ID, null, MessageEntity.MessageState.PENDING, START_HOUR + 23 * HOUR, 1);
+    assertEquals(3, messageCount(APP_ID, "PENDING"));
+    at(START_HOUR + 24 * HOUR);
+    assertEquals(1, messageCount(APP_ID, "PENDING"));
+    rollup.flush();
+    assertEquals(1, messageCount(APP_ID, "PENDING"));
+    at(START_HOUR + 72 * HOUR);
+    rollup.flush();
+    assertTrue("Expired rows not deleted", dao.rows.isEmpty());
+  }
+
+  @Test
+  public void testNothingIsRecordedWhenStopped() {
+    rollup.stop();
+    rollup.messageState(APP_ID, null, MessageEntity.MessageState.PENDING, START_HOUR, 2);
+    assertEquals(0, messageCount(APP_ID, "PENDING"));
+    assertTrue(rollup.getMessageStats(Arrays.asList("otherapp")).get("otherapp").getStats().isEmpty());
+  }
+
+  private void at(long timeUTC) {
+    rollup.time = timeUTC;
+    dao.time = timeUTC;
+  }
+
+  private int messageCount(String appId, String state) {
+    MMXInAppMessageStats stats = rollup.getMessageStats(Arrays.asList(appId)).get(appId);
+    for (MMXInAppTuple tuple : stats.getStats()) {
+      if (tuple.getType().equals(state)) {
+        return tuple.getCount();
+      }
+    }
+    return 0;
+  }
+
+  private int pushCount(String appId, String type, String state) {
+    MMXPushMessageStats stats = rollup.getPushMessageStats(Arrays.asList(appId)).get(appId);
+    for (MMXPushTuple tuple : stats.getStats()) {
+      if (tuple.getType().equals(type) && tuple.getState().equals(state)) {
+        return tuple.getCount();
+      }
+    }
+    return 0;
+  }
+
+  private static class TestStatsRollup extends StatsRollup {
+    private long time;
+
+    @Override
+    long currentTimeUTC() {
+      return time;
+    }
+  }
+
+  private static class InMemoryStatsRollupDAO implements StatsRollupDAO {
+    private final List<StatsRollupEntity> rows = new ArrayList<StatsRollupEntity>();
+    private final Map<StatsRollupEntity, Long> updated = new HashMap<StatsRollupEntity, Long>();
+    private boolean fail;
+    private long time;
+    private int lastLoaded;
+
+    @Override
+    public void add(List<StatsRollupEntity> deltas) throws DbInteractionException {
+      if (fail) {
+        throw new DbInteractionException("add failed");
+      }
+      for (StatsRollupEntity delta : deltas) {
+        StatsRollupEntity row = find(delta);
+        if (row == null) {
+          row = new StatsRollupEntity(delta.getAppId(), delta.getKind(), delta.getType(), delta.getState(),
+              delta.getHourUTC(), delta.getCount());
+          rows.add(row);
+        } else {
+          row.setCount(row.getCount() + delta.getCount());
+        }
+        updated.put(row, Long.valueOf(time));
+      }
+    }
+
+    @Override
+    public List<StatsRollupEntity> getRollups(long sinceHourUTC, long updatedSinceUTC) throws DbInteractionException {
+      List<StatsRollupEntity> list = new ArrayList<StatsRollupEntity>();
+      for (StatsRollupEntity row : rows) {
+        if (row.getHourUTC() >= sinceHourUTC && updated.get(row).longValue() >= updatedSinceUTC) {
+          list.add(new StatsRollupEntity(row.getAppId(), row.getKind(), row.getType(), row.getState(),
+              row.getHourUTC(), row.getCount()));
+        }
+      }
+      lastLoaded = list.size();
+      return list;
+    }
+
+    @Override
+    public int deleteBefore(long hourUTC) throws DbInteractionException {
+      int count = 0;
+      for (Iterator<StatsRollupEntity> it = rows.iterator(); it.hasNext(); ) {
+        StatsRollupEntity row = it.next();
+        if (row.getHourUTC() < hourUTC) {
+          it.remove();
+          updated.remove(row);
+          count++;
+        }
+      }
+      return count;
+    }
+
+    private long stored(String appId, String state) {
+      long count = 0;
+      for (StatsRollupEntity row : rows) {
+        if (row.getAppId().equals(appId) && row.getState().equals(state)) {
+          count += row.getCount();
+        }
+      }
+      return count;
+    }
+
+    private long stored(String appId, String state, long hourUTC) {
+      StatsRollupEntity row = find(new StatsRollupEntity(appId, StatsRollupEntity.Kind.MESSAGE, "", state, hourUTC, 0L));
+      return row == null ? 0 : row.getCount();
+    }
+
+    private StatsRollupEntity find(StatsRollupEntity key) {
+      for (StatsRollupEntity row : rows) {
+        if (row.getAppId().equals(key.getAppId()) && row.getKind() == key.getKind() &&
+            row.getType().equals(key.getType()) && row.getState().equals(key.getState()) &&
+            row.getHourUTC() == key.getHourUTC()) {
+          return row;
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.hook;
+
+import com.magnet.mmx.server.api.v1.protocol.HookCreateRequest;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DbInteractionException;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.HookDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.HookEntity;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class WebHookDispatcherTest {
+  private static final String APP_ID = "webhookapp";
+
+  private HttpServer server;
+  private final List<String> received = new CopyOnWriteArrayList<String>();
+  private final AtomicInteger responseCode = new AtomicInteger(200);
+  private final List<Integer> deadLetters = new CopyOnWriteArrayList<Integer>();
+  private WebHookDispatcher dispatcher;
+  private boolean started;
+
+  @Before
+  public void setup() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/hook", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          body.write(buffer, 0, read);
+        }
+        received.add(body.toString("UTF-8"));
+        exchange.sendResponseHeaders(responseCode.get(), -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    dispatcher = new WebHookDispatcher();
+  }
+
+  @After
+  public void teardown() {
+    if (started) {
+      dispatcher.stop(5);
+    }
+    server.stop(0);
+  }
+
+  @Test
+  public void testDelivery() throws Exception {
+    start(settings().setThreads(2));
+    HookEntity hook = hook(1);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(dispatcher.dispatch(hook, APP_ID, "{\"n\":" + i + "}"));
+    }
+    waitFor(new Condition() {
+      @Override
+      public boolean met() {
+        return dispatcher.getDeliveredCount() == 5;
+      }
+    });
+    assertEquals(5, received.size());
+    assertEquals(0, dispatcher.getFailedCount());
+    assertTrue(deadLetters.isEmpty());
+  }
+
+  @Test
+  public void testBatchIsPostedAsArray() {
+    HookEntity hook = hook(2);
+    dispatcher.deliver(Arrays.asList(new WebHookDispatcher.HookEvent(hook, APP_ID, "{\"n\":1}"),
+        new WebHookDispatcher.HookEvent(hook, APP_ID, "{\"n\":2}")), false);
+    assertEquals(1, received.size());
+    assertEquals("[{\"n\":1},{\"n\":2}]", received.get(0));
+    assertEquals(2, dispatcher.getDeliveredCount());
+  }
+
+  @Test
+  public void testRetryThenDeadLetter() throws Exception {
+    responseCode.set(500);
+    start(settings().setMaxAttempts(3).setRetryBaseMillis(10L).setRetryMaxMillis(20L));
+    dispatcher.dispatch(hook(3), APP_ID, "{}");
+    waitFor(new Condition() {
+      @Override
+      public boolean met() {
+        return deadLetters.size() == 1;
+      }
+    });
+    assertEquals(3, received.size());
+    assertEquals(2, dispatcher.getRetriedCount());
+    assertEquals(1, dispatcher.getDeadLetteredCount());
+    assertEquals(Integer.valueOf(3), deadLetters.get(0));
+  }
+
+  @Test
+  public void testCircuitOpensAfterFailures() {
+    responseCode.set(503);
+    start(settings().setBreakerFailures(2).setBreakerOpenMillis(60000L));
+    //deliver directly on the test thread
+    dispatcher.stop(5);
+    HookEntity hook = hook(4);
+    WebHookDispatcher.HookEvent event = new WebHookDispatcher.HookEvent(hook, APP_ID, "{}");
+    for (int i = 0; i < 4; i++) {
+      dispatcher.deliver(Collections.singletonList(event), false);
+    }
+    //the last two attempts are rejected without reaching the target
+    assertEquals(2, received.size());
+    assertEquals(4, dispatcher.getFailedCount());
+    assertEquals(HookCircuitBreaker.State.OPEN, dispatcher.getCircuitState(4));
+  }
+
+  @Test
+  public void testOpenCircuitDefersWithoutCountingAttempt() throws Exception {
+    responseCode.set(500);
+    start(settings().setMaxAttempts(2).setRetryBaseMillis(10L).setRetryMaxMillis(10L)
+        .setBreakerFailures(1).setBreakerOpenMillis(300L));
+    dispatcher.dispatch(hook(6), APP_ID, "{}");
+    waitFor(new Condition() {
+      @Override
+      public boolean met() {
+        return dispatcher.getCircuitState(6) != HookCircuitBreaker.State.CLOSED;
+      }
+    });
+    //the retry finds the circuit open and waits for the trial request
+    responseCode.set(200);
+    waitFor(new Condition() {
+      @Override
+      public boolean met() {
+        return dispatcher.getDeliveredCount() == 1;
+      }
+    });
+    assertEquals(2, received.size());
+    assertEquals(1, dispatcher.getFailedCount());
+    assertTrue(deadLetters.isEmpty());
+  }
+
+  @Test
+  public void testUninitializedDispatcherPostsInline() {
+    HookEntity hook = hook(5);
+    assertTrue(dispatcher.dispatch(hook, APP_ID, "{}"));
+    assertEquals(1, received.size());
+    assertEquals(0, dispatcher.getQueueDepth());
+  }
+
+  @Test
+  public void testBackoff() {
+    start(settings().setRetryBaseMillis(100L).setRetryMaxMillis(1000L));
+    assertEquals(100L, dispatcher.backoffMillis(1));
+    assertEquals(200L, dispatcher.backoffMillis(2));
+    assertEquals(800L, dispatcher.backoffMillis(4));
+    assertEquals(1000L, dispatcher.backoffMillis(5));
+    assertEquals(1000L, dispatcher.backoffMillis(100));
+  }
+
+  @Test
+  public void testCircuitBreakerAllowsSingleTrial() throws Exception {
+    HookCircuitBreaker breaker = new HookCircuitBreaker(1, 0L);
+    breaker.failure();
+    Thread.sleep(5L);
+    assertEquals(HookCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertTrue(breaker.allowRequest());
+    breaker.success();
+    assertEquals(HookCircuitBreaker.State.CLOSED, breaker.getState());
+
+    breaker = new HookCircuitBreaker(1, 60000L);
+    breaker.failure();
+    assertFalse(breaker.allowRequest());
+    assertEquals(HookCircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  private void start(WebHookDispatcher.Settings settings) {
+    dispatcher.start(new RecordingHookDAO(), settings);
+    started = true;
+  }
+
+  private WebHookDispatcher.Settings settings() {
+    return new WebHookDispatcher.Settings().setThreads(1).setConnectTimeoutMillis(2000).setReadTimeoutMillis(2000);
+  }
+
+  private HookEntity hook(int id) {
+    HookEntity hook = new HookEntity();
+    hook.setId(id);
+    hook.setAppId(APP_ID);
+    hook.setHookName("hook" + id);
+    hook.setTargetURL("http://127.0.0.1:" + server.getAddress().getPort() + "/hook");
+    return hook;
+  }
+
+  private static void waitFor(Condition condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (!condition.met() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertTrue("Condition not met in time", condition.met());
+  }
+
+  private interface Condition {
+    boolean met();
+  }
+
+  private class RecordingHookDAO implements HookDAO {
+    @Override
+    public int addNewHook(String appId, HookCreateRequest details) throws DbInteractionException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<HookEntity> getHooks(String appId, HookType hookType) throws DbInteractionException {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public HookEntity getHook(int hookId) throws DbInteractionException {
+      return null;
+    }
+
+    @Override
+    public void addDeadLetter(HookEntity hook, String appId, String payload, int attempts, int responseCode,
+                              String error) throws DbInteractionException {
+      deadLetters.add(attempts);
+    }
+  }
+}
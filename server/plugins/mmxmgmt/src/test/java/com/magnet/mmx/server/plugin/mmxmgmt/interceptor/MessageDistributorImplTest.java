@@ -146,6 +146,29 @@ public class MessageDistributorImplTest {
     assertTrue("User has no devices but we are reporting he has", result.noDevices());
   }
 
+  @Test
+  public void testDroppedMessagesAreNotDistributed() {
+    StubMessageDistributorImpl distributor = new StubMessageDistributorImpl() {
+      @Override
+      protected boolean route(Message cloned) {
+        return false;
+      }
+    };
+    Message message = new Message();
+    message.setBody("body");
+    String toNode1 = "magnet.way";
+    String appKey = "AAABSNIBKOstQST7";
+    String host = "mmx.magnet.com";
+    message.setTo(new JID(toNode1 + JIDUtil.APP_ID_DELIMITER + appKey, host, null));
+
+    MessageDistributor.DistributionContext context = new DistributionContextImpl(toNode1, appKey, host, "droppedMessage");
+    distributor.setPacketRouter(new CountingPacketRouter());
+    distributor.setPresenceFinder(new AlwaysOnlinePresenceFinder());
+
+    MessageDistributor.DistributionResult result = distributor.distribute(message, context);
+    assertEquals(0, result.getDistributed().size());
+    assertEquals("Dropped copies are stored offline", 4, result.getNotDistributed().size());
+  }
 
   /**
    * Stub implementation of the MessageDistributor for unit testing
@@ -0,0 +1,168 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.message;
+
+import org.jivesoftware.openfire.PacketRouter;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class MessageFanoutRouterTest {
+
+  @Test
+  public void testPerDeviceOrderIsPreserved() {
+    RecordingPacketRouter router = new RecordingPacketRouter(null);
+    MessageFanoutRouter fanout = new MessageFanoutRouter();
+    fanout.start(4, 16, MessageFanoutRouter.RejectionPolicy.BLOCK);
+
+    int devices = 8;
+    int perDevice = 200;
+    for (int i = 0; i < perDevice; i++) {
+      for (int d = 0; d < devices; d++) {
+        Message message = new Message();
+        message.setTo(new JID("user%app", "localhost", "device" + d));
+        message.setID(Integer.toString(i));
+        assertTrue(fanout.route(router, message));
+      }
+    }
+    fanout.stop(10);
+
+    assertEquals(devices * perDevice, router.routed.size());
+    Map<JID, Integer> last = new HashMap<JID, Integer>();
+    for (Message message : router.routed) {
+      int seq = Integer.parseInt(message.getID());
+      Integer previous = last.put(message.getTo(), Integer.valueOf(seq));
+      assertEquals("Out of order for " + message.getTo(), previous == null ? 0 : previous.intValue() + 1, seq);
+    }
+    assertEquals(0, fanout.getQueueDepth());
+    assertEquals(devices * perDevice, fanout.getRoutedCount());
+  }
+
+  @Test
+  public void testDropPolicyWhenLaneIsFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    RecordingPacketRouter router = new RecordingPacketRouter(release);
+    MessageFanoutRouter fanout = new MessageFanoutRouter();
+    fanout.start(1, 1, MessageFanoutRouter.RejectionPolicy.DROP);
+
+    JID to = new JID("user%app", "localhost", "device1");
+    Message first = new Message();
+    first.setTo(to);
+    fanout.route(router, first);
+    //wait for the worker to pick up the first message and block on it
+    assertTrue(router.started.await(5, TimeUnit.SECONDS));
+    Message second = new Message();
+    second.setTo(to);
+    assertTrue(fanout.route(router, second));
+    Message third = new Message();
+    third.setTo(to);
+    assertFalse(fanout.route(router, third));
+    assertEquals(1, fanout.getRejectedCount());
+
+    release.countDown();
+    fanout.stop(10);
+    assertEquals(2, router.routed.size());
+  }
+
+  @Test
+  public void testLaneThreadDoesNotBlockOnFullLane() {
+    final MessageFanoutRouter fanout = new MessageFanoutRouter();
+    //routing a message submits two more to the same single slot lane, like a bare JID fan-out
+    final RecordingPacketRouter inner = new RecordingPacketRouter(null);
+    PacketRouter outer = new RecordingPacketRouter(null) {
+      @Override
+      public void route(Message packet) {
+        super.route(packet);
+        for (int i = 0; i < 2; i++) {
+          Message copy = packet.createCopy();
+          copy.setID("inner" + i);
+          fanout.route(inner, copy);
+        }
+      }
+    };
+    fanout.start(1, 1, MessageFanoutRouter.RejectionPolicy.BLOCK);
+    Message message = new Message();
+    message.setTo(new JID("user%app", "localhost", "device1"));
+    message.setID("outer");
+    assertTrue(fanout.route(outer, message));
+    fanout.stop(10);
+    assertEquals(2, inner.routed.size());
+    assertEquals(0, fanout.getQueueDepth());
+  }
+
+  @Test
+  public void testPolicyFromString() {
+    assertEquals(MessageFanoutRouter.RejectionPolicy.CALLER_RUNS,
+        MessageFanoutRouter.RejectionPolicy.fromString(" caller_runs ", MessageFanoutRouter.RejectionPolicy.BLOCK));
+    assertEquals(MessageFanoutRouter.RejectionPolicy.BLOCK,
+        MessageFanoutRouter.RejectionPolicy.fromString("bogus", MessageFanoutRouter.RejectionPolicy.BLOCK));
+  }
+
+  /**
+   * Router that records the routed messages. If a latch is supplied every route call waits for it.
+   */
+  private static class RecordingPacketRouter implements PacketRouter {
+    private final List<Message> routed = new ArrayList<Message>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release;
+
+    private RecordingPacketRouter(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void route(Packet packet) {
+    }
+
+    @Override
+    public void route(Message packet) {
+      started.countDown();
+      if (release != null) {
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      synchronized (routed) {
+        routed.add(packet);
+      }
+    }
+
+    @Override
+    public void route(IQ packet) {
+    }
+
+    @Override
+    public void route(Presence packet) {
+    }
+  }
+}
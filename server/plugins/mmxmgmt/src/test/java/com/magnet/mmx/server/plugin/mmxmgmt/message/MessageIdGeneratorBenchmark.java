@@ -0,0 +1,99 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.message;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.push.PushIdGenerator;
+import com.magnet.mmx.server.plugin.mmxmgmt.push.PushIdGeneratorImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the id generators used for messages and push messages.
+ * <p>
+ * The "perRecipient" benchmarks create a new generator for every id, which is how
+ * MessageSenderImpl used MessageIdGeneratorImpl. Run from the IDE or with:
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.magnet.mmx.server.plugin.mmxmgmt.message.MessageIdGeneratorBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageIdGeneratorBenchmark {
+  private static final String CLIENT_ID = "login3";
+  private static final String DEVICE_ID = "D009C747-6DF1-4A67-A2F6-F8AF210AB062";
+  private static final String APP_ID = "ocei5yeerqr";
+
+  private final MessageIdGenerator md5Generator = new MessageIdGeneratorImpl();
+  private final PushIdGenerator pushIdGenerator = new PushIdGeneratorImpl();
+  private final MessageIdGenerator timeOrderedGenerator = new TimeOrderedMessageIdGenerator(1);
+
+  @Benchmark
+  public String md5PerRecipient() {
+    return new MessageIdGeneratorImpl().generate(CLIENT_ID, APP_ID, DEVICE_ID);
+  }
+
+  @Benchmark
+  public String md5Shared() {
+    return md5Generator.generate(CLIENT_ID, APP_ID, DEVICE_ID);
+  }
+
+  @Benchmark
+  public String pushIdShared() {
+    return pushIdGenerator.generateId(APP_ID, DEVICE_ID);
+  }
+
+  @Benchmark
+  public String timeOrderedShared() {
+    return timeOrderedGenerator.generate(CLIENT_ID, APP_ID, DEVICE_ID);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String md5SharedContended() {
+    return md5Generator.generate(CLIENT_ID, APP_ID, DEVICE_ID);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String timeOrderedSharedContended() {
+    return timeOrderedGenerator.generate(CLIENT_ID, APP_ID, DEVICE_ID);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(MessageIdGeneratorBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+}
@@ -15,7 +15,9 @@
 package com.magnet.mmx.server.plugin.mmxmgmt.message;
 
 import com.magnet.mmx.protocol.Constants;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.ErrorCode;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.SendMessageRequest;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.SentMessageId;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Count;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.BasicDataSourceConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.ConnectionProvider;
@@ -29,20 +31,30 @@ import org.dbunit.dataset.IDataSet;
 import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
 import org.dbunit.operation.DatabaseOperation;
 import org.dom4j.Element;
+import org.jivesoftware.openfire.PacketRouter;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
 
 import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -129,6 +141,40 @@ public class MessageSenderImplTest {
  }
 
 
+  @Test
+  public void testSendToMultipleRecipients() throws Exception {
+    SendMessageRequest request = new SendMessageRequest();
+    request.setRecipientUsernames(Arrays.asList("login3", "unknown", "Login10", "tooluser"));
+    request.setContent("Simple Message");
+    request.setReceipt(true);
+
+    String appId = "i0sq7ddvi17";
+
+    MessageReturningStubMessageSenderImpl sender = new MessageReturningStubMessageSenderImpl();
+    SendMessageResult result = sender.send(appId, request);
+    assertFalse("Expect error flag to be not set", result.isError());
+    Count count = result.getCount();
+    assertEquals("Non matching requested count", 4, count.getRequested());
+    assertEquals("Non matching sent count", 3, count.getSent());
+    assertEquals("Non matching unsent count", 1, count.getUnsent());
+    assertEquals("Non matching unsent recipient", "unknown", result.getUnsentList().get(0).getRecipientUsername());
+
+    //every recipient gets its own copy of the message
+    List<SentMessageId> sentList = result.getSentList();
+    assertEquals("Non matching sent list size", 3, sentList.size());
+    Set<String> messageIds = new HashSet<String>();
+    for (int i = 0; i < sentList.size(); i++) {
+      Message message = sender.messageList.get(i);
+      assertEquals("Non matching message id", sentList.get(i).getMessageId(), message.getID());
+      String expectedNode = sentList.get(i).getRecipientUsername() + JIDUtil.APP_ID_DELIMITER + appId;
+      assertEquals("Non matching to", expectedNode.toLowerCase(), message.getTo().getNode());
+      assertNotNull("Receipt element is missing",
+          message.getChildElement(Constants.XMPP_REQUEST, Constants.XMPP_NS_RECEIPTS));
+      messageIds.add(message.getID());
+    }
+    assertEquals("Message ids are not unique", 3, messageIds.size());
+  }
+
   @Test
   public void testSendWithBadAppId() throws Exception {
     SendMessageRequest request = new SendMessageRequest();
@@ -181,6 +227,71 @@ public class MessageSenderImplTest {
 
 
 
+  @Test
+  public void testDroppedMessagesAreReportedUnsent() throws Exception {
+    //single slot lane: the worker blocks on the first message and the second fills the lane
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingPacketRouter router = new BlockingPacketRouter(release);
+    final MessageFanoutRouter fanout = new MessageFanoutRouter();
+    fanout.start(1, 1, MessageFanoutRouter.RejectionPolicy.DROP);
+    try {
+      JID to = new JID("blocker%app", "localhost", "device1");
+      Message first = new Message();
+      first.setTo(to);
+      assertTrue(fanout.route(router, first));
+      assertTrue(router.started.tryAcquire(5, TimeUnit.SECONDS));
+      Message second = new Message();
+      second.setTo(to);
+      assertTrue(fanout.route(router, second));
+
+      MessageSenderImpl sender = new StubMessageSenderImpl() {
+        @Override
+        protected boolean routeMessage(Message message) {
+          return getFanoutRouter().route(getPacketRouter(), message);
+        }
+
+        @Override
+        protected MessageFanoutRouter getFanoutRouter() {
+          return fanout;
+        }
+
+        @Override
+        public PacketRouter getPacketRouter() {
+          return new BlockingPacketRouter(null);
+        }
+      };
+
+      SendMessageRequest request = new SendMessageRequest();
+      request.setRecipientUsernames(Arrays.asList("login3", "unknown", "Login10"));
+      request.setContent("Simple Message");
+      SendMessageResult result = sender.send("i0sq7ddvi17", request);
+      assertFalse(result.isError());
+      Count count = result.getCount();
+      assertEquals("Non matching requested count", 3, count.getRequested());
+      assertEquals("Dropped messages are reported as sent", 0, count.getSent());
+      assertEquals("Non matching unsent count", 3, count.getUnsent());
+      assertTrue(result.getSentList().isEmpty());
+      int dropped = 0;
+      for (UnsentMessage unsent : result.getUnsentList()) {
+        if (unsent.getCode() == ErrorCode.SEND_MESSAGE_DROPPED.getCode()) {
+          dropped++;
+        }
+      }
+      assertEquals(2, dropped);
+
+      request = new SendMessageRequest();
+      request.setDeviceId("12345678987654322");
+      request.setContent("Simple Message");
+      result = sender.send("AAABSNIBKOstQST7", request);
+      assertEquals("Dropped device message is reported as sent", 0, result.getCount().getSent());
+      assertEquals(1, result.getCount().getUnsent());
+      assertEquals(ErrorCode.SEND_MESSAGE_DROPPED.getCode(), result.getUnsentList().get(0).getCode());
+    } finally {
+      release.countDown();
+      fanout.stop(10);
+    }
+  }
+
   private static class StubMessageSenderImpl extends MessageSenderImpl {
     @Override
     protected ConnectionProvider getConnectionProvider() {
@@ -188,9 +299,10 @@ public class MessageSenderImplTest {
     }
 
     @Override
-    protected void routeMessage(Message message) {
+    protected boolean routeMessage(Message message) {
       assertNotNull(message.getID());
       LOGGER.warn("I am stubbed out and do no routing");
+      return true;
     }
 
     @Override
@@ -207,9 +319,10 @@ public class MessageSenderImplTest {
     }
 
     @Override
-    protected void routeMessage(Message message) {
+    protected boolean routeMessage(Message message) {
       super.routeMessage(message);
       messageList.add(message);
+      return true;
     }
 
     @Override
@@ -217,4 +330,40 @@ public class MessageSenderImplTest {
       return "localhost";
     }
   }
+
+  /**
+   * Router whose route call waits for the latch, if one is supplied.
+   */
+  private static class BlockingPacketRouter implements PacketRouter {
+    private final Semaphore started = new Semaphore(0);
+    private final CountDownLatch release;
+
+    private BlockingPacketRouter(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void route(Packet packet) {
+    }
+
+    @Override
+    public void route(Message packet) {
+      started.release();
+      if (release != null) {
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    @Override
+    public void route(IQ packet) {
+    }
+
+    @Override
+    public void route(Presence packet) {
+    }
+  }
 }
@@ -0,0 +1,140 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.message;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class TimeOrderedMessageIdGeneratorTest {
+  private static final String CLIENT_ID = "login3";
+  private static final String DEVICE_ID = "D009C747-6DF1-4A67-A2F6-F8AF210AB062";
+  private static final String APP_ID = "ocei5yeerqr";
+
+  @Test
+  public void testFormat() throws Exception {
+    TimeOrderedMessageIdGenerator generator = new StubMessageIdGenerator(0x1a2b, 1424981217 * 1000L);
+    String messageId = generator.generate(CLIENT_ID, APP_ID, DEVICE_ID);
+    assertEquals(32, messageId.length());
+    assertTrue("Not lower case hex:" + messageId, messageId.matches("[0-9a-f]{32}"));
+    assertEquals(1424981217 * 1000L, TimeOrderedMessageIdGenerator.getTimestamp(messageId));
+    assertEquals("1a2b", messageId.substring(12, 16));
+  }
+
+  @Test
+  public void testUniqueWithFixedTime() throws Exception {
+    TimeOrderedMessageIdGenerator generator = new StubMessageIdGenerator(1, 1424981217 * 1000L);
+    Set<String> idSet = new HashSet<String>();
+    int size = 100000;
+    for (int i = 0; i < size; i++) {
+      String messageId = generator.generate(CLIENT_ID, APP_ID, DEVICE_ID);
+      assertFalse("Generated id is already contained", idSet.contains(messageId));
+      idSet.add(messageId);
+    }
+  }
+
+  @Test
+  public void testSortedByTime() throws Exception {
+    StubMessageIdGenerator generator = new StubMessageIdGenerator(7, 1000L);
+    List<String> ids = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      generator.time = 1000L + i * 37L;
+      ids.add(generator.generateTopicMessageId(APP_ID, "topic"));
+      ids.add(generator.generateItemIdentifier("topic"));
+    }
+    List<String> sorted = new ArrayList<String>(ids);
+    Collections.sort(sorted);
+    for (int i = 0; i < sorted.size() - 1; i++) {
+      assertTrue(TimeOrderedMessageIdGenerator.getTimestamp(sorted.get(i)) <=
+          TimeOrderedMessageIdGenerator.getTimestamp(sorted.get(i + 1)));
+    }
+  }
+
+  @Test
+  public void testDifferentNodesDontCollide() throws Exception {
+    TimeOrderedMessageIdGenerator one = new StubMessageIdGenerator(1, 5000L);
+    TimeOrderedMessageIdGenerator two = new StubMessageIdGenerator(2, 5000L);
+    Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    for (int i = 0; i < 1000; i++) {
+      ids.add(one.generate(CLIENT_ID, APP_ID, null));
+      ids.add(two.generate(CLIENT_ID, APP_ID, null));
+    }
+    assertEquals(2000, ids.size());
+  }
+
+  @Test
+  public void testSharedAcrossThreads() throws Exception {
+    final TimeOrderedMessageIdGenerator generator = new TimeOrderedMessageIdGenerator(3);
+    final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final int threads = 8;
+    final int perThread = 10000;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < perThread; i++) {
+              ids.add(generator.generate(CLIENT_ID, APP_ID, DEVICE_ID));
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    done.await();
+    assertEquals(threads * perThread, ids.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidNodeId() throws Exception {
+    new TimeOrderedMessageIdGenerator(0x10000);
+  }
+
+  @Test
+  public void testToNodeId() throws Exception {
+    byte[] clusterNodeId = "aa2e7a04-45ba-4d4c-8d9f-77f9f4d0a5c1".getBytes("UTF-8");
+    int nodeId = TimeOrderedMessageIdGenerator.toNodeId(clusterNodeId);
+    assertTrue(nodeId >= 0 && nodeId <= 0xFFFF);
+    assertEquals(nodeId, TimeOrderedMessageIdGenerator.toNodeId(clusterNodeId.clone()));
+  }
+
+  static class StubMessageIdGenerator extends TimeOrderedMessageIdGenerator {
+    private long time;
+
+    StubMessageIdGenerator(int nodeId, long time) {
+      super(nodeId);
+      this.time = time;
+    }
+
+    @Override
+    protected long getCurrentTimeMillis() {
+      return time;
+    }
+  }
+}
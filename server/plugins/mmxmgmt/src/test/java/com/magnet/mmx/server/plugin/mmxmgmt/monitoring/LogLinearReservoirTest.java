@@ -0,0 +1,163 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.monitoring;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class LogLinearReservoirTest {
+
+  @Test
+  public void testSmallValuesAreExact() {
+    for (int i = 0; i < LogLinearReservoir.SUB_BUCKETS; i++) {
+      assertEquals(i, LogLinearReservoir.index(i));
+      assertEquals(i, LogLinearReservoir.representative(i));
+    }
+  }
+
+  @Test
+  public void testBucketsCoverTheRange() {
+    assertEquals(LogLinearReservoir.BUCKETS - 1, LogLinearReservoir.index(Long.MAX_VALUE));
+    long[] values = {32L, 33L, 1000L, 123456789L, 1L << 40, Long.MAX_VALUE / 3};
+    for (long value : values) {
+      long representative = LogLinearReservoir.representative(LogLinearReservoir.index(value));
+      assertTrue("value " + value, Math.abs(representative - value) <= value / LogLinearReservoir.SUB_BUCKETS);
+    }
+  }
+
+  @Test
+  public void testSnapshot() {
+    LogLinearReservoir reservoir = new LogLinearReservoir();
+    for (long i = 1; i <= 100000; i++) {
+      reservoir.update(i * 1000L);
+    }
+    Snapshot snapshot = reservoir.getSnapshot();
+    assertEquals(100000, snapshot.size());
+    assertEquals(1000L, snapshot.getMin());
+    assertEquals(100000000L, snapshot.getMax());
+    assertEquals(50000500d, snapshot.getMean(), 0.001d);
+    assertEquals(50000000d, snapshot.getMedian(), 50000000d * 0.03d);
+    assertEquals(99000000d, snapshot.get99thPercentile(), 99000000d * 0.03d);
+    assertEquals(LogLinearReservoir.SAMPLE_SIZE, snapshot.getValues().length);
+  }
+
+  @Test
+  public void testEmptySnapshot() {
+    Snapshot snapshot = new LogLinearReservoir().getSnapshot();
+    assertEquals(0, snapshot.size());
+    assertEquals(0d, snapshot.getMedian(), 0d);
+    assertEquals(0L, snapshot.getMax());
+    assertEquals(0, snapshot.getValues().length);
+  }
+
+  @Test
+  public void testWindowsRotate() {
+    FakeClock clock = new FakeClock();
+    LogLinearReservoir reservoir = new LogLinearReservoir(60, TimeUnit.SECONDS, clock);
+    for (int i = 0; i < 100; i++) {
+      reservoir.update(10L);
+    }
+    clock.advance(61, TimeUnit.SECONDS);
+    for (int i = 0; i < 100; i++) {
+      reservoir.update(1000L);
+    }
+    //current and previous window
+    LogLinearReservoir.BucketSnapshot snapshot = (LogLinearReservoir.BucketSnapshot) reservoir.getSnapshot();
+    assertEquals(200, snapshot.size());
+    assertEquals(10L, snapshot.getMin());
+    assertEquals(1000L, snapshot.getMax());
+
+    clock.advance(60, TimeUnit.SECONDS);
+    snapshot = (LogLinearReservoir.BucketSnapshot) reservoir.getSnapshot();
+    assertEquals("Oldest window not dropped", 100, snapshot.size());
+    assertEquals(1000L, snapshot.getMin());
+    assertEquals(1000d, snapshot.getMedian(), 1000d * 0.03d);
+    assertEquals(100000d, snapshot.getMean() * snapshot.size(), 0d);
+    assertEquals("Sum isn't cumulative", 101000L, snapshot.getSum());
+
+    //idle for longer than two windows
+    clock.advance(150, TimeUnit.SECONDS);
+    snapshot = (LogLinearReservoir.BucketSnapshot) reservoir.getSnapshot();
+    assertEquals(0, snapshot.size());
+    assertEquals(0L, snapshot.getMax());
+    assertEquals(101000L, snapshot.getSum());
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    final LogLinearReservoir reservoir = new LogLinearReservoir();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10000; i++) {
+            reservoir.update(i);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Snapshot snapshot = reservoir.getSnapshot();
+    assertEquals(40000, snapshot.size());
+    assertEquals(9999L, snapshot.getMax());
+  }
+
+  @Test
+  public void testPrometheusText() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    registry.counter("interceptor.packets").inc(3);
+    Timer timer = new Timer(new LogLinearReservoir());
+    registry.register("push.apns.send", timer);
+    timer.update(2, TimeUnit.SECONDS);
+    StringWriter out = new StringWriter();
+    new PrometheusTextFormatter("mmx").write(registry, out);
+    String text = out.toString();
+    assertTrue(text, text.contains("# TYPE mmx_interceptor_packets counter\nmmx_interceptor_packets 3\n"));
+    assertTrue(text, text.contains("# TYPE mmx_push_apns_send_seconds summary\n"));
+    assertTrue(text, text.contains("mmx_push_apns_send_seconds_sum 2\n"));
+    assertTrue(text, text.contains("mmx_push_apns_send_seconds_count 1\n"));
+  }
+
+  /**
+   * Clock that only moves when the test advances it.
+   */
+  private static class FakeClock extends Clock {
+    private long tick;
+
+    @Override
+    public long getTick() {
+      return tick;
+    }
+
+    private void advance(long duration, TimeUnit unit) {
+      tick += unit.toNanos(duration);
+    }
+  }
+}
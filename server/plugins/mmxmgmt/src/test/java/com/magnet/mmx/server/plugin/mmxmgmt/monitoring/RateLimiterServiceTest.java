@@ -41,7 +41,7 @@ public class RateLimiterServiceTest {
 
   public void testMessageRatesBurst() throws Exception {
     resetCounters();
-    String appId = "test";
+    final String appId = "test";
     final long testDuration = 10L;
      /*
      * Cap 100 permits per second
@@ -57,8 +57,8 @@ public class RateLimiterServiceTest {
 
     final double expFailPercent = (attemptedRate - cappedRateLimit) * 100.0 / (double)attemptedRate;
 
-    final RateLimiterDescriptor inApp = new RateLimiterDescriptor(MMXServerConstants.XMPP_RATE_TYPE, appId, cappedRateLimit);
-    final RateLimiterDescriptor push = new RateLimiterDescriptor(MMXServerConstants.HTTP_RATE_TYPE, appId, cappedRateLimit);
+    final TokenBucketRateLimiter inApp = newLimiter(MMXServerConstants.XMPP_RATE_TYPE, cappedRateLimit);
+    final TokenBucketRateLimiter push = newLimiter(MMXServerConstants.HTTP_RATE_TYPE, cappedRateLimit);
 
     ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
     final ScheduledExecutorService msgExecutor = Executors.newScheduledThreadPool(attemptedRate);
@@ -70,11 +70,11 @@ public class RateLimiterServiceTest {
           msgExecutor.submit(new Runnable() {
             @Override
             public void run() {
-              if (RateLimiterService.isAllowed(inApp))
+              if (inApp.tryAcquire(appId, null, null))
                 inAppSuccess.incrementAndGet();
               else
                 inAppFailure.incrementAndGet();
-              if (RateLimiterService.isAllowed(push))
+              if (push.tryAcquire(appId, null, null))
                 pushSuccess.incrementAndGet();
               else
                 pushFailure.incrementAndGet();
@@ -94,7 +94,7 @@ public class RateLimiterServiceTest {
   }
 
   public void testMessageRates() throws Exception {
-    String appId = "test";
+    final String appId = "test";
     ScheduledFuture<?> inAppFuture;
     ScheduledFuture<?> pushFuture;
     resetCounters();
@@ -131,8 +131,8 @@ public class RateLimiterServiceTest {
     ScheduledExecutorService pushExecutor = Executors.newSingleThreadScheduledExecutor();
     ScheduledExecutorService stopTestExecutor = Executors.newSingleThreadScheduledExecutor();
 
-    final RateLimiterDescriptor inApp = new RateLimiterDescriptor(MMXServerConstants.XMPP_RATE_TYPE, appId, cappedRateLimit);
-    final RateLimiterDescriptor push = new RateLimiterDescriptor(MMXServerConstants.HTTP_RATE_TYPE, appId, cappedRateLimit);
+    final TokenBucketRateLimiter inApp = newLimiter(MMXServerConstants.XMPP_RATE_TYPE, cappedRateLimit);
+    final TokenBucketRateLimiter push = newLimiter(MMXServerConstants.HTTP_RATE_TYPE, cappedRateLimit);
 
     /**
      * Try getting a permit every "period" times a second. I.e in 1 minute (1000 milliseconds) try acquiring a permit
@@ -143,7 +143,7 @@ public class RateLimiterServiceTest {
     inAppFuture = inAppExecutor.scheduleAtFixedRate(new Runnable() {
 
       public void run() {
-        if (RateLimiterService.isAllowed(inApp))
+        if (inApp.tryAcquire(appId, null, null))
           inAppSuccess.incrementAndGet();
         else
           inAppFailure.incrementAndGet();
@@ -153,7 +153,7 @@ public class RateLimiterServiceTest {
     pushFuture = pushExecutor.scheduleAtFixedRate(new Runnable() {
 
       public void run() {
-        if (RateLimiterService.isAllowed(push))
+        if (push.tryAcquire(appId, null, null))
           pushSuccess.incrementAndGet();
         else
           pushFailure.incrementAndGet();
@@ -187,6 +187,12 @@ public class RateLimiterServiceTest {
     }
   }
 
+  private static TokenBucketRateLimiter newLimiter(String type, long permitsPerSecond) {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(type);
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, permitsPerSecond);
+    return limiter;
+  }
+
   private void resetCounters() {
     inAppFailure.set(0);
     inAppFailure.set(0);
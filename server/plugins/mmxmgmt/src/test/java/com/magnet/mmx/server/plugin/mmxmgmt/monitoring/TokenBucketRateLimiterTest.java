@@ -0,0 +1,161 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.monitoring;
+
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class TokenBucketRateLimiterTest {
+  private static final String APP_ID = "ratelimitapp";
+  private static final long MILLIS = 1000000L;
+
+  private ManualClockLimiter limiter;
+
+  @Before
+  public void setup() {
+    limiter = new ManualClockLimiter();
+  }
+
+  @Test
+  public void testBurstIsOneSecondOfPermits() {
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 10);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(limiter.tryAcquire(APP_ID, null, null));
+    }
+    assertFalse(limiter.tryAcquire(APP_ID, null, null));
+    assertEquals(1, limiter.getRejectedCount());
+  }
+
+  @Test
+  public void testRefill() {
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 10);
+    for (int i = 0; i < 10; i++) {
+      limiter.tryAcquire(APP_ID, null, null);
+    }
+    assertFalse(limiter.tryAcquire(APP_ID, null, null));
+    limiter.advance(100 * MILLIS);
+    assertTrue(limiter.tryAcquire(APP_ID, null, null));
+    assertFalse(limiter.tryAcquire(APP_ID, null, null));
+  }
+
+  @Test
+  public void testAppsHaveSeparateBuckets() {
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 1);
+    assertTrue(limiter.tryAcquire(APP_ID, null, null));
+    assertFalse(limiter.tryAcquire(APP_ID, null, null));
+    assertTrue(limiter.tryAcquire("otherapp", null, null));
+  }
+
+  @Test
+  public void testUserAndDeviceScopes() {
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 100);
+    limiter.setRate(TokenBucketRateLimiter.Scope.USER, 3);
+    limiter.setRate(TokenBucketRateLimiter.Scope.DEVICE, 2);
+    assertTrue(limiter.tryAcquire(APP_ID, "user1", "device1"));
+    assertTrue(limiter.tryAcquire(APP_ID, "user1", "device1"));
+    //device limit reached
+    assertFalse(limiter.tryAcquire(APP_ID, "user1", "device1"));
+    assertTrue(limiter.tryAcquire(APP_ID, "user1", "device2"));
+    //user limit reached
+    assertFalse(limiter.tryAcquire(APP_ID, "user1", "device3"));
+    assertTrue(limiter.tryAcquire(APP_ID, "user2", "device4"));
+    //rejected requests don't use the app budget
+    for (int i = 0; i < 96; i++) {
+      assertTrue(limiter.tryAcquire(APP_ID, null, null));
+    }
+    assertFalse(limiter.tryAcquire(APP_ID, null, null));
+  }
+
+  @Test
+  public void testAppRejectionGivesBackNarrowerPermits() {
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 2);
+    limiter.setRate(TokenBucketRateLimiter.Scope.USER, 1);
+    limiter.setRate(TokenBucketRateLimiter.Scope.DEVICE, 1);
+    assertTrue(limiter.tryAcquire(APP_ID, null, null));
+    assertTrue(limiter.tryAcquire(APP_ID, null, null));
+    //app limit reached; the user and device permits are given back
+    assertFalse(limiter.tryAcquire(APP_ID, "user1", "device1"));
+    limiter.advance(500 * MILLIS);
+    //the app has a permit again and the user and device still have theirs
+    assertTrue(limiter.tryAcquire(APP_ID, "user1", "device1"));
+  }
+
+  @Test
+  public void testDisabledScopeAllowsEverything() {
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(limiter.tryAcquire(APP_ID, "user1", "device1"));
+    }
+    assertEquals(0, limiter.getBucketCount());
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 1);
+    limiter.tryAcquire(APP_ID, null, null);
+    assertEquals(1, limiter.getBucketCount());
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 0);
+    assertEquals(0, limiter.getBucketCount());
+    assertTrue(limiter.tryAcquire(APP_ID, null, null));
+  }
+
+  @Test
+  public void testRateChangeKeepsBuckets() {
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 2);
+    assertTrue(limiter.tryAcquire(APP_ID, null, null));
+    assertTrue(limiter.tryAcquire(APP_ID, null, null));
+    assertFalse(limiter.tryAcquire(APP_ID, null, null));
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 10);
+    assertEquals(10, limiter.getRate(TokenBucketRateLimiter.Scope.APP));
+    assertEquals(1, limiter.getBucketCount());
+    //the permits already taken still count against the new limit
+    assertFalse(limiter.tryAcquire(APP_ID, null, null));
+    limiter.advance(100 * MILLIS);
+    assertTrue(limiter.tryAcquire(APP_ID, null, null));
+  }
+
+  @Test
+  public void testPurgeOnlyRemovesFullBuckets() {
+    limiter.setRate(TokenBucketRateLimiter.Scope.APP, 2);
+    limiter.tryAcquire(APP_ID, null, null);
+    limiter.tryAcquire(APP_ID, null, null);
+    limiter.tryAcquire("otherapp", null, null);
+    limiter.advance(600 * MILLIS);
+    //otherapp is full again, ratelimitapp is not
+    assertEquals(1, limiter.purgeIdle());
+    assertEquals(1, limiter.getBucketCount());
+    assertTrue(limiter.tryAcquire(APP_ID, null, null));
+    assertFalse(limiter.tryAcquire(APP_ID, null, null));
+  }
+
+  private static class ManualClockLimiter extends TokenBucketRateLimiter {
+    private long now = 1000L * MILLIS;
+
+    ManualClockLimiter() {
+      super(MMXServerConstants.XMPP_RATE_TYPE);
+    }
+
+    void advance(long nanos) {
+      now += nanos;
+    }
+
+    @Override
+    protected long nanoTime() {
+      return now;
+    }
+  }
+}
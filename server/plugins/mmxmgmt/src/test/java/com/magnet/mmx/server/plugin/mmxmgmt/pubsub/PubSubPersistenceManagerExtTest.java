@@ -18,33 +18,57 @@ import com.magnet.mmx.protocol.SearchAction;
 import com.magnet.mmx.protocol.TopicAction;
 import com.magnet.mmx.server.plugin.mmxmgmt.api.query.TopicQuery;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.BasicDataSourceConnectionProvider;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.CloseUtil;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAOImplTest;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.QueryBuilderResult;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.SearchResult;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.UnitTestDSProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.search.PaginationInfo;
+import mockit.Mock;
+import mockit.MockUp;
+import mockit.integration.junit4.JMockit;
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.lang.RandomStringUtils;
 import org.dbunit.database.DatabaseConnection;
 import org.dbunit.database.IDatabaseConnection;
 import org.dbunit.dataset.IDataSet;
 import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
 import org.dbunit.operation.DatabaseOperation;
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.pubsub.DefaultNodeConfiguration;
+import org.jivesoftware.openfire.pubsub.LeafNode;
+import org.jivesoftware.openfire.pubsub.PubSubPersistenceManager;
+import org.jivesoftware.openfire.pubsub.PubSubService;
+import org.jivesoftware.openfire.pubsub.PublishedItem;
+import org.jivesoftware.util.StringUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 
 /**
  */
+@RunWith(JMockit.class)
 public class PubSubPersistenceManagerExtTest {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PubSubPersistenceManagerExtTest.class);
+  private static final String ITEM_SERVICE_ID = "pubsub" + RandomStringUtils.randomAlphabetic(5);
+  private static final String ITEM_NODE_PREFIX = "/" + RandomStringUtils.randomAlphabetic(7) + "/";
 
   private static BasicDataSource ds;
   private QueryBuilderResult builtQueries;
@@ -72,6 +96,7 @@ public class PubSubPersistenceManagerExtTest {
 
   @AfterClass
   public static void teardown() {
+    deletePublishedItems();
     try {
       ds.close();
     } catch (SQLException e) {
@@ -224,4 +249,136 @@ public class PubSubPersistenceManagerExtTest {
     List<TopicAction.TopicInfoWithSubscriptionCount> results = topicList.getResults();
     assertNotNull(results);
   }
+
+  @Test
+  public void testGetPublishedItemsOfNodesIsLimitedPerNode() throws Exception {
+    PubSubService service = mockItemService(null);
+    LeafNode busy = new LeafNode(service, null, ITEM_NODE_PREFIX + "busy", null);
+    busy.setMaxPublishedItems(-1);
+    LeafNode capped = new LeafNode(service, null, ITEM_NODE_PREFIX + "capped", null);
+    capped.setMaxPublishedItems(2);
+    LeafNode empty = new LeafNode(service, null, ITEM_NODE_PREFIX + "empty", null);
+    empty.setMaxPublishedItems(-1);
+
+    Date now = new Date();
+    insertPublishedItems(busy.getNodeID(), 20, now);
+    insertPublishedItems(capped.getNodeID(), 5, now);
+
+    Map<String, List<PublishedItem>> items = PubSubPersistenceManagerExt.getPublishedItems(
+        Arrays.asList(busy, capped, empty), 3, new Date(now.getTime() - 60 * 60 * 1000L));
+
+    assertEquals("Busy node isn't limited to maxRows", 3, items.get(busy.getNodeID()).size());
+    assertEquals("Capped node isn't limited to its max items", 2, items.get(capped.getNodeID()).size());
+    assertFalse("Node without items is included", items.containsKey(empty.getNodeID()));
+    //newest items of the node, in ascending order
+    List<PublishedItem> busyItems = items.get(busy.getNodeID());
+    assertEquals("item-2", busyItems.get(0).getID());
+    assertEquals("item-0", busyItems.get(2).getID());
+  }
+
+  @Test
+  public void testGetPublishedItemsOfNodesAcrossQueryChunks() throws Exception {
+    PubSubService service = mockItemService(null);
+    int nodeCount = PubSubPersistenceManagerExt.MAX_NODES_PER_QUERY + 3;
+    List<LeafNode> nodes = new ArrayList<LeafNode>(nodeCount);
+    Date now = new Date();
+    for (int i = 0; i < nodeCount; i++) {
+      LeafNode node = new LeafNode(service, null, ITEM_NODE_PREFIX + "chunked" + i, null);
+      node.setMaxPublishedItems(-1);
+      nodes.add(node);
+      insertPublishedItems(node.getNodeID(), 2, now);
+    }
+
+    Map<String, List<PublishedItem>> items = PubSubPersistenceManagerExt.getPublishedItems(
+        nodes, 1, new Date(now.getTime() - 60 * 60 * 1000L));
+    assertEquals("Non matching node count", nodeCount, items.size());
+    for (LeafNode node : nodes) {
+      List<PublishedItem> nodeItems = items.get(node.getNodeID());
+      assertEquals(1, nodeItems.size());
+      assertEquals("item-0", nodeItems.get(0).getID());
+      assertEquals(node.getNodeID(), nodeItems.get(0).getNode().getNodeID());
+    }
+  }
+
+  @Test(expected = SQLException.class)
+  public void testGetPublishedItemsOfNodesReportsFailure() throws Exception {
+    PubSubService service = mockItemService(new SQLException("DB is down"));
+    LeafNode node = new LeafNode(service, null, ITEM_NODE_PREFIX + "failed", null);
+    PubSubPersistenceManagerExt.getPublishedItems(Arrays.asList(node), 3, new Date());
+  }
+
+  /**
+   * Mock the pubsub service and the Openfire DB access used for reading published items.
+   * @param connectionFailure if not null, thrown when a connection is requested
+   * @return pubsub service with id {@link #ITEM_SERVICE_ID}
+   */
+  private static PubSubService mockItemService(final SQLException connectionFailure) {
+    new MockUp<DbConnectionManager>() {
+      @Mock
+      public Connection getConnection() throws SQLException {
+        if (connectionFailure != null) {
+          throw connectionFailure;
+        }
+        return ds.getConnection();
+      }
+
+      @Mock
+      public DbConnectionManager.DatabaseType getDatabaseType() {
+        return DbConnectionManager.DatabaseType.mysql;
+      }
+    };
+    new MockUp<PubSubPersistenceManager>() {
+      @Mock
+      public void flushPendingItems() {
+      }
+    };
+    return new MockUp<PubSubService>() {
+      @Mock
+      public String getServiceID() {
+        return ITEM_SERVICE_ID;
+      }
+
+      @Mock
+      public DefaultNodeConfiguration getDefaultNodeConfiguration(boolean leaf) {
+        return new DefaultNodeConfiguration(leaf);
+      }
+    }.getMockInstance();
+  }
+
+  private static void insertPublishedItems(String nodeID, int count, Date newest) throws SQLException {
+    Connection conn = null;
+    PreparedStatement pstmt = null;
+    try {
+      conn = ds.getConnection();
+      pstmt = conn.prepareStatement("INSERT INTO ofPubsubItem (serviceID, nodeID, id, jid, creationDate, payload) " +
+          "VALUES (?, ?, ?, ?, ?, ?)");
+      for (int i = 0; i < count; i++) {
+        pstmt.setString(1, ITEM_SERVICE_ID);
+        pstmt.setString(2, nodeID);
+        pstmt.setString(3, "item-" + i);
+        pstmt.setString(4, "user1%aaaaaaa@localhost/testdevice");
+        pstmt.setString(5, StringUtils.dateToMillis(new Date(newest.getTime() - i * 1000L)));
+        pstmt.setString(6, "<payload/>");
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, conn);
+    }
+  }
+
+  private static void deletePublishedItems() {
+    Connection conn = null;
+    PreparedStatement pstmt = null;
+    try {
+      conn = ds.getConnection();
+      pstmt = conn.prepareStatement("DELETE FROM ofPubsubItem WHERE serviceID = ?");
+      pstmt.setString(1, ITEM_SERVICE_ID);
+      pstmt.executeUpdate();
+    } catch (SQLException e) {
+      LOGGER.error("deletePublishedItems : caught exception cleaning ofPubsubItem", e);
+    } finally {
+      CloseUtil.close(LOGGER, pstmt, conn);
+    }
+  }
 }
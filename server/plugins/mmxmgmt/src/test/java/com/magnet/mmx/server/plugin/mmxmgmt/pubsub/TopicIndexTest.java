@@ -0,0 +1,309 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.pubsub;
+
+import com.google.common.base.Ticker;
+import com.magnet.mmx.server.plugin.mmxmgmt.util.MMXServerConstants;
+import com.magnet.mmx.util.TopicHelper;
+import mockit.Invocation;
+import mockit.Mock;
+import mockit.MockUp;
+import mockit.integration.junit4.JMockit;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.pubsub.DefaultNodeConfiguration;
+import org.jivesoftware.openfire.pubsub.LeafNode;
+import org.jivesoftware.openfire.pubsub.Node;
+import org.jivesoftware.openfire.pubsub.NodeSubscription;
+import org.jivesoftware.openfire.pubsub.PubSubService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmpp.packet.JID;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link TopicIndex}.
+ */
+@RunWith(JMockit.class)
+public class TopicIndexTest {
+  private static final String APP_ID = "topicindexapp";
+  private static final String OTHER_APP_ID = "otherapp";
+  private static final JID USER = new JID("user1%" + APP_ID + "@localhost/device1");
+  private static final JID OTHER_USER = new JID("user2%" + APP_ID + "@localhost/device2");
+
+  private final Map<String, Node> nodes = new HashMap<String, Node>();
+  private final Map<String, List<NodeSubscription>> subscriptions = new HashMap<String, List<NodeSubscription>>();
+  private PubSubService service;
+  private Runnable onScan;
+  private FakeTicker ticker;
+  private TopicIndex index;
+
+  @Before
+  public void setup() {
+    service = new MockUp<PubSubService>() {
+      @Mock
+      public Node getNode(String nodeID) {
+        return nodes.get(nodeID);
+      }
+
+      @Mock
+      public Collection<Node> getNodes() {
+        return new ArrayList<Node>(nodes.values());
+      }
+
+      @Mock
+      public DefaultNodeConfiguration getDefaultNodeConfiguration(boolean leaf) {
+        return new DefaultNodeConfiguration(leaf);
+      }
+    }.getMockInstance();
+    new MockUp<Node>() {
+      @Mock
+      public Collection<NodeSubscription> getAllSubscriptions(Invocation inv) {
+        Node node = inv.getInvokedInstance();
+        List<NodeSubscription> list = subscriptions.get(node.getNodeID());
+        Collection<NodeSubscription> result = list == null ? new ArrayList<NodeSubscription>() :
+            new ArrayList<NodeSubscription>(list);
+        //changes made by the hook happen after the scan has read the node
+        Runnable hook = onScan;
+        onScan = null;
+        if (hook != null) {
+          hook.run();
+        }
+        return result;
+      }
+
+      @Mock
+      public Collection<NodeSubscription> getSubscriptions(Invocation inv, JID owner) {
+        Node node = inv.getInvokedInstance();
+        List<NodeSubscription> result = new ArrayList<NodeSubscription>();
+        List<NodeSubscription> list = subscriptions.get(node.getNodeID());
+        if (list != null) {
+          for (NodeSubscription subscription : list) {
+            if (subscription.getOwner().toBareJID().equals(owner.toBareJID())) {
+              result.add(subscription);
+            }
+          }
+        }
+        return result;
+      }
+    };
+    new MockUp<ClusterManager>() {
+      @Mock
+      public boolean isClusteringEnabled() {
+        return false;
+      }
+    };
+    ticker = new FakeTicker();
+    index = new TopicIndex(service, MMXServerConstants.TOPIC_INDEX_EXPIRY_MINUTES, ticker);
+  }
+
+  @Test
+  public void testBuildIndexesNodesOfTheAppOnly() {
+    Node topicA = addNode(APP_ID, "topicA");
+    Node topicB = addNode(APP_ID, "topicB");
+    Node foreign = addNode(OTHER_APP_ID, "topicA");
+    addSubscription(topicA, USER);
+    addSubscription(topicB, USER);
+    addSubscription(foreign, USER);
+
+    Set<String> nodeIds = nodeIdsOf(index.getSubscribedNodes(APP_ID, USER));
+    assertEquals(2, nodeIds.size());
+    assertTrue(nodeIds.contains(topicA.getNodeID()));
+    assertTrue(nodeIds.contains(topicB.getNodeID()));
+    assertFalse("Node of another app is indexed", nodeIds.contains(foreign.getNodeID()));
+  }
+
+  @Test
+  public void testLookupReturnsSubscribedNodesOfTheUser() {
+    Node topicA = addNode(APP_ID, "topicA");
+    Node topicB = addNode(APP_ID, "topicB");
+    Node topicC = addNode(APP_ID, "topicC");
+    addSubscription(topicA, USER);
+    addSubscription(topicC, USER);
+    addSubscription(topicB, OTHER_USER);
+
+    Set<String> subscribed = nodeIdsOf(index.getSubscribedNodes(APP_ID, USER));
+    assertEquals(2, subscribed.size());
+    assertTrue(subscribed.contains(topicA.getNodeID()));
+    assertTrue(subscribed.contains(topicC.getNodeID()));
+    //bare and full JID of the user find the same nodes
+    assertEquals(subscribed, nodeIdsOf(index.getSubscribedNodes(APP_ID, new JID(USER.toBareJID()))));
+    assertTrue(index.getSubscribedNodes(APP_ID, new JID("nobody%" + APP_ID + "@localhost")).isEmpty());
+  }
+
+  @Test
+  public void testLookupSkipsDeletedNodes() {
+    Node topicA = addNode(APP_ID, "topicA");
+    Node topicB = addNode(APP_ID, "topicB");
+    addSubscription(topicA, USER);
+    addSubscription(topicB, USER);
+    assertEquals(2, index.getSubscribedNodes(APP_ID, USER).size());
+
+    nodes.remove(topicB.getNodeID());
+    Set<String> subscribed = nodeIdsOf(index.getSubscribedNodes(APP_ID, USER));
+    assertEquals(1, subscribed.size());
+    assertTrue(subscribed.contains(topicA.getNodeID()));
+  }
+
+  @Test
+  public void testLocalUpdatesKeepTheIndexCurrent() {
+    Node topicA = addNode(APP_ID, "topicA");
+    assertTrue(index.getSubscribedNodes(APP_ID, USER).isEmpty());
+
+    Node topicB = addNode(APP_ID, "topicB");
+    index.subscribedLocal(APP_ID, topicB.getNodeID(), USER.toBareJID());
+    assertEquals(1, index.getSubscribedNodes(APP_ID, USER).size());
+
+    index.unsubscribedLocal(APP_ID, topicB.getNodeID(), USER.toBareJID());
+    assertTrue(index.getSubscribedNodes(APP_ID, USER).isEmpty());
+
+    index.subscribedLocal(APP_ID, topicA.getNodeID(), USER.toBareJID());
+    index.subscribedLocal(APP_ID, topicA.getNodeID(), OTHER_USER.toBareJID());
+    index.nodeDeletedLocal(APP_ID, topicA.getNodeID());
+    assertTrue(index.getSubscribedNodes(APP_ID, USER).isEmpty());
+    assertTrue(index.getSubscribedNodes(APP_ID, OTHER_USER).isEmpty());
+  }
+
+  @Test
+  public void testNativeSubscriptionsAreRecorded() {
+    Node topicA = addNode(APP_ID, "topicA");
+    assertTrue(index.getSubscribedNodes(APP_ID, USER).isEmpty());
+
+    //subscribed natively, the interceptor reports the change
+    addSubscription(topicA, USER);
+    index.subscriptionChanged(topicA.getNodeID(), USER);
+    List<Node> subscribed = index.getSubscribedNodes(APP_ID, USER);
+    assertEquals(1, subscribed.size());
+    assertEquals(topicA.getNodeID(), subscribed.get(0).getNodeID());
+
+    subscriptions.remove(topicA.getNodeID());
+    index.subscriptionChanged(topicA.getNodeID(), USER);
+    assertTrue(index.getSubscribedNodes(APP_ID, USER).isEmpty());
+  }
+
+  @Test
+  public void testUpdatesDuringBuildAreReplayed() {
+    final Node topicA = addNode(APP_ID, "topicA");
+    addSubscription(topicA, USER);
+    onScan = new Runnable() {
+      @Override
+      public void run() {
+        subscriptions.remove(topicA.getNodeID());
+        index.unsubscribedLocal(APP_ID, topicA.getNodeID(), USER.toBareJID());
+        addSubscription(topicA, OTHER_USER);
+        index.subscribedLocal(APP_ID, topicA.getNodeID(), OTHER_USER.toBareJID());
+      }
+    };
+
+    assertTrue("Unsubscribe during the build is lost", index.getSubscribedNodes(APP_ID, USER).isEmpty());
+    List<Node> subscribed = index.getSubscribedNodes(APP_ID, OTHER_USER);
+    assertEquals("Subscribe during the build is lost", 1, subscribed.size());
+    assertEquals(topicA.getNodeID(), subscribed.get(0).getNodeID());
+  }
+
+  @Test
+  public void testInvalidateDuringBuildRebuilds() {
+    final Node topicA = addNode(APP_ID, "topicA");
+    onScan = new Runnable() {
+      @Override
+      public void run() {
+        addSubscription(topicA, USER);
+        index.invalidateLocal(APP_ID);
+      }
+    };
+
+    assertEquals(1, index.getSubscribedNodes(APP_ID, USER).size());
+  }
+
+  @Test
+  public void testStaleSubscriptionsAreRebuiltAfterExpiry() {
+    Node topicA = addNode(APP_ID, "topicA");
+    assertTrue(index.getSubscribedNodes(APP_ID, USER).isEmpty());
+
+    //subscribed natively, without going through the topic manager
+    addSubscription(topicA, USER);
+    ticker.advance(MMXServerConstants.TOPIC_INDEX_EXPIRY_MINUTES - 1, TimeUnit.MINUTES);
+    assertTrue("Index rebuilt before expiry", index.getSubscribedNodes(APP_ID, USER).isEmpty());
+
+    ticker.advance(2, TimeUnit.MINUTES);
+    List<Node> subscribed = index.getSubscribedNodes(APP_ID, USER);
+    assertEquals("Index not rebuilt after expiry", 1, subscribed.size());
+    assertEquals(topicA.getNodeID(), subscribed.get(0).getNodeID());
+  }
+
+  @Test
+  public void testInvalidateRebuildsOnNextUse() {
+    Node topicA = addNode(APP_ID, "topicA");
+    assertTrue(index.getSubscribedNodes(APP_ID, USER).isEmpty());
+
+    Node topicB = addNode(APP_ID, "topicB");
+    addSubscription(topicA, USER);
+    addSubscription(topicB, USER);
+    index.invalidateLocal(APP_ID);
+    assertEquals(2, index.getSubscribedNodes(APP_ID, USER).size());
+  }
+
+  private Node addNode(String appId, String topic) {
+    Node node = new LeafNode(service, null, TopicHelper.makeTopic(appId, null, topic), null);
+    nodes.put(node.getNodeID(), node);
+    return node;
+  }
+
+  private void addSubscription(Node node, JID user) {
+    List<NodeSubscription> list = subscriptions.get(node.getNodeID());
+    if (list == null) {
+      list = new ArrayList<NodeSubscription>();
+      subscriptions.put(node.getNodeID(), list);
+    }
+    list.add(new NodeSubscription(node, user, user, NodeSubscription.State.subscribed,
+        node.getNodeID() + "-" + list.size()));
+  }
+
+  private static Set<String> nodeIdsOf(List<Node> list) {
+    Set<String> ids = new HashSet<String>(list.size());
+    for (Node node : list) {
+      ids.add(node.getNodeID());
+    }
+    return ids;
+  }
+
+  /**
+   * Ticker that only moves when the test advances it.
+   */
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    private void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+}
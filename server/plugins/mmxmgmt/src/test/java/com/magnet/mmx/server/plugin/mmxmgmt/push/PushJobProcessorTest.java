@@ -0,0 +1,259 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.push;
+
+import com.magnet.mmx.server.common.data.AppEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.PushResult;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.SendPushMessageRequest;
+import com.magnet.mmx.server.plugin.mmxmgmt.api.push.Target;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DbInteractionException;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceEntity;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceTargetResolver;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.PushJobEntity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class PushJobProcessorTest {
+  private static final String APP_ID = "pushjobapp";
+
+  private InMemoryPushJobDAO jobDAO;
+  private SendPushMessageRequest request;
+  private List<Integer> pageSizes;
+
+  @Before
+  public void setup() {
+    jobDAO = new InMemoryPushJobDAO();
+    request = new SendPushMessageRequest();
+    request.setBody("campaign");
+    Target target = new Target();
+    target.setDeviceIds(Arrays.asList("d5", "d3", "d1", "d4", "d2"));
+    request.setTarget(target);
+    pageSizes = new ArrayList<Integer>();
+  }
+
+  @Test
+  public void testProcessRecordsProgressAndCompletes() {
+    PushJobEntity job = jobDAO.getJob(jobDAO.createJob(APP_ID, "{}", PushJobEntity.State.RUNNING));
+    processor().process(job, request.getTarget(), 2, recorder());
+    assertEquals(Arrays.asList(2, 2, 1), pageSizes);
+    PushJobEntity updated = jobDAO.getJob(job.getId());
+    assertEquals(PushJobEntity.State.COMPLETE, updated.getState());
+    assertEquals(5, updated.getLastDeviceId());
+  }
+
+  @Test
+  public void testProcessContinuesAfterLastDevice() {
+    PushJobEntity job = jobDAO.getJob(jobDAO.createJob(APP_ID, "{}", PushJobEntity.State.RUNNING));
+    job.setLastDeviceId(2);
+    processor().process(job, request.getTarget(), 2, recorder());
+    assertEquals(Arrays.asList(2, 1), pageSizes);
+    assertEquals(PushJobEntity.State.COMPLETE, jobDAO.getJob(job.getId()).getState());
+  }
+
+  @Test
+  public void testCancelStopsAfterCurrentPage() {
+    final PushJobEntity job = jobDAO.getJob(jobDAO.createJob(APP_ID, "{}", PushJobEntity.State.RUNNING));
+    PushJobProcessor processor = processor();
+    processor.process(job, request.getTarget(), 2, new PushJobProcessor.PageListener() {
+      @Override
+      public void pagePushed(PushResult result) {
+        pageSizes.add(result.getCount().getRequested());
+        jobDAO.updateState(job.getId(), PushJobEntity.State.RUNNING, PushJobEntity.State.CANCELLED);
+      }
+    });
+    assertEquals(1, pageSizes.size());
+    assertTrue(processor.isCancelled());
+    PushJobEntity updated = jobDAO.getJob(job.getId());
+    assertEquals(PushJobEntity.State.CANCELLED, updated.getState());
+    assertEquals(2, updated.getLastDeviceId());
+  }
+
+  @Test
+  public void testManagerCancel() {
+    PushJobManager manager = new PushJobManager() {
+      @Override
+      protected PushJobDAO getPushJobDAO() {
+        return jobDAO;
+      }
+    };
+    int queued = jobDAO.createJob(APP_ID, "{}", PushJobEntity.State.QUEUED);
+    assertTrue(manager.cancel(queued));
+    assertEquals(PushJobEntity.State.CANCELLED, jobDAO.getJob(queued).getState());
+
+    int complete = jobDAO.createJob(APP_ID, "{}", PushJobEntity.State.RUNNING);
+    jobDAO.updateState(complete, PushJobEntity.State.RUNNING, PushJobEntity.State.COMPLETE);
+    assertFalse(manager.cancel(complete));
+    assertEquals(PushJobEntity.State.COMPLETE, jobDAO.getJob(complete).getState());
+  }
+
+  @Test
+  public void testManagerRequeuesStaleRunningJobs() {
+    PushJobManager manager = new PushJobManager() {
+      @Override
+      protected PushJobDAO getPushJobDAO() {
+        return jobDAO;
+      }
+    };
+    int stale = jobDAO.createJob(APP_ID, "{}", PushJobEntity.State.RUNNING);
+    jobDAO.jobs.get(stale).setDateUpdatedUTC(System.currentTimeMillis()/1000L - 601);
+    int running = jobDAO.createJob(APP_ID, "{}", PushJobEntity.State.RUNNING);
+    int queued = jobDAO.createJob(APP_ID, "{}", PushJobEntity.State.QUEUED);
+    jobDAO.jobs.get(queued).setDateUpdatedUTC(System.currentTimeMillis()/1000L - 601);
+
+    assertEquals(1, manager.requeueStaleJobs(600));
+    assertEquals(PushJobEntity.State.QUEUED, jobDAO.getJob(stale).getState());
+    assertEquals(PushJobEntity.State.RUNNING, jobDAO.getJob(running).getState());
+    assertEquals(PushJobEntity.State.QUEUED, jobDAO.getJob(queued).getState());
+  }
+
+  private PushJobProcessor.PageListener recorder() {
+    return new PushJobProcessor.PageListener() {
+      @Override
+      public void pagePushed(PushResult result) {
+        pageSizes.add(result.getCount().getRequested());
+      }
+    };
+  }
+
+  /**
+   * Processor for devices without a push type, so that no push is sent; a page result counts the
+   * devices of the page instead.
+   */
+  private PushJobProcessor processor() {
+    AppEntity appEntity = new AppEntity();
+    appEntity.setAppId(APP_ID);
+    return new PushJobProcessor(appEntity, request, jobDAO) {
+      @Override
+      PushResult pushPage(List<DeviceEntity> page) {
+        PushResult result = super.pushPage(page);
+        result.getCount().setRequested(page.size());
+        return result;
+      }
+
+      @Override
+      protected DeviceTargetResolver getResolver() {
+        return new DeviceTargetResolver() {
+          @Override
+          public List<DeviceEntity> resolve(String appId, Target target) {
+            List<DeviceEntity> devices = new ArrayList<DeviceEntity>();
+            for (String deviceId : target.getDeviceIds()) {
+              DeviceEntity device = new DeviceEntity();
+              device.setId(Integer.parseInt(deviceId.substring(1)));
+              device.setDeviceId(deviceId);
+              device.setAppId(appId);
+              devices.add(device);
+            }
+            return devices;
+          }
+        };
+      }
+    };
+  }
+
+  private static class InMemoryPushJobDAO implements PushJobDAO {
+    private final Map<Integer, PushJobEntity> jobs = new HashMap<Integer, PushJobEntity>();
+
+    @Override
+    public int createJob(String appId, String request, PushJobEntity.State state) throws DbInteractionException {
+      PushJobEntity job = new PushJobEntity();
+      job.setId(jobs.size() + 1);
+      job.setAppId(appId);
+      job.setRequest(request);
+      job.setState(state);
+      job.setDateUpdatedUTC(System.currentTimeMillis()/1000L);
+      jobs.put(job.getId(), job);
+      return job.getId();
+    }
+
+    @Override
+    public PushJobEntity getJob(int id) throws DbInteractionException {
+      PushJobEntity job = jobs.get(id);
+      if (job == null) {
+        return null;
+      }
+      PushJobEntity copy = new PushJobEntity();
+      copy.setId(job.getId());
+      copy.setAppId(job.getAppId());
+      copy.setRequest(job.getRequest());
+      copy.setState(job.getState());
+      copy.setLastDeviceId(job.getLastDeviceId());
+      copy.setRequested(job.getRequested());
+      copy.setSent(job.getSent());
+      copy.setUnsent(job.getUnsent());
+      copy.setInvalidToken(job.getInvalidToken());
+      return copy;
+    }
+
+    @Override
+    public List<PushJobEntity> getJobs(PushJobEntity.State state) throws DbInteractionException {
+      List<PushJobEntity> list = new ArrayList<PushJobEntity>();
+      for (PushJobEntity job : jobs.values()) {
+        if (job.getState() == state) {
+          list.add(getJob(job.getId()));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void updateProgress(int id, int lastDeviceId, int requested, int sent, int unsent, int invalidToken)
+        throws DbInteractionException {
+      PushJobEntity job = jobs.get(id);
+      job.setLastDeviceId(lastDeviceId);
+      job.setRequested(requested);
+      job.setSent(sent);
+      job.setUnsent(unsent);
+      job.setInvalidToken(invalidToken);
+      job.setDateUpdatedUTC(System.currentTimeMillis()/1000L);
+    }
+
+    @Override
+    public boolean updateState(int id, PushJobEntity.State expected, PushJobEntity.State state)
+        throws DbInteractionException {
+      PushJobEntity job = jobs.get(id);
+      if (job == null || job.getState() != expected) {
+        return false;
+      }
+      job.setState(state);
+      job.setDateUpdatedUTC(System.currentTimeMillis()/1000L);
+      return true;
+    }
+
+    @Override
+    public int requeueStaleJobs(long updatedBeforeUTC) throws DbInteractionException {
+      int count = 0;
+      for (PushJobEntity job : jobs.values()) {
+        if (job.getState() == PushJobEntity.State.RUNNING && job.getDateUpdatedUTC() < updatedBeforeUTC) {
+          job.setState(PushJobEntity.State.QUEUED);
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+}
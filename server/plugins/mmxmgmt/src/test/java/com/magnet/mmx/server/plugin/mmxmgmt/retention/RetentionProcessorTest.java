@@ -0,0 +1,199 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.retention;
+
+import com.google.common.base.Charsets;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.DbInteractionException;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.RetentionDAO;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.RetentionTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class RetentionProcessorTest {
+  private static final long NOW = 1443657600000L; // October 1, 2015 00:00:00 UTC
+  private static final long DAY = 24L * 60L * 60L;
+  private static final String APP_1 = "retentionapp1";
+  private static final String APP_2 = "retentionapp2";
+
+  private InMemoryRetentionDAO dao;
+  private File archiveDir;
+
+  @Before
+  public void setup() {
+    dao = new InMemoryRetentionDAO();
+    archiveDir = new File(System.getProperty("java.io.tmpdir"), "mmx-retention-" + System.nanoTime());
+  }
+
+  @After
+  public void teardown() {
+    File[] files = archiveDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    archiveDir.delete();
+  }
+
+  @Test
+  public void testPurgeInBatches() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      dao.add(RetentionTable.MESSAGE, APP_1, i, NOW / 1000L - 40 * DAY);
+    }
+    dao.add(RetentionTable.MESSAGE, APP_1, 10, NOW / 1000L - DAY);
+    long purged = new TestProcessor(30).purge(NOW, 2, 0L, null);
+    assertEquals(5, purged);
+    assertEquals(3, dao.deleteCount);
+    assertEquals(1, dao.rows.size());
+    assertEquals(10, dao.rows.get(0).get("id"));
+  }
+
+  @Test
+  public void testPerAppRetention() throws Exception {
+    dao.add(RetentionTable.WAKEUP, APP_1, 1, NOW / 1000L - 5 * DAY);
+    dao.add(RetentionTable.WAKEUP, APP_2, 2, NOW / 1000L - 5 * DAY);
+    dao.add(RetentionTable.PUSH_MESSAGE, APP_2, 3, NOW / 1000L - 500 * DAY);
+    TestProcessor processor = new TestProcessor(30);
+    //app1 keeps wakeups for a day, app2 keeps everything forever
+    processor.days.put(APP_1, 1);
+    processor.days.put(APP_2, 0);
+    assertEquals(1, processor.purge(NOW, 100, 0L, null));
+    assertEquals(2, dao.rows.size());
+    for (Map<String, Object> row : dao.rows) {
+      assertEquals(APP_2, row.get("appId"));
+    }
+  }
+
+  @Test
+  public void testArchive() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      dao.add(RetentionTable.PUSH_MESSAGE, APP_1, i, NOW / 1000L - 40 * DAY);
+    }
+    long archivedBefore = RetentionStats.getInstance().getArchivedCount();
+    assertEquals(3, new TestProcessor(30).purge(NOW, 2, 0L, archiveDir));
+    assertEquals(3, RetentionStats.getInstance().getArchivedCount() - archivedBefore);
+
+    File file = new RetentionArchiver(archiveDir, new java.util.Date(NOW)).getFile(RetentionTable.PUSH_MESSAGE);
+    assertEquals("mmxPushMessage-20151001-000000.ndjson.gz", file.getName());
+    //two batches are two gzip members that read back as one stream
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)),
+        Charsets.UTF_8));
+    List<String> lines = new ArrayList<String>();
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    assertEquals(3, lines.size());
+    for (String line : lines) {
+      assertTrue(line, line.startsWith("{\"messageId\":") && line.contains("\"appId\":\"" + APP_1 + "\""));
+    }
+  }
+
+  private class TestProcessor extends RetentionProcessor {
+    private final int defaultDays;
+    private final Map<String, Integer> days = new LinkedHashMap<String, Integer>();
+
+    TestProcessor(int defaultDays) {
+      super(null);
+      this.defaultDays = defaultDays;
+    }
+
+    @Override
+    protected int getRetentionDays(String appId, RetentionTable table) {
+      Integer appDays = days.get(appId);
+      return appDays != null ? appDays : defaultDays;
+    }
+
+    @Override
+    protected List<String> getAppIds() {
+      return Arrays.asList(APP_1, APP_2);
+    }
+
+    @Override
+    protected RetentionDAO getRetentionDAO() {
+      return dao;
+    }
+  }
+
+  private static class InMemoryRetentionDAO implements RetentionDAO {
+    private final List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+    private int deleteCount;
+
+    void add(RetentionTable table, String appId, int key, long date) {
+      Map<String, Object> row = new LinkedHashMap<String, Object>();
+      row.put(table.getKeyColumn(), table == RetentionTable.PUSH_MESSAGE ? (Object) ("m" + key) : key);
+      row.put("appId", appId);
+      row.put(table.getDateColumn(), date);
+      row.put("table", table);
+      rows.add(row);
+    }
+
+    @Override
+    public List<Map<String, Object>> getExpiredRows(RetentionTable table, String appId, long cutoffUTC, int limit,
+                                                    boolean allColumns) throws DbInteractionException {
+      List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+      for (Map<String, Object> row : rows) {
+        if (result.size() < limit && isExpired(row, table, appId, cutoffUTC)) {
+          Map<String, Object> copy = new LinkedHashMap<String, Object>(row);
+          copy.remove("table");
+          result.add(copy);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public int deleteRows(RetentionTable table, List<Object> keys, long cutoffUTC) throws DbInteractionException {
+      deleteCount++;
+      int count = 0;
+      for (Iterator<Map<String, Object>> iterator = rows.iterator(); iterator.hasNext(); ) {
+        Map<String, Object> row = iterator.next();
+        if (row.get("table") == table && keys.contains(row.get(table.getKeyColumn())) &&
+            ((Long) row.get(table.getDateColumn())) < cutoffUTC) {
+          iterator.remove();
+          count++;
+        }
+      }
+      return count;
+    }
+
+    private static boolean isExpired(Map<String, Object> row, RetentionTable table, String appId, long cutoffUTC) {
+      return row.get("table") == table && appId.equals(row.get("appId")) &&
+          ((Long) row.get(table.getDateColumn())) < cutoffUTC;
+    }
+  }
+}
@@ -14,6 +14,7 @@
  */
 package com.magnet.mmx.server.plugin.mmxmgmt.util;
 
+import com.google.common.cache.CacheLoader;
 import com.magnet.mmx.server.common.data.AppEntity;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.BasicDataSourceConnectionProvider;
 import com.magnet.mmx.server.plugin.mmxmgmt.db.DeviceDAOImplSearchTest;
@@ -29,6 +30,7 @@ import org.junit.Test;
 
 import java.io.InputStream;
 import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -38,6 +40,7 @@ import static org.junit.Assert.assertNull;
 public class AppEntityDBLoadingEntityCacheTest {
   private static BasicDataSource ds;
   private static AppEntityDBLoadingEntityCache appCache;
+  private static AppEntityDBLoadingEntityCache.AppEntityDBLoader loader;
   @BeforeClass
   public static void setup() throws Exception {
     ds = UnitTestDSProvider.getDataSource();
@@ -53,7 +56,7 @@ public class AppEntityDBLoadingEntityCacheTest {
       DatabaseOperation.CLEAN_INSERT.execute(con, dataSet);
     }
 
-    AppEntityDBLoadingEntityCache.AppEntityDBLoader loader = new AppEntityDBLoadingEntityCache.AppEntityDBLoader(new BasicDataSourceConnectionProvider(ds));
+    loader = new AppEntityDBLoadingEntityCache.AppEntityDBLoader(new BasicDataSourceConnectionProvider(ds));
     appCache = new AppEntityDBLoadingEntityCache(10, loader);
 
   }
@@ -74,4 +77,50 @@ public class AppEntityDBLoadingEntityCacheTest {
     AppEntity appEntity = appCache.get(appId);
     assertNull("App Entity is null", appEntity);
   }
+
+  @Test
+  public void testAppIsLoadedOnce() throws Exception {
+    CountingLoader counting = new CountingLoader();
+    AppEntityDBLoadingEntityCache cache = new AppEntityDBLoadingEntityCache(10, counting);
+    String appId = "i0sq7ddvi18";
+    assertNotNull(cache.get(appId));
+    assertNotNull(cache.get(appId));
+    assertEquals("app loaded more than once", 1, counting.loads.get());
+
+    cache.purge(appId);
+    assertNotNull(cache.get(appId));
+    assertEquals("app not reloaded after purge", 2, counting.loads.get());
+  }
+
+  @Test
+  public void testUnknownAppIdIsRemembered() throws Exception {
+    CountingLoader counting = new CountingLoader();
+    AppEntityDBLoadingEntityCache cache = new AppEntityDBLoadingEntityCache(10, counting);
+    String appId = "unknownapp";
+    for (int i = 0; i < 5; i++) {
+      assertNull(cache.get(appId));
+    }
+    assertEquals("unknown appId looked up more than once", 1, counting.loads.get());
+    assertEquals(1, cache.getMissingSize());
+
+    //creating the app purges the unknown appId
+    cache.purge(appId);
+    assertNull(cache.get(appId));
+    assertEquals(2, counting.loads.get());
+  }
+
+  @Test
+  public void testNullAppId() throws Exception {
+    assertNull(appCache.get(null));
+  }
+
+  private static class CountingLoader extends CacheLoader<String, AppEntity> {
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Override
+    public AppEntity load(String key) throws Exception {
+      loads.incrementAndGet();
+      return loader.load(key);
+    }
+  }
 }
@@ -85,6 +85,11 @@ public class DBTestUtil {
   public static TopicDAO getTopicDAO() { return new TopicDAOImpl(new BasicDataSourceConnectionProvider(ds));}
 
   public static TopicItemDAO getTopicItemDAO() { return new TopicItemDAOImpl(new BasicDataSourceConnectionProvider(ds));}
+
+  public static PushJobDAO getPushJobDAO() {
+    return new PushJobDAOImpl(new BasicDataSourceConnectionProvider(ds));
+  }
+
   /**
    * Delete all records from the tables specified in tables array. The deletes are executed in
    * the same order as the entries in the tables array.
@@ -163,6 +168,11 @@ public class DBTestUtil {
 
       @Mock
       public TopicItemDAO getTopicItemDAO() { return DBTestUtil.getTopicItemDAO(); }
+
+      @Mock
+      public PushJobDAO getPushJobDAO() {
+        return DBTestUtil.getPushJobDAO();
+      }
     };
   }
 }
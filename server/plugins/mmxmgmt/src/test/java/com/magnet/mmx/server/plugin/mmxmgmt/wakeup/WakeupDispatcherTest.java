@@ -0,0 +1,145 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.wakeup;
+
+import com.magnet.mmx.protocol.PushType;
+import com.magnet.mmx.server.plugin.mmxmgmt.db.WakeupEntity;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ */
+public class WakeupDispatcherTest {
+  private static ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @AfterClass
+  public static void teardown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testGCMGroupedBySenderAndPayload() {
+    RecordingNotifier gcm = new RecordingNotifier(null);
+    RecordingNotifier apns = new RecordingNotifier(null);
+    WakeupDispatchStats stats = new WakeupDispatchStats();
+    WakeupDispatcher dispatcher = new WakeupDispatcher(gcm, apns, executor, 100, stats);
+
+    for (int i = 0; i < 2500; i++) {
+      dispatcher.addGCM(entity(i, PushType.GCM, null, "key1", "wakeup", "token" + i));
+    }
+    dispatcher.addGCM(entity(3000, PushType.GCM, null, "key2", "wakeup", "tokenA"));
+    dispatcher.addGCM(entity(3001, PushType.GCM, null, "key1", "other", "tokenB"));
+
+    WakeupDispatcher.Result result = dispatcher.dispatch();
+    //1000 + 1000 + 500 for key1, one each for the other two groups
+    assertEquals(5, gcm.sizes.size());
+    assertEquals(Integer.valueOf(WakeupDispatcher.GCM_MULTICAST_LIMIT), Collections.max(gcm.sizes));
+    assertEquals(0, apns.sizes.size());
+    assertEquals(2502, result.getCompleted().size());
+    assertEquals(2502, stats.getSentCount());
+    assertEquals(5, stats.getRequestCount());
+  }
+
+  @Test
+  public void testAPNSChunksAndResultMapping() {
+    RecordingNotifier gcm = new RecordingNotifier("badtoken");
+    RecordingNotifier apns = new RecordingNotifier(null);
+    WakeupDispatchStats stats = new WakeupDispatchStats();
+    WakeupDispatcher dispatcher = new WakeupDispatcher(gcm, apns, executor, 10, stats);
+
+    for (int i = 0; i < 25; i++) {
+      dispatcher.addAPNS(entity(i, PushType.APNS, "app1", null, "{}", "apns" + i), false);
+    }
+    dispatcher.addAPNS(entity(100, PushType.APNS, "app1", null, "{}", "apnsprod"), true);
+    dispatcher.addGCM(entity(200, PushType.GCM, "app2", "key", "wakeup", "good"));
+    dispatcher.addGCM(entity(201, PushType.GCM, "app2", "key", "wakeup", "badtoken"));
+
+    WakeupDispatcher.Result result = dispatcher.dispatch();
+    //10 + 10 + 5 sandbox, 1 production
+    assertEquals(4, apns.sizes.size());
+    assertEquals(1, gcm.sizes.size());
+    assertEquals(27, result.getCompleted().size());
+    assertEquals(1, result.getInvalidToken().size());
+    assertEquals("badtoken", result.getInvalidToken().get(0).getToken());
+    assertEquals(26, stats.getSentCount("app1"));
+    assertEquals(1, stats.getSentCount("app2"));
+    assertEquals(1, stats.getInvalidTokenCount());
+  }
+
+  @Test
+  public void testFailedBatchIsNotCompleted() {
+    WakeupNotifier failing = new WakeupNotifier() {
+      @Override
+      public List<NotificationResult> sendNotification(List<String> deviceTokens, String payload,
+                                                       NotificationSystemContext context) {
+        throw new RuntimeException("connection refused");
+      }
+    };
+    WakeupDispatchStats stats = new WakeupDispatchStats();
+    WakeupDispatcher dispatcher = new WakeupDispatcher(failing, failing, executor, 10, stats);
+    dispatcher.addGCM(entity(1, PushType.GCM, null, "key", "wakeup", "token1"));
+    dispatcher.addGCM(entity(2, PushType.GCM, null, "key", "wakeup", "token2"));
+
+    WakeupDispatcher.Result result = dispatcher.dispatch();
+    assertEquals(0, result.getCompleted().size());
+    assertEquals(2, stats.getFailedCount(null));
+  }
+
+  private static WakeupEntity entity(int id, PushType type, String appId, String sender, String payload, String token) {
+    WakeupEntity entity = new WakeupEntity();
+    entity.setId(id);
+    entity.setType(type);
+    entity.setAppId(appId);
+    entity.setSenderIdentifier(sender);
+    entity.setPayload(payload);
+    entity.setToken(token);
+    entity.setDeviceId("device" + id);
+    entity.setMessageId("message" + id);
+    return entity;
+  }
+
+  /**
+   * Notifier that records the size of every request. The invalid token, if supplied, is
+   * reported as invalid.
+   */
+  private static class RecordingNotifier implements WakeupNotifier {
+    private final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+    private final String invalidToken;
+
+    private RecordingNotifier(String invalidToken) {
+      this.invalidToken = invalidToken;
+    }
+
+    @Override
+    public List<NotificationResult> sendNotification(List<String> deviceTokens, String payload,
+                                                     NotificationSystemContext context) {
+      sizes.add(deviceTokens.size());
+      List<NotificationResult> results = new ArrayList<NotificationResult>(deviceTokens.size());
+      for (String token : deviceTokens) {
+        results.add(token.equals(invalidToken) ? NotificationResult.DELIVERY_FAILED_INVALID_TOKEN :
+            NotificationResult.DELIVERY_IN_PROGRESS_ASSUME_WILL_EVENTUALLY_DELIVER);
+      }
+      return results;
+    }
+  }
+}
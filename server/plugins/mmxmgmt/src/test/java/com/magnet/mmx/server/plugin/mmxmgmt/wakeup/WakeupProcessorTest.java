@@ -38,6 +38,9 @@ import java.sql.SQLException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -103,9 +106,12 @@ public class WakeupProcessorTest {
     processor.run();
     WakeupNotifier notifier = processor.getGCMWakeupNotifier();
 
-    int callCount =  ((StubWakeupNotifier) notifier).callCount;
+    int callCount =  ((StubWakeupNotifier) notifier).callCount.get();
+    int tokenCount =  ((StubWakeupNotifier) notifier).tokenCount.get();
 
-    assertEquals("Non matching call count", 4, callCount);
+    //the four GCM records share the api key and payload and are sent as one multicast request
+    assertEquals("Non matching call count", 1, callCount);
+    assertEquals("Non matching token count", 4, tokenCount);
 
     WakeupEntityDAO dao = processor.getWakeupEntityDAO();
 
@@ -121,6 +127,7 @@ public class WakeupProcessorTest {
     private WakeupEntityDAO dao = new WakeupEntityDAOImpl(new BasicDataSourceConnectionProvider(ds));
     private WakeupNotifier notifier = new StubWakeupNotifier();
     private WakeupNotifier apnsNotifier = new StubAPNSWakeupNotifier();
+    private ExecutorService executor = Executors.newFixedThreadPool(2);
 
     public StubWakeupProcessor(Lock lock) {
       super(lock);
@@ -146,6 +153,11 @@ public class WakeupProcessorTest {
       return apnsNotifier;
     }
 
+    @Override
+    protected WakeupDispatcher getWakeupDispatcher() {
+      return new WakeupDispatcher(notifier, apnsNotifier, executor, 100);
+    }
+
     @Override
     protected AppEntity getAppEntity(String appId) {
       AppEntity appEntity = new AppEntity();
@@ -155,7 +167,8 @@ public class WakeupProcessorTest {
   }
 
   public static class StubWakeupNotifier implements WakeupNotifier {
-    private int callCount = 0;
+    private AtomicInteger callCount = new AtomicInteger();
+    private AtomicInteger tokenCount = new AtomicInteger();
     @Override
     public List<NotificationResult> sendNotification(List<String> deviceTokens, String payload, NotificationSystemContext context) {
       String senderIdentifier = null;
@@ -167,14 +180,15 @@ public class WakeupProcessorTest {
       assertTrue("payload is not null", (payload != null && !payload.isEmpty()));
       assertNotNull("senderIdentifier is null", senderIdentifier);
 
-      List<NotificationResult> rv = Collections.singletonList(NotificationResult.DELIVERY_IN_PROGRESS_ASSUME_WILL_EVENTUALLY_DELIVER);
-      callCount ++;
+      List<NotificationResult> rv = Collections.nCopies(deviceTokens.size(), NotificationResult.DELIVERY_IN_PROGRESS_ASSUME_WILL_EVENTUALLY_DELIVER);
+      callCount.incrementAndGet();
+      tokenCount.addAndGet(deviceTokens.size());
       return rv;
     }
   }
 
   public static class StubAPNSWakeupNotifier implements WakeupNotifier {
-    private int callCount = 0;
+    private AtomicInteger callCount = new AtomicInteger();
     @Override
     public List<NotificationResult> sendNotification(List<String> deviceTokens, String payload, NotificationSystemContext context) {
       String senderIdentifier = null;
@@ -184,8 +198,8 @@ public class WakeupProcessorTest {
       assertTrue("payload is not null", (payload != null && !payload.isEmpty()));
       assertTrue("context is not APNS", correctContext);
 
-      List<NotificationResult> rv = Collections.singletonList(NotificationResult.DELIVERY_IN_PROGRESS_ASSUME_WILL_EVENTUALLY_DELIVER);
-      callCount ++;
+      List<NotificationResult> rv = Collections.nCopies(deviceTokens.size(), NotificationResult.DELIVERY_IN_PROGRESS_ASSUME_WILL_EVENTUALLY_DELIVER);
+      callCount.incrementAndGet();
       return rv;
     }
   }
@@ -0,0 +1,91 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.server.plugin.mmxmgmt.wakeup;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ */
+public class WakeupShardManagerTest {
+
+  @Test
+  public void testShardMatchesMySQLCrc32() {
+    //values from SELECT MOD(CRC32('device2'), 16), MOD(CRC32('12345678987654323'), 16)
+    assertEquals(12, WakeupShardManager.shardOf("device2", 16));
+    assertEquals(6, WakeupShardManager.shardOf("12345678987654323", 16));
+  }
+
+  @Test
+  public void testShardsAreSpreadOverMembers() {
+    List<String> members = Arrays.asList("node-c", "node-a", "node-b");
+    Set<Integer> all = new HashSet<Integer>();
+    int total = 0;
+    for (String member : members) {
+      List<Integer> shards = WakeupShardManager.assignedShards(members, member, 16);
+      assertTrue("Unbalanced assignment " + shards, shards.size() == 5 || shards.size() == 6);
+      all.addAll(shards);
+      total += shards.size();
+    }
+    assertEquals(16, total);
+    assertEquals(16, all.size());
+    //order of the member list doesn't matter
+    assertEquals(WakeupShardManager.assignedShards(members, "node-a", 16),
+        WakeupShardManager.assignedShards(Arrays.asList("node-a", "node-b", "node-c"), "node-a", 16));
+  }
+
+  @Test
+  public void testUnknownMemberGetsNoShards() {
+    assertTrue(WakeupShardManager.assignedShards(Arrays.asList("node-a"), "node-x", 16).isEmpty());
+    assertEquals(16, WakeupShardManager.assignedShards(Arrays.asList("node-a"), "node-a", 16).size());
+  }
+
+  @Test
+  public void testRebalanceIsDeferredUntilRunEnds() {
+    CountingShardManager manager = new CountingShardManager();
+    manager.beginRun();
+    assertEquals(1, manager.claims);
+    //a member joins while the chunk of this run is processed
+    manager.joinedCluster(new byte[]{1});
+    manager.leftCluster(new byte[]{2});
+    assertEquals(1, manager.claims);
+    manager.endRun();
+    assertEquals(2, manager.claims);
+    //without a run in progress the rebalance is immediate
+    manager.joinedCluster(new byte[]{1});
+    assertEquals(3, manager.claims);
+  }
+
+  private static class CountingShardManager extends WakeupShardManager {
+    private int claims;
+
+    CountingShardManager() {
+      super(16, 60);
+    }
+
+    @Override
+    public synchronized List<Integer> claimShards() {
+      claims++;
+      return Arrays.asList(0, 1);
+    }
+  }
+}